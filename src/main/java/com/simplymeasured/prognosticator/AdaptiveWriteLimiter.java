@@ -0,0 +1,306 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Maps;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.client.RetriesExhaustedException;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Limits concurrent writes per table, adapting the limit to how HBase is coping (AIMD).
+ * <p/>
+ * Each table starts at {@link #WRITE_INITIAL_CONCURRENCY} concurrent writes, where a batch of rows sent in one
+ * call is one write. Every write that completes within {@link #WRITE_LATENCY_TARGET_MILLIS}, allowed once per
+ * {@link #WRITE_LATENCY_TARGET_ROWS} rows of a batch, raises the limit by about one per round trip, up to
+ * {@link #WRITE_MAX_CONCURRENCY}. Slower writes shrink it by 10%, and overload errors (region too busy, timeouts,
+ * exhausted retries) halve it. Only writes started after the last decrease can shrink it again, so one
+ * burst of failures doesn't collapse the limit.
+ * <p/>
+ * Tables can also be given a fixed rate in rows per second, enforced with a token bucket holding up to a second
+ * of rows. A batch larger than that waits for a full bucket and leaves it in debt.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class AdaptiveWriteLimiter {
+    private static final Log LOG = LogFactory.getLog(AdaptiveWriteLimiter.class);
+
+    public static final String WRITE_INITIAL_CONCURRENCY = "prognosticator.write_initial_concurrency";
+    public static final String WRITE_MAX_CONCURRENCY = "prognosticator.write_max_concurrency";
+    public static final String WRITE_LATENCY_TARGET_MILLIS = "prognosticator.write_latency_target_millis";
+    public static final String WRITE_LATENCY_TARGET_ROWS = "prognosticator.write_latency_target_rows";
+
+    private static final double SLOW_DECREASE = 0.9;
+    private static final double OVERLOAD_DECREASE = 0.5;
+
+    private final ConcurrentMap<String, TableLimit> limits = Maps.newConcurrentMap();
+
+    private final int initialConcurrency;
+    private final int maxConcurrency;
+    private final long latencyTargetNanos;
+    private final int latencyTargetRows;
+
+    public AdaptiveWriteLimiter() {
+        this(Integer.getInteger(WRITE_INITIAL_CONCURRENCY, 8), Integer.getInteger(WRITE_MAX_CONCURRENCY, 64),
+                Long.getLong(WRITE_LATENCY_TARGET_MILLIS, 100), Integer.getInteger(WRITE_LATENCY_TARGET_ROWS, 100));
+    }
+
+    public AdaptiveWriteLimiter(int initialConcurrency, int maxConcurrency, long latencyTargetMillis) {
+        this(initialConcurrency, maxConcurrency, latencyTargetMillis, 100);
+    }
+
+    /**
+     * @param latencyTargetRows how many rows of a batch one latency target covers
+     */
+    public AdaptiveWriteLimiter(int initialConcurrency, int maxConcurrency, long latencyTargetMillis,
+                                int latencyTargetRows) {
+        this.initialConcurrency = Math.min(initialConcurrency, maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+        this.latencyTargetRows = Math.max(1, latencyTargetRows);
+    }
+
+    /**
+     * @param tableName the table
+     * @param rowsPerSecond the most rows per second to write to the table, or 0 for no fixed rate
+     */
+    public void setTableRate(String tableName, double rowsPerSecond) {
+        TableLimit limit = getLimit(tableName);
+
+        synchronized(limit) {
+            limit.rate = rowsPerSecond;
+            limit.tokens = Math.min(limit.tokens, Math.max(1, rowsPerSecond));
+            limit.notifyAll();
+        }
+    }
+
+    /**
+     * @return the table's current concurrency limit
+     */
+    public double getConcurrencyLimit(String tableName) {
+        TableLimit limit = getLimit(tableName);
+
+        synchronized(limit) {
+            return limit.limit;
+        }
+    }
+
+    public int getInFlight(String tableName) {
+        TableLimit limit = getLimit(tableName);
+
+        synchronized(limit) {
+            return limit.inFlight;
+        }
+    }
+
+    /**
+     * Wait for a table's limits to allow another single row write
+     *
+     * @param tableName the table to write to
+     * @return the write's start time, to pass to {@link #release}
+     * @throws InterruptedException
+     */
+    public long acquire(String tableName) throws InterruptedException {
+        return acquire(tableName, 1);
+    }
+
+    /**
+     * Wait for a table's limits to allow another write
+     *
+     * @param tableName the table to write to
+     * @param rows the number of rows written
+     * @return the write's start time, to pass to {@link #release}
+     * @throws InterruptedException
+     */
+    public long acquire(String tableName, int rows) throws InterruptedException {
+        TableLimit limit = getLimit(tableName);
+
+        synchronized(limit) {
+            while(true) {
+                if(limit.inFlight < (int) limit.limit) {
+                    long waitNanos = limit.takeTokens(System.nanoTime(), rows);
+
+                    if(waitNanos == 0) {
+                        limit.inFlight++;
+
+                        return System.nanoTime();
+                    }
+
+                    TimeUnit.NANOSECONDS.timedWait(limit, waitNanos);
+                } else {
+                    limit.wait();
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the outcome of a single row write and adjust the table's limit
+     *
+     * @param tableName the table written to
+     * @param startNanos the value returned by {@link #acquire}
+     * @param error why the write failed, or null if it succeeded
+     */
+    public void release(String tableName, long startNanos, Throwable error) {
+        release(tableName, startNanos, 1, error);
+    }
+
+    /**
+     * Record the outcome of a write and adjust the table's limit
+     *
+     * @param tableName the table written to
+     * @param startNanos the value returned by {@link #acquire}
+     * @param rows the number of rows written, as passed to {@link #acquire(String, int)}
+     * @param error why the write failed, or null if it succeeded
+     */
+    public void release(String tableName, long startNanos, int rows, Throwable error) {
+        TableLimit limit = getLimit(tableName);
+        long now = System.nanoTime();
+        long targetNanos = latencyTargetNanos * ((Math.max(1, rows) + latencyTargetRows - 1) / latencyTargetRows);
+
+        synchronized(limit) {
+            limit.inFlight--;
+
+            if(error != null) {
+                if(isOverload(error)) {
+                    decrease(tableName, limit, startNanos, now, OVERLOAD_DECREASE);
+                }
+            } else if(now - startNanos > targetNanos) {
+                decrease(tableName, limit, startNanos, now, SLOW_DECREASE);
+            } else {
+                limit.limit = Math.min(maxConcurrency, limit.limit + 1.0 / limit.limit);
+            }
+
+            limit.notifyAll();
+        }
+    }
+
+    private void decrease(String tableName, TableLimit limit, long startNanos, long now, double ratio) {
+        // writes already in flight at the last decrease reflect the old limit
+        if(startNanos - limit.lastDecreaseNanos < 0) {
+            return;
+        }
+
+        limit.limit = Math.max(1, limit.limit * ratio);
+        limit.lastDecreaseNanos = now;
+
+        if(LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Write concurrency for %s lowered to %.1f", tableName, limit.limit));
+        }
+    }
+
+    /**
+     * @param error a write failure
+     * @return true if the failure means HBase is overloaded, rather than that the write was bad
+     */
+    protected boolean isOverload(Throwable error) {
+        for(Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if(cause instanceof DoNotRetryIOException) {
+                return false;
+            }
+
+            if(cause instanceof RetriesExhaustedWithDetailsException) {
+                // a failed batch lists each mutation's failure, which may just be bad writes
+                for(Throwable detail: ((RetriesExhaustedWithDetailsException) cause).getCauses()) {
+                    if(isOverload(detail)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            if(cause instanceof SocketTimeoutException || cause instanceof TimeoutException
+                    || cause instanceof RetriesExhaustedException
+                    // added to HBase after 0.94, matched by name for clusters that backport it
+                    || cause.getClass().getSimpleName().equals("RegionTooBusyException")) {
+                return true;
+            }
+
+            if(cause.getCause() == cause) {
+                break;
+            }
+        }
+
+        return false;
+    }
+
+    private TableLimit getLimit(String tableName) {
+        TableLimit limit = limits.get(tableName);
+
+        if(limit == null) {
+            TableLimit newLimit = new TableLimit(initialConcurrency, System.nanoTime());
+            limit = limits.putIfAbsent(tableName, newLimit);
+
+            if(limit == null) {
+                limit = newLimit;
+            }
+        }
+
+        return limit;
+    }
+
+    private static class TableLimit {
+        private double limit;
+        private int inFlight;
+        private long lastDecreaseNanos;
+
+        // token bucket, unused while rate is 0
+        private double rate;
+        private double tokens;
+        private long lastRefillNanos;
+
+        TableLimit(double limit, long now) {
+            this.limit = limit;
+            this.lastDecreaseNanos = now;
+            this.lastRefillNanos = now;
+        }
+
+        /**
+         * @return 0 if the tokens were taken, otherwise how long until enough are available
+         */
+        long takeTokens(long now, int count) {
+            if(rate <= 0) {
+                return 0;
+            }
+
+            double capacity = Math.max(1, rate);
+            double refill = (now - lastRefillNanos) * rate / TimeUnit.SECONDS.toNanos(1);
+
+            tokens = Math.min(capacity, tokens + refill);
+            lastRefillNanos = now;
+
+            // a batch larger than the bucket goes once it's full, and the debt delays later writes
+            double needed = Math.min(capacity, count);
+
+            if(tokens >= needed) {
+                tokens -= count;
+                return 0;
+            }
+
+            return Math.max(1, (long) ((needed - tokens) * TimeUnit.SECONDS.toNanos(1) / rate));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads rows without blocking the calling thread
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public interface AsyncHiveReader {
+    /**
+     * Read a row in the background.
+     *
+     * @param tableName the HCatalog table name
+     * @param keyObject the rowkey, in any form {@link HiveReader#readRow(String, Object)} accepts
+     * @return a future for the row. Cancelling it interrupts the read if it has started.
+     */
+    public ListenableFuture<Map<String, Object>> readRow(String tableName, Object keyObject);
+
+    /**
+     * Read a row in the background, failing with a {@link java.util.concurrent.TimeoutException} if it takes
+     * longer than the given timeout.
+     *
+     * @param tableName the HCatalog table name
+     * @param keyObject the rowkey
+     * @param timeout how long to wait for the row
+     * @param unit unit of the timeout
+     * @return a future for the row
+     */
+    public ListenableFuture<Map<String, Object>> readRow(String tableName, Object keyObject,
+                                                         long timeout, TimeUnit unit);
+
+    /**
+     * Read many rows at once. The keys are read in chunks, which run concurrently up to the limits of the
+     * underlying executor.
+     *
+     * @param tableName the HCatalog table name
+     * @param keyObjects the rowkeys
+     * @return a future for the rows, in the same order as the keys. Fails if any read fails, or right away if the
+     *         executor can't take every chunk, in which case the chunks already submitted are cancelled.
+     */
+    public ListenableFuture<List<Map<String, Object>>> readRows(String tableName, List<?> keyObjects);
+}
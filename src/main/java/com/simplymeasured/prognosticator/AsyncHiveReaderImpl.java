@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs reads from a {@link HiveReader} on a bounded thread pool.
+ * <p/>
+ * When the pool and its queue are both full, new reads fail immediately with a
+ * {@link RejectedExecutionException} rather than queueing without limit. Batch reads are split into chunks of
+ * {@link #ASYNC_READER_BATCH_SIZE} keys, each one task, so a batch takes up to threads + queue size chunks. A
+ * {@link BatchHiveReader} fetches each chunk in one round trip; other readers read its keys one after another.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class AsyncHiveReaderImpl implements AsyncHiveReader {
+    public static final String ASYNC_READER_THREADS = "prognosticator.async_reader_threads";
+    public static final String ASYNC_READER_QUEUE_SIZE = "prognosticator.async_reader_queue_size";
+    public static final String ASYNC_READER_BATCH_SIZE = "prognosticator.async_reader_batch_size";
+
+    private final HiveReader reader;
+    private final ListeningExecutorService executor;
+    private final ScheduledExecutorService timeoutScheduler;
+    private int batchSize = Integer.getInteger(ASYNC_READER_BATCH_SIZE, 100);
+
+    // our own pool, if we created it
+    private ThreadPoolExecutor pool;
+
+    public AsyncHiveReaderImpl(HiveReader reader) {
+        this(reader, Integer.getInteger(ASYNC_READER_THREADS, 16), Integer.getInteger(ASYNC_READER_QUEUE_SIZE, 1000));
+    }
+
+    public AsyncHiveReaderImpl(HiveReader reader, int threads, int queueSize) {
+        this(reader, new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("prognosticator-reader-%d").build()));
+    }
+
+    private AsyncHiveReaderImpl(HiveReader reader, ThreadPoolExecutor pool) {
+        this(reader, MoreExecutors.listeningDecorator(pool));
+        this.pool = pool;
+    }
+
+    public AsyncHiveReaderImpl(HiveReader reader, ListeningExecutorService executor) {
+        this.reader = reader;
+        this.executor = executor;
+        this.timeoutScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("prognosticator-reader-timeout-%d").build());
+    }
+
+    @Override
+    public ListenableFuture<Map<String, Object>> readRow(final String tableName, final Object keyObject) {
+        try {
+            return executor.submit(new Callable<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> call() throws Exception {
+                    return reader.readRow(tableName, keyObject);
+                }
+            });
+        } catch(RejectedExecutionException ree) {
+            return Futures.immediateFailedFuture(ree);
+        }
+    }
+
+    @Override
+    public ListenableFuture<Map<String, Object>> readRow(final String tableName, Object keyObject,
+                                                         long timeout, TimeUnit unit) {
+        final ListenableFuture<Map<String, Object>> read = readRow(tableName, keyObject);
+        final SettableFuture<Map<String, Object>> result = SettableFuture.create();
+
+        final ScheduledFuture<?> timer = timeoutScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(result.setException(new TimeoutException("Timed out reading from " + tableName))) {
+                    read.cancel(true);
+                }
+            }
+        }, timeout, unit);
+
+        Futures.addCallback(read, new FutureCallback<Map<String, Object>>() {
+            @Override
+            public void onSuccess(Map<String, Object> row) {
+                timer.cancel(false);
+                result.set(row);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                timer.cancel(false);
+                result.setException(throwable);
+            }
+        });
+
+        // propagate cancellation by the caller down to the read itself
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if(result.isCancelled()) {
+                    read.cancel(true);
+                    timer.cancel(false);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        return result;
+    }
+
+    /**
+     * @param batchSize how many keys of a batch read go in one task
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    @Override
+    public ListenableFuture<List<Map<String, Object>>> readRows(final String tableName, List<?> keyObjects) {
+        List<ListenableFuture<List<Map<String, Object>>>> reads = Lists.newArrayList();
+
+        for(List<?> keys: Lists.partition(keyObjects, batchSize)) {
+            // the caller may change its list once this returns
+            final List<?> chunk = Lists.newArrayList(keys);
+
+            try {
+                reads.add(executor.submit(new Callable<List<Map<String, Object>>>() {
+                    @Override
+                    public List<Map<String, Object>> call() throws Exception {
+                        return readChunk(tableName, chunk);
+                    }
+                }));
+            } catch(RejectedExecutionException ree) {
+                // the batch fails as a whole, so don't leave its other chunks running for nothing
+                for(ListenableFuture<?> read: reads) {
+                    read.cancel(true);
+                }
+
+                // cancelled tasks keep their queue slots until a thread reaches them
+                if(pool != null) {
+                    pool.purge();
+                }
+
+                return Futures.immediateFailedFuture(ree);
+            }
+        }
+
+        return Futures.transform(Futures.allAsList(reads),
+                new Function<List<List<Map<String, Object>>>, List<Map<String, Object>>>() {
+                    @Override
+                    public List<Map<String, Object>> apply(List<List<Map<String, Object>>> chunks) {
+                        List<Map<String, Object>> rows = Lists.newArrayList();
+
+                        for(List<Map<String, Object>> chunk: chunks) {
+                            rows.addAll(chunk);
+                        }
+
+                        return rows;
+                    }
+                });
+    }
+
+    private List<Map<String, Object>> readChunk(String tableName, List<?> keyObjects) throws Exception {
+        if(reader instanceof BatchHiveReader) {
+            return ((BatchHiveReader) reader).readRows(tableName, keyObjects);
+        }
+
+        List<Map<String, Object>> rows = Lists.newArrayListWithCapacity(keyObjects.size());
+
+        for(Object keyObject: keyObjects) {
+            rows.add(reader.readRow(tableName, keyObject));
+        }
+
+        return rows;
+    }
+
+    /**
+     * Stop accepting reads. Reads already submitted still complete.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        timeoutScheduler.shutdown();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link HiveReader} that can fetch many rows of a table in one round trip
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public interface BatchHiveReader extends HiveReader {
+    /**
+     * @param tableName the HCatalog table name
+     * @param keyObjects the rowkeys, in any form {@link #readRow} accepts
+     * @return the rows, in the same order as the keys
+     * @throws Exception
+     */
+    List<Map<String, Object>> readRows(String tableName, List<?> keyObjects) throws Exception;
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer for encoding cell values, without the locking of {@link java.io.ByteArrayOutputStream}.
+ * Numbers are written big-endian and strings as UTF-8, as {@link org.apache.hadoop.hbase.util.Bytes} does.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+class CellBuffer {
+    private byte[] data;
+    private int size;
+
+    CellBuffer() {
+        this(64);
+    }
+
+    CellBuffer(int capacity) {
+        this.data = new byte[capacity];
+    }
+
+    /**
+     * @return the backing array, valid up to {@link #size()}
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Truncate the buffer, or reset it with 0
+     */
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    byte[] copy(int start, int end) {
+        return Arrays.copyOfRange(data, start, end);
+    }
+
+    private void ensure(int extra) {
+        if(size + extra > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+        }
+    }
+
+    void write(int b) {
+        ensure(1);
+        data[size++] = (byte) b;
+    }
+
+    void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    void write(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, data, size, length);
+        size += length;
+    }
+
+    void writeShort(short value) {
+        write(value >>> 8);
+        write(value);
+    }
+
+    void writeInt(int value) {
+        ensure(4);
+        for(int shift = 24; shift >= 0; shift -= 8) {
+            data[size++] = (byte) (value >>> shift);
+        }
+    }
+
+    void writeLong(long value) {
+        ensure(8);
+        for(int shift = 56; shift >= 0; shift -= 8) {
+            data[size++] = (byte) (value >>> shift);
+        }
+    }
+
+    void writeEscaped(String text) {
+        writeEscaped(text.toCharArray(), 0, text.length());
+    }
+
+    /**
+     * Write text as UTF-8, escaped as {@link HiveUtils#escapeString} does
+     */
+    void writeEscaped(char[] text, int offset, int length) {
+        ensure(length);
+
+        for(int i = offset; i < offset + length; i++) {
+            char c = text[i];
+
+            switch(c) {
+                case '\\':
+                    writeAscii("\\\\\\\\");
+                    break;
+                case '\n':
+                    writeAscii("\\\\n");
+                    break;
+                case '\r':
+                    writeAscii("\\\\r");
+                    break;
+                case '\t':
+                    writeAscii("\\\\t");
+                    break;
+                case '\u0001':
+                    write('\t');
+                    break;
+                default:
+                    if(c < 0x80) {
+                        write(c);
+                    } else if(c < 0x800) {
+                        write(0xc0 | c >> 6);
+                        write(0x80 | c & 0x3f);
+                    } else if(Character.isHighSurrogate(c) && i + 1 < offset + length
+                            && Character.isLowSurrogate(text[i + 1])) {
+                        int codePoint = Character.toCodePoint(c, text[++i]);
+                        write(0xf0 | codePoint >> 18);
+                        write(0x80 | codePoint >> 12 & 0x3f);
+                        write(0x80 | codePoint >> 6 & 0x3f);
+                        write(0x80 | codePoint & 0x3f);
+                    } else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                        // unpaired surrogates can't be encoded, as String.getBytes would
+                        write('?');
+                    } else {
+                        write(0xe0 | c >> 12);
+                        write(0x80 | c >> 6 & 0x3f);
+                        write(0x80 | c & 0x3f);
+                    }
+            }
+        }
+    }
+
+    private void writeAscii(String text) {
+        for(int i = 0; i < text.length(); i++) {
+            write(text.charAt(i));
+        }
+    }
+}
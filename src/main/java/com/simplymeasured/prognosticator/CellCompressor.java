@@ -0,0 +1,267 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Sets;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses large cells of selected columns on the client, so they cost less on the wire, in the memstore and in
+ * the block cache.
+ * <p/>
+ * Enabled per table with the {@link HiveUtils#COMPRESSED_COLUMNS} table property, a comma-separated list of STRING,
+ * BINARY or complex columns. Cells at least {@link HiveUtils#COMPRESSION_THRESHOLD} bytes long (1024 by default)
+ * are stored as a marker, a codec id, the uncompressed length and the compressed bytes. Smaller cells are stored
+ * as is, unless they happen to start with the marker, in which case they're wrapped with the "none" codec.
+ * <p/>
+ * Compressed cells can't be read by Hive directly, nor filtered on the region servers.
+ * <p/>
+ * Every cell of a compressed column is read as stored by this class, so a column that already holds data has to be
+ * rewritten when it's added to the property. A cell written before then that happens to start with the marker would
+ * otherwise be decoded as a compressed one, and read back wrong or fail as corrupt. Likewise, a column removed from
+ * the property has to be rewritten before its compressed cells can be read.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class CellCompressor {
+    public static final byte[] MARKER = new byte[] { 0, 'P', 'Z' };
+
+    public static final byte CODEC_NONE = 0;
+    public static final byte CODEC_DEFLATE = 1;
+
+    private static final int HEADER_LENGTH = MARKER.length + 1 + Bytes.SIZEOF_INT;
+
+    private final Set<String> columns;
+    private final int threshold;
+
+    public CellCompressor(Set<String> columns, int threshold) {
+        this.columns = columns;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param table table instance to retrieve the compression settings from
+     * @return a compressor for the table, or null if none of its columns are compressed
+     */
+    public static CellCompressor forTable(HCatTable table) {
+        Map<String, String> tableProperties = table.getTblProps();
+
+        if(tableProperties == null || !tableProperties.containsKey(HiveUtils.COMPRESSED_COLUMNS)) {
+            return null;
+        }
+
+        String codec = tableProperties.get(HiveUtils.COMPRESSION_CODEC);
+        if(codec != null && !"deflate".equalsIgnoreCase(codec.trim())) {
+            throw new IllegalArgumentException(String.format("Unsupported compression codec %s", codec));
+        }
+
+        Set<String> columns = Sets.newHashSet();
+        List<HCatFieldSchema> schema = table.getCols();
+
+        for(String column: tableProperties.get(HiveUtils.COMPRESSED_COLUMNS).split(",")) {
+            column = column.trim();
+
+            if(!column.isEmpty()) {
+                checkColumn(schema, column);
+                columns.add(column);
+            }
+        }
+
+        String threshold = tableProperties.get(HiveUtils.COMPRESSION_THRESHOLD);
+
+        return columns.isEmpty() ? null
+                : new CellCompressor(columns, threshold != null ? Integer.parseInt(threshold.trim()) : 1024);
+    }
+
+    public boolean isCompressed(String column) {
+        return columns.contains(column);
+    }
+
+    /**
+     * @param column the column the cell belongs to
+     * @param value the serialized cell
+     * @return the cell to store
+     */
+    public byte[] compress(String column, byte[] value) {
+        if(value == null || !isCompressed(column)) {
+            return value;
+        }
+
+        if(value.length >= threshold) {
+            byte[] compressed = deflate(value);
+
+            if(compressed.length + HEADER_LENGTH < value.length) {
+                byte[] result = new byte[HEADER_LENGTH + compressed.length];
+
+                writeMarker(result, CODEC_DEFLATE);
+                Bytes.putInt(result, MARKER.length + 1, value.length);
+                System.arraycopy(compressed, 0, result, HEADER_LENGTH, compressed.length);
+
+                return result;
+            }
+        }
+
+        if(!hasMarker(value, 0, value.length)) {
+            return value;
+        }
+
+        byte[] result = new byte[MARKER.length + 1 + value.length];
+
+        writeMarker(result, CODEC_NONE);
+        System.arraycopy(value, 0, result, MARKER.length + 1, value.length);
+
+        return result;
+    }
+
+    /**
+     * @param column the column the cell belongs to
+     * @param value the stored cell
+     * @return the serialized cell
+     * @throws IOException if the cell is corrupt
+     */
+    public byte[] decompress(String column, byte[] value) throws IOException {
+        if(value == null || !isCompressed(column)) {
+            return value;
+        }
+
+        return decompress(value, 0, value.length);
+    }
+
+    /**
+     * Decompress a stored cell in a larger buffer, such as a KeyValue's
+     *
+     * @return the serialized cell, which may share the buffer if it wasn't compressed
+     * @throws IOException if the cell is corrupt
+     */
+    public byte[] decompress(byte[] buffer, int offset, int length) throws IOException {
+        if(!hasMarker(buffer, offset, length)) {
+            if(offset == 0 && length == buffer.length) {
+                return buffer;
+            }
+
+            return Arrays.copyOfRange(buffer, offset, offset + length);
+        }
+
+        byte codec = buffer[offset + MARKER.length];
+
+        switch(codec) {
+            case CODEC_NONE:
+                return Arrays.copyOfRange(buffer, offset + MARKER.length + 1, offset + length);
+            case CODEC_DEFLATE:
+                if(length < HEADER_LENGTH) {
+                    throw new IOException("Truncated compressed cell");
+                }
+
+                byte[] result = new byte[Bytes.toInt(buffer, offset + MARKER.length + 1)];
+                Inflater inflater = new Inflater();
+
+                try {
+                    inflater.setInput(buffer, offset + HEADER_LENGTH, length - HEADER_LENGTH);
+
+                    int inflated = 0;
+                    while(inflated < result.length && !inflater.finished()) {
+                        int count = inflater.inflate(result, inflated, result.length - inflated);
+
+                        if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+
+                        inflated += count;
+                    }
+
+                    if(inflated != result.length) {
+                        throw new IOException(String.format("Compressed cell inflated to %d bytes, expected %d",
+                                inflated, result.length));
+                    }
+                } catch(DataFormatException dfe) {
+                    throw new IOException("Corrupt compressed cell", dfe);
+                } finally {
+                    inflater.end();
+                }
+
+                return result;
+            default:
+                throw new IOException(String.format("Unknown cell compression codec %d", codec));
+        }
+    }
+
+    private static byte[] deflate(byte[] value) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(value.length / 2);
+        byte[] buffer = new byte[Math.max(64, Math.min(value.length, 64 * 1024))];
+
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+
+            while(!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                output.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        return output.toByteArray();
+    }
+
+    private static boolean hasMarker(byte[] buffer, int offset, int length) {
+        return length > MARKER.length && Bytes.equals(buffer, offset, MARKER.length, MARKER, 0, MARKER.length);
+    }
+
+    private static void writeMarker(byte[] result, byte codec) {
+        System.arraycopy(MARKER, 0, result, 0, MARKER.length);
+        result[MARKER.length] = codec;
+    }
+
+    private static void checkColumn(List<HCatFieldSchema> schema, String column) {
+        for(int i = 0; i < schema.size(); i++) {
+            HCatFieldSchema field = schema.get(i);
+
+            if(field.getName().equals(column)) {
+                switch(field.getType()) {
+                    case STRING:
+                    case BINARY:
+                    case ARRAY:
+                    case MAP:
+                    case STRUCT:
+                        if(i > 0) {
+                            return;
+                        }
+                }
+
+                throw new IllegalArgumentException(String.format("Column %s of type %s can't be compressed",
+                        column, field.getType()));
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("No column %s to compress", column));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Maps;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cursor over the rows changed in a time window, from {@link HiveScanner#scanChanges}. Rows only hold the
+ * columns written in the window; the others are null whether or not they have values. Pass {@link #getToken()}
+ * to the next scan to pick up where this one stopped.
+ * <p/>
+ * HBase time ranges don't see deletes, so deleted rows and columns aren't reported. Nor are bulk loaded rows whose
+ * timestamps fall in a window scanned before the load completed.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class ChangeCursor implements CloseableQueryCursor<Map<String, Object>> {
+    /**
+     * Key of the map of column name to cell timestamp, in rows from a cursor with timestamps
+     */
+    public static final String TIMESTAMPS = "__timestamps";
+
+    private final HBaseScanCursor cursor;
+    private final long token;
+    private final boolean timestamps;
+
+    private TableCodec codec;
+
+    protected ChangeCursor(HBaseScanCursor cursor, long token, boolean timestamps) {
+        this.cursor = cursor;
+        this.token = token;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * @return the high-water mark of this scan: the start of the window for the next one
+     */
+    public long getToken() {
+        return token;
+    }
+
+    @Override
+    public boolean next() {
+        return cursor.next();
+    }
+
+    @Override
+    public Map<String, Object> get() {
+        Map<String, Object> result = cursor.get();
+
+        if(timestamps) {
+            try {
+                result.put(TIMESTAMPS, getTimestamps(cursor.getResult()));
+            } catch(IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the latest timestamp of each column in the row; a column mapped to a whole family has the latest of
+     *      its cells
+     */
+    private Map<String, Long> getTimestamps(Result row) throws IOException {
+        HCatTable table = cursor.getTable();
+        Set<String> projection = cursor.getProjection();
+
+        if(codec == null) {
+            codec = TableCodec.forTable(table);
+        }
+
+        List<HCatFieldSchema> columns = table.getCols();
+        Map<String, Long> result = Maps.newHashMap();
+
+        for(int i = 1; i < columns.size(); i++) {
+            String columnName = columns.get(i).getName();
+
+            if(projection != null && !projection.contains(columnName)) {
+                continue;
+            }
+
+            long timestamp = -1;
+
+            if(codec.getQualifier(i).length > 0) {
+                KeyValue cell = row.getColumnLatest(codec.getFamily(i), codec.getQualifier(i));
+
+                if(cell != null) {
+                    timestamp = cell.getTimestamp();
+                }
+            } else {
+                for(KeyValue cell: row.raw()) {
+                    if(cell.matchingFamily(codec.getFamily(i))) {
+                        timestamp = Math.max(timestamp, cell.getTimestamp());
+                    }
+                }
+            }
+
+            if(timestamp >= 0) {
+                result.put(columnName, timestamp);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+}
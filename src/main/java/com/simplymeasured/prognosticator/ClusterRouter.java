@@ -0,0 +1,341 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.ResultScanner;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link HTableFactory} that spreads tables over several HBase clusters. Each named cluster has its own
+ * configuration, and so its own connections, and its own table factory, e.g. a pooling one. Tables without a route
+ * are opened by the default factory with the configuration the caller passes in.
+ * <p/>
+ * Pass the router wherever a table factory is taken, e.g. to {@link HiveWriterImpl} and {@link HiveReaderImpl},
+ * and tables can be moved between clusters without changing application code. Routes are by HBase table name, the
+ * {@link HiveUtils#HBASE_TABLE_NAME} property if set, and can be changed while in use.
+ * <p/>
+ * A routed table's configuration is its cluster's, except for the client retry count, pause and RPC timeout, which
+ * are taken from the caller's configuration where it sets them differently. Callers tune those per use, e.g.
+ * {@link RegionBatchWriter} lowers the retry count because it retries failed mutations itself, so clusters should
+ * leave them at the callers' values.
+ * <p/>
+ * Every table the router returns records its calls in its cluster's {@link ClusterStats}, as do the scanners it
+ * opens. They aren't {@link org.apache.hadoop.hbase.client.HTable}s, so code needing region locations looks them up
+ * on {@link #unwrap}.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class ClusterRouter implements HTableFactory {
+    private static final Log LOG = LogFactory.getLog(ClusterRouter.class);
+
+    // client settings the caller's configuration decides for routed tables
+    private static final String[] CLIENT_OVERRIDES = new String[] { HConstants.HBASE_CLIENT_RETRIES_NUMBER,
+            HConstants.HBASE_CLIENT_PAUSE, HConstants.HBASE_RPC_TIMEOUT_KEY };
+
+    private final HTableFactory defaultFactory;
+    private final ConcurrentMap<String, Cluster> clusters = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, Cluster> routes = Maps.newConcurrentMap();
+    private final ClusterStats defaultStats = new ClusterStats();
+
+    public ClusterRouter(HTableFactory defaultFactory) {
+        this.defaultFactory = defaultFactory;
+    }
+
+    /**
+     * Counts of table handles acquired from one cluster, and of the calls made on them
+     */
+    public static class ClusterStats {
+        private final AtomicLong acquired = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong callFailures = new AtomicLong();
+        private final AtomicLong callNanos = new AtomicLong();
+
+        public long getAcquired() {
+            return acquired.get();
+        }
+
+        /**
+         * @return how many table handles couldn't be acquired
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return how many calls reached the cluster, including scanner reads
+         */
+        public long getCalls() {
+            return calls.get();
+        }
+
+        /**
+         * @return how many calls threw
+         */
+        public long getCallFailures() {
+            return callFailures.get();
+        }
+
+        /**
+         * @return the total time spent in calls, in milliseconds
+         */
+        public long getCallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(callNanos.get());
+        }
+
+        private void recordCall(long nanos, boolean failed) {
+            calls.incrementAndGet();
+            callNanos.addAndGet(nanos);
+
+            if(failed) {
+                callFailures.incrementAndGet();
+            }
+        }
+    }
+
+    private static class Cluster {
+        private final String name;
+        private final Configuration configuration;
+        private final HTableFactory tableFactory;
+        private final ClusterStats stats = new ClusterStats();
+
+        // the cluster's configuration with a caller's client settings, by their values
+        private final ConcurrentMap<List<String>, Configuration> overridden = Maps.newConcurrentMap();
+
+        private Cluster(String name, Configuration configuration, HTableFactory tableFactory) {
+            this.name = name;
+            this.configuration = configuration;
+            this.tableFactory = tableFactory;
+        }
+
+        /**
+         * @return the cluster's configuration, with the client settings the caller changes
+         */
+        private Configuration getConfiguration(Configuration callerConfiguration) {
+            List<String> values = Lists.newArrayListWithCapacity(CLIENT_OVERRIDES.length);
+            boolean changed = false;
+
+            for(String key: CLIENT_OVERRIDES) {
+                String value = callerConfiguration != null ? callerConfiguration.get(key) : null;
+
+                values.add(value);
+                changed |= value != null && !value.equals(configuration.get(key));
+            }
+
+            if(!changed) {
+                return configuration;
+            }
+
+            // copies are shared, as copying a configuration per table is costly
+            Configuration result = overridden.get(values);
+
+            if(result == null) {
+                result = new Configuration(configuration);
+
+                for(int i = 0; i < CLIENT_OVERRIDES.length; i++) {
+                    if(values.get(i) != null) {
+                        result.set(CLIENT_OVERRIDES[i], values.get(i));
+                    }
+                }
+
+                Configuration previous = overridden.putIfAbsent(values, result);
+
+                if(previous != null) {
+                    result = previous;
+                }
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Records the calls of a table, or of a scanner it opened, in a cluster's stats
+     */
+    private static class CallRecorder implements InvocationHandler {
+        private final Object delegate;
+        private final ClusterStats stats;
+
+        private CallRecorder(Object delegate, ClusterStats stats) {
+            this.delegate = delegate;
+            this.stats = stats;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            // calls that can't fail with an IOException don't reach the cluster; closing only releases the handle
+            if(method.getName().equals("close")
+                    || !Arrays.asList(method.getExceptionTypes()).contains(IOException.class)) {
+                return invokeDelegate(method, args);
+            }
+
+            long start = System.nanoTime();
+            boolean failed = true;
+
+            try {
+                Object result = invokeDelegate(method, args);
+                failed = false;
+
+                return result instanceof ResultScanner ? record(ResultScanner.class, result, stats) : result;
+            } finally {
+                stats.recordCall(System.nanoTime() - start, failed);
+            }
+        }
+
+        private Object invokeDelegate(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(delegate, args);
+            } catch(InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static <T> T record(Class<T> type, Object delegate, ClusterStats stats) {
+        return type.cast(Proxy.newProxyInstance(ClusterRouter.class.getClassLoader(), new Class[] { type },
+                new CallRecorder(delegate, stats)));
+    }
+
+    /**
+     * @param table a table returned by a router, or any other table
+     * @return the table a router's table calls, e.g. to look up its regions, or any other table as it is
+     */
+    public static HTableInterface unwrap(HTableInterface table) {
+        if(Proxy.isProxyClass(table.getClass()) && Proxy.getInvocationHandler(table) instanceof CallRecorder) {
+            return (HTableInterface) ((CallRecorder) Proxy.getInvocationHandler(table)).delegate;
+        }
+
+        return table;
+    }
+
+    /**
+     * @param name the cluster name used by routes
+     * @param configuration the cluster's HBase configuration, e.g. with its own ZooKeeper quorum
+     * @param tableFactory opens the cluster's tables
+     * @throws IllegalArgumentException if the name is taken
+     */
+    public void addCluster(String name, Configuration configuration, HTableFactory tableFactory) {
+        if(clusters.putIfAbsent(name, new Cluster(name, configuration, tableFactory)) != null) {
+            throw new IllegalArgumentException(String.format("Cluster %s already exists", name));
+        }
+    }
+
+    /**
+     * Route a table to a cluster. Handles already open stay on the previous cluster until closed.
+     *
+     * @param hbaseTableName the HBase table name
+     * @param clusterName a cluster added with {@link #addCluster}, or null for the default
+     */
+    public void routeTable(String hbaseTableName, String clusterName) {
+        if(clusterName == null) {
+            routes.remove(hbaseTableName);
+            return;
+        }
+
+        Cluster cluster = clusters.get(clusterName);
+
+        if(cluster == null) {
+            throw new IllegalArgumentException(String.format("No cluster %s", clusterName));
+        }
+
+        routes.put(hbaseTableName, cluster);
+    }
+
+    /**
+     * @param hbaseTableName the HBase table name
+     * @return the cluster the table is routed to, or null for the default
+     */
+    public String getCluster(String hbaseTableName) {
+        Cluster cluster = routes.get(hbaseTableName);
+
+        return cluster != null ? cluster.name : null;
+    }
+
+    /**
+     * @param clusterName a cluster name, or null for the default
+     * @return the cluster's counts, which are live
+     */
+    public ClusterStats getStats(String clusterName) {
+        if(clusterName == null) {
+            return defaultStats;
+        }
+
+        Cluster cluster = clusters.get(clusterName);
+
+        if(cluster == null) {
+            throw new IllegalArgumentException(String.format("No cluster %s", clusterName));
+        }
+
+        return cluster.stats;
+    }
+
+    /**
+     * @return every cluster's counts, by name, without the default
+     */
+    public Map<String, ClusterStats> getStats() {
+        Map<String, ClusterStats> result = Maps.newTreeMap();
+
+        for(Cluster cluster: clusters.values()) {
+            result.put(cluster.name, cluster.stats);
+        }
+
+        return result;
+    }
+
+    @Override
+    public HTableInterface getTable(Configuration hbaseConfiguration, String tableName)
+            throws TableAcquisitionException {
+        Cluster cluster = routes.get(tableName);
+        ClusterStats stats = cluster != null ? cluster.stats : defaultStats;
+
+        try {
+            HTableInterface result = cluster != null
+                    ? cluster.tableFactory.getTable(cluster.getConfiguration(hbaseConfiguration), tableName)
+                    : defaultFactory.getTable(hbaseConfiguration, tableName);
+
+            stats.acquired.incrementAndGet();
+
+            return record(HTableInterface.class, result, stats);
+        } catch(TableAcquisitionException e) {
+            stats.failures.incrementAndGet();
+
+            LOG.warn(String.format("Unable to get table %s from cluster %s", tableName,
+                    cluster != null ? cluster.name : "default"));
+
+            throw e;
+        }
+    }
+}
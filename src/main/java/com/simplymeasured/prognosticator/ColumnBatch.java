@@ -0,0 +1,258 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of rows decoded column by column into primitive arrays, for analytic code that loops over millions of
+ * values. Nothing is boxed: BIGINT values land in a long[], INT/SMALLINT/TINYINT/BOOLEAN in an int[],
+ * DOUBLE/FLOAT in a double[] and STRING/BINARY in a shared byte[] with per-row offsets.
+ * <p/>
+ * Every vector has a null bitmap, and the value arrays hold garbage for null rows. Batches are reused between
+ * reads, so copy out anything that has to outlive the next one.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class ColumnBatch {
+    private final List<String> names;
+    private final ColumnVector[] vectors;
+    private final int capacity;
+    private int size;
+
+    /**
+     * @param fields the columns of the batch, which must all be primitive types
+     * @param capacity the maximum number of rows in the batch
+     */
+    public ColumnBatch(List<HCatFieldSchema> fields, int capacity) {
+        this.names = Lists.newArrayListWithCapacity(fields.size());
+        this.vectors = new ColumnVector[fields.size()];
+        this.capacity = capacity;
+
+        for(int i = 0; i < fields.size(); i++) {
+            names.add(fields.get(i).getName());
+            vectors[i] = newVector(fields.get(i), capacity);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getColumnCount() {
+        return vectors.length;
+    }
+
+    public List<String> getColumnNames() {
+        return names;
+    }
+
+    public ColumnVector getColumn(int index) {
+        return vectors[index];
+    }
+
+    public ColumnVector getColumn(String name) {
+        int index = names.indexOf(name);
+
+        if(index < 0) {
+            throw new IllegalArgumentException(String.format("No column %s in batch", name));
+        }
+
+        return vectors[index];
+    }
+
+    /**
+     * Empty the batch, ready for the next rows
+     */
+    public void reset() {
+        for(ColumnVector vector: vectors) {
+            vector.reset(size);
+        }
+
+        size = 0;
+    }
+
+    /**
+     * Add a row, with every column null until set
+     *
+     * @return the index of the new row
+     */
+    public int addRow() {
+        if(size == capacity) {
+            throw new IllegalStateException("Column batch is full");
+        }
+
+        for(ColumnVector vector: vectors) {
+            vector.setNull(size);
+        }
+
+        return size++;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    private static ColumnVector newVector(HCatFieldSchema field, int capacity) {
+        switch(field.getType()) {
+            case BIGINT:
+                return new LongVector(capacity);
+            case INT:
+            case SMALLINT:
+            case TINYINT:
+            case BOOLEAN:
+                return new IntVector(capacity);
+            case DOUBLE:
+            case FLOAT:
+                return new DoubleVector(capacity);
+            case STRING:
+            case BINARY:
+                return new BytesVector(capacity);
+            default:
+                throw new IllegalArgumentException(String.format("Column %s of type %s can't be read into a batch",
+                        field.getName(), field.getType()));
+        }
+    }
+
+    /**
+     * Values of one column, with a null bitmap
+     */
+    public abstract static class ColumnVector {
+        private final long[] nulls;
+
+        protected ColumnVector(int capacity) {
+            this.nulls = new long[(capacity + 63) >>> 6];
+        }
+
+        public boolean isNull(int row) {
+            return (nulls[row >>> 6] & (1L << row)) != 0;
+        }
+
+        public void setNull(int row) {
+            nulls[row >>> 6] |= 1L << row;
+        }
+
+        protected void setNotNull(int row) {
+            nulls[row >>> 6] &= ~(1L << row);
+        }
+
+        protected void reset(int size) {
+            Arrays.fill(nulls, 0, (size + 63) >>> 6, 0L);
+        }
+    }
+
+    public static class LongVector extends ColumnVector {
+        public final long[] values;
+
+        public LongVector(int capacity) {
+            super(capacity);
+            this.values = new long[capacity];
+        }
+
+        public void set(int row, long value) {
+            values[row] = value;
+            setNotNull(row);
+        }
+    }
+
+    /**
+     * INT, SMALLINT and TINYINT values, and BOOLEAN values as 0 or 1
+     */
+    public static class IntVector extends ColumnVector {
+        public final int[] values;
+
+        public IntVector(int capacity) {
+            super(capacity);
+            this.values = new int[capacity];
+        }
+
+        public void set(int row, int value) {
+            values[row] = value;
+            setNotNull(row);
+        }
+    }
+
+    public static class DoubleVector extends ColumnVector {
+        public final double[] values;
+
+        public DoubleVector(int capacity) {
+            super(capacity);
+            this.values = new double[capacity];
+        }
+
+        public void set(int row, double value) {
+            values[row] = value;
+            setNotNull(row);
+        }
+    }
+
+    /**
+     * STRING values as unescaped UTF-8, and BINARY values, packed into one growable array
+     */
+    public static class BytesVector extends ColumnVector {
+        public final int[] offsets;
+        public final int[] lengths;
+        private byte[] data;
+        private int dataLength;
+
+        public BytesVector(int capacity) {
+            super(capacity);
+            this.offsets = new int[capacity];
+            this.lengths = new int[capacity];
+            this.data = new byte[capacity * 16];
+        }
+
+        /**
+         * @return the packed values; only valid until the next value is set, since the array grows
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        public void set(int row, byte[] buffer, int offset, int length) {
+            if(dataLength + length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + length));
+            }
+
+            System.arraycopy(buffer, offset, data, dataLength, length);
+            offsets[row] = dataLength;
+            lengths[row] = length;
+            dataLength += length;
+            setNotNull(row);
+        }
+
+        public String getString(int row) {
+            return isNull(row) ? null : Bytes.toString(data, offsets[row], lengths[row]);
+        }
+
+        @Override
+        protected void reset(int size) {
+            super.reset(size);
+            dataLength = 0;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A cursor over an HBase scanner that decodes rows in batches, straight from the KeyValue buffers into the
+ * primitive arrays of a {@link ColumnBatch}.
+ * <p/>
+ * The same batch is refilled by every call to {@link #next()}. Must be closed to release the scanner and table
+ * handle.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class ColumnBatchCursor implements CloseableQueryCursor<ColumnBatch> {
+    private static final Log LOG = LogFactory.getLog(ColumnBatchCursor.class);
+
+    private final HTableInterface tableInterface;
+    private final ResultScanner scanner;
+    private final ColumnBatch batch;
+    private final boolean salted;
+    private final CellCompressor compressor;
+
+    // key column index in the batch, or -1
+    private int keyIndex = -1;
+    private HCatFieldSchema.Type keyType;
+
+    // non-key columns, in KeyValue order
+    private final ColumnSpec[] specs;
+
+    protected ColumnBatchCursor(HCatTable table, HTableInterface tableInterface, ResultScanner scanner,
+                                List<String> columnNames, int batchSize) {
+        this.tableInterface = tableInterface;
+        this.scanner = scanner;
+        this.salted = RowKeySalter.forTable(table) != null;
+        this.compressor = CellCompressor.forTable(table);
+
+        List<HCatFieldSchema> columns = table.getCols();
+        List<HCatFieldSchema> fields = Lists.newArrayListWithCapacity(columnNames.size());
+        List<ColumnSpec> specList = Lists.newArrayList();
+
+        for(String columnName: columnNames) {
+            int position = getPosition(columns, columnName);
+            HCatFieldSchema field = columns.get(position);
+
+            if(position == 0) {
+                keyIndex = fields.size();
+                keyType = field.getType();
+            } else {
+                String[] mapping = HiveUtils.getColumnFamilyAndQualifier(table, position);
+
+                if(mapping[1].isEmpty()) {
+                    throw new IllegalArgumentException(String.format(
+                            "Column %s is mapped to a whole column family and can't be read into a batch",
+                            columnName));
+                }
+
+                specList.add(new ColumnSpec(Bytes.toBytes(mapping[0]), Bytes.toBytes(mapping[1]),
+                        field.getType(), fields.size(), compressor != null && compressor.isCompressed(columnName)));
+            }
+
+            fields.add(field);
+        }
+
+        this.batch = new ColumnBatch(fields, batchSize);
+        this.specs = specList.toArray(new ColumnSpec[specList.size()]);
+
+        Arrays.sort(specs, new Comparator<ColumnSpec>() {
+            @Override
+            public int compare(ColumnSpec left, ColumnSpec right) {
+                int result = Bytes.compareTo(left.family, right.family);
+
+                return result != 0 ? result : Bytes.compareTo(left.qualifier, right.qualifier);
+            }
+        });
+    }
+
+    /**
+     * Fill the batch with up to its capacity of rows
+     *
+     * @return true if at least one row was read
+     */
+    @Override
+    public boolean next() {
+        batch.reset();
+
+        try {
+            while(!batch.isFull()) {
+                Result result = scanner.next();
+
+                if(result == null) {
+                    break;
+                }
+
+                addRow(result.raw());
+            }
+        } catch(IOException ioe) {
+            LOG.warn("Unable to read next row from HBase!", ioe);
+            throw new RuntimeException(ioe);
+        }
+
+        return batch.size() > 0;
+    }
+
+    @Override
+    public ColumnBatch get() {
+        return batch;
+    }
+
+    @Override
+    public void close() {
+        scanner.close();
+
+        try {
+            tableInterface.close();
+        } catch(IOException ioe) {
+            LOG.warn("Unable to close table handle", ioe);
+        }
+    }
+
+    private void addRow(KeyValue[] keyValues) throws IOException {
+        int row = batch.addRow();
+
+        if(keyValues.length == 0) {
+            return;
+        }
+
+        if(keyIndex >= 0) {
+            KeyValue first = keyValues[0];
+            int offset = first.getRowOffset() + (salted ? 1 : 0);
+            int length = first.getRowLength() - (salted ? 1 : 0);
+
+            HiveDeserializer.deserializeToVector(keyType, first.getBuffer(), offset, length,
+                    batch.getColumn(keyIndex), row);
+        }
+
+        // both the KeyValues and the specs are sorted by family and qualifier, so walk them together
+        int specIndex = 0;
+
+        for(int i = 0; i < keyValues.length && specIndex < specs.length; i++) {
+            KeyValue kv = keyValues[i];
+            byte[] buffer = kv.getBuffer();
+
+            while(specIndex < specs.length && compare(kv, buffer, specs[specIndex]) > 0) {
+                specIndex++;
+            }
+
+            if(specIndex < specs.length && compare(kv, buffer, specs[specIndex]) == 0) {
+                ColumnSpec spec = specs[specIndex];
+
+                // older versions of the same column follow the latest one
+                specIndex++;
+
+                if(spec.compressed) {
+                    byte[] value = compressor.decompress(buffer, kv.getValueOffset(), kv.getValueLength());
+
+                    HiveDeserializer.deserializeToVector(spec.type, value, 0, value.length,
+                            batch.getColumn(spec.batchIndex), row);
+                } else {
+                    HiveDeserializer.deserializeToVector(spec.type, buffer, kv.getValueOffset(), kv.getValueLength(),
+                            batch.getColumn(spec.batchIndex), row);
+                }
+            }
+        }
+    }
+
+    private static int compare(KeyValue kv, byte[] buffer, ColumnSpec spec) {
+        int result = Bytes.compareTo(buffer, kv.getFamilyOffset(), kv.getFamilyLength(),
+                spec.family, 0, spec.family.length);
+
+        if(result != 0) {
+            return result;
+        }
+
+        return Bytes.compareTo(buffer, kv.getQualifierOffset(), kv.getQualifierLength(),
+                spec.qualifier, 0, spec.qualifier.length);
+    }
+
+    private static int getPosition(List<HCatFieldSchema> columns, String columnName) {
+        for(int i = 0; i < columns.size(); i++) {
+            if(columns.get(i).getName().equals(columnName)) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("No column %s", columnName));
+    }
+
+    private static class ColumnSpec {
+        private final byte[] family;
+        private final byte[] qualifier;
+        private final HCatFieldSchema.Type type;
+        private final int batchIndex;
+        private final boolean compressed;
+
+        ColumnSpec(byte[] family, byte[] qualifier, HCatFieldSchema.Type type, int batchIndex, boolean compressed) {
+            this.family = family;
+            this.qualifier = qualifier;
+            this.type = type;
+            this.batchIndex = batchIndex;
+            this.compressed = compressed;
+        }
+    }
+}
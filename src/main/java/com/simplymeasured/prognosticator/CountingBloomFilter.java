@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import org.apache.hadoop.hbase.util.Hash;
+
+/**
+ * A Bloom filter with 4-bit counters instead of bits, so keys can be removed again.
+ * <p/>
+ * Counters that reach 15 stick there and are never decremented, which keeps removal from introducing
+ * false negatives for other keys.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class CountingBloomFilter {
+    private static final int COUNTERS_PER_WORD = 16;
+    private static final long MAX_COUNT = 15;
+
+    private final Hash hash = Hash.getInstance(Hash.MURMUR_HASH);
+
+    private final long[] counters;
+    private final int counterCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions how many keys the filter should hold before exceeding the false positive rate
+     * @param falsePositiveRate desired false positive rate, between 0 and 1 exclusive
+     */
+    public CountingBloomFilter(int expectedInsertions, double falsePositiveRate) {
+        if(expectedInsertions <= 0) {
+            throw new IllegalArgumentException("expectedInsertions must be positive");
+        }
+
+        if(falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+        }
+
+        double ln2 = Math.log(2);
+        long optimalCounters = (long)Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+
+        this.counterCount = (int)Math.min(Math.max(optimalCounters, COUNTERS_PER_WORD), Integer.MAX_VALUE - 1);
+        this.hashCount = Math.max(1, (int)Math.round((double)counterCount / expectedInsertions * ln2));
+        this.counters = new long[(counterCount + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD];
+    }
+
+    public synchronized void add(byte[] key) {
+        int hash1 = hash.hash(key, 0);
+        int hash2 = hash.hash(key, hash1);
+
+        for(int i = 0; i < hashCount; i++) {
+            int index = getIndex(hash1, hash2, i);
+            long count = getCount(index);
+
+            if(count < MAX_COUNT) {
+                setCount(index, count + 1);
+            }
+        }
+    }
+
+    public synchronized boolean mightContain(byte[] key) {
+        int hash1 = hash.hash(key, 0);
+        int hash2 = hash.hash(key, hash1);
+
+        for(int i = 0; i < hashCount; i++) {
+            if(getCount(getIndex(hash1, hash2, i)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove a key. Keys that are not in the filter are ignored.
+     *
+     * @param key the key to remove
+     */
+    public synchronized void remove(byte[] key) {
+        if(!mightContain(key)) {
+            return;
+        }
+
+        int hash1 = hash.hash(key, 0);
+        int hash2 = hash.hash(key, hash1);
+
+        for(int i = 0; i < hashCount; i++) {
+            int index = getIndex(hash1, hash2, i);
+            long count = getCount(index);
+
+            if(count > 0 && count < MAX_COUNT) {
+                setCount(index, count - 1);
+            }
+        }
+    }
+
+    /**
+     * @return the memory used by the counters, in bytes
+     */
+    public long getSizeInBytes() {
+        return counters.length * 8L;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    private int getIndex(int hash1, int hash2, int i) {
+        int combined = hash1 + i * hash2;
+
+        return (combined & Integer.MAX_VALUE) % counterCount;
+    }
+
+    private long getCount(int index) {
+        int shift = (index % COUNTERS_PER_WORD) * 4;
+
+        return (counters[index / COUNTERS_PER_WORD] >>> shift) & MAX_COUNT;
+    }
+
+    private void setCount(int index, long count) {
+        int word = index / COUNTERS_PER_WORD;
+        int shift = (index % COUNTERS_PER_WORD) * 4;
+
+        counters[word] = (counters[word] & ~(MAX_COUNT << shift)) | (count << shift);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A forward-only cursor over an HBase scanner, deserializing each row the same way {@link HiveReaderImpl} does.
+ * <p/>
+ * Closes itself, releasing the scanner and table handle, once the rows run out or reading fails. Must be closed
+ * when abandoned before then.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class HBaseScanCursor implements CloseableQueryCursor<Map<String, Object>> {
+    private static final Log LOG = LogFactory.getLog(HBaseScanCursor.class);
+
+    private final HCatTable table;
+    private final HTableInterface tableInterface;
+    private final ResultScanner scanner;
+    private final RowKeySalter salter;
+    private final HiveDeserializer deserializer;
+
+    private Set<String> projection;
+    private Set<String> projectedKeys;
+    private Result current;
+    private Map<String, Object> reusedRow;
+    private boolean closed;
+
+    /**
+     * @param table the table being read
+     * @param tableInterface the table handle to close with the scanner, or null if already released
+     * @param scanner the scanner over the rows
+     */
+    protected HBaseScanCursor(HCatTable table, HTableInterface tableInterface, ResultScanner scanner) {
+        this.table = table;
+        this.tableInterface = tableInterface;
+        this.scanner = scanner;
+        this.salter = RowKeySalter.forTable(table);
+        this.deserializer = new HiveDeserializer(table);
+    }
+
+    /**
+     * @param columns the columns returned by {@link #get()}, besides the key column, or null for every column
+     * @throws IOException if the table's schema can't be read
+     */
+    public void setProjection(Collection<String> columns) throws IOException {
+        if(columns == null) {
+            this.projection = null;
+            this.projectedKeys = null;
+
+            return;
+        }
+
+        List<HCatFieldSchema> fields = table.getCols();
+        TableCodec codec = TableCodec.forTable(table);
+
+        this.projection = Sets.newHashSet(columns);
+        projection.add(fields.get(0).getName());
+
+        // rows are keyed by the mapped qualifier, not always the column name
+        this.projectedKeys = Sets.newHashSet();
+        projectedKeys.add(fields.get(0).getName());
+
+        for(int i = 1; i < fields.size(); i++) {
+            if(projection.contains(fields.get(i).getName())) {
+                projectedKeys.add(codec.getResultKey(i));
+            }
+        }
+    }
+
+    /**
+     * In reuse mode {@link #get()} refills the same map for every row, including the maps and lists of complex
+     * columns, so a row is only valid until the next call to {@link #next()}. Copy anything kept longer.
+     *
+     * @param reuseRows whether to recycle the returned row
+     */
+    public void setReuseRows(boolean reuseRows) {
+        this.reusedRow = reuseRows ? Maps.<String, Object>newHashMap() : null;
+    }
+
+    @Override
+    public boolean next() {
+        if(closed) {
+            return false;
+        }
+
+        try {
+            current = scanner.next();
+        } catch(IOException ioe) {
+            LOG.warn("Unable to read next row from HBase!", ioe);
+            close();
+            throw new RuntimeException(ioe);
+        } catch(RuntimeException re) {
+            close();
+            throw re;
+        }
+
+        if(current == null) {
+            close();
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> get() {
+        try {
+            Map<String, Object> result = deserializer.deserialize(current,
+                    reusedRow != null ? reusedRow : Maps.<String, Object>newHashMap());
+            if(projectedKeys != null) {
+                result.keySet().retainAll(projectedKeys);
+            }
+
+            result.put("__rowkey", salter != null ? salter.unsalt(current.getRow()) : current.getRow());
+
+            return result;
+        } catch(IOException ioe) {
+            LOG.warn("Unable to deserialize row from HBase!", ioe);
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /**
+     * @return the table being scanned
+     */
+    public HCatTable getTable() {
+        return table;
+    }
+
+    /**
+     * @return the Hive names of the columns returned by {@link #get()}, including the key column, or null for
+     *         every column
+     */
+    public Set<String> getProjection() {
+        return projection;
+    }
+
+    /**
+     * @return the raw HBase result at the current position
+     */
+    public Result getResult() {
+        return current;
+    }
+
+    @Override
+    public void close() {
+        if(closed) {
+            return;
+        }
+
+        closed = true;
+        scanner.close();
+
+        if(tableInterface != null) {
+            try {
+                tableInterface.close();
+            } catch(IOException ioe) {
+                LOG.warn("Unable to close table handle", ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes rows into HFiles that can be bulk loaded into HBase, instead of sending them through the region
+ * servers one Put at a time.
+ * <p/>
+ * Rows are encoded the same way {@link HiveWriterImpl} encodes them. They are buffered, sorted by rowkey and
+ * written out as one HFile per column family (and per region, when region boundaries are given) each time the
+ * buffer fills up. The resulting directory can be loaded atomically with {@link #load(HTable)} or with the
+ * completebulkload tool.
+ * <p/>
+ * Bulk loaded files cannot carry deletes, so null values are skipped rather than clearing existing cells.
+ * When the same row is added more than once, the last copy of each cell wins, also across flushes: each flush
+ * stamps its cells one millisecond after the previous one, starting from the time the loader was created.
+ * <p/>
+ * The output directory can be on any Hadoop file system, including the local one.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class HiveBulkLoader {
+    private static final Log LOG = LogFactory.getLog(HiveBulkLoader.class);
+
+    public static final String BULK_LOAD_MAX_BUFFERED_ROWS = "prognosticator.bulk_load_max_buffered_rows";
+
+    private final Configuration configuration;
+    private final Path outputDirectory;
+    private final HiveSerializer serializer;
+    private final long timestamp = System.currentTimeMillis();
+    private int flushCount = 0;
+
+    private byte[][] regionStartKeys = new byte[0][];
+    private Compression.Algorithm compression = Compression.Algorithm.NONE;
+    private int blockSize = HFile.DEFAULT_BLOCKSIZE;
+    private int maxBufferedRows = Integer.getInteger(BULK_LOAD_MAX_BUFFERED_ROWS, 100000);
+
+    private final Map<String, List<KeyValue>> buffer = Maps.newHashMap();
+    private int bufferedRows = 0;
+    private final List<Path> writtenFiles = Lists.newArrayList();
+
+    /**
+     * @param table the HCatalog table the rows belong to
+     * @param configuration Hadoop configuration, used to find the file system
+     * @param outputDirectory where to write the HFiles. One subdirectory is created per column family.
+     */
+    public HiveBulkLoader(HCatTable table, Configuration configuration, Path outputDirectory) {
+        this.configuration = configuration;
+        this.outputDirectory = outputDirectory;
+        this.serializer = new HiveSerializer(table);
+    }
+
+    /**
+     * Split the output files on region boundaries, so they load without being split again. Typically the result
+     * of {@link HTable#getStartKeys()}.
+     *
+     * @param regionStartKeys start keys of the table's regions
+     */
+    public void setRegionStartKeys(byte[][] regionStartKeys) {
+        this.regionStartKeys = regionStartKeys.clone();
+        Arrays.sort(this.regionStartKeys, Bytes.BYTES_COMPARATOR);
+    }
+
+    public void setCompression(Compression.Algorithm compression) {
+        this.compression = compression;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param maxBufferedRows how many rows to sort in memory before writing them out
+     */
+    public void setMaxBufferedRows(int maxBufferedRows) {
+        this.maxBufferedRows = maxBufferedRows;
+    }
+
+    /**
+     * Encode a row and buffer it, writing out HFiles if the buffer is full
+     *
+     * @param entity the row
+     * @throws IOException
+     */
+    public void add(Map<String, Object> entity) throws IOException {
+        byte[] rowkey = serializer.serializeRowKey(entity);
+
+        // a later flush has to win over an earlier file holding the same cell
+        Put put = new Put(rowkey, timestamp + flushCount);
+        Delete delete = new Delete(rowkey);
+
+        serializer.serializeColumns(entity, put, delete);
+
+        for(Map.Entry<byte[], List<KeyValue>> familyEntry: put.getFamilyMap().entrySet()) {
+            String family = Bytes.toString(familyEntry.getKey());
+
+            List<KeyValue> familyBuffer = buffer.get(family);
+            if(familyBuffer == null) {
+                familyBuffer = Lists.newArrayList();
+                buffer.put(family, familyBuffer);
+            }
+
+            familyBuffer.addAll(familyEntry.getValue());
+        }
+
+        bufferedRows++;
+
+        if(bufferedRows >= maxBufferedRows) {
+            flush();
+        }
+    }
+
+    public void addAll(Iterator<Map<String, Object>> entities) throws IOException {
+        while(entities.hasNext()) {
+            add(entities.next());
+        }
+    }
+
+    /**
+     * Sort whatever is buffered and write it out
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if(bufferedRows == 0) {
+            return;
+        }
+
+        for(Map.Entry<String, List<KeyValue>> familyEntry: buffer.entrySet()) {
+            writeFamily(familyEntry.getKey(), familyEntry.getValue());
+        }
+
+        buffer.clear();
+        bufferedRows = 0;
+        flushCount++;
+    }
+
+    /**
+     * Write out any buffered rows. Call this before loading the files.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Atomically load everything written so far into a table
+     *
+     * @param table the HBase table to load into
+     * @throws Exception
+     */
+    public void load(HTable table) throws Exception {
+        close();
+
+        LOG.info(String.format("Bulk loading %d files from %s into %s", writtenFiles.size(), outputDirectory,
+                Bytes.toString(table.getTableName())));
+
+        new LoadIncrementalHFiles(configuration).doBulkLoad(outputDirectory, table);
+    }
+
+    public List<Path> getWrittenFiles() {
+        return Collections.unmodifiableList(writtenFiles);
+    }
+
+    protected void writeFamily(String family, List<KeyValue> keyValues) throws IOException {
+        if(keyValues.isEmpty()) {
+            return;
+        }
+
+        // stable, so when a cell appears more than once its last copy sorts last
+        Collections.sort(keyValues, KeyValue.COMPARATOR);
+
+        FileSystem fileSystem = outputDirectory.getFileSystem(configuration);
+        Path familyDirectory = new Path(outputDirectory, family);
+
+        HFile.Writer writer = null;
+        byte[] regionEndKey = null;
+
+        try {
+            for(int i = 0; i < keyValues.size(); i++) {
+                KeyValue keyValue = keyValues.get(i);
+
+                if(i + 1 < keyValues.size() && KeyValue.COMPARATOR.compare(keyValue, keyValues.get(i + 1)) == 0) {
+                    continue;
+                }
+
+                if(writer != null && regionEndKey != null && Bytes.compareTo(keyValue.getRow(), regionEndKey) >= 0) {
+                    closeWriter(writer);
+                    writer = null;
+                }
+
+                if(writer == null) {
+                    Path path = new Path(familyDirectory, UUID.randomUUID().toString().replaceAll("-", ""));
+
+                    writer = HFile.getWriterFactory(configuration, new CacheConfig(configuration))
+                            .withPath(fileSystem, path)
+                            .withBlockSize(blockSize)
+                            .withCompression(compression)
+                            .withComparator(KeyValue.KEY_COMPARATOR)
+                            .create();
+
+                    writtenFiles.add(path);
+                    regionEndKey = getRegionEndKey(keyValue.getRow());
+                }
+
+                writer.append(keyValue);
+            }
+        } finally {
+            if(writer != null) {
+                closeWriter(writer);
+            }
+        }
+    }
+
+    protected byte[] getRegionEndKey(byte[] row) {
+        for(byte[] startKey: regionStartKeys) {
+            if(startKey.length > 0 && Bytes.compareTo(startKey, row) > 0) {
+                return startKey;
+            }
+        }
+
+        return null;
+    }
+
+    private void closeWriter(HFile.Writer writer) throws IOException {
+        writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+        writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(false));
+        writer.close();
+    }
+}
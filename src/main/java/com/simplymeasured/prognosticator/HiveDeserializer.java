@@ -16,16 +16,12 @@
 
 package com.simplymeasured.prognosticator;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hcatalog.api.HCatTable;
 import org.apache.hcatalog.data.schema.HCatFieldSchema;
-import org.apache.hcatalog.data.schema.HCatSchema;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
@@ -36,54 +32,66 @@ import java.util.NavigableMap;
  * @since 6/3/13
  */
 public class HiveDeserializer {
-    protected byte[] separators;
     private HCatTable table;
     private Result dbResult;
+    private RowKeySalter salter;
+    private CellCompressor compressor;
+    private TableCodec codec;
 
     public HiveDeserializer(HCatTable table, Result dbResult) {
         this.table = table;
         this.dbResult = dbResult;
 
-        this.separators = HiveUtils.getSeparators(table);
+        this.salter = RowKeySalter.forTable(table);
+        this.compressor = CellCompressor.forTable(table);
     }
 
-    public Map<String, Object> deserialize() throws IOException {
-        Map<String, Object> result = Maps.newHashMap();
+    /**
+     * Create a deserializer for decoding many rows with {@link #deserialize(Result, Map)}
+     */
+    public HiveDeserializer(HCatTable table) {
+        this(table, null);
+    }
 
-        List<String> columnMappings = HiveUtils.getColumnMappings(table);
+    public Map<String, Object> deserialize() throws IOException {
+        return deserialize(dbResult, Maps.<String, Object>newHashMap());
+    }
 
+    /**
+     * Deserialize a row into a map, typically the one returned for the previous row. Maps and lists already
+     * held by a complex column are cleared and refilled rather than replaced.
+     *
+     * @param dbResult the row to deserialize
+     * @param result the map to fill
+     * @return the result map
+     * @throws IOException
+     */
+    public Map<String, Object> deserialize(Result dbResult, Map<String, Object> result) throws IOException {
         List<HCatFieldSchema> columns = table.getCols();
 
+        // codecs are looked up on first use, so a deserializer can be built for any table handle
+        if(codec == null) {
+            codec = TableCodec.forTable(table);
+        }
+
         HCatFieldSchema identifier = columns.get(0);
-        result.put(identifier.getName(), deserializeHiveType(identifier, null, dbResult.getRow(), 1));
+        byte[] rowKey = salter != null ? salter.unsalt(dbResult.getRow()) : dbResult.getRow();
+        result.put(identifier.getName(), codec.getKeyCodec().decode(rowKey, result.get(identifier.getName())));
 
         for(int i = 1; i < columns.size(); i++) {
             HCatFieldSchema field = columns.get(i);
+            String columnName = codec.getResultKey(i);
 
-            // column family is determined by mapping
-            final String columnFamily;
-            // column name is mostly determined by the mapping, unless
-            // we're dealing with a Hive MAP, at that case, the column name
-            // is the key in the map
-            String columnName = "";
+            NavigableMap<byte[], byte[]> familyMap = dbResult.getFamilyMap(codec.getFamily(i));
 
-            if(columnMappings != null) {
-                String[] mappingInfo = columnMappings.get(i).split(":");
-                columnFamily = mappingInfo[0];
+            if(familyMap != null && !familyMap.isEmpty()) {
+                byte[] value = familyMap.get(codec.getQualifier(i));
 
-                if(mappingInfo.length > 1) {
-                    columnName = mappingInfo[1];
+                if(compressor != null) {
+                    value = compressor.decompress(field.getName(), value);
                 }
-            } else {
-                columnFamily = "default";
-                columnName = field.getName();
-            }
 
-            NavigableMap<byte[], byte[]> familyMap = dbResult.getFamilyMap(Bytes.toBytes(columnFamily));
-
-            if(familyMap != null && !familyMap.isEmpty()) {
-                result.put(columnName, deserializeHiveType(field, null, familyMap.get(Bytes.toBytes(columnName)),
-                        1));
+                result.put(columnName, codec.getColumnCodec(i).decode(value, result.get(columnName)));
             } else {
                 result.put(columnName, null);
             }
@@ -93,190 +101,59 @@ public class HiveDeserializer {
     }
 
     /**
-     * Deserialize an HBase byte array to an object per the HCatalog schema
+     * Deserialize a primitive value straight into a column vector, without boxing it. Mirrors the decoding of
+     * {@link TableCodec}.
      *
-     * @param field field to deserialize
-     * @param customType custom overridden type (used during recursion) - can be null
-     * @param object the byte array to deserialize
-     * @param level the recursion level - sets up field separators properly. 1-based.
-     * @return deserialized object
-     * @throws java.io.IOException
+     * @param type the column type, matching the vector's
+     * @param buffer the buffer holding the value, e.g. a KeyValue's
+     * @param offset where the value starts
+     * @param length the value length
+     * @param vector the vector to write into
+     * @param row the row to set
      */
-    @SuppressWarnings("unchecked")
-    public Object deserializeHiveType(HCatFieldSchema field, HCatFieldSchema.Type customType, byte[] object,
-                                      int level) throws IOException {
-        assert level > 0;
-
-        // handle the null case properly.
-        if(object == null)
-            return null;
-
-        Object result;
-
-        HCatFieldSchema.Type type = customType != null ? customType : field.getType();
-
+    public static void deserializeToVector(HCatFieldSchema.Type type, byte[] buffer, int offset, int length,
+                                           ColumnBatch.ColumnVector vector, int row) {
         switch(type) {
-            case ARRAY:
-                result = deserializeArray(field, object, level);
-                break;
-            case MAP:
-                result = deserializeMap(field, object, level);
-                break;
-            case STRUCT:
-                result = deserializeStruct(field, object, level);
-                break;
             case BIGINT:
-                result = Bytes.toLong(object);
-                break;
-            case BINARY:
-                result = object;
+                ((ColumnBatch.LongVector) vector).set(row, Bytes.toLong(buffer, offset, length));
                 break;
             case BOOLEAN:
-                result = Bytes.toBoolean(object);
+                ((ColumnBatch.IntVector) vector).set(row, buffer[offset] != 0 ? 1 : 0);
                 break;
             case DOUBLE:
-                result = Bytes.toDouble(object);
+                ((ColumnBatch.DoubleVector) vector).set(row, Bytes.toDouble(buffer, offset));
                 break;
             case FLOAT:
-                result = Bytes.toFloat(object);
+                ((ColumnBatch.DoubleVector) vector).set(row, Bytes.toFloat(buffer, offset));
                 break;
             case INT:
-                result = Bytes.toInt(object);
+                ((ColumnBatch.IntVector) vector).set(row, Bytes.toInt(buffer, offset, length));
                 break;
             case SMALLINT:
-                result = Bytes.toShort(object);
-                break;
-            case STRING:
-                result = HiveUtils.unescapeString(Bytes.toString(object));
+                ((ColumnBatch.IntVector) vector).set(row, Bytes.toShort(buffer, offset, length));
                 break;
             case TINYINT:
-                result = object[0];
+                ((ColumnBatch.IntVector) vector).set(row, buffer[offset]);
                 break;
-            default:
-                throw new IllegalArgumentException("unsupported type");
-        }
-
-        return result;
-    }
-
-    private Object deserializeStruct(HCatFieldSchema field, byte[] object, int level) throws IOException {
-        char separator = (char)separators[level];
-
-        Map structData = Maps.newHashMap();
-
-        HCatSchema structSchema = field.getStructSubSchema();
-
-        ByteArrayInputStream inputBuffer = new ByteArrayInputStream(object);
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-        for(HCatFieldSchema structField: structSchema.getFields()) {
-            int read = inputBuffer.read();
-            while(read > -1) {
-                byte b = (byte)read;
-
-                if(b == separator) {
-                    Object value = deserializeHiveType(structField, null, buffer.toByteArray(), level + 1);
-
-                    structData.put(structField.getName(), value);
-
-                    buffer.reset();
-
-                    // break to the outer loop here, we've finished this field.
-                    break;
-                } else {
-                    buffer.write(b);
+            case BINARY:
+                ((ColumnBatch.BytesVector) vector).set(row, buffer, offset, length);
+                break;
+            case STRING:
+                // only strings with escaped characters need decoding; ctrl-A is stored as a tab
+                for(int i = offset; i < offset + length; i++) {
+                    if(buffer[i] == '\\' || buffer[i] == '\t') {
+                        byte[] unescaped = Bytes.toBytes(HiveUtils.unescapeString(
+                                Bytes.toString(buffer, offset, length)));
+                        ((ColumnBatch.BytesVector) vector).set(row, unescaped, 0, unescaped.length);
+
+                        return;
+                    }
                 }
 
-                read = inputBuffer.read();
-            }
-
-            if(buffer.size() > 0) {
-                Object value = deserializeHiveType(structField, null, buffer.toByteArray(), level + 1);
-
-                structData.put(structField.getName(), value);
-
-                buffer.reset();
-            }
-        }
-
-        return structData;
-    }
-
-    private Object deserializeMap(HCatFieldSchema field, byte[] object, int level) throws IOException {
-        char separator = (char) separators[level];
-        char keyValueSeparator = (char) separators[level+1];
-
-        Map mapData = Maps.newHashMap();
-
-        ByteArrayInputStream inputBuffer = new ByteArrayInputStream(object);
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-        Object key = null;
-
-        HCatFieldSchema.Type mapKeyType = field.getMapKeyType();
-        HCatFieldSchema mapFieldSchema = field.getMapValueSchema().getFields().get(0);
-
-        int read = inputBuffer.read();
-        while(read > -1) {
-            byte b = (byte)read;
-
-            if(b == separator) {
-                // end of the value
-
-                Object value = deserializeHiveType(mapFieldSchema, null, buffer.toByteArray(), level + 2);
-                mapData.put(key, value);
-                buffer.reset();
-            } else if(b == keyValueSeparator) {
-                key = deserializeHiveType(mapFieldSchema, mapKeyType, buffer.toByteArray(), level + 2);
-
-                buffer.reset();
-            } else {
-                buffer.write(b);
-            }
-
-            read = inputBuffer.read();
-        }
-
-        if(buffer.size() > 0) {
-            Object value = deserializeHiveType(mapFieldSchema, null, buffer.toByteArray(), level + 2);
-            mapData.put(key, value);
-            buffer.reset();
-        }
-
-        return mapData;
-    }
-
-    private Object deserializeArray(HCatFieldSchema field, byte[] object, int level) throws IOException {
-        char separator = (char) separators[level];
-
-        HCatFieldSchema arrayFieldSchema = field.getArrayElementSchema().getFields().get(0);
-
-        List list = Lists.newArrayList();
-
-        ByteArrayInputStream inputBuffer = new ByteArrayInputStream(object);
-
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-        int read = inputBuffer.read();
-        while(read > -1) {
-            byte b = (byte)read;
-
-            if(b == separator) {
-                list.add(deserializeHiveType(arrayFieldSchema, null, buffer.toByteArray(), level + 1));
-
-                buffer.reset();
-            } else {
-                buffer.write(b);
-            }
-
-            read = inputBuffer.read();
-        }
-
-        if(buffer.size() > 0) {
-            list.add(deserializeHiveType(arrayFieldSchema, null, buffer.toByteArray(), level + 1));
-            buffer.reset();
+                ((ColumnBatch.BytesVector) vector).set(row, buffer, offset, length);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported type");
         }
-
-        return list;
     }
 }
@@ -40,17 +40,28 @@ import java.util.Map;
  * @author rob@simplymeasured.com
  * @since 6/24/13
  */
-public class HiveQueryCursorImpl implements QueryCursor<Map<String, Object>> {
+public class HiveQueryCursorImpl implements CloseableQueryCursor<Map<String, Object>> {
     private static final Log LOG = LogFactory.getLog(HiveQueryCursorImpl.class);
 
     private SqlRowSet rowSet;
     private Map<String, Object> cachedRow;
     private ObjectMapper objectMapper = new ObjectMapper();
+    private Map<String, Object> reusedRow;
 
     protected HiveQueryCursorImpl(SqlRowSet rowSet) {
         this.rowSet = rowSet;
     }
 
+    /**
+     * In reuse mode {@link #get()} refills the same map for every row, and parses JSON columns into the maps and
+     * lists they held for the previous row. A row is only valid until the next call to {@link #next()}.
+     *
+     * @param reuseRows whether to recycle the returned row
+     */
+    public void setReuseRows(boolean reuseRows) {
+        this.reusedRow = reuseRows ? Maps.<String, Object>newHashMap() : null;
+    }
+
     @Override
     public boolean next() {
         return rowSet.next();
@@ -58,20 +69,21 @@ public class HiveQueryCursorImpl implements QueryCursor<Map<String, Object>> {
 
     @Override
     public Map<String, Object> get() {
-        Map<String, Object> result = Maps.newHashMap();
+        Map<String, Object> result = reusedRow != null ? reusedRow : Maps.<String, Object>newHashMap();
 
         final SqlRowSetMetaData metadata = rowSet.getMetaData();
 
         for(int i = 1; i <= metadata.getColumnCount(); i++) {
             String columnTypeName = metadata.getColumnTypeName(i);
+            Object previous = reusedRow != null ? result.get(metadata.getColumnName(i)) : null;
 
             final Object value;
 
             if("array".equalsIgnoreCase(columnTypeName)) {
-                value = parseJson(rowSet.getString(i), List.class);
+                value = parseJson(rowSet.getString(i), List.class, previous);
             } else if("map".equalsIgnoreCase(columnTypeName)
                     || "struct".equalsIgnoreCase(columnTypeName)) {
-                value = parseJson(rowSet.getString(i), Map.class);
+                value = parseJson(rowSet.getString(i), Map.class, previous);
             } else if("string".equalsIgnoreCase(columnTypeName)) {
                 value = HiveUtils.unescapeString(rowSet.getString(i));
             } else {
@@ -84,7 +96,26 @@ public class HiveQueryCursorImpl implements QueryCursor<Map<String, Object>> {
         return result;
     }
 
+    /**
+     * @return the underlying row set, positioned at the current row
+     */
+    protected SqlRowSet getRowSet() {
+        return rowSet;
+    }
+
+    @Override
+    public void close() {
+        // the row set is disconnected, so there is nothing to release
+    }
+
     protected Object parseJson(String stringValue, Class clazz) {
+        return parseJson(stringValue, clazz, null);
+    }
+
+    /**
+     * @param reuse a previous value to clear and parse into, if it is of the right class
+     */
+    protected Object parseJson(String stringValue, Class clazz, Object reuse) {
         if(stringValue == null) {
             return null;
         }
@@ -93,7 +124,15 @@ public class HiveQueryCursorImpl implements QueryCursor<Map<String, Object>> {
         Exception capturedException = null;
 
         try {
-            result = objectMapper.readValue(stringValue, clazz);
+            if(reuse instanceof Map && clazz == Map.class) {
+                ((Map) reuse).clear();
+                result = objectMapper.updatingReader(reuse).readValue(stringValue);
+            } else if(reuse instanceof List && clazz == List.class) {
+                ((List) reuse).clear();
+                result = objectMapper.updatingReader(reuse).readValue(stringValue);
+            } else {
+                result = objectMapper.readValue(stringValue, clazz);
+            }
         } catch(JsonParseException jpe) {
             capturedException = jpe;
         } catch(JsonMappingException jme) {
@@ -16,6 +16,8 @@
 
 package com.simplymeasured.prognosticator;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 
@@ -29,7 +31,11 @@ import java.util.Map;
  * @since 6/24/13
  */
 public class HiveQueryImpl implements HiveQuery {
+    private static final Log LOG = LogFactory.getLog(HiveQueryImpl.class);
+
     private NamedParameterJdbcTemplate jdbcTemplate;
+    private boolean reuseRows;
+    private QueryRouter queryRouter;
 
     public HiveQueryImpl(DataSource dataSource) {
         this.jdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
@@ -39,10 +45,49 @@ public class HiveQueryImpl implements HiveQuery {
         this.jdbcTemplate = jdbcTemplate;
     }
 
+    /**
+     * @param reuseRows whether cursors recycle one row map, valid until the next call to next()
+     * @see HiveQueryCursorImpl#setReuseRows(boolean)
+     */
+    public void setReuseRows(boolean reuseRows) {
+        this.reuseRows = reuseRows;
+    }
+
+    /**
+     * Optionally serve simple key lookups straight from HBase, instead of running them through Hive. Routed
+     * cursors release their HBase resources once every row is read; one abandoned earlier should be closed, as a
+     * {@link CloseableQueryCursor}.
+     *
+     * @param queryRouter the router, or null to send every query to Hive
+     */
+    public void setQueryRouter(QueryRouter queryRouter) {
+        this.queryRouter = queryRouter;
+    }
+
     @Override
     public QueryCursor<Map<String, Object>> runQuery(String queryStatement, Map<String, Object> parameters) {
+        if(queryRouter != null) {
+            RoutedQueryCursor routed;
+
+            try {
+                routed = queryRouter.route(queryStatement, parameters);
+            } catch(Exception e) {
+                LOG.warn("Unable to read routed query from HBase!", e);
+                throw new RuntimeException(e);
+            }
+
+            if(routed != null) {
+                routed.setReuseRows(reuseRows);
+
+                return routed;
+            }
+        }
+
         SqlRowSet rowSet = jdbcTemplate.queryForRowSet(queryStatement, parameters);
 
-        return new HiveQueryCursorImpl(rowSet);
+        HiveQueryCursorImpl cursor = new HiveQueryCursorImpl(rowSet);
+        cursor.setReuseRows(reuseRows);
+
+        return cursor;
     }
 }
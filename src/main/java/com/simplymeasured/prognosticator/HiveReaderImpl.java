@@ -16,9 +16,11 @@
 
 package com.simplymeasured.prognosticator;
 
+import com.google.common.collect.Lists;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTableInterface;
@@ -26,9 +28,9 @@ import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hcatalog.api.HCatClient;
 import org.apache.hcatalog.api.HCatTable;
-import org.apache.hcatalog.data.schema.HCatFieldSchema;
 import org.springframework.beans.factory.annotation.Required;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -40,12 +42,14 @@ import java.util.Map;
  * @author rob@simplymeasured.com
  * @since 5/4/13
  */
-public class HiveReaderImpl implements HiveReader {
+public class HiveReaderImpl implements BatchHiveReader {
     private static final Log LOG = LogFactory.getLog(HiveReaderImpl.class);
 
     private HCatClient hcatClient;
     private Configuration hbaseConfiguration;
     private HTableFactory tableFactory;
+    private RowCache rowCache;
+    private NegativeLookupCache negativeLookupCache;
 
     public HiveReaderImpl(HCatClient hcatClient, Configuration hbaseConfiguration, HTableFactory tableFactory) {
         this.hcatClient = hcatClient;
@@ -53,51 +57,182 @@ public class HiveReaderImpl implements HiveReader {
         this.tableFactory = tableFactory;
     }
 
+    /**
+     * Optionally cache rows read through this reader. Share the cache with a {@link HiveWriterImpl} so that
+     * writes invalidate it.
+     *
+     * @param rowCache cache to use, or null to disable caching
+     */
+    public void setRowCache(RowCache rowCache) {
+        this.rowCache = rowCache;
+    }
+
+    /**
+     * Optionally remember rows that were not found, so repeated lookups skip HBase. Share the cache with a
+     * {@link HiveWriterImpl} so that writes clear it.
+     *
+     * @param negativeLookupCache cache to use, or null to disable it
+     */
+    public void setNegativeLookupCache(NegativeLookupCache negativeLookupCache) {
+        this.negativeLookupCache = negativeLookupCache;
+    }
+
     @Override
     public Map<String, Object> readRow(String tableName, Object keyObject) throws Exception {
-        if(!(keyObject instanceof Map) && !(keyObject instanceof String) && !(keyObject instanceof byte[])) {
-            throw new IllegalArgumentException("Unsupported key type - " + keyObject.getClass().getName());
-        }
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+        String hbaseTableName = HiveUtils.getTableName(table);
 
-        Map<String, Object> result;
+        final byte[] rowKey = toRowKey(table, keyObject);
 
-        HCatTable table = hcatClient.getTable("default", tableName);
-        String hbaseTableName = HiveUtils.getTableName(table);
+        // salted tables store the key behind a salt prefix, but callers only ever see the unsalted key
+        RowKeySalter salter = RowKeySalter.forTable(table);
+        final byte[] storedRowKey = salter != null ? salter.salt(rowKey) : rowKey;
+
+        Map<String, Object> result = readCached(tableName, table, storedRowKey);
+
+        if(result != null) {
+            result.put("__rowkey", rowKey);
+
+            return result;
+        }
+
+        // read before the Get, so a result fetched while the table is being written is not cached
+        long rowCacheGeneration = rowCache != null ? rowCache.getWriteGeneration(tableName) : 0;
+        long negativeCacheGeneration = negativeLookupCache != null ?
+                negativeLookupCache.getWriteGeneration(tableName) : 0;
 
         HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, hbaseTableName);
 
         try {
-            List<HCatFieldSchema> columns = table.getCols();
+            Result dbResult = tableInterface.get(newGet(storedRowKey));
 
-            HCatFieldSchema keyColumn = columns.get(0);
+            result = toRow(tableName, table, storedRowKey, dbResult, rowCacheGeneration, negativeCacheGeneration);
+            result.put("__rowkey", rowKey);
+        } finally {
+            tableInterface.close();
+        }
 
-            // we use the serializer to build the row key
-            HiveSerializer serializer = new HiveSerializer(table);
-            final byte[] rowKey;
+        return result;
+    }
 
-            if(keyObject instanceof Map) {
-                rowKey = serializer.serializeHiveType(keyColumn, null, keyObject, 0);
-            } else if(keyObject instanceof String) {
-                rowKey = Bytes.toBytes((String)keyObject);
+    /**
+     * Read several rows of one table, fetching those not cached with a single multi-get.
+     *
+     * @param tableName the HCatalog table name
+     * @param keyObjects the rowkeys, in any form {@link #readRow} accepts
+     * @return the rows, in the same order as the keys
+     * @throws Exception
+     */
+    @Override
+    public List<Map<String, Object>> readRows(String tableName, List<?> keyObjects) throws Exception {
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+        String hbaseTableName = HiveUtils.getTableName(table);
+        RowKeySalter salter = RowKeySalter.forTable(table);
+
+        // read before the Gets, so results fetched while the table is being written are not cached
+        long rowCacheGeneration = rowCache != null ? rowCache.getWriteGeneration(tableName) : 0;
+        long negativeCacheGeneration = negativeLookupCache != null ?
+                negativeLookupCache.getWriteGeneration(tableName) : 0;
+
+        List<Map<String, Object>> results = Lists.newArrayListWithCapacity(keyObjects.size());
+        List<byte[]> rowKeys = Lists.newArrayListWithCapacity(keyObjects.size());
+        List<Get> gets = Lists.newArrayList();
+        List<Integer> positions = Lists.newArrayList();
+
+        for(Object keyObject: keyObjects) {
+            byte[] rowKey = toRowKey(table, keyObject);
+            byte[] storedRowKey = salter != null ? salter.salt(rowKey) : rowKey;
+
+            Map<String, Object> result = readCached(tableName, table, storedRowKey);
+
+            if(result != null) {
+                result.put("__rowkey", rowKey);
             } else {
-                rowKey = (byte[])keyObject;
+                positions.add(results.size());
+                gets.add(newGet(storedRowKey));
             }
 
-            Get get = new Get(rowKey);
-            get.setCacheBlocks(true);
-            get.setMaxVersions(1);
+            results.add(result);
+            rowKeys.add(rowKey);
+        }
+
+        if(gets.isEmpty()) {
+            return results;
+        }
 
-            Result dbResult = tableInterface.get(get);
+        HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, hbaseTableName);
 
-            HiveDeserializer deserializer = new HiveDeserializer(table, dbResult);
+        try {
+            Result[] dbResults = tableInterface.get(gets);
 
-            result = deserializer.deserialize();
+            for(int i = 0; i < gets.size(); i++) {
+                int position = positions.get(i);
+                Map<String, Object> result = toRow(tableName, table, gets.get(i).getRow(), dbResults[i],
+                        rowCacheGeneration, negativeCacheGeneration);
 
-            result.put("__rowkey", rowKey);
+                result.put("__rowkey", rowKeys.get(position));
+                results.set(position, result);
+            }
         } finally {
             tableInterface.close();
         }
 
+        return results;
+    }
+
+    private byte[] toRowKey(HCatTable table, Object keyObject) throws IOException {
+        if(keyObject instanceof Map) {
+            // the key codec builds the row key, as it does for writes
+            return TableCodec.forTable(table).getKeyCodec().encode(keyObject);
+        } else if(keyObject instanceof String) {
+            return Bytes.toBytes((String)keyObject);
+        } else if(keyObject instanceof byte[]) {
+            return (byte[])keyObject;
+        }
+
+        throw new IllegalArgumentException("Unsupported key type - " + keyObject.getClass().getName());
+    }
+
+    /**
+     * @return the cached row, an empty row if the key is known to be absent, or null if HBase has to be read
+     */
+    private Map<String, Object> readCached(String tableName, HCatTable table, byte[] storedRowKey)
+            throws IOException {
+        if(rowCache != null) {
+            Map<String, Object> cachedRow = rowCache.get(tableName, storedRowKey);
+
+            if(cachedRow != null) {
+                return cachedRow;
+            }
+        }
+
+        if(negativeLookupCache != null && negativeLookupCache.isAbsent(tableName, storedRowKey)) {
+            return new HiveDeserializer(table, new Result(new KeyValue[0])).deserialize();
+        }
+
+        return null;
+    }
+
+    private Get newGet(byte[] storedRowKey) throws IOException {
+        Get get = new Get(storedRowKey);
+        get.setCacheBlocks(true);
+        get.setMaxVersions(1);
+
+        return get;
+    }
+
+    private Map<String, Object> toRow(String tableName, HCatTable table, byte[] storedRowKey, Result dbResult,
+                                      long rowCacheGeneration, long negativeCacheGeneration) throws IOException {
+        Map<String, Object> result = new HiveDeserializer(table, dbResult).deserialize();
+
+        if(dbResult.isEmpty()) {
+            if(negativeLookupCache != null) {
+                negativeLookupCache.recordMiss(tableName, storedRowKey, negativeCacheGeneration);
+            }
+        } else if(rowCache != null) {
+            rowCache.put(tableName, storedRowKey, result, rowCacheGeneration);
+        }
+
         return result;
     }
 }
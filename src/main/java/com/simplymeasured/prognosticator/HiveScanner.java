@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Defines an interface for scanning ranges of rows directly from HBase, without going through Hive
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public interface HiveScanner {
+    /**
+     * Scan every row whose STRUCT rowkey starts with the given leading key fields. If every key field is given,
+     * only that row is returned.
+     *
+     * @param tableName the HCatalog table name
+     * @param partialKey the leading fields of the rowkey, e.g. the first two of (customerId, date, id)
+     * @return a cursor over the matching rows, in rowkey order. Must be closed.
+     * @throws Exception
+     */
+    public CloseableQueryCursor<Map<String, Object>> scanPrefix(String tableName, Map<String, Object> partialKey)
+            throws Exception;
+
+    /**
+     * Scan every row matching a predicate on non-key columns. The predicate is evaluated by the region servers.
+     *
+     * @param tableName the HCatalog table name
+     * @param predicate the rows to return, or null for every row
+     * @param columns the columns to return besides the key column, or null for every column
+     * @return a cursor over the matching rows, in rowkey order. Must be closed.
+     * @throws Exception
+     */
+    public CloseableQueryCursor<Map<String, Object>> scan(String tableName, ScanPredicate predicate,
+                                                          Collection<String> columns) throws Exception;
+
+    /**
+     * Scan a whole table with one scanner per region, reading up to the configured number of regions at once.
+     * Rows are decoded on the scan threads and handed to the sink in no particular order.
+     *
+     * @param tableName the HCatalog table name
+     * @param predicate the rows to return, or null for every row
+     * @param columns the columns to return besides the key column, or null for every column
+     * @param sink receives every matching row, concurrently from the scan threads
+     * @return the number of rows read
+     * @throws Exception the first failure of any region scan, which stops the others
+     */
+    public long scanParallel(String tableName, ScanPredicate predicate, Collection<String> columns, RowSink sink)
+            throws Exception;
+
+    /**
+     * Scan a whole table in parallel, as {@link #scanParallel(String, ScanPredicate, Collection, RowSink)} does,
+     * merging the rows of every region into one cursor.
+     *
+     * @param tableName the HCatalog table name
+     * @param predicate the rows to return, or null for every row
+     * @param columns the columns to return besides the key column, or null for every column
+     * @return a cursor over the matching rows, in no particular order. Must be closed.
+     * @throws Exception
+     */
+    public CloseableQueryCursor<Map<String, Object>> scanParallel(String tableName, ScanPredicate predicate,
+                                                                  Collection<String> columns) throws Exception;
+
+    /**
+     * Scan rows in batches, decoded column by column into primitive arrays instead of one map per row.
+     *
+     * @param tableName the HCatalog table name
+     * @param predicate the rows to return, or null for every row
+     * @param columns the columns to decode, in batch order. May include the key column; must all be primitive.
+     * @param batchSize the maximum number of rows per batch
+     * @return a cursor over batches of matching rows, in rowkey order. The batch is reused. Must be closed.
+     * @throws Exception
+     */
+    public CloseableQueryCursor<ColumnBatch> scanBatches(String tableName, ScanPredicate predicate,
+                                                         List<String> columns, int batchSize) throws Exception;
+
+    /**
+     * Scan the rows written since a previous scan, by cell timestamp, so the cost follows the volume of changes
+     * rather than the table size. Writes from the last few seconds are left for the next scan, so writes still
+     * in flight aren't skipped.
+     * <p/>
+     * Rows loaded with {@link HiveBulkLoader} carry the time the loader was created rather than the time they were
+     * loaded, so they're missed when a scan already passed that time before the load completed.
+     *
+     * @param tableName the HCatalog table name
+     * @param token the previous cursor's {@link ChangeCursor#getToken()}, or 0 for every row
+     * @param columns the columns to return besides the key column, or null for every column
+     * @param timestamps whether to add each row's cell timestamps under {@link ChangeCursor#TIMESTAMPS}
+     * @return a cursor over the changed rows, in rowkey order. Must be closed.
+     * @throws Exception
+     */
+    public ChangeCursor scanChanges(String tableName, long token, Collection<String> columns, boolean timestamps)
+            throws Exception;
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hcatalog.api.HCatClient;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Scans rows directly from HBase, decoding them the same way {@link HiveReaderImpl} does.
+ * <p/>
+ * Salted tables are scanned with one scanner per salt bucket, merged back into rowkey order. Parallel scans read
+ * each region on its own thread, so their rows are not ordered.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class HiveScannerImpl implements HiveScanner {
+    public static final String SCANNER_CACHING = "prognosticator.scanner_caching";
+    public static final String PARALLEL_SCAN_THREADS = "prognosticator.parallel_scan_threads";
+    public static final String PARALLEL_SCAN_QUEUE_SIZE = "prognosticator.parallel_scan_queue_size";
+    public static final String CHANGE_SCAN_LAG_MS = "prognosticator.change_scan_lag_ms";
+
+    private HCatClient hcatClient;
+    private Configuration hbaseConfiguration;
+    private HTableFactory tableFactory;
+    private int scannerCaching = Integer.getInteger(SCANNER_CACHING, 1000);
+    private int parallelism = Integer.getInteger(PARALLEL_SCAN_THREADS, 8);
+    private int parallelQueueSize = Integer.getInteger(PARALLEL_SCAN_QUEUE_SIZE, 10000);
+    private ScanProgressListener progressListener;
+    private long progressInterval = 10000;
+    private boolean reuseRows;
+    private long changeScanLag = Long.getLong(CHANGE_SCAN_LAG_MS, 10000);
+
+    public HiveScannerImpl(HCatClient hcatClient, Configuration hbaseConfiguration, HTableFactory tableFactory) {
+        this.hcatClient = hcatClient;
+        this.hbaseConfiguration = hbaseConfiguration;
+        this.tableFactory = tableFactory;
+    }
+
+    /**
+     * @param scannerCaching how many rows each scanner fetches per round trip
+     */
+    public void setScannerCaching(int scannerCaching) {
+        this.scannerCaching = scannerCaching;
+    }
+
+    /**
+     * @param parallelism how many regions a parallel scan reads at once
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param parallelQueueSize how many rows a parallel scan cursor buffers ahead of the reader
+     */
+    public void setParallelQueueSize(int parallelQueueSize) {
+        this.parallelQueueSize = parallelQueueSize;
+    }
+
+    /**
+     * @param progressListener notified of per-region progress during parallel scans
+     * @param progressInterval how many rows between progress reports for each region
+     */
+    public void setProgressListener(ScanProgressListener progressListener, long progressInterval) {
+        this.progressListener = progressListener;
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * @param reuseRows whether {@link #scanPrefix} and {@link #scan} cursors recycle one row map, valid until the
+     *                  next call to next(). Parallel scans hand rows between threads, so always return new ones.
+     * @see HBaseScanCursor#setReuseRows(boolean)
+     */
+    public void setReuseRows(boolean reuseRows) {
+        this.reuseRows = reuseRows;
+    }
+
+    /**
+     * @param changeScanLag how far behind the current time {@link #scanChanges} windows end, in milliseconds
+     */
+    public void setChangeScanLag(long changeScanLag) {
+        this.changeScanLag = changeScanLag;
+    }
+
+    @Override
+    public CloseableQueryCursor<Map<String, Object>> scanPrefix(String tableName, Map<String, Object> partialKey)
+            throws Exception {
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+
+        byte[] prefix = new HiveSerializer(table).serializeRowKeyPrefix(partialKey);
+
+        Scan scan = new Scan();
+        scan.setStartRow(prefix);
+
+        if(!partialKey.isEmpty() &&
+                partialKey.size() == table.getCols().get(0).getStructSubSchema().getFields().size()) {
+            // every key field is given, so the prefix is a whole rowkey and must not match longer ones
+            scan.setStopRow(Bytes.add(prefix, new byte[1]));
+        } else {
+            scan.setStopRow(getPrefixStopRow(prefix));
+        }
+
+        return openCursor(table, scan);
+    }
+
+    @Override
+    public CloseableQueryCursor<Map<String, Object>> scan(String tableName, ScanPredicate predicate,
+                                                          Collection<String> columns) throws Exception {
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+
+        HBaseScanCursor cursor = openCursor(table, buildScan(table, predicate, columns));
+        cursor.setProjection(columns);
+
+        return cursor;
+    }
+
+    @Override
+    public ChangeCursor scanChanges(String tableName, long token, Collection<String> columns, boolean timestamps)
+            throws Exception {
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+
+        // cells stamped before the end of the window may still be in flight, so leave a margin for them
+        long end = Math.max(token, System.currentTimeMillis() - changeScanLag);
+
+        Scan scan = buildScan(table, null, columns);
+        scan.setTimeRange(token, end);
+
+        HBaseScanCursor cursor = openCursor(table, scan);
+        cursor.setProjection(columns);
+
+        return new ChangeCursor(cursor, end, timestamps);
+    }
+
+    @Override
+    public CloseableQueryCursor<ColumnBatch> scanBatches(String tableName, ScanPredicate predicate,
+                                                         List<String> columns, int batchSize) throws Exception {
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+
+        Scan scan = buildScan(table, predicate, columns);
+        scan.setCaching(Math.max(scannerCaching, batchSize));
+
+        HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, HiveUtils.getTableName(table));
+        ResultScanner scanner = null;
+
+        try {
+            scanner = openScanner(table, tableInterface, scan);
+
+            return new ColumnBatchCursor(table, tableInterface, scanner, columns, batchSize);
+        } catch(Exception e) {
+            if(scanner != null) {
+                scanner.close();
+            }
+
+            tableInterface.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public long scanParallel(String tableName, ScanPredicate predicate, final Collection<String> columns,
+                             final RowSink sink) throws Exception {
+        final HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+        final Scan scan = buildScan(table, predicate, columns);
+
+        List<byte[][]> ranges = getRegionRanges(table);
+
+        if(progressListener != null) {
+            progressListener.scanStarted(ranges.size());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, ranges.size()),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("prognosticator-scan-%d").build());
+        CompletionService<Long> completionService = new ExecutorCompletionService<Long>(executor);
+
+        try {
+            for(final byte[][] range: ranges) {
+                completionService.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return scanRegion(table, scan, range[0], range[1], columns, sink);
+                    }
+                });
+            }
+
+            long rows = 0;
+
+            // take in completion order, so the first failure stops the scan right away
+            for(int i = 0; i < ranges.size(); i++) {
+                try {
+                    rows += completionService.take().get();
+                } catch(ExecutionException ee) {
+                    if(ee.getCause() instanceof Exception) {
+                        throw (Exception) ee.getCause();
+                    }
+
+                    throw new RuntimeException(ee.getCause());
+                }
+            }
+
+            return rows;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public CloseableQueryCursor<Map<String, Object>> scanParallel(final String tableName, final ScanPredicate predicate,
+                                                                  final Collection<String> columns) throws Exception {
+        final ParallelScanCursor cursor = new ParallelScanCursor(parallelQueueSize);
+
+        ExecutorService coordinator = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("prognosticator-scan-coordinator-%d").build());
+
+        try {
+            cursor.setScan(coordinator.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable failure = null;
+
+                    try {
+                        scanParallel(tableName, predicate, columns, cursor);
+                    } catch(Throwable t) {
+                        failure = t;
+                    } finally {
+                        cursor.finish(failure);
+                    }
+                }
+            }));
+        } finally {
+            // lets the coordinator thread exit once the scan is done
+            coordinator.shutdown();
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Build a scan over the whole table, filtered by a predicate and restricted to the projected columns
+     *
+     * @param table the table to scan
+     * @param predicate the rows to return, or null for every row
+     * @param columns the columns to return, or null for every column
+     * @return the scan
+     * @throws IOException
+     */
+    protected Scan buildScan(HCatTable table, ScanPredicate predicate, Collection<String> columns)
+            throws IOException {
+        PredicateCompiler compiler = new PredicateCompiler(table);
+
+        Scan scan = new Scan();
+
+        if(predicate != null) {
+            scan.setFilter(compiler.compile(predicate));
+        }
+
+        if(columns != null) {
+            // the region servers can only evaluate filters on cells the scan reads
+            Set<String> scanColumns = Sets.newHashSet(columns);
+
+            if(predicate != null) {
+                scanColumns.addAll(compiler.getColumns(predicate));
+
+                // a row holding none of the read columns comes back with no cells at all, so a null check has to
+                // read every column to see the rows it matches
+                if(compiler.hasNullCheck(predicate)) {
+                    for(HCatFieldSchema field: table.getCols()) {
+                        scanColumns.add(field.getName());
+                    }
+                }
+            }
+
+            scanColumns.remove(table.getCols().get(0).getName());
+            compiler.addColumns(scan, scanColumns);
+        }
+
+        return scan;
+    }
+
+    /**
+     * Get the rowkey range of each region of a table. The ranges are over stored, possibly salted, rowkeys.
+     *
+     * @param table the table
+     * @return start and end key pairs, in region order. Empty keys are the start and end of the table.
+     * @throws Exception
+     */
+    protected List<byte[][]> getRegionRanges(HCatTable table) throws Exception {
+        List<byte[][]> result = Lists.newArrayList();
+
+        HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, HiveUtils.getTableName(table));
+
+        try {
+            HTableInterface located = ClusterRouter.unwrap(tableInterface);
+
+            if(located instanceof HTable) {
+                Pair<byte[][], byte[][]> keys = ((HTable) located).getStartEndKeys();
+
+                for(int i = 0; i < keys.getFirst().length; i++) {
+                    result.add(new byte[][] { keys.getFirst()[i], keys.getSecond()[i] });
+                }
+            }
+        } finally {
+            tableInterface.close();
+        }
+
+        if(result.isEmpty()) {
+            // region boundaries aren't available through other table implementations
+            result.add(new byte[][] { HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW });
+        }
+
+        return result;
+    }
+
+    /**
+     * Scan a single region on the calling thread, with its own table handle
+     *
+     * @return the number of rows read
+     */
+    protected long scanRegion(HCatTable table, Scan scan, byte[] startKey, byte[] endKey,
+                              Collection<String> columns, RowSink sink) throws Exception {
+        Scan regionScan = new Scan(scan);
+        regionScan.setStartRow(startKey);
+        regionScan.setStopRow(endKey);
+        regionScan.setCaching(scannerCaching);
+
+        HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, HiveUtils.getTableName(table));
+
+        HBaseScanCursor cursor;
+        try {
+            cursor = new HBaseScanCursor(table, tableInterface, tableInterface.getScanner(regionScan));
+        } catch(Exception e) {
+            tableInterface.close();
+            throw e;
+        }
+
+        cursor.setProjection(columns);
+
+        long rows = 0;
+
+        try {
+            while(cursor.next()) {
+                if(Thread.interrupted()) {
+                    throw new InterruptedException("Parallel scan cancelled");
+                }
+
+                sink.accept(cursor.get());
+                rows++;
+
+                if(progressListener != null && rows % progressInterval == 0) {
+                    progressListener.regionProgress(startKey, endKey, rows);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if(progressListener != null) {
+            progressListener.regionComplete(startKey, endKey, rows);
+        }
+
+        return rows;
+    }
+
+    /**
+     * Open a cursor for a scan over unsalted rowkeys, fanning out over salt buckets if needed
+     *
+     * @param table the table to scan
+     * @param scan the scan to run
+     * @return a cursor over the rows
+     * @throws Exception
+     */
+    protected HBaseScanCursor openCursor(HCatTable table, Scan scan) throws Exception {
+        scan.setCaching(scannerCaching);
+
+        HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, HiveUtils.getTableName(table));
+
+        HBaseScanCursor cursor;
+        try {
+            cursor = new HBaseScanCursor(table, tableInterface, openScanner(table, tableInterface, scan));
+        } catch(Exception e) {
+            tableInterface.close();
+            throw e;
+        }
+
+        cursor.setReuseRows(reuseRows);
+
+        return cursor;
+    }
+
+    protected ResultScanner openScanner(HCatTable table, HTableInterface tableInterface, Scan scan)
+            throws Exception {
+        RowKeySalter salter = RowKeySalter.forTable(table);
+
+        if(salter == null) {
+            return tableInterface.getScanner(scan);
+        }
+
+        List<ResultScanner> scanners = Lists.newArrayListWithCapacity(salter.getBuckets());
+
+        try {
+            for(Scan bucketScan: salter.getBucketScans(scan)) {
+                scanners.add(tableInterface.getScanner(bucketScan));
+            }
+
+            return new SaltedResultScanner(scanners);
+        } catch(Exception e) {
+            for(ResultScanner scanner: scanners) {
+                scanner.close();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Get the first rowkey after every rowkey that starts with the given prefix
+     *
+     * @param prefix the rowkey prefix
+     * @return the stop row, or an empty array to scan to the end of the table
+     */
+    protected static byte[] getPrefixStopRow(byte[] prefix) {
+        for(int i = prefix.length - 1; i >= 0; i--) {
+            if(prefix[i] != (byte) 0xff) {
+                byte[] stopRow = new byte[i + 1];
+                System.arraycopy(prefix, 0, stopRow, 0, i + 1);
+                stopRow[i]++;
+
+                return stopRow;
+            }
+        }
+
+        return new byte[0];
+    }
+}
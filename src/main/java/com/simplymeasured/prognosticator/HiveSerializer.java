@@ -16,11 +16,9 @@
 
 package com.simplymeasured.prognosticator;
 
-import com.sun.org.apache.commons.logging.Log;
-import com.sun.org.apache.commons.logging.LogFactory;
+import com.google.common.collect.Lists;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
-import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hcatalog.api.HCatTable;
 import org.apache.hcatalog.data.schema.HCatFieldSchema;
 import org.apache.hcatalog.data.schema.HCatSchema;
@@ -37,217 +35,155 @@ import java.util.Map;
  * @since 6/3/13
  */
 public class HiveSerializer {
-    private static final Log LOG = LogFactory.getLog(HiveSerializer.class);
-
     protected byte[] separators;
     private HCatTable table;
-    private final char escapeChar = '\\';
-    private final boolean[] needsEscape = new boolean[128];
+    private RowKeySalter salter;
+    private CellCompressor compressor;
+    private TableCodec codec;
 
     public HiveSerializer(HCatTable table) {
         this.table = table;
 
         this.separators = HiveUtils.getSeparators(table);
-
-        for (int i = 0; i < 128; i++) {
-            this.needsEscape[i] = false;
-        }
-        this.needsEscape[this.escapeChar] = true;
-        this.needsEscape[10] = true; // this is \n
-        for (int i = 0; i < this.separators.length; i++) {
-            this.needsEscape[this.separators[i]] = true;
-        }
-
-        for(int i = 0; i < 32; i++) {
-            this.needsEscape[i] = true;
-        }
+        this.salter = RowKeySalter.forTable(table);
+        this.compressor = CellCompressor.forTable(table);
     }
 
     /**
-     * Serialize an object into an HBase put and/or delete
-     *
-     * Any fields that have a NULL value will get added to the Delete object
+     * Build the rowkey for an entity from the first column of the table. When that column is a STRUCT, its
+     * fields are taken from the entity itself. If the table is salted, the salt prefix is included.
      *
-     * @param field field from the schema to serialize
-     * @param mappingPosition where it's at in the column mapping
-     * @param put the HBase Put object
-     * @param delete the HBase Delete object
-     * @param object what to serialize
-     * @param level the recursion level - sets up field separators properly. 1-based.
-     * @throws java.io.IOException
+     * @param entity the row to build a key for
+     * @return the rowkey, as stored in HBase
+     * @throws IOException
+     * @throws IllegalArgumentException if the fields making up the key are missing
      */
-    protected void serialize(HCatFieldSchema field, int mappingPosition, Put put, Delete delete,
-                             Object object, int level) throws IOException {
-        assert level > 0;
+    public byte[] serializeRowKey(Map<String, Object> entity) throws IOException {
+        HCatFieldSchema keyColumn = table.getCols().get(0);
 
-        List<String> columnMappings = HiveUtils.getColumnMappings(table);
+        final byte[] rowkey;
 
-        // column family is determined by mapping
-        final String columnFamily;
-        // column name is mostly determined by the mapping, unless
-        // we're dealing with a Hive MAP, at that case, the column name
-        // is the key in the map
-        String columnName = "";
+        final List<String> keyRequiredColumns = Lists.newArrayList();
 
-        if(columnMappings != null) {
-            String[] mappingInfo = columnMappings.get(mappingPosition).split(":");
-            columnFamily = mappingInfo[0];
+        if(keyColumn.getType() == HCatFieldSchema.Type.STRUCT) {
+            HCatSchema keySchema = keyColumn.getStructSubSchema();
 
-            if(mappingInfo.length > 1) {
-                columnName = mappingInfo[1];
+            for(HCatFieldSchema fieldSchema: keySchema.getFields()) {
+                keyRequiredColumns.add(fieldSchema.getName());
             }
-        } else {
-            columnFamily = "default";
-            columnName = field.getName();
-        }
-
-        byte[] result = serializeHiveType(field, null, object, level);
-
-        byte[] columnFamilyBytes = Bytes.toBytes(columnFamily);
-        byte[] columnQualifierBytes = Bytes.toBytes(columnName);
 
-        if(result == null) {
-            delete.deleteColumn(columnFamilyBytes, columnQualifierBytes);
+            rowkey = getCodec().getKeyCodec().encode(entity);
         } else {
-            put.add(columnFamilyBytes, columnQualifierBytes, result);
-        }
-    }
+            keyRequiredColumns.add(keyColumn.getName());
 
-    protected byte[] serializeHiveType(HCatFieldSchema field, HCatFieldSchema.Type customType, Object object,
-                                       int level) throws IOException {
-        HCatFieldSchema.Type type = customType != null ? customType : field.getType();
-
-        byte[] result;
-
-        if(object == null)
-            return null;
-
-        try {
-            switch (type) {
-                case ARRAY:
-                    result = serializeArray(field, (List) object, level);
-                    break;
-                case MAP:
-                    result = serializeMap(field, (Map) object, level);
-                    break;
-                case STRUCT:
-                    result = serializeStruct(field, (Map) object, level);
-                    break;
-                case BIGINT:
-                    result = Bytes.toBytes(PutHelper.valueAsLong(object));
-                    break;
-                case BINARY:
-                    result = (byte[])object;
-                    break;
-                case BOOLEAN:
-                    result = Bytes.toBytes((Boolean)object);
-                    break;
-                case DOUBLE:
-                    result = Bytes.toBytes(PutHelper.valueAsDouble(object));
-                    break;
-                case FLOAT:
-                    result = Bytes.toBytes(PutHelper.valueAsFloat(object));
-                    break;
-                case INT:
-                    result = Bytes.toBytes(PutHelper.valueAsInteger(object));
-                    break;
-                case SMALLINT:
-                    result = Bytes.toBytes((Short)object);
-                    break;
-                case STRING:
-                    result = Bytes.toBytes(HiveUtils.escapeString((String)object));
-                    break;
-                case TINYINT:
-                    result = Bytes.toBytes((Byte)object);
-                    break;
-                default:
-                    throw new IllegalArgumentException("unsupported type");
-            }
-        } catch(ClassCastException cce) {
-            LOG.warn(String.format("Column %s expected type %s but found %s - value = %s",
-                    field.getName(), type, object.getClass().getName(), object));
+            rowkey = getCodec().getKeyCodec().encode(entity.get(keyColumn.getName()));
+        }
 
-            throw cce;
+        if(rowkey == null || rowkey.length == 0) {
+            throw new IllegalArgumentException(String.format("Rowkey is null, required key fields missing: %s",
+                    keyRequiredColumns));
         }
 
-        return result;
+        return salter != null ? salter.salt(rowkey) : rowkey;
     }
 
-    protected byte[] serializeArray(HCatFieldSchema field, List list, int level) throws IOException {
-        char separator = (char) separators[level];
-
-        HCatFieldSchema arrayFieldSchema = field.getArrayElementSchema().getFields().get(0);
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        boolean first = true;
-
-        for(Object obj: list) {
-            if(!first) {
-                baos.write(separator);
-            }
+    /**
+     * Build the leading bytes of a STRUCT rowkey from its first few fields, for prefix scans. Fields have to be
+     * given in order - a field cannot be set if one before it is missing. Unless every field is given, the prefix
+     * ends with the field separator, so it only matches whole field values. If every field is given the prefix is
+     * the whole rowkey, and has to be matched exactly rather than as a prefix.
+     * <p/>
+     * The prefix is never salted; salted tables need one scan per bucket.
+     *
+     * @param partialKey the leading fields of the key
+     * @return the rowkey prefix, empty if no fields were given
+     * @throws IOException
+     * @throws IllegalArgumentException if the key is not a STRUCT or the fields are not leading fields
+     */
+    public byte[] serializeRowKeyPrefix(Map<String, Object> partialKey) throws IOException {
+        if(partialKey.isEmpty()) {
+            return new byte[0];
+        }
 
-            baos.write(serializeHiveType(arrayFieldSchema, arrayFieldSchema.getType(), obj, level + 1));
+        HCatFieldSchema keyColumn = table.getCols().get(0);
 
-            first = false;
+        if(keyColumn.getType() != HCatFieldSchema.Type.STRUCT) {
+            throw new IllegalArgumentException(String.format("Prefix scans need a STRUCT rowkey, %s is %s",
+                    keyColumn.getName(), keyColumn.getType()));
         }
 
-        return baos.toByteArray();
-    }
-
-    protected byte[] serializeMap(HCatFieldSchema field, Map mapData, int level) throws IOException {
-        char separator = (char) separators[level];
-        char keyValueSeparator = (char) separators[level+1];
+        char separator = (char) separators[1];
 
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-        boolean first = true;
+        List<HCatFieldSchema> keyFields = keyColumn.getStructSubSchema().getFields();
+        TableCodec codec = getCodec();
+        int matched = 0;
+
+        for(HCatFieldSchema keyField: keyFields) {
+            Object value = partialKey.get(keyField.getName());
 
-        for(Object mapKey : mapData.keySet()) {
-            if(!first) {
+            if(value == null) {
+                break;
+            }
+
+            if(matched > 0) {
                 baos.write(separator);
             }
 
-            HCatFieldSchema.Type mapKeyType = field.getMapKeyType();
-            HCatFieldSchema mapFieldSchema = field.getMapValueSchema().getFields().get(0);
+            baos.write(codec.getKeyFieldCodec(matched).encode(value));
+            matched++;
+        }
 
-            baos.write(serializeHiveType(mapFieldSchema, mapKeyType,  mapKey, level + 2));
-            baos.write(keyValueSeparator);
-            baos.write(serializeHiveType(mapFieldSchema, null, mapData.get(mapKey), level + 2));
+        if(matched < partialKey.size()) {
+            throw new IllegalArgumentException(String.format("Prefix fields must be leading fields of the key %s",
+                    keyColumn.getName()));
+        }
 
-            first = false;
+        if(matched > 0 && matched < keyFields.size()) {
+            baos.write(separator);
         }
 
         return baos.toByteArray();
     }
 
-    protected byte[] serializeStruct(HCatFieldSchema field, Map structData, int level) throws IOException {
-        char separator = (char)separators[level];
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    /**
+     * Serialize every non-key column of an entity. Columns with a null value are added to the Delete.
+     *
+     * @param entity the row to serialize
+     * @param put the HBase Put object
+     * @param delete the HBase Delete object
+     * @throws IOException
+     */
+    public void serializeColumns(Map<String, Object> entity, Put put, Delete delete) throws IOException {
+        List<HCatFieldSchema> columns = table.getCols();
+        TableCodec codec = getCodec();
 
-        HCatSchema structSchema = field.getStructSubSchema();
+        for(int i = 1; i < columns.size(); i++) {
+            HCatFieldSchema columnSchema = columns.get(i);
 
-        boolean first = true;
+            byte[] result = codec.getColumnCodec(i).encode(entity.get(columnSchema.getName()));
 
-        for(HCatFieldSchema structField: structSchema.getFields()) {
-            if(!first) {
-                baos.write(separator);
+            if(compressor != null) {
+                result = compressor.compress(columnSchema.getName(), result);
             }
 
-            Object obj = structData.get(structField.getName());
-
-            if(obj == null) {
-                throw new IllegalArgumentException(
-                        String.format("STRUCT types cannot have null members - field %s",
-                                structField.getName()));
+            if(result == null) {
+                delete.deleteColumn(codec.getFamily(i), codec.getQualifier(i));
+            } else {
+                put.add(codec.getFamily(i), codec.getQualifier(i), result);
             }
+        }
+    }
 
-            baos.write(serializeHiveType(structField, null, obj, level + 1));
-
-            first = false;
+    /**
+     * The table's compiled codecs, looked up on first use so a serializer can be built for any table handle
+     */
+    private TableCodec getCodec() throws IOException {
+        if(codec == null) {
+            codec = TableCodec.forTable(table);
         }
 
-        return baos.toByteArray();
+        return codec;
     }
 }
@@ -38,6 +38,14 @@ public class HiveUtils {
 
     public static final String HBASE_TABLE_NAME = "hbase.table.name";
     public static final String HBASE_COLUMNS_MAPPING = "hbase.columns.mapping";
+    public static final String SALT_BUCKETS = "prognosticator.salt_buckets";
+    /**
+     * Columns whose large cells are compressed, see {@link CellCompressor}. Columns holding data have to be rewritten
+     * when they're added or removed.
+     */
+    public static final String COMPRESSED_COLUMNS = "prognosticator.compressed_columns";
+    public static final String COMPRESSION_THRESHOLD = "prognosticator.compression_threshold";
+    public static final String COMPRESSION_CODEC = "prognosticator.compression_codec";
 
     static final char[] escapeEscapeBytes = new char[] { '\\', '\\', '\\', '\\'};
     static final char[] escapeUnescapeBytes = new char[] { '\\' };
@@ -88,6 +96,42 @@ public class HiveUtils {
         return columnMappings;
     }
 
+    /**
+     * Get the HBase column family and qualifier a column is stored in. A Hive MAP mapped to a whole column
+     * family has an empty qualifier.
+     *
+     * @param table table instance to retrieve mappings from
+     * @param position the column's position in the table schema
+     * @return a two element array of column family and qualifier
+     */
+    public static String[] getColumnFamilyAndQualifier(HCatTable table, int position) {
+        List<String> columnMappings = getColumnMappings(table);
+
+        if(columnMappings == null) {
+            return new String[] { "default", table.getCols().get(position).getName() };
+        }
+
+        String[] mappingInfo = columnMappings.get(position).split(":");
+
+        return new String[] { mappingInfo[0], mappingInfo.length > 1 ? mappingInfo[1] : "" };
+    }
+
+    /**
+     * Get the number of buckets a table's rowkeys are salted into, from the table properties.
+     *
+     * @param table table instance to retrieve the setting from
+     * @return the number of salt buckets, or 0 if rowkeys are not salted
+     */
+    public static int getSaltBuckets(HCatTable table) {
+        Map<String, String> tableProperties = table.getTblProps();
+
+        if(tableProperties == null || !tableProperties.containsKey(SALT_BUCKETS)) {
+            return 0;
+        }
+
+        return Integer.parseInt(tableProperties.get(SALT_BUCKETS).trim());
+    }
+
     /**
      * Gets the default separators used by Hive. HCatalog (0.4.0) doesn't reveal if any other separators
      * were used.
@@ -110,6 +154,24 @@ public class HiveUtils {
         return separators;
     }
 
+    /**
+     * @return true if {@link #escapeString} would change the text
+     */
+    public static boolean needsEscaping(String text) {
+        for(int i = 0; i < text.length(); i++) {
+            switch(text.charAt(i)) {
+                case '\\':
+                case '\n':
+                case '\r':
+                case '\t':
+                case '\u0001':
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
     public static String escapeString(String text) {
         if(text == null) {
             return null;
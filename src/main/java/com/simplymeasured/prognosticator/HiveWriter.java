@@ -16,6 +16,8 @@
 
 package com.simplymeasured.prognosticator;
 
+import java.io.InputStream;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -24,4 +26,59 @@ import java.util.Map;
  */
 public interface HiveWriter {
     void writeRow(String tableName, Map<String, Object> entity) throws Exception;
+
+    /**
+     * Write several rows to one table in a single batch. Each row must have a distinct key.
+     *
+     * @param tableName the HCatalog table name
+     * @param entities the rows to write
+     * @throws Exception
+     */
+    void writeRows(String tableName, List<Map<String, Object>> entities) throws Exception;
+
+    /**
+     * Write rows to several tables at once, e.g. every row of one event. All rows are serialized before any are
+     * written, then each table's rows are sent as one batch, in parallel with the other tables.
+     *
+     * @param rowsByTable the rows to write, by HCatalog table name. Rows of a table must have distinct keys.
+     * @throws Exception the first failure; the other tables' batches are still written
+     */
+    void writeBatch(Map<String, List<Map<String, Object>>> rowsByTable) throws Exception;
+
+    /**
+     * Write rows to one table straight from JSON: a single object, an array of objects, or objects one after
+     * another as in JSON lines. Rows are written in batches as they're parsed, so earlier batches stay written if
+     * a later one fails. A row whose key repeats an earlier row of the batch starts a new batch, so the later row
+     * wins.
+     *
+     * @param tableName the HCatalog table name
+     * @param json UTF-8 JSON, not closed
+     * @return the number of rows written
+     * @throws Exception
+     */
+    long writeJson(String tableName, InputStream json) throws Exception;
+
+    /**
+     * Atomically add to BIGINT counter columns of one row, in a single HBase round trip. Missing counters start
+     * at zero.
+     *
+     * @param tableName the HCatalog table name
+     * @param key the row's key, as for {@link #writeRow}: the key column, or the fields of a STRUCT key
+     * @param deltas the amount to add to each column, by column name
+     * @return the new value of each column
+     * @throws Exception
+     */
+    Map<String, Long> increment(String tableName, Map<String, Object> key, Map<String, Long> deltas)
+            throws Exception;
+
+    /**
+     * Atomically append elements to an ARRAY column of one row, sending only the new elements to HBase.
+     *
+     * @param tableName the HCatalog table name
+     * @param key the row's key, as for {@link #writeRow}
+     * @param column the ARRAY column name
+     * @param elements the elements to append
+     * @throws Exception
+     */
+    void appendToArray(String tableName, Map<String, Object> key, String column, List<?> elements) throws Exception;
 }
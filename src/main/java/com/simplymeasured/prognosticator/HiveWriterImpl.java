@@ -16,24 +16,40 @@
 
 package com.simplymeasured.prognosticator;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sun.org.apache.commons.logging.Log;
 import com.sun.org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Append;
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hcatalog.api.HCatClient;
 import org.apache.hcatalog.api.HCatTable;
 import org.apache.hcatalog.data.schema.HCatFieldSchema;
-import org.apache.hcatalog.data.schema.HCatSchema;
 
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -46,89 +62,581 @@ public class HiveWriterImpl implements HiveWriter {
     private HCatClient hcatClient;
     private Configuration hbaseConfiguration;
     private HTableFactory tableFactory;
-
-    private static final Cache<String, HCatTable> TABLE_HANDLE_CACHE;
+    private RowCache rowCache;
+    private NegativeLookupCache negativeLookupCache;
+    private WriteSpool writeSpool;
+    private final SpoolReplayListener cacheInvalidator = new SpoolReplayListener() {
+        @Override
+        public void replayed(String tableName, byte[] rowKey) {
+            invalidateCaches(tableName, rowKey);
+        }
+    };
+    private AdaptiveWriteLimiter writeLimiter;
+    private RegionBatchWriter batchWriter;
+    private final ThreadPoolExecutor flushExecutor;
 
     public static final String TABLE_CACHE_SIZE = "prognosticator.table_cache_size";
     public static final String TABLE_CACHE_EXPIRATION_MINUTES = "prognosticator.table_cache_expiration_minutes";
+    public static final String JSON_BATCH_SIZE = "prognosticator.json_batch_size";
+    public static final String WRITE_BATCH_THREADS = "prognosticator.write_batch_threads";
 
-    static {
-        TABLE_HANDLE_CACHE = CacheBuilder.newBuilder()
-                .maximumSize(Long.getLong(TABLE_CACHE_SIZE, 100))
-                .expireAfterWrite(Long.getLong(TABLE_CACHE_EXPIRATION_MINUTES, 10), TimeUnit.MINUTES)
-                .build();
-    }
+    private static final JsonFactory JSON_FACTORY =
+            new JsonFactory().configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
 
     public HiveWriterImpl(HCatClient hcatClient, Configuration hbaseConfiguration, HTableFactory tableFactory) {
         this.hcatClient = hcatClient;
         this.hbaseConfiguration = hbaseConfiguration;
         this.tableFactory = tableFactory;
+
+        // threads only live while batches are being written
+        int threads = Integer.getInteger(WRITE_BATCH_THREADS, 8);
+        this.flushExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("prognosticator-write-%d").build());
+        this.flushExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Optionally invalidate rows in a cache shared with a {@link HiveReaderImpl} as they are written.
+     *
+     * @param rowCache cache to invalidate, or null
+     */
+    public void setRowCache(RowCache rowCache) {
+        this.rowCache = rowCache;
+    }
+
+    /**
+     * Optionally clear rows from a negative lookup cache shared with a {@link HiveReaderImpl} as they are written.
+     *
+     * @param negativeLookupCache cache to clear, or null
+     */
+    public void setNegativeLookupCache(NegativeLookupCache negativeLookupCache) {
+        this.negativeLookupCache = negativeLookupCache;
+    }
+
+    /**
+     * Optionally append writes to a local spool and acknowledge them right away, instead of waiting for HBase.
+     * Spooled writes are applied in order by the spool's replayer, so readers see them once it catches up. Cached
+     * rows are invalidated as each write is replayed, not when it is appended.
+     *
+     * @param writeSpool an open spool, or null to write to HBase directly
+     */
+    public void setWriteSpool(WriteSpool writeSpool) {
+        if(this.writeSpool != null) {
+            this.writeSpool.removeReplayListener(cacheInvalidator);
+        }
+
+        this.writeSpool = writeSpool;
+
+        if(writeSpool != null) {
+            writeSpool.addReplayListener(cacheInvalidator);
+        }
+    }
+
+    /**
+     * Optionally limit concurrent writes to each table, adapting to HBase latency and overload errors.
+     *
+     * @param writeLimiter a limiter shared by every thread using this writer, or null
+     */
+    public void setWriteLimiter(AdaptiveWriteLimiter writeLimiter) {
+        this.writeLimiter = writeLimiter;
+    }
+
+    /**
+     * Optionally send {@link #writeRows} batches grouped by region server, retrying only failed mutations.
+     *
+     * @param batchWriter the batch writer, or null to send each batch as one list
+     */
+    public void setBatchWriter(RegionBatchWriter batchWriter) {
+        this.batchWriter = batchWriter;
     }
 
     @Override
     public void writeRow(final String tableName, Map<String, Object> entity) throws Exception {
-        HCatTable table = TABLE_HANDLE_CACHE.get(tableName, new Callable<HCatTable>() {
-            @Override
-            public HCatTable call() throws Exception {
-                LOG.info(String.format("Cache miss for table handle, retrieving %s", tableName));
-
-                return hcatClient.getTable("default", tableName);
-            }
-        });
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
 
         String hbaseTableName = HiveUtils.getTableName(table);
 
-        HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, hbaseTableName);
-        tableInterface.setAutoFlush(true);
-
         HiveSerializer serializer = new HiveSerializer(table);
 
-        try {
-            List<HCatFieldSchema> columns = table.getCols();
+        final byte[] rowkey = serializer.serializeRowKey(entity);
+
+        Put put = new Put(rowkey);
+        Delete delete = new Delete(rowkey);
 
-            HCatFieldSchema keyColumn = columns.get(0);
+        serializer.serializeColumns(entity, put, delete);
 
-            final byte[] rowkey;
+        if(writeSpool != null) {
+            // the caches are invalidated once the spool replays the write
+            writeSpool.append(tableName, hbaseTableName, put, delete);
 
-            final List<String> keyRequiredColumns = Lists.newArrayList();
+            return;
+        }
+
+        long start = writeLimiter != null ? writeLimiter.acquire(tableName) : 0;
+        Exception error = null;
+
+        try {
+            HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, hbaseTableName);
+            tableInterface.setAutoFlush(true);
 
-            if(keyColumn.getType() == HCatFieldSchema.Type.STRUCT) {
-                HCatSchema keySchema = keyColumn.getStructSubSchema();
+            try {
+                if(!put.isEmpty()) {
+                    tableInterface.put(put);
+                }
 
-                for(HCatFieldSchema fieldSchema: keySchema.getFields()) {
-                    keyRequiredColumns.add(fieldSchema.getName());
+                if(!delete.isEmpty()) {
+                    tableInterface.delete(delete);
                 }
+            } finally {
+                tableInterface.close();
+            }
+        } catch(Exception e) {
+            error = e;
+            throw e;
+        } finally {
+            if(writeLimiter != null) {
+                writeLimiter.release(tableName, start, error);
+            }
+        }
 
-                rowkey = serializer.serializeHiveType(keyColumn, null, entity, 1);
-            } else {
-                keyRequiredColumns.add(keyColumn.getName());
+        invalidateCaches(tableName, rowkey);
+    }
 
-                rowkey = serializer.serializeHiveType(keyColumn, null, entity.get(keyColumn.getName()), 1);
+    @Override
+    public void writeRows(String tableName, List<Map<String, Object>> entities) throws Exception {
+        flush(serializeRows(tableName, entities));
+    }
+
+    @Override
+    public void writeBatch(Map<String, List<Map<String, Object>>> rowsByTable) throws Exception {
+        List<TableBatch> batches = Lists.newArrayListWithCapacity(rowsByTable.size());
+
+        for(Map.Entry<String, List<Map<String, Object>>> entry: rowsByTable.entrySet()) {
+            if(!entry.getValue().isEmpty()) {
+                batches.add(serializeRows(entry.getKey(), entry.getValue()));
             }
+        }
+
+        if(batches.isEmpty()) {
+            return;
+        }
+
+        List<Future<Void>> futures = Lists.newArrayListWithCapacity(batches.size() - 1);
+
+        for(final TableBatch batch: batches.subList(1, batches.size())) {
+            futures.add(flushExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    flush(batch);
+                    return null;
+                }
+            }));
+        }
+
+        // the calling thread flushes one table itself rather than waiting idle
+        Exception error = null;
 
-            if(rowkey == null || rowkey.length == 0) {
-                throw new IllegalArgumentException(String.format("Rowkey is null, required key fields missing: %s",
-                        keyRequiredColumns));
+        try {
+            flush(batches.get(0));
+        } catch(Exception e) {
+            error = e;
+        }
+
+        for(Future<Void> future: futures) {
+            try {
+                future.get();
+            } catch(ExecutionException ee) {
+                if(error == null) {
+                    error = ee.getCause() instanceof Exception
+                            ? (Exception) ee.getCause() : new RuntimeException(ee.getCause());
+                }
             }
+        }
+
+        if(error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * One table's rows, serialized and ready to send
+     */
+    private static class TableBatch {
+        private final String tableName;
+        private final String hbaseTableName;
+        private final List<Put> puts;
+        private final List<Delete> deletes;
+        private final List<byte[]> rowkeys;
+
+        private TableBatch(String tableName, String hbaseTableName, int size) {
+            this.tableName = tableName;
+            this.hbaseTableName = hbaseTableName;
+            this.puts = Lists.newArrayListWithCapacity(size);
+            this.deletes = Lists.newArrayListWithCapacity(size);
+            this.rowkeys = Lists.newArrayListWithCapacity(size);
+        }
+    }
+
+    private TableBatch serializeRows(String tableName, List<Map<String, Object>> entities) throws Exception {
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+
+        HiveSerializer serializer = new HiveSerializer(table);
+
+        TableBatch batch = new TableBatch(tableName, HiveUtils.getTableName(table), entities.size());
+
+        for(Map<String, Object> entity: entities) {
+            final byte[] rowkey = serializer.serializeRowKey(entity);
 
             Put put = new Put(rowkey);
             Delete delete = new Delete(rowkey);
 
-            for(int i = 1; i < columns.size(); i++) {
-                HCatFieldSchema columnSchema = columns.get(i);
+            serializer.serializeColumns(entity, put, delete);
 
-                serializer.serialize(columnSchema, i, put, delete, entity.get(columnSchema.getName()), 1);
+            batch.puts.add(put);
+            batch.deletes.add(delete);
+            batch.rowkeys.add(rowkey);
+        }
+
+        return batch;
+    }
+
+    private void flush(TableBatch batch) throws Exception {
+        if(writeSpool != null) {
+            // the caches are invalidated once the spool replays each write
+            for(int i = 0; i < batch.rowkeys.size(); i++) {
+                writeSpool.append(batch.tableName, batch.hbaseTableName, batch.puts.get(i), batch.deletes.get(i));
             }
 
+            return;
+        }
+
+        List<Row> mutations = Lists.newArrayListWithCapacity(batch.rowkeys.size() * 2);
+
+        for(int i = 0; i < batch.rowkeys.size(); i++) {
+            Put put = batch.puts.get(i);
+            Delete delete = batch.deletes.get(i);
+
             if(!put.isEmpty()) {
-                tableInterface.put(put);
+                mutations.add(put);
             }
 
             if(!delete.isEmpty()) {
-                tableInterface.delete(delete);
+                mutations.add(delete);
+            }
+        }
+
+        writeMutations(batch.tableName, batch.hbaseTableName, mutations, batch.rowkeys);
+    }
+
+    @Override
+    public long writeJson(String tableName, InputStream json) throws Exception {
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+
+        String hbaseTableName = HiveUtils.getTableName(table);
+
+        JsonRowSerializer serializer = new JsonRowSerializer(table);
+
+        int batchSize = Integer.getInteger(JSON_BATCH_SIZE, 1000);
+
+        List<Row> mutations = Lists.newArrayListWithCapacity(batchSize * 2);
+        List<byte[]> rowkeys = Lists.newArrayListWithCapacity(batchSize);
+        Set<byte[]> batchedRowkeys = Sets.newTreeSet(Bytes.BYTES_COMPARATOR);
+        long count = 0;
+
+        JsonParser parser = JSON_FACTORY.createJsonParser(json);
+
+        try {
+            JsonToken token = parser.nextToken();
+            boolean array = token == JsonToken.START_ARRAY;
+
+            if(array) {
+                token = parser.nextToken();
+            }
+
+            while(token == JsonToken.START_OBJECT) {
+                JsonRowSerializer.Mutations row = serializer.serialize(parser);
+
+                if(writeSpool != null) {
+                    // the caches are invalidated once the spool replays the write
+                    writeSpool.append(tableName, hbaseTableName, row.getPut(), row.getDelete());
+                } else {
+                    // mutations within a batch aren't applied in order, so a repeated key starts a new batch
+                    if(!batchedRowkeys.add(row.getRowKey())) {
+                        writeMutations(tableName, hbaseTableName, mutations, rowkeys);
+
+                        mutations.clear();
+                        rowkeys.clear();
+                        batchedRowkeys.clear();
+                        batchedRowkeys.add(row.getRowKey());
+                    }
+
+                    if(!row.getPut().isEmpty()) {
+                        mutations.add(row.getPut());
+                    }
+
+                    if(!row.getDelete().isEmpty()) {
+                        mutations.add(row.getDelete());
+                    }
+
+                    rowkeys.add(row.getRowKey());
+
+                    if(rowkeys.size() >= batchSize) {
+                        writeMutations(tableName, hbaseTableName, mutations, rowkeys);
+
+                        mutations.clear();
+                        rowkeys.clear();
+                        batchedRowkeys.clear();
+                    }
+                }
+
+                count++;
+                token = parser.nextToken();
+            }
+
+            if(array ? token != JsonToken.END_ARRAY : token != null) {
+                throw new IllegalArgumentException(String.format("Expected JSON objects, found %s at %s",
+                        token, parser.getCurrentLocation()));
+            }
+        } finally {
+            parser.close();
+        }
+
+        writeMutations(tableName, hbaseTableName, mutations, rowkeys);
+
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Increments go straight to HBase, since the new values are needed right away. A spooled write replayed
+     * afterwards would overwrite the counters, so increments are refused while a write spool is set. The columns
+     * must be uncompressed BIGINT columns mapped to a qualifier.
+     *
+     * @throws IllegalStateException if a write spool is set
+     */
+    @Override
+    public Map<String, Long> increment(String tableName, Map<String, Object> key, Map<String, Long> deltas)
+            throws Exception {
+        if(writeSpool != null) {
+            throw new IllegalStateException("Increments can't be combined with a write spool");
+        }
+
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+
+        String hbaseTableName = HiveUtils.getTableName(table);
+
+        final byte[] rowkey = new HiveSerializer(table).serializeRowKey(key);
+
+        Map<String, byte[][]> cells = Maps.newLinkedHashMap();
+        Increment increment = new Increment(rowkey);
+
+        for(Map.Entry<String, Long> delta: deltas.entrySet()) {
+            int position = getColumnPosition(table, delta.getKey(), HCatFieldSchema.Type.BIGINT);
+            String[] mapping = HiveUtils.getColumnFamilyAndQualifier(table, position);
+            byte[][] cell = new byte[][] { Bytes.toBytes(mapping[0]), Bytes.toBytes(mapping[1]) };
+
+            increment.addColumn(cell[0], cell[1], delta.getValue());
+            cells.put(delta.getKey(), cell);
+        }
+
+        Map<String, Long> values = Maps.newLinkedHashMap();
+
+        if(cells.isEmpty()) {
+            return values;
+        }
+
+        long start = writeLimiter != null ? writeLimiter.acquire(tableName) : 0;
+        Exception error = null;
+        Result result;
+
+        try {
+            HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, hbaseTableName);
+
+            try {
+                result = tableInterface.increment(increment);
+            } finally {
+                tableInterface.close();
+            }
+        } catch(Exception e) {
+            error = e;
+            throw e;
+        } finally {
+            if(writeLimiter != null) {
+                writeLimiter.release(tableName, start, error);
+            }
+        }
+
+        // counters are stored as 8 byte longs, the same encoding HiveSerializer uses for BIGINT
+        for(Map.Entry<String, byte[][]> cell: cells.entrySet()) {
+            byte[] value = result.getValue(cell.getValue()[0], cell.getValue()[1]);
+
+            values.put(cell.getKey(), value != null ? Bytes.toLong(value) : null);
+        }
+
+        invalidateCaches(tableName, rowkey);
+
+        return values;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The elements are encoded on their own and sent with an HBase {@link Append}, after a separator. When the
+     * array was empty or missing, that separator leads the cell, so it's removed with a checkAndPut afterwards;
+     * until then, readers see an extra empty first element. Appends go straight to HBase, where a spooled write
+     * replayed afterwards would overwrite them, so they're refused while a write spool is set. The column must be
+     * uncompressed and mapped to a qualifier.
+     *
+     * @throws IllegalStateException if a write spool is set
+     */
+    @Override
+    public void appendToArray(String tableName, Map<String, Object> key, String column, List<?> elements)
+            throws Exception {
+        if(writeSpool != null) {
+            throw new IllegalStateException("Appends can't be combined with a write spool");
+        }
+
+        if(elements.isEmpty()) {
+            return;
+        }
+
+        HCatTable table = TableHandleCache.getTable(hcatClient, tableName);
+
+        String hbaseTableName = HiveUtils.getTableName(table);
+
+        final byte[] rowkey = new HiveSerializer(table).serializeRowKey(key);
+
+        int position = getColumnPosition(table, column, HCatFieldSchema.Type.ARRAY);
+        String[] mapping = HiveUtils.getColumnFamilyAndQualifier(table, position);
+        byte[] family = Bytes.toBytes(mapping[0]);
+        byte[] qualifier = Bytes.toBytes(mapping[1]);
+
+        // the new elements, separated as in the stored array, after the separator joining them to it
+        byte[] encoded = TableCodec.forTable(table).getColumnCodec(position).encode(elements);
+        byte[] appended = new byte[encoded.length + 1];
+        appended[0] = HiveUtils.getSeparators(table)[1];
+        System.arraycopy(encoded, 0, appended, 1, encoded.length);
+
+        Append append = new Append(rowkey);
+        append.add(family, qualifier, appended);
+
+        long start = writeLimiter != null ? writeLimiter.acquire(tableName) : 0;
+        Exception error = null;
+
+        try {
+            HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, hbaseTableName);
+
+            try {
+                byte[] value = tableInterface.append(append).getValue(family, qualifier);
+
+                // the array was empty, so our separator is now leading; strip it, even if others appended since
+                while(value != null && Bytes.startsWith(value, appended)) {
+                    Put put = new Put(rowkey);
+                    put.add(family, qualifier, Arrays.copyOfRange(value, 1, value.length));
+
+                    if(tableInterface.checkAndPut(rowkey, family, qualifier, value, put)) {
+                        break;
+                    }
+
+                    value = tableInterface.get(new Get(rowkey).addColumn(family, qualifier)).getValue(family,
+                            qualifier);
+                }
+            } finally {
+                tableInterface.close();
             }
+        } catch(Exception e) {
+            error = e;
+            throw e;
         } finally {
-            tableInterface.close();
+            if(writeLimiter != null) {
+                writeLimiter.release(tableName, start, error);
+            }
+        }
+
+        invalidateCaches(tableName, rowkey);
+    }
+
+    /**
+     * Find a non-key column of the given type that can be updated in place: mapped to a qualifier, and
+     * uncompressed
+     */
+    private int getColumnPosition(HCatTable table, String columnName, HCatFieldSchema.Type type) {
+        List<HCatFieldSchema> columns = table.getCols();
+
+        for(int i = 1; i < columns.size(); i++) {
+            HCatFieldSchema column = columns.get(i);
+
+            if(column.getName().equals(columnName)) {
+                if(column.getType() != type) {
+                    throw new IllegalArgumentException(String.format("Column %s is %s, not %s",
+                            columnName, column.getType(), type));
+                }
+
+                if(HiveUtils.getColumnFamilyAndQualifier(table, i)[1].isEmpty()) {
+                    throw new IllegalArgumentException(String.format(
+                            "Column %s is mapped to a whole column family", columnName));
+                }
+
+                CellCompressor compressor = CellCompressor.forTable(table);
+
+                if(compressor != null && compressor.isCompressed(columnName)) {
+                    throw new IllegalArgumentException(String.format("Column %s is compressed", columnName));
+                }
+
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("No column %s in table %s", columnName,
+                table.getTableName()));
+    }
+
+    /**
+     * Send a batch of mutations, then invalidate the rows in the caches
+     */
+    private void writeMutations(String tableName, String hbaseTableName, List<Row> mutations, List<byte[]> rowkeys)
+            throws Exception {
+        if(!mutations.isEmpty()) {
+            int rows = Math.max(1, rowkeys.size());
+            long start = writeLimiter != null ? writeLimiter.acquire(tableName, rows) : 0;
+            Exception error = null;
+
+            try {
+                if(batchWriter != null) {
+                    batchWriter.write(hbaseTableName, mutations);
+                } else {
+                    HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, hbaseTableName);
+
+                    try {
+                        tableInterface.batch(mutations);
+                    } finally {
+                        tableInterface.close();
+                    }
+                }
+            } catch(Exception e) {
+                error = e;
+                throw e;
+            } finally {
+                if(writeLimiter != null) {
+                    writeLimiter.release(tableName, start, rows, error);
+                }
+            }
+        }
+
+        for(byte[] rowkey: rowkeys) {
+            invalidateCaches(tableName, rowkey);
+        }
+    }
+
+    private void invalidateCaches(String tableName, byte[] rowkey) {
+        if(rowCache != null) {
+            rowCache.invalidate(tableName, rowkey);
+        }
+
+        if(negativeLookupCache != null) {
+            negativeLookupCache.recordWrite(tableName, rowkey);
         }
     }
 }
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes JSON objects straight from a streaming parser into HBase mutations, producing the same bytes
+ * {@link HiveSerializer} does for the equivalent map, without building the map or boxing its values.
+ * <p/>
+ * Values are encoded into one reusable buffer as their tokens are read, so fields may come in any order. Numbers
+ * are converted to the column type, BINARY values are base64 strings, and fields that aren't columns are skipped.
+ * As with maps, a missing or null column is deleted, and a STRUCT rowkey takes its fields from the top level of
+ * the object.
+ * <p/>
+ * Not thread-safe; use one per thread.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class JsonRowSerializer {
+    private final byte[] separators;
+    private final RowKeySalter salter;
+    private final CellCompressor compressor;
+
+    private final List<HCatFieldSchema> columns;
+    private final HCatFieldSchema keyColumn;
+    private final List<HCatFieldSchema> keyFields;
+    private final Map<String, Integer> columnPositions = Maps.newHashMap();
+    private final Map<String, Integer> keyFieldPositions = Maps.newHashMap();
+    private final byte[][] families;
+    private final byte[][] qualifiers;
+
+    // where each column's and key field's bytes are in the buffer for the current row, or -1
+    private final int[] columnStarts;
+    private final int[] columnEnds;
+    private final int[] keyFieldStarts;
+    private final int[] keyFieldEnds;
+
+    private final CellBuffer buffer = new CellBuffer(1024);
+
+    public JsonRowSerializer(HCatTable table) throws IOException {
+        this.separators = HiveUtils.getSeparators(table);
+        this.salter = RowKeySalter.forTable(table);
+        this.compressor = CellCompressor.forTable(table);
+
+        this.columns = table.getCols();
+        this.keyColumn = columns.get(0);
+        this.keyFields = keyColumn.getType() == HCatFieldSchema.Type.STRUCT
+                ? keyColumn.getStructSubSchema().getFields() : null;
+
+        this.families = new byte[columns.size()][];
+        this.qualifiers = new byte[columns.size()][];
+
+        for(int i = 0; i < columns.size(); i++) {
+            columnPositions.put(columns.get(i).getName(), i);
+
+            if(i > 0) {
+                String[] mapping = HiveUtils.getColumnFamilyAndQualifier(table, i);
+                families[i] = Bytes.toBytes(mapping[0]);
+                qualifiers[i] = Bytes.toBytes(mapping[1]);
+            }
+        }
+
+        if(keyFields != null) {
+            for(int i = 0; i < keyFields.size(); i++) {
+                keyFieldPositions.put(keyFields.get(i).getName(), i);
+            }
+        }
+
+        this.columnStarts = new int[columns.size()];
+        this.columnEnds = new int[columns.size()];
+        this.keyFieldStarts = new int[keyFields != null ? keyFields.size() : 0];
+        this.keyFieldEnds = new int[keyFieldStarts.length];
+    }
+
+    /**
+     * The mutations for one row
+     */
+    public static class Mutations {
+        private final byte[] rowKey;
+        private final Put put;
+        private final Delete delete;
+
+        private Mutations(byte[] rowKey) {
+            this.rowKey = rowKey;
+            this.put = new Put(rowKey);
+            this.delete = new Delete(rowKey);
+        }
+
+        /**
+         * @return the rowkey as stored, including any salt
+         */
+        public byte[] getRowKey() {
+            return rowKey;
+        }
+
+        public Put getPut() {
+            return put;
+        }
+
+        public Delete getDelete() {
+            return delete;
+        }
+    }
+
+    /**
+     * Serialize the JSON object the parser is positioned at, leaving it on the object's end
+     *
+     * @param parser a parser whose current token starts an object
+     * @return the row's mutations
+     * @throws IOException if the JSON is malformed
+     * @throws IllegalArgumentException if a value doesn't fit its column, or the key fields are missing
+     */
+    public Mutations serialize(JsonParser parser) throws IOException {
+        if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("Expected a JSON object, found " + parser.getCurrentToken());
+        }
+
+        buffer.setSize(0);
+        Arrays.fill(columnStarts, -1);
+        Arrays.fill(keyFieldStarts, -1);
+
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            Integer keyField = keyFields != null ? keyFieldPositions.get(name) : null;
+            Integer position = columnPositions.get(name);
+
+            if(keyField != null) {
+                keyFieldStarts[keyField] = buffer.size();
+                writeValue(parser, token, keyFields.get(keyField), null, 2);
+                keyFieldEnds[keyField] = buffer.size();
+            } else if(position != null && token != JsonToken.VALUE_NULL) {
+                columnStarts[position] = buffer.size();
+                writeValue(parser, token, columns.get(position), null, 1);
+                columnEnds[position] = buffer.size();
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        Mutations result = new Mutations(buildRowKey());
+
+        for(int i = 1; i < columns.size(); i++) {
+            if(columnStarts[i] < 0) {
+                result.delete.deleteColumn(families[i], qualifiers[i]);
+            } else {
+                byte[] value = buffer.copy(columnStarts[i], columnEnds[i]);
+
+                if(compressor != null) {
+                    value = compressor.compress(columns.get(i).getName(), value);
+                }
+
+                result.put.add(families[i], qualifiers[i], value);
+            }
+        }
+
+        return result;
+    }
+
+    private byte[] buildRowKey() {
+        byte[] rowKey;
+
+        if(keyFields != null) {
+            int length = keyFields.size() - 1;
+
+            for(int i = 0; i < keyFields.size(); i++) {
+                if(keyFieldStarts[i] < 0) {
+                    throw new IllegalArgumentException(String.format(
+                            "STRUCT types cannot have null members - field %s", keyFields.get(i).getName()));
+                }
+
+                length += keyFieldEnds[i] - keyFieldStarts[i];
+            }
+
+            rowKey = new byte[length];
+            int offset = 0;
+
+            for(int i = 0; i < keyFields.size(); i++) {
+                if(i > 0) {
+                    rowKey[offset++] = separators[1];
+                }
+
+                int fieldLength = keyFieldEnds[i] - keyFieldStarts[i];
+                System.arraycopy(buffer.getData(), keyFieldStarts[i], rowKey, offset, fieldLength);
+                offset += fieldLength;
+            }
+        } else {
+            rowKey = columnStarts[0] >= 0 ? buffer.copy(columnStarts[0], columnEnds[0]) : null;
+        }
+
+        if(rowKey == null || rowKey.length == 0) {
+            throw new IllegalArgumentException(String.format("Rowkey is null, required key fields missing: %s",
+                    keyFields != null ? keyFieldPositions.keySet() : keyColumn.getName()));
+        }
+
+        return salter != null ? salter.salt(rowKey) : rowKey;
+    }
+
+    /**
+     * Encode the value at the current token, as {@link TableCodec.FieldCodec#encode} would
+     */
+    private void writeValue(JsonParser parser, JsonToken token, HCatFieldSchema field,
+                            HCatFieldSchema.Type customType, int level) throws IOException {
+        HCatFieldSchema.Type type = customType != null ? customType : field.getType();
+
+        if(token == JsonToken.VALUE_NULL) {
+            throw new IllegalArgumentException(String.format("Null values aren't allowed inside %s", field.getName()));
+        }
+
+        switch(type) {
+            case ARRAY: {
+                expect(token, JsonToken.START_ARRAY, field);
+                HCatFieldSchema elementField = field.getArrayElementSchema().getFields().get(0);
+
+                boolean first = true;
+                while((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if(!first) {
+                        buffer.write(separators[level]);
+                    }
+
+                    writeValue(parser, token, elementField, elementField.getType(), level + 1);
+                    first = false;
+                }
+                break;
+            }
+            case MAP: {
+                expect(token, JsonToken.START_OBJECT, field);
+                HCatFieldSchema valueField = field.getMapValueSchema().getFields().get(0);
+
+                boolean first = true;
+                while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                    if(!first) {
+                        buffer.write(separators[level]);
+                    }
+
+                    writeMapKey(parser, field);
+                    buffer.write(separators[level + 1]);
+                    writeValue(parser, parser.nextToken(), valueField, null, level + 2);
+                    first = false;
+                }
+                break;
+            }
+            case STRUCT:
+                expect(token, JsonToken.START_OBJECT, field);
+                writeStruct(parser, field, level);
+                break;
+            case BIGINT:
+                buffer.writeLong(isInteger(token) ? parser.getLongValue() : (long) getDouble(parser, token, field));
+                break;
+            case INT:
+                buffer.writeInt(isInteger(token) ? parser.getIntValue() : (int) getDouble(parser, token, field));
+                break;
+            case SMALLINT:
+                expect(token, JsonToken.VALUE_NUMBER_INT, field);
+                buffer.writeShort(parser.getShortValue());
+                break;
+            case TINYINT:
+                expect(token, JsonToken.VALUE_NUMBER_INT, field);
+                buffer.write(parser.getByteValue());
+                break;
+            case DOUBLE:
+                buffer.writeLong(Double.doubleToRawLongBits(getDouble(parser, token, field)));
+                break;
+            case FLOAT:
+                buffer.writeInt(Float.floatToRawIntBits((float) getDouble(parser, token, field)));
+                break;
+            case BOOLEAN:
+                if(token != JsonToken.VALUE_TRUE && token != JsonToken.VALUE_FALSE) {
+                    throw mismatch(token, field);
+                }
+
+                buffer.write(token == JsonToken.VALUE_TRUE ? -1 : 0);
+                break;
+            case STRING:
+                expect(token, JsonToken.VALUE_STRING, field);
+                buffer.writeEscaped(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                break;
+            case BINARY:
+                expect(token, JsonToken.VALUE_STRING, field);
+                byte[] binary = parser.getBinaryValue();
+                buffer.write(binary, 0, binary.length);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported type");
+        }
+    }
+
+    /**
+     * Encode a struct's members in schema order, whatever order the object has them in
+     */
+    private void writeStruct(JsonParser parser, HCatFieldSchema field, int level) throws IOException {
+        List<HCatFieldSchema> structFields = field.getStructSubSchema().getFields();
+        int[] starts = new int[structFields.size()];
+        int[] ends = new int[structFields.size()];
+        Arrays.fill(starts, -1);
+
+        int structStart = buffer.size();
+
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            int index = -1;
+
+            for(int i = 0; i < structFields.size() && index < 0; i++) {
+                if(structFields.get(i).getName().equals(name)) {
+                    index = i;
+                }
+            }
+
+            if(index < 0 || token == JsonToken.VALUE_NULL) {
+                parser.skipChildren();
+            } else {
+                starts[index] = buffer.size();
+                writeValue(parser, token, structFields.get(index), null, level + 1);
+                ends[index] = buffer.size();
+            }
+        }
+
+        byte[] members = buffer.copy(structStart, buffer.size());
+        buffer.setSize(structStart);
+
+        for(int i = 0; i < structFields.size(); i++) {
+            if(starts[i] < 0) {
+                throw new IllegalArgumentException(String.format(
+                        "STRUCT types cannot have null members - field %s", structFields.get(i).getName()));
+            }
+
+            if(i > 0) {
+                buffer.write(separators[level]);
+            }
+
+            buffer.write(members, starts[i] - structStart, ends[i] - starts[i]);
+        }
+    }
+
+    /**
+     * Object keys are always strings, so they're converted to the map's key type
+     */
+    private void writeMapKey(JsonParser parser, HCatFieldSchema field) throws IOException {
+        switch(field.getMapKeyType()) {
+            case STRING:
+                buffer.writeEscaped(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                break;
+            case BIGINT:
+                buffer.writeLong(Long.parseLong(parser.getText()));
+                break;
+            case INT:
+                buffer.writeInt(Integer.parseInt(parser.getText()));
+                break;
+            case SMALLINT:
+                buffer.writeShort(Short.parseShort(parser.getText()));
+                break;
+            case TINYINT:
+                buffer.write(Byte.parseByte(parser.getText()));
+                break;
+            case DOUBLE:
+                buffer.writeLong(Double.doubleToRawLongBits(Double.parseDouble(parser.getText())));
+                break;
+            case FLOAT:
+                buffer.writeInt(Float.floatToRawIntBits(Float.parseFloat(parser.getText())));
+                break;
+            case BOOLEAN:
+                buffer.write(Boolean.parseBoolean(parser.getText()) ? -1 : 0);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Map %s can't have %s keys in JSON",
+                        field.getName(), field.getMapKeyType()));
+        }
+    }
+
+    private static boolean isInteger(JsonToken token) {
+        return token == JsonToken.VALUE_NUMBER_INT;
+    }
+
+    private static double getDouble(JsonParser parser, JsonToken token, HCatFieldSchema field) throws IOException {
+        if(token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+            throw mismatch(token, field);
+        }
+
+        return parser.getDoubleValue();
+    }
+
+    private static void expect(JsonToken token, JsonToken expected, HCatFieldSchema field) {
+        if(token != expected) {
+            throw mismatch(token, field);
+        }
+    }
+
+    private static IllegalArgumentException mismatch(JsonToken token, HCatFieldSchema field) {
+        return new IllegalArgumentException(String.format("Column %s expected type %s but found %s",
+                field.getName(), field.getType(), token));
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Maps;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers rowkeys that were looked up and not found, so repeated lookups can be answered without going to
+ * HBase.
+ * <p/>
+ * Each table gets a {@link CountingBloomFilter} that is fed from read misses and cleared for a key when it is
+ * written. Like any Bloom filter it can report false positives - a key that was never recorded as missing may
+ * be reported absent. To keep that bounded, a table's filter is replaced once it holds more keys than it was
+ * sized for, and once it reaches its maximum age. The maximum age also bounds how long a row written by another
+ * process can be reported absent. Misses that race with a write through this process are not recorded.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class NegativeLookupCache {
+    private static final Log LOG = LogFactory.getLog(NegativeLookupCache.class);
+
+    public static final String NEGATIVE_CACHE_EXPECTED_KEYS = "prognosticator.negative_cache_expected_keys";
+    public static final String NEGATIVE_CACHE_FALSE_POSITIVE_RATE = "prognosticator.negative_cache_false_positive_rate";
+    public static final String NEGATIVE_CACHE_MAX_AGE_SECONDS = "prognosticator.negative_cache_max_age_seconds";
+
+    private final ConcurrentMap<String, TableFilter> filters = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, AtomicLong> writeGenerations = Maps.newConcurrentMap();
+
+    private final int expectedKeys;
+    private final double falsePositiveRate;
+    private final long maxAgeMillis;
+
+    private final AtomicLong absentCount = new AtomicLong();
+    private final AtomicLong rotationCount = new AtomicLong();
+
+    public NegativeLookupCache() {
+        this(Integer.getInteger(NEGATIVE_CACHE_EXPECTED_KEYS, 100000),
+                Double.parseDouble(System.getProperty(NEGATIVE_CACHE_FALSE_POSITIVE_RATE, "0.001")),
+                Long.getLong(NEGATIVE_CACHE_MAX_AGE_SECONDS, 300), TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param expectedKeys missing keys to hold per table before the table's filter is replaced
+     * @param falsePositiveRate chance of reporting a key absent that was never recorded as missing
+     * @param maxAge how long a table's filter is used before it is replaced
+     * @param unit unit of maxAge
+     */
+    public NegativeLookupCache(int expectedKeys, double falsePositiveRate, long maxAge, TimeUnit unit) {
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxAgeMillis = unit.toMillis(maxAge);
+    }
+
+    /**
+     * @param tableName the HCatalog table name
+     * @param rowKey the HBase rowkey
+     * @return true if the row was recently looked up and found missing
+     */
+    public boolean isAbsent(String tableName, byte[] rowKey) {
+        TableFilter tableFilter = filters.get(tableName);
+
+        if(tableFilter == null) {
+            return false;
+        }
+
+        if(System.currentTimeMillis() - tableFilter.createdAt > maxAgeMillis) {
+            rotate(tableName, tableFilter);
+
+            return false;
+        }
+
+        boolean absent = tableFilter.filter.mightContain(rowKey);
+
+        if(absent) {
+            absentCount.incrementAndGet();
+        }
+
+        return absent;
+    }
+
+    /**
+     * Record that a lookup found no row
+     *
+     * @param tableName the HCatalog table name
+     * @param rowKey the HBase rowkey
+     */
+    public void recordMiss(String tableName, byte[] rowKey) {
+        recordMiss(tableName, rowKey, getWriteGeneration(tableName));
+    }
+
+    /**
+     * Record that a lookup started after {@link #getWriteGeneration(String)} returned writeGeneration found no
+     * row. If the table was written since then the row may exist now, so the miss is not recorded.
+     *
+     * @param tableName the HCatalog table name
+     * @param rowKey the HBase rowkey
+     * @param writeGeneration the table's write generation from before the lookup
+     */
+    public void recordMiss(String tableName, byte[] rowKey, long writeGeneration) {
+        AtomicLong generation = getGeneration(tableName);
+
+        if(generation.get() != writeGeneration) {
+            return;
+        }
+
+        TableFilter tableFilter = filters.get(tableName);
+
+        if(tableFilter == null) {
+            TableFilter created = new TableFilter(expectedKeys, falsePositiveRate);
+            TableFilter existing = filters.putIfAbsent(tableName, created);
+
+            tableFilter = existing != null ? existing : created;
+        }
+
+        // concurrent misses on one key would otherwise count it twice, and one write would not clear it
+        if(tableFilter.filter.mightContain(rowKey)) {
+            return;
+        }
+
+        tableFilter.filter.add(rowKey);
+
+        // a write that raced with the add has already cleared the key, so undo the add it missed
+        if(generation.get() != writeGeneration) {
+            tableFilter.filter.remove(rowKey);
+
+            return;
+        }
+
+        if(tableFilter.insertions.incrementAndGet() > expectedKeys) {
+            rotate(tableName, tableFilter);
+        }
+    }
+
+    /**
+     * Record that a row has been written, so it is no longer reported absent
+     *
+     * @param tableName the HCatalog table name
+     * @param rowKey the HBase rowkey
+     */
+    public void recordWrite(String tableName, byte[] rowKey) {
+        getGeneration(tableName).incrementAndGet();
+
+        TableFilter tableFilter = filters.get(tableName);
+
+        if(tableFilter != null) {
+            tableFilter.filter.remove(rowKey);
+        }
+    }
+
+    public void invalidate(String tableName) {
+        getGeneration(tableName).incrementAndGet();
+        filters.remove(tableName);
+    }
+
+    /**
+     * Read before looking a row up in HBase and pass to {@link #recordMiss(String, byte[], long)}, so a miss
+     * that raced with a write is not recorded.
+     *
+     * @param tableName the HCatalog table name
+     * @return a counter that changes whenever a row of the table is written
+     */
+    public long getWriteGeneration(String tableName) {
+        return getGeneration(tableName).get();
+    }
+
+    /**
+     * @return the number of lookups answered as absent by this cache
+     */
+    public long getAbsentCount() {
+        return absentCount.get();
+    }
+
+    /**
+     * @return the number of times a table's filter was replaced for being full or too old
+     */
+    public long getRotationCount() {
+        return rotationCount.get();
+    }
+
+    private AtomicLong getGeneration(String tableName) {
+        AtomicLong generation = writeGenerations.get(tableName);
+
+        if(generation == null) {
+            AtomicLong created = new AtomicLong();
+            AtomicLong existing = writeGenerations.putIfAbsent(tableName, created);
+
+            generation = existing != null ? existing : created;
+        }
+
+        return generation;
+    }
+
+    private void rotate(String tableName, TableFilter expected) {
+        if(filters.remove(tableName, expected)) {
+            LOG.debug(String.format("Replacing negative lookup filter for %s", tableName));
+
+            rotationCount.incrementAndGet();
+        }
+    }
+
+    private static class TableFilter {
+        private final CountingBloomFilter filter;
+        private final AtomicLong insertions = new AtomicLong();
+        private final long createdAt = System.currentTimeMillis();
+
+        TableFilter(int expectedKeys, double falsePositiveRate) {
+            this.filter = new CountingBloomFilter(expectedKeys, falsePositiveRate);
+        }
+    }
+}
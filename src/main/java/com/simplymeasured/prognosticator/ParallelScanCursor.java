@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cursor fed by the threads of a parallel scan, through a bounded queue. Rows arrive in no particular order.
+ * <p/>
+ * Scan threads block while the queue is full, so a slow consumer throttles the scan instead of buffering the
+ * table in memory. Closing the cursor early cancels the scan.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class ParallelScanCursor implements CloseableQueryCursor<Map<String, Object>>, RowSink {
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+
+    private volatile Future<?> scan;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private Map<String, Object> current;
+    private boolean finished;
+
+    public ParallelScanCursor(int queueSize) {
+        this.queue = new ArrayBlockingQueue<Object>(queueSize);
+    }
+
+    /**
+     * @param scan the running scan, cancelled when the cursor is closed
+     */
+    public void setScan(Future<?> scan) {
+        this.scan = scan;
+    }
+
+    @Override
+    public void accept(Map<String, Object> row) throws Exception {
+        queue.put(row);
+    }
+
+    /**
+     * Mark the end of the rows
+     *
+     * @param failure why the scan stopped early, or null if it completed
+     */
+    public void finish(Throwable failure) {
+        this.failure = failure;
+
+        try {
+            // once closed, nobody is reading any more
+            while(!closed && !queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                // wait for the reader to make room
+            }
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean next() {
+        if(finished) {
+            return false;
+        }
+
+        Object next;
+
+        try {
+            next = queue.take();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        }
+
+        if(next == END) {
+            finished = true;
+            current = null;
+
+            if(failure != null) {
+                throw new RuntimeException("Parallel scan failed", failure);
+            }
+
+            return false;
+        }
+
+        current = (Map<String, Object>) next;
+
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> get() {
+        return current;
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        closed = true;
+
+        if(scan != null) {
+            scan.cancel(true);
+        }
+
+        queue.clear();
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.FamilyFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.QualifierFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.filter.SkipFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles {@link ScanPredicate}s into HBase filters, so rows are filtered by the region servers.
+ * <p/>
+ * Values are encoded with the table's {@link TableCodec}, so comparisons are on the stored bytes. That is exact for
+ * equality, but ranges only follow value order for binaries, non-negative numbers and strings free of the characters
+ * strings are stored escaped for: backslash, newline, carriage return, tab and ctrl-A. A string range can wrongly
+ * match or miss values holding those characters, and is rejected if its bounds hold them.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class PredicateCompiler {
+    private final HCatTable table;
+    private final CellCompressor compressor;
+    private TableCodec codec;
+
+    public PredicateCompiler(HCatTable table) {
+        this.table = table;
+        this.compressor = CellCompressor.forTable(table);
+    }
+
+    /**
+     * @param predicate the predicate to compile
+     * @return a filter that passes only the rows matching the predicate
+     * @throws IOException
+     * @throws IllegalArgumentException if the predicate can't be evaluated on the stored bytes
+     */
+    public Filter compile(ScanPredicate predicate) throws IOException {
+        switch(predicate.getKind()) {
+            case AND:
+                return compileChildren(FilterList.Operator.MUST_PASS_ALL, predicate.getChildren());
+            case OR:
+                return compileChildren(FilterList.Operator.MUST_PASS_ONE, predicate.getChildren());
+        }
+
+        int position = getPosition(predicate.getColumn());
+        HCatFieldSchema field = table.getCols().get(position);
+        String[] mapping = HiveUtils.getColumnFamilyAndQualifier(table, position);
+
+        if(mapping[1].isEmpty()) {
+            throw new IllegalArgumentException(String.format(
+                    "Column %s is mapped to a whole column family and can't be filtered", field.getName()));
+        }
+
+        byte[] family = Bytes.toBytes(mapping[0]);
+        byte[] qualifier = Bytes.toBytes(mapping[1]);
+        List<Object> values = predicate.getValues();
+
+        switch(predicate.getKind()) {
+            case EQUAL:
+                return columnFilter(family, qualifier, CompareOp.EQUAL, encode(position, values.get(0), false));
+            case IN:
+                List<Filter> filters = Lists.newArrayListWithCapacity(values.size());
+
+                for(Object value: values) {
+                    filters.add(columnFilter(family, qualifier, CompareOp.EQUAL, encode(position, value, false)));
+                }
+
+                return new FilterList(FilterList.Operator.MUST_PASS_ONE, filters);
+            case RANGE:
+                return compileRange(position, family, qualifier, values.get(0), values.get(1));
+            case IS_NULL:
+                // any cell in the column drops the whole row
+                return new SkipFilter(new FilterList(FilterList.Operator.MUST_PASS_ONE,
+                        new FamilyFilter(CompareOp.NOT_EQUAL, new BinaryComparator(family)),
+                        new QualifierFilter(CompareOp.NOT_EQUAL, new BinaryComparator(qualifier))));
+            case IS_NOT_NULL:
+                // every value starts with the empty prefix, so this only drops rows missing the column
+                SingleColumnValueFilter filter = new SingleColumnValueFilter(family, qualifier, CompareOp.EQUAL,
+                        new BinaryPrefixComparator(new byte[0]));
+                filter.setFilterIfMissing(true);
+
+                return filter;
+            default:
+                throw new IllegalArgumentException("unsupported predicate " + predicate.getKind());
+        }
+    }
+
+    /**
+     * @param predicate the predicate
+     * @return the names of every column the predicate reads
+     */
+    public Set<String> getColumns(ScanPredicate predicate) {
+        Set<String> result = Sets.newHashSet();
+
+        if(predicate.getChildren() != null) {
+            for(ScanPredicate child: predicate.getChildren()) {
+                result.addAll(getColumns(child));
+            }
+        } else {
+            result.add(predicate.getColumn());
+        }
+
+        return result;
+    }
+
+    /**
+     * @param predicate the predicate
+     * @return true if the predicate, or any predicate nested in it, matches rows missing a column
+     */
+    public boolean hasNullCheck(ScanPredicate predicate) {
+        if(predicate.getChildren() != null) {
+            for(ScanPredicate child: predicate.getChildren()) {
+                if(hasNullCheck(child)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        return predicate.getKind() == ScanPredicate.Kind.IS_NULL;
+    }
+
+    /**
+     * Restrict a scan to the cells of the given columns. Columns mapped to a whole column family read the family.
+     *
+     * @param scan the scan to restrict
+     * @param columnNames the non-key columns to read
+     */
+    public void addColumns(Scan scan, Collection<String> columnNames) {
+        Set<String> wholeFamilies = Sets.newHashSet();
+        List<String[]> mappings = Lists.newArrayList();
+
+        for(String columnName: columnNames) {
+            String[] mapping = HiveUtils.getColumnFamilyAndQualifier(table, getPosition(columnName));
+
+            if(mapping[1].isEmpty()) {
+                wholeFamilies.add(mapping[0]);
+            } else {
+                mappings.add(mapping);
+            }
+        }
+
+        // adding a single column to a family narrows the scan to that column, so skip whole families
+        for(String[] mapping: mappings) {
+            if(!wholeFamilies.contains(mapping[0])) {
+                scan.addColumn(Bytes.toBytes(mapping[0]), Bytes.toBytes(mapping[1]));
+            }
+        }
+
+        for(String family: wholeFamilies) {
+            scan.addFamily(Bytes.toBytes(family));
+        }
+    }
+
+    private Filter compileChildren(FilterList.Operator operator, List<ScanPredicate> children) throws IOException {
+        List<Filter> filters = Lists.newArrayListWithCapacity(children.size());
+
+        for(ScanPredicate child: children) {
+            filters.add(compile(child));
+        }
+
+        return new FilterList(operator, filters);
+    }
+
+    private Filter compileRange(int position, byte[] family, byte[] qualifier, Object lower, Object upper)
+            throws IOException {
+        HCatFieldSchema field = table.getCols().get(position);
+        boolean numeric = isNumeric(field.getType());
+
+        if(!numeric && field.getType() != HCatFieldSchema.Type.STRING
+                && field.getType() != HCatFieldSchema.Type.BINARY) {
+            throw new IllegalArgumentException(String.format("Can't range filter column %s of type %s",
+                    field.getName(), field.getType()));
+        }
+
+        if(field.getType() == HCatFieldSchema.Type.STRING
+                && (needsEscaping(lower) || needsEscaping(upper))) {
+            throw new IllegalArgumentException(String.format(
+                    "Range bounds on string column %s can't hold escaped characters, they don't sort as stored",
+                    field.getName()));
+        }
+
+        if(numeric && (lower == null || upper == null)) {
+            throw new IllegalArgumentException(String.format(
+                    "Range on numeric column %s needs both bounds, negative values sort above positive ones",
+                    field.getName()));
+        }
+
+        List<Filter> filters = Lists.newArrayListWithCapacity(2);
+
+        if(lower != null) {
+            filters.add(columnFilter(family, qualifier, CompareOp.GREATER_OR_EQUAL, encode(position, lower, numeric)));
+        }
+
+        if(upper != null) {
+            filters.add(columnFilter(family, qualifier, CompareOp.LESS, encode(position, upper, numeric)));
+        }
+
+        return new FilterList(FilterList.Operator.MUST_PASS_ALL, filters);
+    }
+
+    private byte[] encode(int position, Object value, boolean requireNonNegative) throws IOException {
+        HCatFieldSchema field = table.getCols().get(position);
+
+        switch(field.getType()) {
+            case ARRAY:
+            case MAP:
+            case STRUCT:
+                throw new IllegalArgumentException(String.format("Can't compare values of %s column %s",
+                        field.getType(), field.getName()));
+        }
+
+        if(compressor != null && compressor.isCompressed(field.getName())) {
+            throw new IllegalArgumentException(String.format("Can't compare values of compressed column %s",
+                    field.getName()));
+        }
+
+        // codecs are looked up on first use, so a compiler can be built for any table handle
+        if(codec == null) {
+            codec = TableCodec.forTable(table);
+        }
+
+        byte[] result = codec.getColumnCodec(position).encode(value);
+
+        // signed numbers are stored big-endian, so the sign bit is the high bit of the first byte
+        if(requireNonNegative && result.length > 0 && result[0] < 0) {
+            throw new IllegalArgumentException(String.format("Range bound %s on column %s must not be negative",
+                    value, field.getName()));
+        }
+
+        return result;
+    }
+
+    private static boolean needsEscaping(Object bound) {
+        return bound instanceof String && HiveUtils.needsEscaping((String) bound);
+    }
+
+    private Filter columnFilter(byte[] family, byte[] qualifier, CompareOp op, byte[] value) {
+        SingleColumnValueFilter filter = new SingleColumnValueFilter(family, qualifier, op, value);
+        filter.setFilterIfMissing(true);
+        filter.setLatestVersionOnly(true);
+
+        return filter;
+    }
+
+    private int getPosition(String columnName) {
+        List<HCatFieldSchema> columns = table.getCols();
+
+        for(int i = 0; i < columns.size(); i++) {
+            if(columns.get(i).getName().equals(columnName)) {
+                if(i == 0) {
+                    throw new IllegalArgumentException(String.format(
+                            "Column %s is the rowkey, use a prefix scan instead", columnName));
+                }
+
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("No column %s in table %s", columnName,
+                table.getTableName()));
+    }
+
+    private static boolean isNumeric(HCatFieldSchema.Type type) {
+        switch(type) {
+            case BIGINT:
+            case INT:
+            case SMALLINT:
+            case TINYINT:
+            case DOUBLE:
+            case FLOAT:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
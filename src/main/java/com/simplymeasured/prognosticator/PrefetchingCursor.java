@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a cursor, reading and decoding its rows on a background thread while the caller processes earlier ones.
+ * <p/>
+ * Rows are handed over in batches through a bounded queue, so the reader runs at most depth batches ahead. A
+ * failure on the reader thread is thrown from {@link #next()} once the rows before it are consumed. The wrapped
+ * cursor must return a new object per row, so don't combine this with a cursor's row reuse mode.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class PrefetchingCursor<T> implements CloseableQueryCursor<T> {
+    private static final Log LOG = LogFactory.getLog(PrefetchingCursor.class);
+
+    public static final String PREFETCH_DEPTH = "prognosticator.prefetch_depth";
+    public static final String PREFETCH_BATCH_SIZE = "prognosticator.prefetch_batch_size";
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("prognosticator-prefetch-%d").build();
+
+    private static final List<Object> END = Lists.newArrayList();
+
+    private final QueryCursor<T> delegate;
+    private final BlockingQueue<List<?>> queue;
+    private final int batchSize;
+
+    private Thread reader;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private Iterator<T> batch;
+    private T current;
+    private boolean finished;
+
+    public PrefetchingCursor(QueryCursor<T> delegate) {
+        this(delegate, Integer.getInteger(PREFETCH_DEPTH, 16), Integer.getInteger(PREFETCH_BATCH_SIZE, 100));
+    }
+
+    /**
+     * @param delegate the cursor to read ahead of the caller. If it is a {@link CloseableQueryCursor} it is closed
+     *                 by the reader thread.
+     * @param depth how many batches may be buffered
+     * @param batchSize how many rows are handed over at once
+     */
+    public PrefetchingCursor(QueryCursor<T> delegate, int depth, int batchSize) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<List<?>>(depth);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean next() {
+        if(finished) {
+            return false;
+        }
+
+        if(reader == null) {
+            start();
+        }
+
+        while(batch == null || !batch.hasNext()) {
+            List<?> next;
+
+            try {
+                next = queue.take();
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ie);
+            }
+
+            if(next == END) {
+                finished = true;
+                current = null;
+
+                if(failure != null) {
+                    throw new RuntimeException("Prefetching cursor failed", failure);
+                }
+
+                return false;
+            }
+
+            batch = ((List<T>) next).iterator();
+        }
+
+        current = batch.next();
+
+        return true;
+    }
+
+    @Override
+    public T get() {
+        return current;
+    }
+
+    /**
+     * Stop the reader thread, which then closes the wrapped cursor
+     */
+    @Override
+    public void close() {
+        finished = true;
+        closed = true;
+
+        if(reader != null) {
+            reader.interrupt();
+        } else {
+            closeDelegate();
+        }
+
+        queue.clear();
+    }
+
+    private void closeDelegate() {
+        if(delegate instanceof CloseableQueryCursor) {
+            ((CloseableQueryCursor)delegate).close();
+        }
+    }
+
+    private void start() {
+        reader = THREAD_FACTORY.newThread(new Runnable() {
+            @Override
+            public void run() {
+                List<T> rows = Lists.newArrayListWithCapacity(batchSize);
+
+                try {
+                    while(!closed && delegate.next()) {
+                        rows.add(delegate.get());
+
+                        if(rows.size() >= batchSize) {
+                            offer(rows);
+                            rows = Lists.newArrayListWithCapacity(batchSize);
+                        }
+                    }
+                } catch(Throwable t) {
+                    if(!closed) {
+                        LOG.warn("Unable to prefetch rows", t);
+                        failure = t;
+                    }
+                }
+
+                try {
+                    // rows read before a failure still reach the caller ahead of it
+                    if(!rows.isEmpty()) {
+                        offer(rows);
+                    }
+                } finally {
+                    offer(END);
+
+                    try {
+                        closeDelegate();
+                    } catch(RuntimeException re) {
+                        LOG.warn("Unable to close prefetched cursor", re);
+                    }
+                }
+            }
+        });
+
+        reader.start();
+    }
+
+    /**
+     * Hand a batch to the caller, waiting for room in the queue unless the cursor is closed
+     */
+    private void offer(List<?> rows) {
+        try {
+            // once closed, nobody is reading any more
+            while(!closed && !queue.offer(rows, 100, TimeUnit.MILLISECONDS)) {
+                // wait for the caller to make room
+            }
+        } catch(InterruptedException ie) {
+            // closed while waiting
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatClient;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves simple key lookups straight from HBase, instead of running a Hive job for them.
+ * <p/>
+ * Recognizes statements of the form {@code SELECT * | col, ... FROM table WHERE cond AND ...} against tables with
+ * an {@code hbase.columns.mapping}, where exactly the key column is restricted by {@code =}, {@code IN (...)} or
+ * range comparisons, and every other condition is {@code =}, {@code IN (...)}, {@code >=}, {@code <},
+ * {@code IS NULL} or {@code IS NOT NULL} on a single non-key column. Values are {@code :named} parameters, quoted
+ * strings or numbers. Key ranges are only routed for BINARY keys, whose stored bytes are their values. STRING keys
+ * are stored escaped, with backslashes, tabs, newlines and other separators as two bytes starting with a backslash,
+ * so a range of them in HBase can hold different rows than the same range compared by value in Hive.
+ * <p/>
+ * Anything else, including OR, LIMIT, joins and expressions, isn't routed. Routed rows have the shape Hive would
+ * return - the selected columns under their Hive names, and each matching row once - see {@link RoutedQueryCursor}.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class QueryRouter {
+    private static final Log LOG = LogFactory.getLog(QueryRouter.class);
+
+    private static final String VALUE = "(:\\w+|'(?:[^']|'')*'|-?\\d+(?:\\.\\d+)?)";
+
+    private static final Pattern SELECT = Pattern.compile(
+            "^\\s*SELECT\\s+(\\*|\\w+(?:\\s*,\\s*\\w+)*)\\s+FROM\\s+(\\w+)\\s+WHERE\\s+(.+?)\\s*;?\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern AND = Pattern.compile("\\s+AND\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern COMPARISON = Pattern.compile("^(\\w+)\\s*(=|>=|<=|>|<)\\s*" + VALUE + "$",
+            Pattern.DOTALL);
+    private static final Pattern IN = Pattern.compile(
+            "^(\\w+)\\s+IN\\s*\\(\\s*(" + VALUE + "(?:\\s*,\\s*" + VALUE + ")*)\\s*\\)$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern IN_VALUE = Pattern.compile(VALUE, Pattern.DOTALL);
+    private static final Pattern NULL_CHECK = Pattern.compile("^(\\w+)\\s+IS\\s+(NOT\\s+)?NULL$",
+            Pattern.CASE_INSENSITIVE);
+
+    private HCatClient hcatClient;
+    private Configuration hbaseConfiguration;
+    private HTableFactory tableFactory;
+    private HiveScannerImpl scanner;
+
+    public QueryRouter(HCatClient hcatClient, Configuration hbaseConfiguration, HTableFactory tableFactory) {
+        this.hcatClient = hcatClient;
+        this.hbaseConfiguration = hbaseConfiguration;
+        this.tableFactory = tableFactory;
+        this.scanner = new HiveScannerImpl(hcatClient, hbaseConfiguration, tableFactory);
+    }
+
+    /**
+     * Serve a statement from HBase, if it has a shape that can be
+     *
+     * @param queryStatement the HiveQL statement
+     * @param parameters the named parameters, or null
+     * @return a cursor over the matching rows, or null if the statement has to go to Hive. Must be closed unless
+     *         read to the end.
+     * @throws Exception if HBase can't be read
+     */
+    public RoutedQueryCursor route(String queryStatement, Map<String, Object> parameters) throws Exception {
+        Matcher select = SELECT.matcher(queryStatement);
+
+        if(!select.matches()) {
+            return null;
+        }
+
+        HCatTable table;
+        try {
+            table = TableHandleCache.getTable(hcatClient, select.group(2));
+        } catch(Exception e) {
+            // let Hive report it
+            return null;
+        }
+
+        if(table == null || table.getTblProps() == null
+                || !table.getTblProps().containsKey(HiveUtils.HBASE_COLUMNS_MAPPING)) {
+            return null;
+        }
+
+        Plan plan;
+        try {
+            plan = plan(table, select.group(1), select.group(3),
+                    parameters != null ? parameters : Collections.<String, Object>emptyMap());
+        } catch(IllegalArgumentException iae) {
+            LOG.debug(String.format("Not routing query: %s", iae.getMessage()));
+            return null;
+        }
+
+        if(plan == null) {
+            return null;
+        }
+
+        LOG.debug(String.format("Routing query on %s directly to HBase", table.getTableName()));
+
+        HBaseScanCursor cursor = plan.keys != null ? get(table, plan) : scan(table, plan);
+
+        try {
+            return new RoutedQueryCursor(cursor, plan.columns);
+        } catch(IOException ioe) {
+            cursor.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * @return the plan, or null if the statement can't be routed
+     * @throws IllegalArgumentException if a value or predicate can't be evaluated on HBase
+     */
+    private Plan plan(HCatTable table, String projection, String where, Map<String, Object> parameters)
+            throws IOException {
+        Plan plan = new Plan();
+        List<HCatFieldSchema> columns = table.getCols();
+        HCatFieldSchema keyColumn = columns.get(0);
+
+        if(!projection.trim().equals("*")) {
+            plan.columns = Lists.newArrayList();
+
+            for(String column: projection.split(",")) {
+                plan.columns.add(getField(table, column.trim()).getName());
+            }
+        }
+
+        List<ScanPredicate> predicates = Lists.newArrayList();
+
+        for(String condition: splitConditions(where)) {
+            Matcher matcher;
+
+            if((matcher = COMPARISON.matcher(condition)).matches()) {
+                HCatFieldSchema field = getField(table, matcher.group(1));
+                Object value = coerce(field, resolve(matcher.group(3), parameters));
+                String op = matcher.group(2);
+
+                if(field == keyColumn) {
+                    if(op.equals("=")) {
+                        if(plan.keys != null) {
+                            return null;
+                        }
+
+                        plan.keys = Lists.newArrayList(value);
+                    } else if(op.startsWith(">")) {
+                        if(plan.lowerKey != null) {
+                            return null;
+                        }
+
+                        plan.lowerKey = value;
+                        plan.lowerInclusive = op.equals(">=");
+                    } else {
+                        if(plan.upperKey != null) {
+                            return null;
+                        }
+
+                        plan.upperKey = value;
+                        plan.upperInclusive = op.equals("<=");
+                    }
+                } else if(op.equals("=")) {
+                    predicates.add(ScanPredicate.eq(field.getName(), value));
+                } else if(op.equals(">=")) {
+                    predicates.add(ScanPredicate.range(field.getName(), value, null));
+                } else if(op.equals("<")) {
+                    predicates.add(ScanPredicate.range(field.getName(), null, value));
+                } else {
+                    // ranges compile to an inclusive lower and exclusive upper bound only
+                    return null;
+                }
+            } else if((matcher = IN.matcher(condition)).matches()) {
+                HCatFieldSchema field = getField(table, matcher.group(1));
+                List<Object> values = Lists.newArrayList();
+
+                Matcher valueMatcher = IN_VALUE.matcher(matcher.group(2));
+                while(valueMatcher.find()) {
+                    Object value = resolve(valueMatcher.group(1), parameters);
+
+                    // a collection parameter expands to its elements, as it does for the JDBC template
+                    if(value instanceof Collection) {
+                        for(Object element: (Collection<?>) value) {
+                            values.add(coerce(field, element));
+                        }
+                    } else {
+                        values.add(coerce(field, value));
+                    }
+                }
+
+                if(field == keyColumn) {
+                    if(plan.keys != null) {
+                        return null;
+                    }
+
+                    plan.keys = values;
+                } else {
+                    predicates.add(ScanPredicate.in(field.getName(), values));
+                }
+            } else if((matcher = NULL_CHECK.matcher(condition)).matches()) {
+                HCatFieldSchema field = getField(table, matcher.group(1));
+
+                if(field == keyColumn) {
+                    return null;
+                }
+
+                predicates.add(matcher.group(2) != null ? ScanPredicate.isNotNull(field.getName())
+                        : ScanPredicate.isNull(field.getName()));
+            } else {
+                return null;
+            }
+        }
+
+        boolean keyRange = plan.lowerKey != null || plan.upperKey != null;
+
+        // only point lookups and key ranges beat a Hive job
+        if(plan.keys == null && !keyRange || plan.keys != null && keyRange) {
+            return null;
+        }
+
+        if(keyRange && keyColumn.getType() != HCatFieldSchema.Type.BINARY) {
+            return null;
+        }
+
+        if(!predicates.isEmpty()) {
+            plan.predicate = predicates.size() == 1 ? predicates.get(0)
+                    : ScanPredicate.and(predicates.toArray(new ScanPredicate[predicates.size()]));
+        }
+
+        // compile once up front, so predicates HBase can't evaluate go to Hive
+        scanner.buildScan(table, plan.predicate, plan.columns);
+
+        return plan;
+    }
+
+    private HBaseScanCursor get(HCatTable table, Plan plan) throws Exception {
+        HiveSerializer serializer = new HiveSerializer(table);
+        HCatFieldSchema keyColumn = table.getCols().get(0);
+
+        // reuse the scan's filter and columns for each get
+        Scan scan = scanner.buildScan(table, plan.predicate, plan.columns);
+
+        List<Get> gets = Lists.newArrayListWithCapacity(plan.keys.size());
+        Set<byte[]> rowKeys = Sets.newTreeSet(Bytes.BYTES_COMPARATOR);
+
+        for(Object key: plan.keys) {
+            byte[] rowKey = serializer.serializeRowKey(toEntity(keyColumn, key));
+
+            // Hive returns a row once however often IN lists its key
+            if(!rowKeys.add(rowKey)) {
+                continue;
+            }
+
+            Get get = new Get(rowKey);
+            get.setMaxVersions(1);
+            get.setFilter(scan.getFilter());
+
+            for(Map.Entry<byte[], NavigableSet<byte[]>> family: scan.getFamilyMap().entrySet()) {
+                if(family.getValue() == null) {
+                    get.addFamily(family.getKey());
+                } else {
+                    for(byte[] qualifier: family.getValue()) {
+                        get.addColumn(family.getKey(), qualifier);
+                    }
+                }
+            }
+
+            gets.add(get);
+        }
+
+        HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, HiveUtils.getTableName(table));
+        Result[] results;
+
+        // the rows are all fetched up front, so the table is released before returning
+        try {
+            results = tableInterface.get(gets);
+        } finally {
+            tableInterface.close();
+        }
+
+        return new HBaseScanCursor(table, null, new ResultArrayScanner(results));
+    }
+
+    private HBaseScanCursor scan(HCatTable table, Plan plan) throws Exception {
+        TableCodec.FieldCodec keyCodec = TableCodec.forTable(table).getKeyCodec();
+
+        Scan scan = scanner.buildScan(table, plan.predicate, plan.columns);
+
+        // the scanner salts the bounds itself; a trailing zero byte moves a bound just past the key
+        if(plan.lowerKey != null) {
+            byte[] lower = keyCodec.encode(plan.lowerKey);
+            scan.setStartRow(plan.lowerInclusive ? lower : Bytes.add(lower, new byte[1]));
+        }
+
+        if(plan.upperKey != null) {
+            byte[] upper = keyCodec.encode(plan.upperKey);
+            scan.setStopRow(plan.upperInclusive ? Bytes.add(upper, new byte[1]) : upper);
+        }
+
+        return scanner.openCursor(table, scan);
+    }
+
+    /**
+     * Split a WHERE clause on the ANDs outside of quoted strings
+     */
+    static List<String> splitConditions(String where) {
+        List<String> result = Lists.newArrayList();
+        Matcher matcher = AND.matcher(where);
+        int start = 0;
+
+        while(matcher.find()) {
+            int quotes = 0;
+            for(int i = 0; i < matcher.start(); i++) {
+                if(where.charAt(i) == '\'') {
+                    quotes++;
+                }
+            }
+
+            if(quotes % 2 == 0) {
+                result.add(where.substring(start, matcher.start()).trim());
+                start = matcher.end();
+            }
+        }
+
+        result.add(where.substring(start).trim());
+
+        return result;
+    }
+
+    private static HCatFieldSchema getField(HCatTable table, String columnName) {
+        for(HCatFieldSchema field: table.getCols()) {
+            if(field.getName().equalsIgnoreCase(columnName)) {
+                return field;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("No column %s in table %s", columnName,
+                table.getTableName()));
+    }
+
+    private static Object resolve(String token, Map<String, Object> parameters) {
+        if(token.startsWith(":")) {
+            String name = token.substring(1);
+
+            if(!parameters.containsKey(name)) {
+                throw new IllegalArgumentException("Missing parameter " + name);
+            }
+
+            return parameters.get(name);
+        } else if(token.startsWith("'")) {
+            return token.substring(1, token.length() - 1).replace("''", "'");
+        } else if(token.contains(".")) {
+            return Double.valueOf(token);
+        } else {
+            return Long.valueOf(token);
+        }
+    }
+
+    /**
+     * Convert a literal or parameter to the Java type the serializer expects for a column
+     */
+    private static Object coerce(HCatFieldSchema field, Object value) {
+        if(value == null) {
+            throw new IllegalArgumentException("Comparisons with NULL are never true");
+        }
+
+        try {
+            switch(field.getType()) {
+                case BIGINT:
+                    return value instanceof Number ? ((Number) value).longValue() : Long.valueOf(value.toString());
+                case INT:
+                    return value instanceof Number ? ((Number) value).intValue() : Integer.valueOf(value.toString());
+                case SMALLINT:
+                    return value instanceof Number ? ((Number) value).shortValue() : Short.valueOf(value.toString());
+                case TINYINT:
+                    return value instanceof Number ? ((Number) value).byteValue() : Byte.valueOf(value.toString());
+                case DOUBLE:
+                    return value instanceof Number ? ((Number) value).doubleValue()
+                            : Double.valueOf(value.toString());
+                case FLOAT:
+                    return value instanceof Number ? ((Number) value).floatValue() : Float.valueOf(value.toString());
+                case BOOLEAN:
+                    return value instanceof Boolean ? value : Boolean.valueOf(value.toString());
+                case STRING:
+                    return value.toString();
+                case BINARY:
+                    return value instanceof byte[] ? value : Bytes.toBytes(value.toString());
+                default:
+                    return value;
+            }
+        } catch(NumberFormatException nfe) {
+            throw new IllegalArgumentException(String.format("%s is not a valid %s for column %s", value,
+                    field.getType(), field.getName()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> toEntity(HCatFieldSchema keyColumn, Object key) {
+        if(keyColumn.getType() == HCatFieldSchema.Type.STRUCT) {
+            if(!(key instanceof Map)) {
+                throw new IllegalArgumentException(String.format("Key %s needs a map of its fields",
+                        keyColumn.getName()));
+            }
+
+            return (Map<String, Object>) key;
+        }
+
+        return Collections.singletonMap(keyColumn.getName(), key);
+    }
+
+    private static class Plan {
+        private List<String> columns;
+        private List<Object> keys;
+        private Object lowerKey;
+        private boolean lowerInclusive;
+        private Object upperKey;
+        private boolean upperInclusive;
+        private ScanPredicate predicate;
+    }
+
+    /**
+     * Presents the results of a multi-get as a scanner, skipping missing rows
+     */
+    private static class ResultArrayScanner implements ResultScanner {
+        private final Iterator<Result> results;
+
+        private ResultArrayScanner(Result[] results) {
+            List<Result> found = Lists.newArrayListWithCapacity(results.length);
+
+            for(Result result: results) {
+                if(result != null && !result.isEmpty()) {
+                    found.add(result);
+                }
+            }
+
+            this.results = found.iterator();
+        }
+
+        @Override
+        public Result next() {
+            return results.hasNext() ? results.next() : null;
+        }
+
+        @Override
+        public Result[] next(int nbRows) {
+            List<Result> batch = Lists.newArrayList(Iterators.limit(results, nbRows));
+
+            return batch.toArray(new Result[batch.size()]);
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+
+        @Override
+        public Iterator<Result> iterator() {
+            return results;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Row;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes batches of mutations grouped by the region server hosting each row, so one slow server doesn't hold back
+ * the others.
+ * <p/>
+ * Each server's mutations are split into chunks of {@link #BATCH_CHUNK_SIZE}, and up to
+ * {@link #BATCH_SERVER_CONCURRENCY} chunks per server are sent at once across all concurrent writes, on a shared
+ * pool of {@link #BATCH_THREADS} threads. Region locations come from {@link HTable}, or the table behind a
+ * {@link ClusterRouter}'s, so batches to tables from factories returning other implementations can't be split by
+ * server, and are only limited per write.
+ * <p/>
+ * Mutations that fail are looked up again, since their region may have moved, and only they are retried, with
+ * exponential backoff, up to {@link #BATCH_MAX_RETRIES} times. Mutations HBase rejects outright, such as writes to a
+ * missing column family, fail the batch right away.
+ * <p/>
+ * The HBase client retries each chunk itself before this writer sees a failure, so the two multiply. Tables are
+ * opened with {@code hbase.client.retries.number} lowered to {@link #BATCH_CLIENT_RETRIES} to keep that short.
+ * <p/>
+ * Mutations of the same row may be sent in any order, so they must not overlap - as the Put and Delete from
+ * {@link HiveSerializer#serializeColumns} never do.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class RegionBatchWriter {
+    private static final Log LOG = LogFactory.getLog(RegionBatchWriter.class);
+
+    public static final String BATCH_THREADS = "prognosticator.batch_threads";
+    public static final String BATCH_SERVER_CONCURRENCY = "prognosticator.batch_server_concurrency";
+    public static final String BATCH_CHUNK_SIZE = "prognosticator.batch_chunk_size";
+    public static final String BATCH_MAX_RETRIES = "prognosticator.batch_max_retries";
+    public static final String BATCH_CLIENT_RETRIES = "prognosticator.batch_client_retries";
+
+    private final Configuration hbaseConfiguration;
+    private final HTableFactory tableFactory;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Semaphore> serverPermits = Maps.newConcurrentMap();
+    private final AtomicBoolean warnedUnsplit = new AtomicBoolean();
+
+    private int serverConcurrency = Integer.getInteger(BATCH_SERVER_CONCURRENCY, 2);
+    private int chunkSize = Integer.getInteger(BATCH_CHUNK_SIZE, 1000);
+    private int maxRetries = Integer.getInteger(BATCH_MAX_RETRIES, 5);
+    private long retryBackoffMillis = 100;
+
+    public RegionBatchWriter(Configuration hbaseConfiguration, HTableFactory tableFactory) {
+        this(hbaseConfiguration, tableFactory, Integer.getInteger(BATCH_THREADS, 16));
+    }
+
+    public RegionBatchWriter(Configuration hbaseConfiguration, HTableFactory tableFactory, int threads) {
+        // failed mutations are retried here, with fresh region locations
+        this.hbaseConfiguration = new Configuration(hbaseConfiguration);
+        this.hbaseConfiguration.setInt(HConstants.HBASE_CLIENT_RETRIES_NUMBER,
+                Integer.getInteger(BATCH_CLIENT_RETRIES, 2));
+        this.tableFactory = tableFactory;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("prognosticator-batch-%d").build());
+    }
+
+    /**
+     * @param serverConcurrency how many chunks each server may have in flight, across all concurrent writes. Set
+     *                          before writing, as servers already written to keep their limit.
+     */
+    public void setServerConcurrency(int serverConcurrency) {
+        this.serverConcurrency = serverConcurrency;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param retryBackoffMillis the delay before the first retry, doubled for each one after
+     */
+    public void setRetryBackoff(long retryBackoffMillis) {
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    /**
+     * Write a batch of mutations, returning once all of them are applied
+     *
+     * @param hbaseTableName the HBase table to write to
+     * @param mutations Puts, Deletes or RowMutations
+     * @throws IOException if some mutations still fail after every retry, or can't be retried
+     * @throws Exception if a table handle can't be acquired
+     */
+    public void write(String hbaseTableName, List<? extends Row> mutations) throws Exception {
+        List<Row> pending = Lists.<Row>newArrayList(mutations);
+        long backoff = retryBackoffMillis;
+
+        for(int attempt = 0; !pending.isEmpty(); attempt++) {
+            Map<String, List<Row>> groups = groupByServer(hbaseTableName, pending, attempt > 0);
+            Queue<Row> failed = new ConcurrentLinkedQueue<Row>();
+            Queue<Throwable> rejected = new ConcurrentLinkedQueue<Throwable>();
+            List<Throwable> errors = Collections.synchronizedList(Lists.<Throwable>newArrayList());
+
+            dispatch(hbaseTableName, groups, failed, rejected, errors);
+
+            if(!rejected.isEmpty()) {
+                IOException exception = new IOException(String.format(
+                        "%d of %d mutations to %s were rejected and can't be retried", rejected.size(),
+                        mutations.size(), hbaseTableName));
+                exception.initCause(rejected.peek());
+
+                throw exception;
+            }
+
+            if(failed.isEmpty()) {
+                return;
+            }
+
+            if(attempt >= maxRetries) {
+                IOException exception = new IOException(String.format(
+                        "%d of %d mutations to %s failed after %d retries", failed.size(), mutations.size(),
+                        hbaseTableName, maxRetries));
+
+                if(!errors.isEmpty()) {
+                    exception.initCause(errors.get(0));
+                }
+
+                throw exception;
+            }
+
+            LOG.info(String.format("Retrying %d failed mutations to %s in %dms", failed.size(), hbaseTableName,
+                    backoff));
+
+            Thread.sleep(backoff);
+            backoff *= 2;
+            pending = Lists.newArrayList(failed);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Group mutations by the server hosting their row
+     *
+     * @param reload whether to bypass the client's region location cache
+     * @return mutations per host:port, in their original order
+     */
+    protected Map<String, List<Row>> groupByServer(String hbaseTableName, List<Row> mutations, boolean reload)
+            throws Exception {
+        Map<String, List<Row>> result = Maps.newLinkedHashMap();
+        HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, hbaseTableName);
+
+        try {
+            HTableInterface located = ClusterRouter.unwrap(tableInterface);
+
+            if(!(located instanceof HTable)) {
+                // region locations aren't available through other table implementations
+                if(warnedUnsplit.compareAndSet(false, true)) {
+                    LOG.warn(String.format("Tables from %s aren't HTables, so batches can't be split by region "
+                            + "server", tableFactory.getClass().getName()));
+                }
+
+                result.put("", mutations);
+                return result;
+            }
+
+            HTable table = (HTable) located;
+
+            for(Row mutation: mutations) {
+                HRegionLocation location = table.getRegionLocation(mutation.getRow(), reload);
+                String server = location != null ? location.getHostnamePort() : "";
+
+                List<Row> group = result.get(server);
+                if(group == null) {
+                    group = Lists.newArrayList();
+                    result.put(server, group);
+                }
+
+                group.add(mutation);
+            }
+        } finally {
+            tableInterface.close();
+        }
+
+        return result;
+    }
+
+    private void dispatch(final String hbaseTableName, Map<String, List<Row>> groups, final Queue<Row> failed,
+                          final Queue<Throwable> rejected, final List<Throwable> errors) throws Exception {
+        List<Future<?>> lanes = Lists.newArrayList();
+
+        try {
+            for(Map.Entry<String, List<Row>> group: groups.entrySet()) {
+                final Queue<List<Row>> chunks = new ConcurrentLinkedQueue<List<Row>>(
+                        Lists.partition(group.getValue(), chunkSize));
+                final Semaphore permits = getServerPermits(group.getKey());
+                int laneCount = Math.min(serverConcurrency, chunks.size());
+
+                // each lane sends one chunk at a time, and holds one of the server's permits while it does
+                for(int i = 0; i < laneCount; i++) {
+                    lanes.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            List<Row> chunk;
+
+                            while((chunk = chunks.poll()) != null) {
+                                if(permits != null) {
+                                    permits.acquire();
+                                }
+
+                                try {
+                                    sendChunk(hbaseTableName, chunk, failed, rejected, errors);
+                                } finally {
+                                    if(permits != null) {
+                                        permits.release();
+                                    }
+                                }
+                            }
+
+                            return null;
+                        }
+                    }));
+                }
+            }
+
+            for(Future<?> lane: lanes) {
+                try {
+                    lane.get();
+                } catch(ExecutionException ee) {
+                    if(ee.getCause() instanceof Exception) {
+                        throw (Exception) ee.getCause();
+                    }
+
+                    throw new RuntimeException(ee.getCause());
+                }
+            }
+        } catch(Exception e) {
+            for(Future<?> lane: lanes) {
+                lane.cancel(true);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * @param server host:port, or "" if unknown
+     * @return the permits for the server's chunks in flight, shared by every write, or null if unknown
+     */
+    private Semaphore getServerPermits(String server) {
+        if(server.isEmpty()) {
+            return null;
+        }
+
+        Semaphore permits = serverPermits.get(server);
+
+        if(permits == null) {
+            Semaphore created = new Semaphore(serverConcurrency);
+            Semaphore existing = serverPermits.putIfAbsent(server, created);
+
+            permits = existing != null ? existing : created;
+        }
+
+        return permits;
+    }
+
+    private void sendChunk(String hbaseTableName, List<Row> chunk, Queue<Row> failed, Queue<Throwable> rejected,
+                           List<Throwable> errors) throws Exception {
+        Object[] results = new Object[chunk.size()];
+        HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, hbaseTableName);
+
+        try {
+            tableInterface.batch(chunk, results);
+        } catch(IOException ioe) {
+            // the results say which mutations failed
+            errors.add(ioe);
+        } finally {
+            tableInterface.close();
+        }
+
+        for(int i = 0; i < results.length; i++) {
+            if(results[i] instanceof DoNotRetryIOException) {
+                // e.g. NoSuchColumnFamilyException, which no retry can fix
+                rejected.add((Throwable) results[i]);
+            } else if(results[i] == null || results[i] instanceof Throwable) {
+                failed.add(chunk.get(i));
+
+                if(results[i] != null) {
+                    errors.add((Throwable) results[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cursor over the rows of a statement served by {@link QueryRouter}. Rows have the shape Hive would return: only
+ * the selected columns, keyed by their Hive names, without {@code __rowkey}.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class RoutedQueryCursor implements CloseableQueryCursor<Map<String, Object>> {
+    private final HBaseScanCursor cursor;
+    private final List<String> names = Lists.newArrayList();
+    private final List<String> resultKeys = Lists.newArrayList();
+
+    private Map<String, Object> reusedRow;
+
+    /**
+     * @param cursor the cursor over the matching rows
+     * @param columns the selected columns, or null for every column
+     * @throws IOException if the table's schema can't be read
+     */
+    protected RoutedQueryCursor(HBaseScanCursor cursor, Collection<String> columns) throws IOException {
+        this.cursor = cursor;
+
+        List<HCatFieldSchema> fields = cursor.getTable().getCols();
+        TableCodec codec = TableCodec.forTable(cursor.getTable());
+
+        for(int i = 0; i < fields.size(); i++) {
+            String name = fields.get(i).getName();
+
+            if(columns == null || columns.contains(name)) {
+                // the scan cursor returns non-key columns under their mapped qualifier
+                names.add(name);
+                resultKeys.add(i == 0 ? name : codec.getResultKey(i));
+            }
+        }
+
+        cursor.setProjection(columns);
+    }
+
+    /**
+     * @param reuseRows whether to recycle the returned row, which is then only valid until the next call to
+     *                  {@link #next()}
+     * @see HBaseScanCursor#setReuseRows(boolean)
+     */
+    public void setReuseRows(boolean reuseRows) {
+        cursor.setReuseRows(reuseRows);
+        this.reusedRow = reuseRows ? Maps.<String, Object>newLinkedHashMap() : null;
+    }
+
+    @Override
+    public boolean next() {
+        // the scan cursor releases its table and scanner itself once the rows run out or reading fails
+        return cursor.next();
+    }
+
+    @Override
+    public Map<String, Object> get() {
+        Map<String, Object> row = cursor.get();
+        Map<String, Object> result = reusedRow != null ? reusedRow
+                : Maps.<String, Object>newLinkedHashMap();
+
+        for(int i = 0; i < names.size(); i++) {
+            result.put(names.get(i), row.get(resultKeys.get(i)));
+        }
+
+        return result;
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+}
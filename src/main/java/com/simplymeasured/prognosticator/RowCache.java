@@ -0,0 +1,380 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of deserialized rows, keyed by table name and rowkey bytes.
+ * <p/>
+ * The cache is bounded by the estimated heap size of the cached rows and evicts the least recently used rows
+ * first. Each table can have its own time-to-live, otherwise the default is used.
+ * <p/>
+ * Share one instance between a {@link HiveReaderImpl} and a {@link HiveWriterImpl} so that writes invalidate
+ * cached rows. Writes made by other processes are only picked up once the cached row expires.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class RowCache {
+    public static final String ROW_CACHE_MAX_BYTES = "prognosticator.row_cache_max_bytes";
+    public static final String ROW_CACHE_TTL_SECONDS = "prognosticator.row_cache_ttl_seconds";
+
+    private final Cache<RowCacheKey, RowCacheEntry> cache;
+    private final ConcurrentMap<String, Long> tableTtlMillis = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, AtomicLong> writeGenerations = Maps.newConcurrentMap();
+    private final long defaultTtlMillis;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    public RowCache() {
+        this(Long.getLong(ROW_CACHE_MAX_BYTES, 64L * 1024 * 1024),
+                Long.getLong(ROW_CACHE_TTL_SECONDS, 60), TimeUnit.SECONDS);
+    }
+
+    public RowCache(long maxBytes, long defaultTtl, TimeUnit unit) {
+        this.defaultTtlMillis = unit.toMillis(defaultTtl);
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<RowCacheKey, RowCacheEntry>() {
+                    @Override
+                    public int weigh(RowCacheKey key, RowCacheEntry entry) {
+                        return entry.weight;
+                    }
+                })
+                .removalListener(new RemovalListener<RowCacheKey, RowCacheEntry>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<RowCacheKey, RowCacheEntry> notification) {
+                        if(notification.getValue() != null) {
+                            estimatedBytes.addAndGet(-notification.getValue().weight);
+                        }
+
+                        if(notification.wasEvicted()) {
+                            evictionCount.incrementAndGet();
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Override the time-to-live for rows of a single table
+     *
+     * @param tableName the HCatalog table name
+     * @param ttl how long rows stay cached
+     * @param unit unit of the ttl
+     */
+    public void setTableTtl(String tableName, long ttl, TimeUnit unit) {
+        tableTtlMillis.put(tableName, unit.toMillis(ttl));
+    }
+
+    /**
+     * Look up a cached row
+     *
+     * @param tableName the HCatalog table name
+     * @param rowKey the HBase rowkey
+     * @return a copy of the cached row, including its nested lists and maps, or null if it is not cached or has
+     *         expired
+     */
+    public Map<String, Object> get(String tableName, byte[] rowKey) {
+        RowCacheKey key = new RowCacheKey(tableName, rowKey);
+        RowCacheEntry entry = cache.getIfPresent(key);
+
+        if(entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        if(System.currentTimeMillis() - entry.createdAt > getTtlMillis(tableName)) {
+            cache.invalidate(key);
+            expirationCount.incrementAndGet();
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+
+        return copyRow(entry.row);
+    }
+
+    /**
+     * Cache a row. The row is copied, including its nested lists and maps, so later changes by the caller are not
+     * reflected in the cache.
+     *
+     * @param tableName the HCatalog table name
+     * @param rowKey the HBase rowkey
+     * @param row the deserialized row
+     */
+    public void put(String tableName, byte[] rowKey, Map<String, Object> row) {
+        put(tableName, rowKey, row, getWriteGeneration(tableName));
+    }
+
+    /**
+     * Cache a row that was read after {@link #getWriteGeneration(String)} returned writeGeneration. If the table
+     * was written since then the row may already be stale, so it is not kept.
+     *
+     * @param tableName the HCatalog table name
+     * @param rowKey the HBase rowkey
+     * @param row the deserialized row
+     * @param writeGeneration the table's write generation from before the row was read
+     */
+    public void put(String tableName, byte[] rowKey, Map<String, Object> row, long writeGeneration) {
+        AtomicLong generation = getGeneration(tableName);
+
+        if(generation.get() != writeGeneration) {
+            return;
+        }
+
+        Map<String, Object> copy = copyRow(row);
+        long weight = estimateSize(rowKey) + estimateSize(copy);
+
+        RowCacheEntry entry = new RowCacheEntry(copy, (int)Math.min(weight, Integer.MAX_VALUE));
+
+        RowCacheKey key = new RowCacheKey(tableName, rowKey);
+
+        estimatedBytes.addAndGet(entry.weight);
+        cache.put(key, entry);
+
+        // a write that raced with the put has already invalidated, so drop the entry it missed
+        if(generation.get() != writeGeneration) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Remove a row from the cache, typically because it was just written
+     *
+     * @param tableName the HCatalog table name
+     * @param rowKey the HBase rowkey
+     */
+    public void invalidate(String tableName, byte[] rowKey) {
+        getGeneration(tableName).incrementAndGet();
+        cache.invalidate(new RowCacheKey(tableName, rowKey));
+    }
+
+    public void invalidateAll() {
+        for(AtomicLong generation: writeGenerations.values()) {
+            generation.incrementAndGet();
+        }
+
+        cache.invalidateAll();
+    }
+
+    /**
+     * Read before fetching a row from HBase and pass to {@link #put(String, byte[], Map, long)}, so a row
+     * fetched while the table was being written is not cached.
+     *
+     * @param tableName the HCatalog table name
+     * @return a counter that changes whenever a row of the table is invalidated
+     */
+    public long getWriteGeneration(String tableName) {
+        return getGeneration(tableName).get();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of rows removed to keep the cache within its size bound
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return the number of rows dropped because their table's time-to-live passed
+     */
+    public long getExpirationCount() {
+        return expirationCount.get();
+    }
+
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long requests = hits + missCount.get();
+
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private AtomicLong getGeneration(String tableName) {
+        AtomicLong generation = writeGenerations.get(tableName);
+
+        if(generation == null) {
+            AtomicLong created = new AtomicLong();
+            AtomicLong existing = writeGenerations.putIfAbsent(tableName, created);
+
+            generation = existing != null ? existing : created;
+        }
+
+        return generation;
+    }
+
+    private static Map<String, Object> copyRow(Map<String, Object> row) {
+        Map<String, Object> copy = Maps.newHashMapWithExpectedSize(row.size());
+
+        for(Map.Entry<String, Object> column: row.entrySet()) {
+            copy.put(column.getKey(), copyValue(column.getValue()));
+        }
+
+        return copy;
+    }
+
+    /**
+     * Copy the mutable parts of a deserialized value - the lists, maps and byte arrays of complex columns - so
+     * callers can't change the cached copy
+     */
+    private static Object copyValue(Object value) {
+        if(value instanceof byte[]) {
+            return ((byte[])value).clone();
+        } else if(value instanceof Map) {
+            Map<Object, Object> copy = Maps.newLinkedHashMap();
+
+            for(Object entryObject: ((Map)value).entrySet()) {
+                Map.Entry entry = (Map.Entry)entryObject;
+                copy.put(copyValue(entry.getKey()), copyValue(entry.getValue()));
+            }
+
+            return copy;
+        } else if(value instanceof List) {
+            List<Object> copy = Lists.newArrayListWithCapacity(((List)value).size());
+
+            for(Object element: (List)value) {
+                copy.add(copyValue(element));
+            }
+
+            return copy;
+        }
+
+        return value;
+    }
+
+    protected long getTtlMillis(String tableName) {
+        Long ttl = tableTtlMillis.get(tableName);
+
+        return ttl != null ? ttl : defaultTtlMillis;
+    }
+
+    /**
+     * Roughly estimate the heap used by a deserialized value. This only needs to be good enough to size the
+     * cache, not exact.
+     *
+     * @param value the value to size
+     * @return estimated bytes
+     */
+    protected static long estimateSize(Object value) {
+        if(value == null) {
+            return 0;
+        } else if(value instanceof byte[]) {
+            return 16 + ((byte[])value).length;
+        } else if(value instanceof String) {
+            return 40 + 2 * ((String)value).length();
+        } else if(value instanceof Map) {
+            long size = 48;
+
+            for(Object entryObject: ((Map)value).entrySet()) {
+                Map.Entry entry = (Map.Entry)entryObject;
+                size += 32 + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            }
+
+            return size;
+        } else if(value instanceof List) {
+            long size = 40;
+
+            for(Object element: (List)value) {
+                size += 8 + estimateSize(element);
+            }
+
+            return size;
+        } else {
+            return 16;
+        }
+    }
+
+    private static class RowCacheKey {
+        private final String tableName;
+        private final byte[] rowKey;
+        private final int hashCode;
+
+        RowCacheKey(String tableName, byte[] rowKey) {
+            this.tableName = tableName;
+            this.rowKey = rowKey;
+            this.hashCode = 31 * tableName.hashCode() + Bytes.hashCode(rowKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+
+            if(!(o instanceof RowCacheKey)) {
+                return false;
+            }
+
+            RowCacheKey other = (RowCacheKey)o;
+
+            return tableName.equals(other.tableName) && Arrays.equals(rowKey, other.rowKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static class RowCacheEntry {
+        private final Map<String, Object> row;
+        private final int weight;
+        private final long createdAt = System.currentTimeMillis();
+
+        RowCacheEntry(Map<String, Object> row, int weight) {
+            this.row = row;
+            this.weight = weight;
+        }
+    }
+}
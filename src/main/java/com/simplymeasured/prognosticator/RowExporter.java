@@ -0,0 +1,675 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.jdbc.support.rowset.SqlRowSetMetaData;
+
+import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * Streams the rows of a cursor to an output stream as JSON lines or CSV, without building a map per row.
+ * <p/>
+ * Hive query results are read straight from the row set, and the JSON Hive returns for ARRAY, MAP and STRUCT
+ * columns is passed through as is. HBase scan results are decoded cell by cell from the stored bytes, with complex
+ * columns written by a streaming JSON generator. In CSV, complex columns are quoted JSON and binaries are base64,
+ * and the first line holds the column names.
+ * <p/>
+ * Exporting consumes the cursor but doesn't close it or the stream.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class RowExporter {
+    public enum Format {
+        JSON_LINES,
+        CSV
+    }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final Format format;
+
+    public RowExporter(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * @return the number of rows written
+     */
+    public long export(HiveQueryCursorImpl cursor, WritableByteChannel channel) throws IOException {
+        return export(cursor, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * @return the number of rows written
+     */
+    public long export(HBaseScanCursor cursor, WritableByteChannel channel) throws IOException {
+        return export(cursor, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Export the remaining rows of a Hive query
+     *
+     * @param cursor the query cursor
+     * @param out the stream to write to
+     * @return the number of rows written
+     * @throws IOException
+     */
+    public long export(HiveQueryCursorImpl cursor, OutputStream out) throws IOException {
+        SqlRowSet rowSet = cursor.getRowSet();
+        SqlRowSetMetaData metadata = rowSet.getMetaData();
+
+        int columnCount = metadata.getColumnCount();
+        List<String> names = Lists.newArrayListWithCapacity(columnCount);
+        boolean[] json = new boolean[columnCount];
+        boolean[] strings = new boolean[columnCount];
+
+        for(int i = 0; i < columnCount; i++) {
+            String columnTypeName = metadata.getColumnTypeName(i + 1);
+
+            names.add(metadata.getColumnName(i + 1));
+            json[i] = "array".equalsIgnoreCase(columnTypeName) || "map".equalsIgnoreCase(columnTypeName)
+                    || "struct".equalsIgnoreCase(columnTypeName);
+            strings[i] = "string".equalsIgnoreCase(columnTypeName);
+        }
+
+        RowWriter writer = createWriter(out, names);
+        long rows = 0;
+
+        while(cursor.next()) {
+            writer.startRow();
+
+            for(int i = 0; i < columnCount; i++) {
+                if(json[i]) {
+                    String value = rowSet.getString(i + 1);
+
+                    if(value == null) {
+                        writer.nullValue(i);
+                    } else {
+                        writer.jsonValue(i, value);
+                    }
+                } else if(strings[i]) {
+                    String value = rowSet.getString(i + 1);
+
+                    if(value == null) {
+                        writer.nullValue(i);
+                    } else if(value.indexOf('\\') >= 0 || value.indexOf('\t') >= 0) {
+                        writer.stringValue(i, HiveUtils.unescapeString(value));
+                    } else {
+                        writer.stringValue(i, value);
+                    }
+                } else {
+                    writer.objectValue(i, rowSet.getObject(i + 1));
+                }
+            }
+
+            writer.endRow();
+            rows++;
+        }
+
+        writer.finish(rows);
+
+        return rows;
+    }
+
+    /**
+     * Export the remaining rows of an HBase scan, limited to the cursor's projection
+     *
+     * @param cursor the scan cursor
+     * @param out the stream to write to
+     * @return the number of rows written
+     * @throws IOException
+     */
+    public long export(HBaseScanCursor cursor, OutputStream out) throws IOException {
+        HCatTable table = cursor.getTable();
+        List<HCatFieldSchema> columns = table.getCols();
+        Set<String> projection = cursor.getProjection();
+
+        List<HCatFieldSchema> fields = Lists.newArrayList();
+        List<String> names = Lists.newArrayList();
+        List<byte[][]> mappings = Lists.newArrayList();
+
+        for(int i = 0; i < columns.size(); i++) {
+            HCatFieldSchema field = columns.get(i);
+
+            if(projection != null && !projection.contains(field.getName())) {
+                continue;
+            }
+
+            fields.add(field);
+            names.add(field.getName());
+
+            if(i == 0) {
+                mappings.add(null);
+            } else {
+                String[] mapping = HiveUtils.getColumnFamilyAndQualifier(table, i);
+                mappings.add(new byte[][] { Bytes.toBytes(mapping[0]), Bytes.toBytes(mapping[1]) });
+            }
+        }
+
+        byte[] separators = HiveUtils.getSeparators(table);
+        RowKeySalter salter = RowKeySalter.forTable(table);
+        CellCompressor compressor = CellCompressor.forTable(table);
+
+        RowWriter writer = createWriter(out, names);
+        long rows = 0;
+
+        while(cursor.next()) {
+            Result result = cursor.getResult();
+
+            writer.startRow();
+
+            for(int i = 0; i < fields.size(); i++) {
+                HCatFieldSchema field = fields.get(i);
+                byte[][] mapping = mappings.get(i);
+
+                if(mapping == null) {
+                    byte[] rowKey = salter != null ? salter.unsalt(result.getRow()) : result.getRow();
+                    writeValue(writer, i, field, rowKey, 0, rowKey.length, separators);
+                } else if(mapping[1].length == 0) {
+                    writeFamilyMap(writer, i, field, result.getFamilyMap(mapping[0]), separators);
+                } else {
+                    KeyValue cell = result.getColumnLatest(mapping[0], mapping[1]);
+
+                    if(cell == null) {
+                        writer.nullValue(i);
+                    } else if(compressor != null && compressor.isCompressed(field.getName())) {
+                        byte[] value = compressor.decompress(field.getName(), cell.getValue());
+                        writeValue(writer, i, field, value, 0, value.length, separators);
+                    } else {
+                        writeValue(writer, i, field, cell.getBuffer(), cell.getValueOffset(), cell.getValueLength(),
+                                separators);
+                    }
+                }
+            }
+
+            writer.endRow();
+            rows++;
+        }
+
+        writer.finish(rows);
+
+        return rows;
+    }
+
+    private RowWriter createWriter(OutputStream out, List<String> names) throws IOException {
+        RowWriter writer = format == Format.CSV ? new CsvWriter(out) : new JsonLinesWriter(out);
+        writer.start(names.toArray(new String[names.size()]));
+
+        return writer;
+    }
+
+    private void writeValue(RowWriter writer, int column, HCatFieldSchema field, byte[] buffer, int offset,
+                            int length, byte[] separators) throws IOException {
+        switch(field.getType()) {
+            case ARRAY:
+            case MAP:
+            case STRUCT:
+                writeJson(writer.startJson(column), field, null, buffer, offset, length, 1, separators);
+                writer.endJson(column);
+                break;
+            case STRING:
+                if(needsUnescape(buffer, offset, length)) {
+                    writer.stringValue(column, HiveUtils.unescapeString(Bytes.toString(buffer, offset, length)));
+                } else {
+                    writer.utf8Value(column, buffer, offset, length);
+                }
+                break;
+            case BINARY:
+                writer.binaryValue(column, buffer, offset, length);
+                break;
+            default:
+                if(length == 0) {
+                    writer.nullValue(column);
+                } else {
+                    writer.objectValue(column, decodeNumber(field.getType(), buffer, offset, length));
+                }
+        }
+    }
+
+    /**
+     * Write a MAP column stored as a whole column family, one qualifier per key
+     */
+    private void writeFamilyMap(RowWriter writer, int column, HCatFieldSchema field,
+                                NavigableMap<byte[], byte[]> familyMap, byte[] separators) throws IOException {
+        if(familyMap == null || familyMap.isEmpty()) {
+            writer.nullValue(column);
+            return;
+        }
+
+        HCatFieldSchema valueField = field.getMapValueSchema().getFields().get(0);
+        JsonGenerator generator = writer.startJson(column);
+
+        generator.writeStartObject();
+
+        for(Map.Entry<byte[], byte[]> entry: familyMap.entrySet()) {
+            generator.writeFieldName(Bytes.toString(entry.getKey()));
+            writeJson(generator, valueField, null, entry.getValue(), 0, entry.getValue().length, 1, separators);
+        }
+
+        generator.writeEndObject();
+        writer.endJson(column);
+    }
+
+    /**
+     * Write a stored value as JSON, splitting complex values on the separators the way {@link HiveDeserializer}
+     * does
+     */
+    private void writeJson(JsonGenerator generator, HCatFieldSchema field, HCatFieldSchema.Type customType,
+                           byte[] buffer, int offset, int length, int level, byte[] separators) throws IOException {
+        HCatFieldSchema.Type type = customType != null ? customType : field.getType();
+        int end = offset + length;
+
+        switch(type) {
+            case ARRAY: {
+                HCatFieldSchema elementField = field.getArrayElementSchema().getFields().get(0);
+                byte separator = separators[level];
+
+                generator.writeStartArray();
+
+                int start = offset;
+                for(int i = offset; i <= end; i++) {
+                    // a trailing empty element isn't one
+                    if(i == end ? i > start : buffer[i] == separator) {
+                        writeJson(generator, elementField, null, buffer, start, i - start, level + 1, separators);
+                        start = i + 1;
+                    }
+                }
+
+                generator.writeEndArray();
+                break;
+            }
+            case MAP: {
+                HCatFieldSchema valueField = field.getMapValueSchema().getFields().get(0);
+                byte separator = separators[level];
+                byte keyValueSeparator = separators[level + 1];
+
+                generator.writeStartObject();
+
+                int start = offset;
+                int valueStart = -1;
+                for(int i = offset; i <= end; i++) {
+                    if(i < end && buffer[i] == keyValueSeparator) {
+                        valueStart = i + 1;
+                    } else if(valueStart >= 0 && (i == end ? i > valueStart : buffer[i] == separator)) {
+                        // a key without a trailing value is dropped, so only name it once the value is found
+                        generator.writeFieldName(decodeKey(field.getMapKeyType(), buffer, start,
+                                valueStart - 1 - start));
+                        writeJson(generator, valueField, null, buffer, valueStart, i - valueStart, level + 2,
+                                separators);
+                        start = i + 1;
+                        valueStart = -1;
+                    }
+                }
+
+                generator.writeEndObject();
+                break;
+            }
+            case STRUCT: {
+                List<HCatFieldSchema> structFields = field.getStructSubSchema().getFields();
+                byte separator = separators[level];
+
+                generator.writeStartObject();
+
+                int start = offset;
+                int fieldIndex = 0;
+                for(int i = offset; i <= end && fieldIndex < structFields.size(); i++) {
+                    if(i == end ? i > start : buffer[i] == separator) {
+                        HCatFieldSchema structField = structFields.get(fieldIndex++);
+
+                        generator.writeFieldName(structField.getName());
+                        writeJson(generator, structField, null, buffer, start, i - start, level + 1, separators);
+                        start = i + 1;
+                    }
+                }
+
+                generator.writeEndObject();
+                break;
+            }
+            case STRING:
+                if(needsUnescape(buffer, offset, length)) {
+                    generator.writeString(HiveUtils.unescapeString(Bytes.toString(buffer, offset, length)));
+                } else {
+                    generator.writeUTF8String(buffer, offset, length);
+                }
+                break;
+            case BINARY:
+                generator.writeBinary(buffer, offset, length);
+                break;
+            case BOOLEAN:
+                generator.writeBoolean(buffer[offset] != 0);
+                break;
+            case DOUBLE:
+                generator.writeNumber(Bytes.toDouble(buffer, offset));
+                break;
+            case FLOAT:
+                generator.writeNumber(Bytes.toFloat(buffer, offset));
+                break;
+            default:
+                generator.writeNumber(((Number) decodeNumber(type, buffer, offset, length)).longValue());
+        }
+    }
+
+    private static Object decodeNumber(HCatFieldSchema.Type type, byte[] buffer, int offset, int length) {
+        switch(type) {
+            case BIGINT:
+                return Bytes.toLong(buffer, offset, length);
+            case INT:
+                return Bytes.toInt(buffer, offset, length);
+            case SMALLINT:
+                return Bytes.toShort(buffer, offset, length);
+            case TINYINT:
+                return buffer[offset];
+            case DOUBLE:
+                return Bytes.toDouble(buffer, offset);
+            case FLOAT:
+                return Bytes.toFloat(buffer, offset);
+            case BOOLEAN:
+                return buffer[offset] != 0;
+            default:
+                throw new IllegalArgumentException("unsupported type");
+        }
+    }
+
+    /**
+     * JSON field names are strings, so map keys are written in their string form
+     */
+    private static String decodeKey(HCatFieldSchema.Type type, byte[] buffer, int offset, int length) {
+        switch(type) {
+            case STRING:
+                return HiveUtils.unescapeString(Bytes.toString(buffer, offset, length));
+            case BINARY:
+                return Bytes.toStringBinary(buffer, offset, length);
+            default:
+                return String.valueOf(decodeNumber(type, buffer, offset, length));
+        }
+    }
+
+    /**
+     * Only strings with escaped characters need decoding; ctrl-A is stored as a tab
+     */
+    private static boolean needsUnescape(byte[] buffer, int offset, int length) {
+        for(int i = offset; i < offset + length; i++) {
+            if(buffer[i] == '\\' || buffer[i] == '\t') {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes the values of each row in one format
+     */
+    private abstract static class RowWriter {
+        protected String[] names;
+
+        void start(String[] names) throws IOException {
+            this.names = names;
+        }
+
+        abstract void startRow() throws IOException;
+
+        abstract void endRow() throws IOException;
+
+        abstract void nullValue(int column) throws IOException;
+
+        abstract void stringValue(int column, String value) throws IOException;
+
+        abstract void utf8Value(int column, byte[] buffer, int offset, int length) throws IOException;
+
+        abstract void binaryValue(int column, byte[] buffer, int offset, int length) throws IOException;
+
+        /**
+         * @param value a number, boolean, or anything else to write as a string
+         */
+        abstract void objectValue(int column, Object value) throws IOException;
+
+        /**
+         * @param json already encoded JSON
+         */
+        abstract void jsonValue(int column, String json) throws IOException;
+
+        /**
+         * @return a generator to write the column's value to, until {@link #endJson(int)}
+         */
+        abstract JsonGenerator startJson(int column) throws IOException;
+
+        abstract void endJson(int column) throws IOException;
+
+        abstract void finish(long rows) throws IOException;
+    }
+
+    private static class JsonLinesWriter extends RowWriter {
+        private final JsonGenerator generator;
+
+        private JsonLinesWriter(OutputStream out) throws IOException {
+            generator = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+        }
+
+        @Override
+        void startRow() throws IOException {
+            generator.writeStartObject();
+        }
+
+        @Override
+        void endRow() throws IOException {
+            generator.writeEndObject();
+        }
+
+        @Override
+        void nullValue(int column) throws IOException {
+            generator.writeNullField(names[column]);
+        }
+
+        @Override
+        void stringValue(int column, String value) throws IOException {
+            generator.writeStringField(names[column], value);
+        }
+
+        @Override
+        void utf8Value(int column, byte[] buffer, int offset, int length) throws IOException {
+            generator.writeFieldName(names[column]);
+            generator.writeUTF8String(buffer, offset, length);
+        }
+
+        @Override
+        void binaryValue(int column, byte[] buffer, int offset, int length) throws IOException {
+            generator.writeFieldName(names[column]);
+            generator.writeBinary(buffer, offset, length);
+        }
+
+        @Override
+        void objectValue(int column, Object value) throws IOException {
+            generator.writeFieldName(names[column]);
+
+            if(value == null) {
+                generator.writeNull();
+            } else if(value instanceof Boolean) {
+                generator.writeBoolean((Boolean) value);
+            } else if(value instanceof Double || value instanceof Float) {
+                generator.writeNumber(((Number) value).doubleValue());
+            } else if(value instanceof BigDecimal) {
+                generator.writeNumber((BigDecimal) value);
+            } else if(value instanceof Number) {
+                generator.writeNumber(((Number) value).longValue());
+            } else {
+                generator.writeString(value.toString());
+            }
+        }
+
+        @Override
+        void jsonValue(int column, String json) throws IOException {
+            generator.writeFieldName(names[column]);
+            generator.writeRawValue(json);
+        }
+
+        @Override
+        JsonGenerator startJson(int column) throws IOException {
+            generator.writeFieldName(names[column]);
+
+            return generator;
+        }
+
+        @Override
+        void endJson(int column) {
+            // written in place
+        }
+
+        @Override
+        void finish(long rows) throws IOException {
+            if(rows > 0) {
+                generator.writeRaw('\n');
+            }
+
+            generator.close();
+        }
+    }
+
+    private static class CsvWriter extends RowWriter {
+        private final Writer writer;
+        private final CharArrayWriter jsonBuffer = new CharArrayWriter();
+        private final JsonGenerator jsonGenerator;
+        private int fieldCount;
+
+        private CsvWriter(OutputStream out) throws IOException {
+            writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+            jsonGenerator = JSON_FACTORY.createJsonGenerator(jsonBuffer);
+            jsonGenerator.setPrettyPrinter(new MinimalPrettyPrinter(""));
+        }
+
+        @Override
+        void start(String[] names) throws IOException {
+            super.start(names);
+
+            startRow();
+            for(String name: names) {
+                field(name);
+            }
+            endRow();
+        }
+
+        @Override
+        void startRow() {
+            fieldCount = 0;
+        }
+
+        @Override
+        void endRow() throws IOException {
+            writer.write('\n');
+        }
+
+        @Override
+        void nullValue(int column) throws IOException {
+            field("");
+        }
+
+        @Override
+        void stringValue(int column, String value) throws IOException {
+            field(value);
+        }
+
+        @Override
+        void utf8Value(int column, byte[] buffer, int offset, int length) throws IOException {
+            field(new String(buffer, offset, length, Charsets.UTF_8));
+        }
+
+        @Override
+        void binaryValue(int column, byte[] buffer, int offset, int length) throws IOException {
+            field(Base64Variants.getDefaultVariant().encode(Arrays.copyOfRange(buffer, offset, offset + length)));
+        }
+
+        @Override
+        void objectValue(int column, Object value) throws IOException {
+            field(value != null ? value.toString() : "");
+        }
+
+        @Override
+        void jsonValue(int column, String json) throws IOException {
+            field(json);
+        }
+
+        @Override
+        JsonGenerator startJson(int column) {
+            jsonBuffer.reset();
+
+            return jsonGenerator;
+        }
+
+        @Override
+        void endJson(int column) throws IOException {
+            jsonGenerator.flush();
+            field(jsonBuffer.toString());
+        }
+
+        @Override
+        void finish(long rows) throws IOException {
+            writer.flush();
+        }
+
+        /**
+         * Write a field, quoting it if it holds a delimiter, quote or line break
+         */
+        private void field(String value) throws IOException {
+            if(fieldCount++ > 0) {
+                writer.write(',');
+            }
+
+            boolean quote = false;
+            for(int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+
+            if(quote) {
+                writer.write('"');
+                writer.write(value.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Hash;
+import org.apache.hcatalog.api.HCatTable;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Prefixes rowkeys with a single salt byte, spreading writes of monotonically increasing keys across regions.
+ * <p/>
+ * The salt is a hash of the unsalted rowkey, which is itself built from the key fields, so the same key always
+ * lands in the same bucket and point reads stay a single Get. Scans have to cover every bucket; see
+ * {@link #getBucketScans(Scan)} and {@link SaltedResultScanner}.
+ * <p/>
+ * Salting is enabled per table with the {@link HiveUtils#SALT_BUCKETS} table property. Changing the number of
+ * buckets on a table that already has data makes existing rows unreachable, as does reading salted tables
+ * through Hive directly.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class RowKeySalter {
+    public static final int MAX_BUCKETS = 256;
+
+    private final Hash hash = Hash.getInstance(Hash.MURMUR_HASH);
+    private final int buckets;
+
+    public RowKeySalter(int buckets) {
+        if(buckets < 1 || buckets > MAX_BUCKETS) {
+            throw new IllegalArgumentException(String.format("Salt buckets must be between 1 and %d, found %d",
+                    MAX_BUCKETS, buckets));
+        }
+
+        this.buckets = buckets;
+    }
+
+    /**
+     * @param table table instance to retrieve the salt setting from
+     * @return a salter for the table, or null if its rowkeys are not salted
+     */
+    public static RowKeySalter forTable(HCatTable table) {
+        int buckets = HiveUtils.getSaltBuckets(table);
+
+        return buckets > 0 ? new RowKeySalter(buckets) : null;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public int getBucket(byte[] rowKey) {
+        return (hash.hash(rowKey) & Integer.MAX_VALUE) % buckets;
+    }
+
+    public byte[] salt(byte[] rowKey) {
+        byte[] result = new byte[rowKey.length + 1];
+
+        result[0] = (byte) getBucket(rowKey);
+        System.arraycopy(rowKey, 0, result, 1, rowKey.length);
+
+        return result;
+    }
+
+    public byte[] unsalt(byte[] saltedRowKey) {
+        if(saltedRowKey == null || saltedRowKey.length == 0) {
+            return saltedRowKey;
+        }
+
+        return Bytes.tail(saltedRowKey, saltedRowKey.length - 1);
+    }
+
+    /**
+     * Split a scan over unsalted rowkeys into one scan per bucket
+     *
+     * @param scan a scan whose start and stop rows are unsalted
+     * @return one scan per bucket, in bucket order
+     * @throws IOException
+     */
+    public List<Scan> getBucketScans(Scan scan) throws IOException {
+        List<Scan> result = Lists.newArrayListWithCapacity(buckets);
+
+        for(int bucket = 0; bucket < buckets; bucket++) {
+            byte[] prefix = new byte[] { (byte) bucket };
+
+            Scan bucketScan = new Scan(scan);
+            bucketScan.setStartRow(Bytes.add(prefix, scan.getStartRow()));
+
+            if(scan.getStopRow().length > 0) {
+                bucketScan.setStopRow(Bytes.add(prefix, scan.getStopRow()));
+            } else if(bucket < MAX_BUCKETS - 1) {
+                bucketScan.setStopRow(new byte[] { (byte) (bucket + 1) });
+            } else {
+                bucketScan.setStopRow(new byte[0]);
+            }
+
+            result.add(bucketScan);
+        }
+
+        return result;
+    }
+}
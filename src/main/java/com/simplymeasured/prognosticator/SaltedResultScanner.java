@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the scanners of each salt bucket back into a single scanner, ordered by unsalted rowkey.
+ * <p/>
+ * The Results returned still carry their salted rowkeys.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class SaltedResultScanner implements ResultScanner {
+    private final List<ResultScanner> scanners;
+    private final PriorityQueue<ScannerHead> heads;
+
+    /**
+     * @param scanners one scanner per salt bucket, each over salted rowkeys
+     * @throws IOException
+     */
+    public SaltedResultScanner(List<ResultScanner> scanners) throws IOException {
+        this.scanners = scanners;
+        this.heads = new PriorityQueue<ScannerHead>(Math.max(1, scanners.size()), new Comparator<ScannerHead>() {
+            @Override
+            public int compare(ScannerHead left, ScannerHead right) {
+                byte[] leftRow = left.current.getRow();
+                byte[] rightRow = right.current.getRow();
+
+                // skip the salt byte
+                return Bytes.compareTo(leftRow, 1, leftRow.length - 1, rightRow, 1, rightRow.length - 1);
+            }
+        });
+
+        for(ResultScanner scanner: scanners) {
+            Result first = scanner.next();
+
+            if(first != null) {
+                heads.add(new ScannerHead(scanner, first));
+            }
+        }
+    }
+
+    @Override
+    public Result next() throws IOException {
+        ScannerHead head = heads.poll();
+
+        if(head == null) {
+            return null;
+        }
+
+        Result result = head.current;
+        head.current = head.scanner.next();
+
+        if(head.current != null) {
+            heads.add(head);
+        }
+
+        return result;
+    }
+
+    @Override
+    public Result[] next(int nbRows) throws IOException {
+        List<Result> results = Lists.newArrayListWithCapacity(nbRows);
+
+        for(int i = 0; i < nbRows; i++) {
+            Result result = next();
+
+            if(result == null) {
+                break;
+            }
+
+            results.add(result);
+        }
+
+        return results.toArray(new Result[results.size()]);
+    }
+
+    @Override
+    public void close() {
+        for(ResultScanner scanner: scanners) {
+            scanner.close();
+        }
+
+        heads.clear();
+    }
+
+    @Override
+    public Iterator<Result> iterator() {
+        return new Iterator<Result>() {
+            private Result nextResult;
+
+            @Override
+            public boolean hasNext() {
+                if(nextResult == null) {
+                    try {
+                        nextResult = SaltedResultScanner.this.next();
+                    } catch(IOException ioe) {
+                        throw new RuntimeException(ioe);
+                    }
+                }
+
+                return nextResult != null;
+            }
+
+            @Override
+            public Result next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                Result result = nextResult;
+                nextResult = null;
+
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static class ScannerHead {
+        private final ResultScanner scanner;
+        private Result current;
+
+        ScannerHead(ResultScanner scanner, Result current) {
+            this.scanner = scanner;
+            this.current = current;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A filter on non-key Hive columns that can be evaluated by the region servers. Compiled into HBase filters by
+ * {@link PredicateCompiler}.
+ * <p/>
+ * Values are given as the same Java types {@link HiveWriter} accepts for the column.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class ScanPredicate {
+    public enum Kind {
+        EQUAL, RANGE, IN, IS_NULL, IS_NOT_NULL, AND, OR
+    }
+
+    private final Kind kind;
+    private final String column;
+    private final List<Object> values;
+    private final List<ScanPredicate> children;
+
+    private ScanPredicate(Kind kind, String column, List<Object> values, List<ScanPredicate> children) {
+        this.kind = kind;
+        this.column = column;
+        this.values = values;
+        this.children = children;
+    }
+
+    public static ScanPredicate eq(String column, Object value) {
+        if(value == null) {
+            throw new IllegalArgumentException("Use isNull() to match missing values");
+        }
+
+        return new ScanPredicate(Kind.EQUAL, column, ImmutableList.of(value), null);
+    }
+
+    /**
+     * Match values in [lower, upper). Numeric columns are compared by their binary encoding, so both bounds must
+     * be given and non-negative.
+     *
+     * @param column the column name
+     * @param lower inclusive lower bound, or null for no lower bound
+     * @param upper exclusive upper bound, or null for no upper bound
+     * @return the predicate
+     */
+    public static ScanPredicate range(String column, Object lower, Object upper) {
+        if(lower == null && upper == null) {
+            throw new IllegalArgumentException("A range needs at least one bound");
+        }
+
+        return new ScanPredicate(Kind.RANGE, column, Arrays.asList(lower, upper), null);
+    }
+
+    public static ScanPredicate in(String column, Collection<?> values) {
+        if(values.isEmpty()) {
+            throw new IllegalArgumentException("IN needs at least one value");
+        }
+
+        return new ScanPredicate(Kind.IN, column, ImmutableList.copyOf(values), null);
+    }
+
+    public static ScanPredicate isNull(String column) {
+        return new ScanPredicate(Kind.IS_NULL, column, null, null);
+    }
+
+    public static ScanPredicate isNotNull(String column) {
+        return new ScanPredicate(Kind.IS_NOT_NULL, column, null, null);
+    }
+
+    public static ScanPredicate and(ScanPredicate... predicates) {
+        return new ScanPredicate(Kind.AND, null, null, ImmutableList.copyOf(predicates));
+    }
+
+    public static ScanPredicate or(ScanPredicate... predicates) {
+        return new ScanPredicate(Kind.OR, null, null, ImmutableList.copyOf(predicates));
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the column name, or null for AND and OR
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the compared values; for RANGE, the lower and upper bounds (either may be null)
+     */
+    public List<Object> getValues() {
+        return values;
+    }
+
+    /**
+     * @return the combined predicates for AND and OR, otherwise null
+     */
+    public List<ScanPredicate> getChildren() {
+        return children;
+    }
+
+    @Override
+    public String toString() {
+        if(children != null) {
+            return kind + children.toString();
+        }
+
+        return kind + "(" + column + (values != null ? ", " + values : "") + ")";
+    }
+}
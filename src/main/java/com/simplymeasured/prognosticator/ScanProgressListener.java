@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+/**
+ * Reports the progress of a parallel scan, region by region. Called from the scan threads.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public interface ScanProgressListener {
+    /**
+     * @param regions the number of regions the scan was split into
+     */
+    public void scanStarted(int regions);
+
+    /**
+     * @param startKey the region's start key
+     * @param endKey the region's end key
+     * @param rows rows read from the region so far
+     */
+    public void regionProgress(byte[] startKey, byte[] endKey, long rows);
+
+    /**
+     * @param startKey the region's start key
+     * @param endKey the region's end key
+     * @param rows total rows read from the region
+     */
+    public void regionComplete(byte[] startKey, byte[] endKey, long rows);
+}
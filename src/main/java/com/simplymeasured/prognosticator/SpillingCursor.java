@@ -0,0 +1,407 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wraps a query cursor, spilling each row to a local file as it is read so the results can be passed over again
+ * with {@link #rewind()}, without re-running the query or holding them in heap.
+ * <p/>
+ * Rows are stored in a compact tagged binary format, with column names replaced by ids. Rewound passes read a
+ * memory-mapped window of {@link #SPILL_WINDOW_BYTES} of the file at a time, so the heap only holds the current
+ * row and a write buffer. Once a rewound pass reaches the rows spilled so far, it carries on reading the wrapped
+ * cursor. Rows and maps read back keep the order they were spilled in.
+ * <p/>
+ * The file is deleted on close, so close every spilling cursor; it isn't registered for deletion on exit, which would
+ * hold its name in memory until the JVM stops.
+ * <p/>
+ * Values may be strings, numbers, booleans, byte arrays, dates and timestamps, or lists and maps of them. Other
+ * values are spilled as their string form.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class SpillingCursor implements CloseableQueryCursor<Map<String, Object>> {
+    private static final Log LOG = LogFactory.getLog(SpillingCursor.class);
+
+    public static final String SPILL_DIRECTORY = "prognosticator.spill_directory";
+    public static final String SPILL_WINDOW_BYTES = "prognosticator.spill_window_bytes";
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INT = 3;
+    private static final byte SHORT = 4;
+    private static final byte BYTE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte FLOAT = 7;
+    private static final byte TRUE = 8;
+    private static final byte FALSE = 9;
+    private static final byte BINARY = 10;
+    private static final byte LIST = 11;
+    private static final byte MAP = 12;
+    private static final byte DECIMAL = 13;
+    private static final byte TIMESTAMP = 14;
+    private static final byte DATE = 15;
+
+    private final QueryCursor<Map<String, Object>> delegate;
+    private final File file;
+    private final DataOutputStream output;
+    private final RandomAccessFile input;
+    private final ByteArrayOutputStream rowBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream rowOutput = new DataOutputStream(rowBuffer);
+
+    // column names by id, shared by the writer and readers
+    private final List<String> columnNames = Lists.newArrayList();
+    private final Map<String, Integer> columnIds = Maps.newHashMap();
+
+    private long windowBytes = Long.getLong(SPILL_WINDOW_BYTES, 64L * 1024 * 1024);
+    private long spilledBytes;
+    private long spilledRows;
+    private boolean exhausted;
+
+    private long readOffset;
+    private long readRows;
+    private boolean replaying;
+    private MappedByteBuffer window;
+    private long windowOffset;
+
+    private Map<String, Object> current;
+
+    public SpillingCursor(QueryCursor<Map<String, Object>> delegate) throws IOException {
+        this(delegate, new File(System.getProperty(SPILL_DIRECTORY, System.getProperty("java.io.tmpdir"))));
+    }
+
+    /**
+     * @param delegate the cursor to buffer. If it is a {@link CloseableQueryCursor} it is closed along with this one.
+     * @param directory where to create the spill file
+     * @throws IOException if the spill file can't be created
+     */
+    public SpillingCursor(QueryCursor<Map<String, Object>> delegate, File directory) throws IOException {
+        this.delegate = delegate;
+        this.file = File.createTempFile("prognosticator-spill-", ".rows", directory);
+
+        try {
+            this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            this.input = new RandomAccessFile(file, "r");
+        } catch(IOException ioe) {
+            if(!file.delete()) {
+                LOG.warn("Unable to delete spill file " + file);
+            }
+
+            throw ioe;
+        }
+    }
+
+    /**
+     * @param windowBytes how much of the spill file a rewound pass maps at once
+     */
+    public void setWindowBytes(long windowBytes) {
+        this.windowBytes = windowBytes;
+    }
+
+    /**
+     * @return how many rows have been read from the wrapped cursor so far
+     */
+    public long getSpilledRows() {
+        return spilledRows;
+    }
+
+    /**
+     * Move back before the first row, so the next call to {@link #next()} returns it again
+     */
+    public void rewind() {
+        try {
+            output.flush();
+        } catch(IOException ioe) {
+            LOG.warn("Unable to flush spill file", ioe);
+            throw new RuntimeException(ioe);
+        }
+
+        readOffset = 0;
+        readRows = 0;
+        replaying = true;
+        current = null;
+    }
+
+    @Override
+    public boolean next() {
+        try {
+            if(replaying && readRows < spilledRows) {
+                current = readRow();
+                readRows++;
+
+                return true;
+            }
+
+            replaying = false;
+
+            if(exhausted || !delegate.next()) {
+                exhausted = true;
+                current = null;
+
+                return false;
+            }
+
+            current = delegate.get();
+            writeRow(current);
+
+            return true;
+        } catch(IOException ioe) {
+            LOG.warn("Unable to read spilled rows", ioe);
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public Map<String, Object> get() {
+        return current;
+    }
+
+    /**
+     * Close the wrapped cursor and delete the spill file
+     */
+    @Override
+    public void close() {
+        if(delegate instanceof CloseableQueryCursor) {
+            ((CloseableQueryCursor)delegate).close();
+        }
+
+        window = null;
+
+        try {
+            output.close();
+            input.close();
+        } catch(IOException ioe) {
+            LOG.warn("Unable to close spill file", ioe);
+        }
+
+        if(!file.delete()) {
+            LOG.warn("Unable to delete spill file " + file);
+        }
+    }
+
+    private void writeRow(Map<String, Object> row) throws IOException {
+        rowBuffer.reset();
+        rowOutput.writeInt(row.size());
+
+        for(Map.Entry<String, Object> column: row.entrySet()) {
+            Integer id = columnIds.get(column.getKey());
+
+            if(id == null) {
+                id = columnNames.size();
+                columnNames.add(column.getKey());
+                columnIds.put(column.getKey(), id);
+            }
+
+            rowOutput.writeInt(id);
+            writeValue(column.getValue());
+        }
+
+        output.writeInt(rowBuffer.size());
+        rowBuffer.writeTo(output);
+
+        spilledBytes += 4 + rowBuffer.size();
+        spilledRows++;
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if(value == null) {
+            rowOutput.writeByte(NULL);
+        } else if(value instanceof String) {
+            rowOutput.writeByte(STRING);
+            writeBytes(((String) value).getBytes(Charsets.UTF_8));
+        } else if(value instanceof Long) {
+            rowOutput.writeByte(LONG);
+            rowOutput.writeLong((Long) value);
+        } else if(value instanceof Integer) {
+            rowOutput.writeByte(INT);
+            rowOutput.writeInt((Integer) value);
+        } else if(value instanceof Short) {
+            rowOutput.writeByte(SHORT);
+            rowOutput.writeShort((Short) value);
+        } else if(value instanceof Byte) {
+            rowOutput.writeByte(BYTE);
+            rowOutput.writeByte((Byte) value);
+        } else if(value instanceof Double) {
+            rowOutput.writeByte(DOUBLE);
+            rowOutput.writeDouble((Double) value);
+        } else if(value instanceof Float) {
+            rowOutput.writeByte(FLOAT);
+            rowOutput.writeFloat((Float) value);
+        } else if(value instanceof Boolean) {
+            rowOutput.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if(value instanceof byte[]) {
+            rowOutput.writeByte(BINARY);
+            writeBytes((byte[]) value);
+        } else if(value instanceof List) {
+            List<?> list = (List<?>) value;
+
+            rowOutput.writeByte(LIST);
+            rowOutput.writeInt(list.size());
+
+            for(Object element: list) {
+                writeValue(element);
+            }
+        } else if(value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+
+            rowOutput.writeByte(MAP);
+            rowOutput.writeInt(map.size());
+
+            for(Map.Entry<?, ?> entry: map.entrySet()) {
+                writeValue(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        } else if(value instanceof BigDecimal) {
+            rowOutput.writeByte(DECIMAL);
+            writeBytes(value.toString().getBytes(Charsets.UTF_8));
+        } else if(value instanceof Timestamp) {
+            rowOutput.writeByte(TIMESTAMP);
+            rowOutput.writeLong(((Timestamp) value).getTime());
+            rowOutput.writeInt(((Timestamp) value).getNanos());
+        } else if(value instanceof java.sql.Date) {
+            rowOutput.writeByte(DATE);
+            rowOutput.writeLong(((Date) value).getTime());
+        } else {
+            rowOutput.writeByte(STRING);
+            writeBytes(value.toString().getBytes(Charsets.UTF_8));
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        rowOutput.writeInt(bytes.length);
+        rowOutput.write(bytes);
+    }
+
+    private Map<String, Object> readRow() throws IOException {
+        // rows are length-prefixed, so remap when the next one doesn't fit in the window
+        mapWindow(readOffset, 4);
+        int length = window.getInt((int) (readOffset - windowOffset));
+
+        mapWindow(readOffset, 4 + length);
+        window.position((int) (readOffset - windowOffset) + 4);
+        readOffset += 4 + length;
+
+        int columns = window.getInt();
+        Map<String, Object> row = Maps.newLinkedHashMap();
+
+        for(int i = 0; i < columns; i++) {
+            String columnName = columnNames.get(window.getInt());
+            row.put(columnName, readValue());
+        }
+
+        return row;
+    }
+
+    private void mapWindow(long offset, int length) throws IOException {
+        if(window != null && offset >= windowOffset && offset + length <= windowOffset + window.limit()) {
+            return;
+        }
+
+        long size = Math.min(Math.max(windowBytes, length), spilledBytes - offset);
+
+        window = input.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+        windowOffset = offset;
+    }
+
+    private Object readValue() {
+        byte tag = window.get();
+
+        switch(tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return new String(readBytes(), Charsets.UTF_8);
+            case LONG:
+                return window.getLong();
+            case INT:
+                return window.getInt();
+            case SHORT:
+                return window.getShort();
+            case BYTE:
+                return window.get();
+            case DOUBLE:
+                return window.getDouble();
+            case FLOAT:
+                return window.getFloat();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BINARY:
+                return readBytes();
+            case LIST:
+                int size = window.getInt();
+                List<Object> list = Lists.newArrayListWithCapacity(size);
+
+                for(int i = 0; i < size; i++) {
+                    list.add(readValue());
+                }
+
+                return list;
+            case MAP:
+                int entries = window.getInt();
+                Map<Object, Object> map = Maps.newLinkedHashMap();
+
+                for(int i = 0; i < entries; i++) {
+                    Object key = readValue();
+                    map.put(key, readValue());
+                }
+
+                return map;
+            case DECIMAL:
+                return new BigDecimal(new String(readBytes(), Charsets.UTF_8));
+            case TIMESTAMP:
+                Timestamp timestamp = new Timestamp(window.getLong());
+                timestamp.setNanos(window.getInt());
+
+                return timestamp;
+            case DATE:
+                return new java.sql.Date(window.getLong());
+            default:
+                throw new IllegalStateException("Corrupt spill file, unknown value tag " + tag);
+        }
+    }
+
+    private byte[] readBytes() {
+        byte[] bytes = new byte[window.getInt()];
+        window.get(bytes);
+
+        return bytes;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.simplymeasured.prognosticator;
+
+/**
+ * Notified as a {@link WriteSpool} applies spooled writes to HBase. Called from the spool's replayer thread.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public interface SpoolReplayListener {
+    /**
+     * @param tableName the HCatalog table name the write was appended for
+     * @param rowKey the HBase rowkey that was written
+     */
+    public void replayed(String tableName, byte[] rowKey);
+}
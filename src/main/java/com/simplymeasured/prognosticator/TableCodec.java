@@ -0,0 +1,635 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Encoders and decoders specialized to a table's schema. Each column is compiled once into a tree of small codecs,
+ * one per type and nesting level, so encoding and decoding a row doesn't dispatch on the schema type or look up
+ * sub-schemas per value.
+ * <p/>
+ * These are the table's only codecs: {@link HiveSerializer}, {@link HiveDeserializer}, key lookups and compiled
+ * predicates all encode through them. They are cached per table handle, so a handle reloaded after a schema change
+ * gets new codecs, and are thread-safe.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class TableCodec {
+    private static final Log LOG = LogFactory.getLog(TableCodec.class);
+
+    // keyed on handle identity; handles are replaced rather than changed when a schema changes
+    private static final LoadingCache<HCatTable, TableCodec> CODECS = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build(new CacheLoader<HCatTable, TableCodec>() {
+                @Override
+                public TableCodec load(HCatTable table) throws Exception {
+                    return new TableCodec(table);
+                }
+            });
+
+    private final FieldCodec[] codecs;
+    private final String[] resultKeys;
+    private final byte[][] families;
+    private final byte[][] qualifiers;
+
+    private TableCodec(HCatTable table) throws IOException {
+        List<HCatFieldSchema> columns = table.getCols();
+        List<String> columnMappings = HiveUtils.getColumnMappings(table);
+        byte[] separators = HiveUtils.getSeparators(table);
+
+        this.codecs = new FieldCodec[columns.size()];
+        this.resultKeys = new String[columns.size()];
+        this.families = new byte[columns.size()][];
+        this.qualifiers = new byte[columns.size()][];
+
+        for(int i = 0; i < columns.size(); i++) {
+            codecs[i] = compile(columns.get(i), null, separators, 1);
+
+            if(i > 0) {
+                // a column mapped to a whole family has an empty qualifier
+                String[] mapping = HiveUtils.getColumnFamilyAndQualifier(table, i);
+
+                resultKeys[i] = columnMappings != null ? mapping[1] : columns.get(i).getName();
+                families[i] = Bytes.toBytes(mapping[0]);
+                qualifiers[i] = Bytes.toBytes(mapping[1]);
+            }
+        }
+    }
+
+    /**
+     * @param table table instance to compile codecs for
+     * @return the table's codecs, compiled on first use
+     * @throws IOException if the schema can't be read
+     */
+    public static TableCodec forTable(HCatTable table) throws IOException {
+        try {
+            return CODECS.get(table);
+        } catch(ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * @return the codec for the rowkey column. A STRUCT key encodes its fields from the row itself.
+     */
+    public FieldCodec getKeyCodec() {
+        return codecs[0];
+    }
+
+    /**
+     * @param index the field's position in a STRUCT rowkey, from 0
+     * @return the codec for one field of the rowkey, as it is encoded inside the key
+     * @throws IllegalArgumentException if the key is not a STRUCT
+     */
+    public FieldCodec getKeyFieldCodec(int index) {
+        if(!(codecs[0] instanceof StructCodec)) {
+            throw new IllegalArgumentException(String.format("Rowkey %s is not a STRUCT", codecs[0].field.getName()));
+        }
+
+        return ((StructCodec) codecs[0]).fieldCodecs[index];
+    }
+
+    /**
+     * @param position the column's position in the schema, from 1
+     */
+    public FieldCodec getColumnCodec(int position) {
+        return codecs[position];
+    }
+
+    /**
+     * @param position the column's position in the schema, from 1
+     * @return the key {@link HiveDeserializer} returns the column under
+     */
+    public String getResultKey(int position) {
+        return resultKeys[position];
+    }
+
+    public byte[] getFamily(int position) {
+        return families[position];
+    }
+
+    public byte[] getQualifier(int position) {
+        return qualifiers[position];
+    }
+
+    private static FieldCodec compile(HCatFieldSchema field, HCatFieldSchema.Type customType, byte[] separators,
+                                      int level) throws IOException {
+        HCatFieldSchema.Type type = customType != null ? customType : field.getType();
+
+        switch(type) {
+            case ARRAY: {
+                HCatFieldSchema elementField = field.getArrayElementSchema().getFields().get(0);
+
+                return new ArrayCodec(field, separators, level,
+                        compile(elementField, elementField.getType(), separators, level + 1));
+            }
+            case MAP: {
+                HCatFieldSchema valueField = field.getMapValueSchema().getFields().get(0);
+
+                return new MapCodec(field, separators, level,
+                        compile(valueField, field.getMapKeyType(), separators, level + 2),
+                        compile(valueField, null, separators, level + 2));
+            }
+            case STRUCT: {
+                List<HCatFieldSchema> structFields = field.getStructSubSchema().getFields();
+                FieldCodec[] fieldCodecs = new FieldCodec[structFields.size()];
+
+                for(int i = 0; i < fieldCodecs.length; i++) {
+                    fieldCodecs[i] = compile(structFields.get(i), null, separators, level + 1);
+                }
+
+                return new StructCodec(field, separators, level, fieldCodecs);
+            }
+            case BIGINT:
+                return new BigintCodec(field);
+            case INT:
+                return new IntCodec(field);
+            case SMALLINT:
+                return new SmallintCodec(field);
+            case TINYINT:
+                return new TinyintCodec(field);
+            case DOUBLE:
+                return new DoubleCodec(field);
+            case FLOAT:
+                return new FloatCodec(field);
+            case BOOLEAN:
+                return new BooleanCodec(field);
+            case STRING:
+                return new StringCodec(field);
+            case BINARY:
+                return new BinaryCodec(field);
+            default:
+                throw new IllegalArgumentException("unsupported type");
+        }
+    }
+
+    /**
+     * Encodes and decodes the values of one field at one nesting level
+     */
+    public abstract static class FieldCodec {
+        protected final HCatFieldSchema field;
+
+        protected FieldCodec(HCatFieldSchema field) {
+            this.field = field;
+        }
+
+        /**
+         * @param value the value to encode, or null
+         * @return the encoded value, or null for a null value
+         * @throws IOException
+         */
+        public byte[] encode(Object value) throws IOException {
+            if(value == null) {
+                return null;
+            }
+
+            CellBuffer out = new CellBuffer();
+
+            try {
+                write(value, out);
+            } catch(ClassCastException cce) {
+                LOG.warn(String.format("Column %s expected type %s but found %s - value = %s",
+                        field.getName(), field.getType(), value.getClass().getName(), value));
+
+                throw cce;
+            }
+
+            return out.toByteArray();
+        }
+
+        /**
+         * @param value the bytes to decode, or null
+         * @param reuse the previous value of this field, whose containers are refilled where the types match
+         * @return the decoded value, or null for null bytes
+         * @throws IOException
+         */
+        public Object decode(byte[] value, Object reuse) throws IOException {
+            return value != null ? decode(value, 0, value.length, reuse) : null;
+        }
+
+        protected abstract void write(Object value, CellBuffer out) throws IOException;
+
+        protected abstract Object decode(byte[] buffer, int offset, int length, Object reuse) throws IOException;
+
+        /**
+         * Write a value nested in a complex one, which can't be null
+         */
+        protected void writeNested(Object value, CellBuffer out) throws IOException {
+            if(value == null) {
+                throw new IllegalArgumentException(String.format("Null values aren't allowed inside %s",
+                        field.getName()));
+            }
+
+            write(value, out);
+        }
+    }
+
+    private static class ArrayCodec extends FieldCodec {
+        private final byte[] separators;
+        private final int level;
+        private final FieldCodec elementCodec;
+
+        private ArrayCodec(HCatFieldSchema field, byte[] separators, int level, FieldCodec elementCodec) {
+            super(field);
+            this.separators = separators;
+            this.level = level;
+            this.elementCodec = elementCodec;
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) throws IOException {
+            byte separator = separators[level];
+            boolean first = true;
+
+            for(Object element: (List) value) {
+                if(!first) {
+                    out.write(separator);
+                }
+
+                elementCodec.writeNested(element, out);
+                first = false;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) throws IOException {
+            byte separator = separators[level];
+            List list = reuse instanceof List ? (List) reuse : Lists.newArrayList();
+            int size = 0;
+            int start = offset;
+            int end = offset + length;
+
+            for(int i = offset; i < end; i++) {
+                if(buffer[i] == separator) {
+                    size = setElement(list, size, buffer, start, i - start);
+                    start = i + 1;
+                }
+            }
+
+            // a trailing empty element isn't one
+            if(end > start) {
+                size = setElement(list, size, buffer, start, end - start);
+            }
+
+            // trim elements left over from a longer reused list
+            while(list.size() > size) {
+                list.remove(list.size() - 1);
+            }
+
+            return list;
+        }
+
+        @SuppressWarnings("unchecked")
+        private int setElement(List list, int index, byte[] buffer, int offset, int length) throws IOException {
+            if(index < list.size()) {
+                list.set(index, elementCodec.decode(buffer, offset, length, list.get(index)));
+            } else {
+                list.add(elementCodec.decode(buffer, offset, length, null));
+            }
+
+            return index + 1;
+        }
+    }
+
+    private static class MapCodec extends FieldCodec {
+        private final byte[] separators;
+        private final int level;
+        private final FieldCodec keyCodec;
+        private final FieldCodec valueCodec;
+
+        private MapCodec(HCatFieldSchema field, byte[] separators, int level, FieldCodec keyCodec,
+                         FieldCodec valueCodec) {
+            super(field);
+            this.separators = separators;
+            this.level = level;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) throws IOException {
+            byte separator = separators[level];
+            byte keyValueSeparator = separators[level + 1];
+            boolean first = true;
+
+            for(Map.Entry<?, ?> entry: ((Map<?, ?>) value).entrySet()) {
+                if(!first) {
+                    out.write(separator);
+                }
+
+                keyCodec.writeNested(entry.getKey(), out);
+                out.write(keyValueSeparator);
+                valueCodec.writeNested(entry.getValue(), out);
+                first = false;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) throws IOException {
+            byte separator = separators[level];
+            byte keyValueSeparator = separators[level + 1];
+
+            Map map = reuse instanceof Map ? (Map) reuse : Maps.newHashMap();
+            map.clear();
+
+            Object key = null;
+            int start = offset;
+            int end = offset + length;
+
+            for(int i = offset; i < end; i++) {
+                if(buffer[i] == separator) {
+                    map.put(key, valueCodec.decode(buffer, start, i - start, null));
+                    start = i + 1;
+                } else if(buffer[i] == keyValueSeparator) {
+                    key = keyCodec.decode(buffer, start, i - start, null);
+                    start = i + 1;
+                }
+            }
+
+            if(end > start) {
+                map.put(key, valueCodec.decode(buffer, start, end - start, null));
+            }
+
+            return map;
+        }
+    }
+
+    private static class StructCodec extends FieldCodec {
+        private final byte[] separators;
+        private final int level;
+        private final FieldCodec[] fieldCodecs;
+        private final String[] names;
+
+        private StructCodec(HCatFieldSchema field, byte[] separators, int level, FieldCodec[] fieldCodecs) {
+            super(field);
+            this.separators = separators;
+            this.level = level;
+            this.fieldCodecs = fieldCodecs;
+            this.names = new String[fieldCodecs.length];
+
+            for(int i = 0; i < names.length; i++) {
+                names[i] = fieldCodecs[i].field.getName();
+            }
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) throws IOException {
+            byte separator = separators[level];
+            Map structData = (Map) value;
+
+            for(int i = 0; i < fieldCodecs.length; i++) {
+                if(i > 0) {
+                    out.write(separator);
+                }
+
+                Object member = structData.get(names[i]);
+
+                if(member == null) {
+                    throw new IllegalArgumentException(
+                            String.format("STRUCT types cannot have null members - field %s", names[i]));
+                }
+
+                fieldCodecs[i].write(member, out);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) throws IOException {
+            byte separator = separators[level];
+            Map structData = reuse instanceof Map ? (Map) reuse : Maps.newHashMap();
+
+            int start = offset;
+            int end = offset + length;
+
+            for(int i = 0; i < fieldCodecs.length; i++) {
+                int stop = start;
+
+                while(stop < end && buffer[stop] != separator) {
+                    stop++;
+                }
+
+                if(stop < end || stop > start) {
+                    structData.put(names[i], fieldCodecs[i].decode(buffer, start, stop - start,
+                            structData.get(names[i])));
+
+                    start = Math.min(stop + 1, end);
+                } else {
+                    // drop a reused field this value doesn't have
+                    structData.remove(names[i]);
+                }
+            }
+
+            return structData;
+        }
+    }
+
+    /**
+     * Fixed-width numbers read their leading bytes, and fail if there are too few, as {@link Bytes} does
+     */
+    private static int checkWidth(int length, int width) {
+        if(length < width) {
+            throw new IllegalArgumentException(String.format("Value has %d bytes, expected %d", length, width));
+        }
+
+        return width;
+    }
+
+    private static class BigintCodec extends FieldCodec {
+        private BigintCodec(HCatFieldSchema field) {
+            super(field);
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) {
+            out.writeLong(PutHelper.valueAsLong(value));
+        }
+
+        @Override
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) {
+            return Bytes.toLong(buffer, offset, checkWidth(length, Bytes.SIZEOF_LONG));
+        }
+    }
+
+    private static class IntCodec extends FieldCodec {
+        private IntCodec(HCatFieldSchema field) {
+            super(field);
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) {
+            out.writeInt(PutHelper.valueAsInteger(value));
+        }
+
+        @Override
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) {
+            return Bytes.toInt(buffer, offset, checkWidth(length, Bytes.SIZEOF_INT));
+        }
+    }
+
+    private static class SmallintCodec extends FieldCodec {
+        private SmallintCodec(HCatFieldSchema field) {
+            super(field);
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) {
+            out.writeShort((Short) value);
+        }
+
+        @Override
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) {
+            return Bytes.toShort(buffer, offset, checkWidth(length, Bytes.SIZEOF_SHORT));
+        }
+    }
+
+    private static class TinyintCodec extends FieldCodec {
+        private TinyintCodec(HCatFieldSchema field) {
+            super(field);
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) {
+            out.write((Byte) value);
+        }
+
+        @Override
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) {
+            checkWidth(length, 1);
+
+            return buffer[offset];
+        }
+    }
+
+    private static class DoubleCodec extends FieldCodec {
+        private DoubleCodec(HCatFieldSchema field) {
+            super(field);
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) {
+            out.writeLong(Double.doubleToRawLongBits(PutHelper.valueAsDouble(value)));
+        }
+
+        @Override
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) {
+            return Double.longBitsToDouble(Bytes.toLong(buffer, offset, checkWidth(length, Bytes.SIZEOF_LONG)));
+        }
+    }
+
+    private static class FloatCodec extends FieldCodec {
+        private FloatCodec(HCatFieldSchema field) {
+            super(field);
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) {
+            out.writeInt(Float.floatToRawIntBits(PutHelper.valueAsFloat(value)));
+        }
+
+        @Override
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) {
+            return Float.intBitsToFloat(Bytes.toInt(buffer, offset, checkWidth(length, Bytes.SIZEOF_INT)));
+        }
+    }
+
+    private static class BooleanCodec extends FieldCodec {
+        private BooleanCodec(HCatFieldSchema field) {
+            super(field);
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) {
+            out.write((Boolean) value ? -1 : 0);
+        }
+
+        @Override
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) {
+            if(length != 1) {
+                throw new IllegalArgumentException("Array has wrong size: " + length);
+            }
+
+            return buffer[offset] != 0;
+        }
+    }
+
+    private static class StringCodec extends FieldCodec {
+        private StringCodec(HCatFieldSchema field) {
+            super(field);
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) {
+            out.writeEscaped((String) value);
+        }
+
+        @Override
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) {
+            String result = Bytes.toString(buffer, offset, length);
+
+            // only strings with escaped characters need decoding; ctrl-A is stored as a tab
+            for(int i = offset; i < offset + length; i++) {
+                if(buffer[i] == '\\' || buffer[i] == '\t') {
+                    return HiveUtils.unescapeString(result);
+                }
+            }
+
+            return result;
+        }
+    }
+
+    private static class BinaryCodec extends FieldCodec {
+        private BinaryCodec(HCatFieldSchema field) {
+            super(field);
+        }
+
+        @Override
+        protected void write(Object value, CellBuffer out) {
+            out.write((byte[]) value);
+        }
+
+        @Override
+        protected Object decode(byte[] buffer, int offset, int length, Object reuse) {
+            if(offset == 0 && length == buffer.length) {
+                return buffer;
+            }
+
+            return Arrays.copyOfRange(buffer, offset, offset + length);
+        }
+    }
+}
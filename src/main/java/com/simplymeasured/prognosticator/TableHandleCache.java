@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hcatalog.api.HCatClient;
+import org.apache.hcatalog.api.HCatTable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches HCatalog table handles, so the metastore is only consulted on a cache miss.
+ * <p/>
+ * Sized and expired by the {@link HiveWriterImpl#TABLE_CACHE_SIZE} and
+ * {@link HiveWriterImpl#TABLE_CACHE_EXPIRATION_MINUTES} system properties.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class TableHandleCache {
+    private static final Log LOG = LogFactory.getLog(TableHandleCache.class);
+
+    private static final Cache<String, HCatTable> TABLE_HANDLE_CACHE;
+
+    static {
+        TABLE_HANDLE_CACHE = CacheBuilder.newBuilder()
+                .maximumSize(Long.getLong(HiveWriterImpl.TABLE_CACHE_SIZE, 100))
+                .expireAfterWrite(Long.getLong(HiveWriterImpl.TABLE_CACHE_EXPIRATION_MINUTES, 10), TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * Look up a table handle. Metastore clients are not thread-safe, so lookups are serialized on the client.
+     *
+     * @param hcatClient client to use on a cache miss
+     * @param tableName the HCatalog table name
+     * @return the table handle
+     * @throws Exception if the metastore lookup fails
+     */
+    public static HCatTable getTable(final HCatClient hcatClient, final String tableName) throws Exception {
+        return TABLE_HANDLE_CACHE.get(tableName, new Callable<HCatTable>() {
+            @Override
+            public HCatTable call() throws Exception {
+                LOG.info(String.format("Cache miss for table handle, retrieving %s", tableName));
+
+                synchronized(hcatClient) {
+                    return hcatClient.getTable("default", tableName);
+                }
+            }
+        });
+    }
+
+    public static void invalidate(String tableName) {
+        TABLE_HANDLE_CACHE.invalidate(tableName);
+    }
+}
@@ -0,0 +1,779 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * A local write-ahead spool, so writes can be acknowledged while HBase is slow or unavailable.
+ * <p/>
+ * Serialized Puts and Deletes are appended to memory-mapped segment files of
+ * {@link #SPOOL_SEGMENT_BYTES} bytes each. A background thread replays them to HBase in order, retrying each
+ * until it succeeds, and deletes segments once they're fully replayed.
+ * <p/>
+ * Each record's header holds its length twice, the second time complemented, and a CRC32 of the length and payload.
+ * A record whose checksum doesn't match is skipped and logged, as its length still leads to the records after it.
+ * A length that can't be trusted, or bytes after the end of a segment's records, stop the replay and fail appends,
+ * with the segment left in place, since the records after it can't be found. Only the newest segment found on open
+ * may end in a record torn by a crash; that segment is set aside, renamed to end in {@code .torn}, once its
+ * readable records are replayed.
+ * <p/>
+ * {@link SpoolReplayListener}s are told about each write once it reaches HBase, e.g. to invalidate cached rows.
+ * <p/>
+ * Replay progress is checkpointed to the spool directory, so a restarted spool resumes where the last one stopped.
+ * Records replayed after the last checkpoint may be replayed again, so delivery is at least once. Appends fail once
+ * the segments would exceed {@link #SPOOL_MAX_BYTES} on disk.
+ * <p/>
+ * Records are only forced to disk as segments roll, unless {@link #setSyncOnWrite(boolean)} is set, so without it a
+ * machine crash can lose the newest writes; a process crash can't.
+ *
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class WriteSpool {
+    private static final Log LOG = LogFactory.getLog(WriteSpool.class);
+
+    public static final String SPOOL_SEGMENT_BYTES = "prognosticator.spool_segment_bytes";
+    public static final String SPOOL_MAX_BYTES = "prognosticator.spool_max_bytes";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int RECORD_HEADER_BYTES = 12;
+    private static final int CHECKPOINT_INTERVAL = 100;
+
+    // returned by Segment.read for a record whose checksum doesn't match
+    private static final byte[] CORRUPT_RECORD = new byte[0];
+    // returned by Segment.read where the records can't be followed
+    private static final byte[] UNREADABLE_RECORD = new byte[0];
+
+    private final File directory;
+    private final Configuration hbaseConfiguration;
+    private final HTableFactory tableFactory;
+
+    private long segmentBytes = Long.getLong(SPOOL_SEGMENT_BYTES, 64L * 1024 * 1024);
+    private long maxBytes = Long.getLong(SPOOL_MAX_BYTES, 1024L * 1024 * 1024);
+    private boolean syncOnWrite = false;
+    private long retryDelayMillis = 1000;
+
+    // oldest first; the last one is being appended to
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long totalBytes;
+    private long nextSequence;
+
+    private final List<SpoolReplayListener> listeners = new CopyOnWriteArrayList<SpoolReplayListener>();
+
+    private int readOffset;
+    private long replayedCount;
+    private long corruptCount;
+    private Thread replayer;
+    private volatile boolean running;
+    private String replayFailure;
+
+    public WriteSpool(File directory, Configuration hbaseConfiguration, HTableFactory tableFactory) {
+        this.directory = directory;
+        this.hbaseConfiguration = hbaseConfiguration;
+        this.tableFactory = tableFactory;
+    }
+
+    public void setSegmentBytes(long segmentBytes) {
+        this.segmentBytes = segmentBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param syncOnWrite force every record to disk before acknowledging it
+     */
+    public void setSyncOnWrite(boolean syncOnWrite) {
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    /**
+     * @param retryDelayMillis the initial delay before retrying a failed replay, doubled on each failure up to 30s
+     */
+    public void setRetryDelay(long retryDelayMillis) {
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * @param listener notified after each spooled write reaches HBase
+     */
+    public void addReplayListener(SpoolReplayListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeReplayListener(SpoolReplayListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Recover any segments left by a previous spool in the directory, and start replaying
+     *
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+
+        long[] checkpoint = readCheckpoint();
+
+        for(long sequence: listSequences()) {
+            File file = segmentFile(sequence);
+
+            if(sequence < checkpoint[0]) {
+                // fully replayed before the checkpoint was written
+                if(!file.delete()) {
+                    LOG.warn("Unable to delete replayed spool segment " + file);
+                }
+
+                continue;
+            }
+
+            Segment segment = Segment.open(sequence, file);
+            segment.sealed = true;
+            segments.add(segment);
+            totalBytes += segment.capacity;
+            nextSequence = sequence + 1;
+        }
+
+        if(!segments.isEmpty()) {
+            LOG.info(String.format("Recovered %d spool segments from %s", segments.size(), directory));
+
+            // the segment being appended to when the last spool stopped
+            segments.getLast().mayBeTorn = true;
+
+            if(segments.getFirst().sequence == checkpoint[0]) {
+                readOffset = (int) checkpoint[1];
+            }
+        }
+
+        running = true;
+        replayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "prognosticator-spool-replayer");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    /**
+     * Append a write to the spool. It will be applied to HBase in order with every other spooled write.
+     *
+     * @param tableName the HCatalog table name, handed to the {@link SpoolReplayListener}s once replayed
+     * @param hbaseTableName the HBase table to write to
+     * @param put cells to put, may be empty
+     * @param delete cells to delete, may be empty
+     * @throws IOException if the spool is full or can't be written
+     */
+    public void append(String tableName, String hbaseTableName, Put put, Delete delete) throws IOException {
+        byte[] payload = encode(tableName, hbaseTableName, put, delete);
+        int checksum = checksum(payload.length, payload);
+
+        synchronized(this) {
+            if(!running) {
+                throw new IOException(replayFailure != null ? "Write spool replay stopped: " + replayFailure
+                        : "Write spool is not open");
+            }
+
+            int recordBytes = RECORD_HEADER_BYTES + payload.length;
+            Segment segment = segments.isEmpty() ? null : segments.getLast();
+
+            if(segment == null || segment.sealed || segment.writePosition + recordBytes > segment.capacity) {
+                segment = roll(recordBytes);
+            }
+
+            ByteBuffer writer = segment.writer;
+            writer.position(segment.writePosition + RECORD_HEADER_BYTES);
+            writer.put(payload);
+            writer.putInt(segment.writePosition + 8, checksum);
+            writer.putInt(segment.writePosition + 4, ~payload.length);
+            writer.putInt(segment.writePosition, payload.length);
+
+            if(syncOnWrite) {
+                segment.buffer.force();
+            }
+
+            segment.writePosition += recordBytes;
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of records replayed to HBase since the spool was opened
+     */
+    public synchronized long getReplayedCount() {
+        return replayedCount;
+    }
+
+    /**
+     * @return the number of records skipped for a bad checksum since the spool was opened. Their writes are lost.
+     */
+    public synchronized long getCorruptCount() {
+        return corruptCount;
+    }
+
+    /**
+     * @return true if replay stopped at a record that can't be read. Appends fail until the spool is reopened.
+     */
+    public synchronized boolean isReplayStopped() {
+        return replayFailure != null;
+    }
+
+    /**
+     * @return the bytes of segment files on disk
+     */
+    public synchronized long getSpoolBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return true if every appended record has been replayed
+     */
+    public synchronized boolean isDrained() {
+        return segments.isEmpty() || (segments.size() == 1 && !segments.getFirst().sealed
+                && readOffset == segments.getFirst().writePosition);
+    }
+
+    /**
+     * Wait for every appended record to be replayed
+     *
+     * @param timeoutMillis how long to wait
+     * @return true if the spool drained in time
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while(!isDrained()) {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if(remaining <= 0) {
+                return false;
+            }
+
+            wait(remaining);
+        }
+
+        return true;
+    }
+
+    /**
+     * Stop replaying and release the segments. Records not yet replayed stay on disk for the next spool.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        Thread thread;
+
+        synchronized(this) {
+            running = false;
+            thread = replayer;
+            notifyAll();
+        }
+
+        if(thread != null) {
+            thread.interrupt();
+
+            try {
+                thread.join();
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized(this) {
+            for(Segment segment: segments) {
+                segment.buffer.force();
+                segment.close();
+            }
+
+            if(!segments.isEmpty()) {
+                writeCheckpoint(segments.getFirst().sequence, readOffset);
+            }
+
+            segments.clear();
+        }
+    }
+
+    private Segment roll(int recordBytes) throws IOException {
+        long capacity = Math.max(segmentBytes, recordBytes + RECORD_HEADER_BYTES);
+
+        if(totalBytes + capacity > maxBytes) {
+            throw new IOException(String.format("Write spool is full: %d of %d bytes used", totalBytes, maxBytes));
+        }
+
+        if(!segments.isEmpty()) {
+            Segment last = segments.getLast();
+            last.buffer.force();
+            last.sealed = true;
+        }
+
+        Segment segment = Segment.create(nextSequence, segmentFile(nextSequence), capacity);
+        nextSequence++;
+
+        segments.add(segment);
+        totalBytes += capacity;
+
+        return segment;
+    }
+
+    private void replay() {
+        long delay = retryDelayMillis;
+        long sinceCheckpoint = 0;
+
+        while(running) {
+            Segment segment;
+            byte[] payload;
+            int offset;
+
+            synchronized(this) {
+                if(segments.isEmpty()) {
+                    waitQuietly();
+                    continue;
+                }
+
+                segment = segments.getFirst();
+                offset = readOffset;
+                payload = segment.read(offset);
+
+                if(payload == null) {
+                    if(segment.sealed) {
+                        // fully replayed
+                        segments.removeFirst();
+                        totalBytes -= segment.capacity;
+                        readOffset = 0;
+
+                        segment.close();
+                        if(!segment.file.delete()) {
+                            LOG.warn("Unable to delete replayed spool segment " + segment.file);
+                        }
+
+                        checkpointQuietly();
+                        sinceCheckpoint = 0;
+                        notifyAll();
+                    } else {
+                        waitQuietly();
+                    }
+
+                    continue;
+                }
+
+                if(payload == UNREADABLE_RECORD) {
+                    if(!segment.mayBeTorn) {
+                        replayFailure = String.format("the spooled write at %d in %s can't be read", offset,
+                                segment.file);
+
+                        LOG.error(String.format("Stopping replay: %s, so the writes after it can't be found. "
+                                + "The segment is left in place to be repaired.", replayFailure));
+
+                        running = false;
+                        notifyAll();
+
+                        break;
+                    }
+
+                    LOG.error(String.format("Setting aside spool segment %s, its writes from %d can't be read, "
+                            + "likely torn by a crash", segment.file, offset));
+
+                    segments.removeFirst();
+                    totalBytes -= segment.capacity;
+                    readOffset = 0;
+
+                    segment.close();
+                    if(!segment.file.renameTo(new File(segment.file.getPath() + ".torn"))) {
+                        LOG.error("Unable to set aside spool segment " + segment.file);
+                    }
+
+                    checkpointQuietly();
+                    sinceCheckpoint = 0;
+                    notifyAll();
+
+                    continue;
+                }
+
+                if(payload == CORRUPT_RECORD) {
+                    // both copies of the length agree, so only this record is lost
+                    LOG.error(String.format("Skipping spooled write with a bad checksum at %d in %s, it is lost",
+                            offset, segment.file));
+
+                    readOffset = segment.nextOffset(offset);
+                    corruptCount++;
+                    notifyAll();
+
+                    continue;
+                }
+            }
+
+            SpooledWrite write;
+
+            try {
+                write = decode(payload);
+                apply(write);
+                delay = retryDelayMillis;
+            } catch(Exception e) {
+                if(!running) {
+                    break;
+                }
+
+                LOG.warn(String.format("Unable to replay spooled write, retrying in %dms", delay), e);
+
+                try {
+                    Thread.sleep(delay);
+                } catch(InterruptedException ie) {
+                    break;
+                }
+
+                delay = Math.min(delay * 2, 30000);
+                continue;
+            }
+
+            // before the record counts as replayed, so a drained spool has told every listener
+            for(SpoolReplayListener listener: listeners) {
+                try {
+                    listener.replayed(write.tableName, write.put.getRow());
+                } catch(RuntimeException re) {
+                    LOG.warn("Spool replay listener failed", re);
+                }
+            }
+
+            synchronized(this) {
+                readOffset = segment.nextOffset(offset);
+                replayedCount++;
+
+                if(++sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                    checkpointQuietly();
+                    sinceCheckpoint = 0;
+                }
+
+                notifyAll();
+            }
+        }
+    }
+
+    private void apply(SpooledWrite write) throws Exception {
+        HTableInterface tableInterface = tableFactory.getTable(hbaseConfiguration, write.hbaseTableName);
+
+        try {
+            if(!write.put.isEmpty()) {
+                tableInterface.put(write.put);
+            }
+
+            if(!write.delete.isEmpty()) {
+                tableInterface.delete(write.delete);
+            }
+        } finally {
+            tableInterface.close();
+        }
+    }
+
+    /**
+     * @return the CRC32 of a record's length and payload
+     */
+    private static int checksum(int length, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(length >>> 24);
+        crc.update(length >>> 16);
+        crc.update(length >>> 8);
+        crc.update(length);
+        crc.update(payload);
+
+        return (int) crc.getValue();
+    }
+
+    private static SpooledWrite decode(byte[] payload) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+
+        String tableName = input.readUTF();
+        String hbaseTableName = input.readUTF();
+
+        Put put = new Put();
+        put.readFields(input);
+
+        Delete delete = new Delete();
+        delete.readFields(input);
+
+        return new SpooledWrite(tableName, hbaseTableName, put, delete);
+    }
+
+    private static byte[] encode(String tableName, String hbaseTableName, Put put, Delete delete)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeUTF(tableName);
+        output.writeUTF(hbaseTableName);
+        put.write(output);
+        delete.write(output);
+        output.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private void waitQuietly() {
+        try {
+            wait(1000);
+        } catch(InterruptedException ie) {
+            // close() interrupts us, and running says whether to stop
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            if(!segments.isEmpty()) {
+                writeCheckpoint(segments.getFirst().sequence, readOffset);
+            } else {
+                writeCheckpoint(nextSequence, 0);
+            }
+        } catch(IOException ioe) {
+            LOG.warn("Unable to checkpoint write spool, records may be replayed again after a restart", ioe);
+        }
+    }
+
+    private void writeCheckpoint(long sequence, long offset) throws IOException {
+        File temp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+
+        try {
+            output.write(String.format("%d %d\n", sequence, offset).getBytes("UTF-8"));
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        File checkpoint = new File(directory, CHECKPOINT_FILE);
+        if(!temp.renameTo(checkpoint)) {
+            // not atomic, but renameTo can't replace a file on every platform
+            if(!checkpoint.delete() || !temp.renameTo(checkpoint)) {
+                throw new IOException("Unable to replace spool checkpoint " + checkpoint);
+            }
+        }
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        File checkpoint = new File(directory, CHECKPOINT_FILE);
+
+        if(!checkpoint.exists()) {
+            return new long[] { 0, 0 };
+        }
+
+        RandomAccessFile input = new RandomAccessFile(checkpoint, "r");
+
+        try {
+            String[] parts = input.readLine().trim().split(" ");
+
+            return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) };
+        } catch(RuntimeException e) {
+            LOG.warn("Ignoring unreadable spool checkpoint, replaying every segment", e);
+            return new long[] { 0, 0 };
+        } finally {
+            input.close();
+        }
+    }
+
+    private List<Long> listSequences() {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        List<Long> result = Lists.newArrayList();
+
+        for(String name: names) {
+            try {
+                result.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            } catch(NumberFormatException nfe) {
+                LOG.warn("Ignoring unexpected file in spool directory: " + name);
+            }
+        }
+
+        Collections.sort(result);
+
+        return result;
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, String.format("%020d%s", sequence, SEGMENT_SUFFIX));
+    }
+
+    private static class SpooledWrite {
+        private final String tableName;
+        private final String hbaseTableName;
+        private final Put put;
+        private final Delete delete;
+
+        SpooledWrite(String tableName, String hbaseTableName, Put put, Delete delete) {
+            this.tableName = tableName;
+            this.hbaseTableName = hbaseTableName;
+            this.put = put;
+            this.delete = delete;
+        }
+    }
+
+    private static class Segment {
+        private final long sequence;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private final ByteBuffer writer;
+        private final ByteBuffer reader;
+        private final int capacity;
+
+        // only appended to while unsealed; guarded by the spool
+        private int writePosition;
+        private boolean sealed;
+        private boolean mayBeTorn;
+
+        private Segment(long sequence, File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+            this.writer = buffer.duplicate();
+            this.reader = buffer.duplicate();
+            this.capacity = buffer.capacity();
+        }
+
+        static Segment create(long sequence, File file, long capacity) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try {
+                // a new file reads as zeroes, so the first empty record header marks the end
+                raf.setLength(capacity);
+
+                return new Segment(sequence, file, raf, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        capacity));
+            } catch(IOException ioe) {
+                raf.close();
+                throw ioe;
+            }
+        }
+
+        static Segment open(long sequence, File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+            try {
+                Segment segment = new Segment(sequence, file, raf, raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        0, raf.length()));
+                segment.writePosition = segment.capacity;
+
+                return segment;
+            } catch(IOException ioe) {
+                raf.close();
+                throw ioe;
+            }
+        }
+
+        /**
+         * @return the payload of the record at the offset, {@link #CORRUPT_RECORD} if its checksum doesn't match,
+         *         {@link #UNREADABLE_RECORD} if its length can't be trusted or bytes follow the last record, or null
+         *         at the end of the written records
+         */
+        byte[] read(int offset) {
+            int limit = sealed ? capacity : writePosition;
+
+            if(offset + RECORD_HEADER_BYTES > limit) {
+                return isBlank(offset) ? null : UNREADABLE_RECORD;
+            }
+
+            int length = reader.getInt(offset);
+            int complement = reader.getInt(offset + 4);
+
+            if(length == 0 && complement == 0) {
+                // an empty header ends the records, as long as nothing was written after it
+                return isBlank(offset) ? null : UNREADABLE_RECORD;
+            }
+
+            if(complement != ~length || length <= 0 || offset + RECORD_HEADER_BYTES + length > limit) {
+                return UNREADABLE_RECORD;
+            }
+
+            byte[] payload = new byte[length];
+            reader.position(offset + RECORD_HEADER_BYTES);
+            reader.get(payload);
+
+            if(checksum(length, payload) != reader.getInt(offset + 8)) {
+                return CORRUPT_RECORD;
+            }
+
+            return payload;
+        }
+
+        /**
+         * @return true if nothing was written from the offset on. Unsealed segments end at their write position.
+         */
+        private boolean isBlank(int offset) {
+            if(!sealed) {
+                return true;
+            }
+
+            for(int i = offset; i < capacity; i++) {
+                if(reader.get(i) != 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * @return the offset of the record after the one at the offset
+         */
+        int nextOffset(int offset) {
+            return offset + RECORD_HEADER_BYTES + reader.getInt(offset);
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch(IOException ioe) {
+                LOG.warn("Unable to close spool segment " + file, ioe);
+            }
+        }
+    }
+}
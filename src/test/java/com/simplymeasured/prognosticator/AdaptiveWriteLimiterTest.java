@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedException;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.regionserver.NoSuchColumnFamilyException;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class AdaptiveWriteLimiterTest {
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease() throws Exception {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter(4, 8, 1000);
+
+        for(int i = 0; i < 100; i++) {
+            limiter.release("t", limiter.acquire("t"), null);
+        }
+
+        Assert.assertEquals(8.0, limiter.getConcurrencyLimit("t"), 0.0);
+
+        limiter.release("t", limiter.acquire("t"), new IOException("wrapped", new SocketTimeoutException()));
+        Assert.assertEquals(4.0, limiter.getConcurrencyLimit("t"), 0.0);
+
+        // bad writes aren't a sign of overload
+        limiter.release("t", limiter.acquire("t"), new IllegalArgumentException("bad row"));
+        Assert.assertTrue(limiter.getConcurrencyLimit("t") >= 4.0);
+        Assert.assertEquals(0, limiter.getInFlight("t"));
+
+        // other tables are unaffected
+        Assert.assertEquals(4.0, limiter.getConcurrencyLimit("other"), 0.0);
+    }
+
+    @Test
+    public void testInFlightWritesDecreaseOnce() throws Exception {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter(8, 8, 1000);
+
+        long first = limiter.acquire("t");
+        long second = limiter.acquire("t");
+
+        limiter.release("t", first, new RetriesExhaustedException("busy"));
+        limiter.release("t", second, new RetriesExhaustedException("busy"));
+
+        Assert.assertEquals(4.0, limiter.getConcurrencyLimit("t"), 0.0);
+    }
+
+    @Test
+    public void testBatchLatencyTarget() throws Exception {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter(8, 64, 100, 100);
+
+        // 1000 rows in 200ms is well within 100ms per 100 rows
+        long start = limiter.acquire("t", 1000);
+        Thread.sleep(200);
+        limiter.release("t", start, 1000, null);
+        Assert.assertTrue(limiter.getConcurrencyLimit("t") > 8.0);
+
+        // but a single row taking that long is slow
+        start = limiter.acquire("t");
+        Thread.sleep(200);
+        limiter.release("t", start, null);
+        Assert.assertTrue(limiter.getConcurrencyLimit("t") < 8.0);
+        Assert.assertEquals(0, limiter.getInFlight("t"));
+    }
+
+    @Test
+    public void testBatchFailureCauses() throws Exception {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter(8, 8, 1000);
+
+        // a batch that failed on bad writes alone
+        Assert.assertFalse(limiter.isOverload(batchFailure(new NoSuchColumnFamilyException("cf"),
+                new DoNotRetryIOException("bad row"))));
+
+        Assert.assertTrue(limiter.isOverload(batchFailure(new NoSuchColumnFamilyException("cf"),
+                new SocketTimeoutException())));
+
+        Assert.assertFalse(limiter.isOverload(new DoNotRetryIOException("bad row", new SocketTimeoutException())));
+    }
+
+    @Test
+    public void testBlocksAtLimit() throws Exception {
+        final AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter(1, 1, 1000);
+        final long held = limiter.acquire("t");
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.release("t", limiter.acquire("t"), null);
+                    acquired.countDown();
+                } catch(InterruptedException ie) {
+                    // test failed
+                }
+            }
+        });
+        waiter.start();
+
+        Assert.assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.release("t", held, null);
+        Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTokenBucket() throws Exception {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter(64, 64, 1000);
+        limiter.setTableRate("t", 20);
+
+        long start = System.nanoTime();
+
+        for(int i = 0; i < 10; i++) {
+            limiter.release("t", limiter.acquire("t"), null);
+        }
+
+        // 20/s with an empty bucket is 50ms per write
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 400);
+    }
+
+    @Test
+    public void testTokenBucketCountsRows() throws Exception {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter(64, 64, 1000);
+        limiter.setTableRate("t", 200);
+
+        long start = System.nanoTime();
+
+        limiter.release("t", limiter.acquire("t", 50), 50, null);
+        limiter.release("t", limiter.acquire("t", 50), 50, null);
+
+        // 100 rows at 200/s from an empty bucket take half a second, however they're batched
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 450);
+    }
+
+    private RetriesExhaustedWithDetailsException batchFailure(Throwable... causes) {
+        List<Row> rows = Lists.newArrayList();
+        List<String> servers = Lists.newArrayList();
+
+        for(int i = 0; i < causes.length; i++) {
+            rows.add(new Put(Bytes.toBytes("row" + i)));
+            servers.add("server:60020");
+        }
+
+        return new RetriesExhaustedWithDetailsException(Lists.newArrayList(causes), rows, servers);
+    }
+}
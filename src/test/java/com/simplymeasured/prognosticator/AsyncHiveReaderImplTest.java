@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class AsyncHiveReaderImplTest {
+    private AsyncHiveReaderImpl asyncReader;
+
+    @Before
+    public void setUp() {
+        HiveReader reader = new HiveReader() {
+            @Override
+            public Map<String, Object> readRow(String tableName, Object keyObject) throws Exception {
+                if("slow".equals(keyObject)) {
+                    Thread.sleep(10000);
+                }
+
+                Map<String, Object> row = Maps.newHashMap();
+                row.put("key", keyObject);
+
+                return row;
+            }
+        };
+
+        asyncReader = new AsyncHiveReaderImpl(reader, 4, 10);
+    }
+
+    @After
+    public void tearDown() {
+        asyncReader.shutdown();
+    }
+
+    @Test
+    public void testReadRows() throws Exception {
+        List<Map<String, Object>> rows = asyncReader.readRows("table", Lists.newArrayList("a", "b", "c"))
+                .get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(3, rows.size());
+        Assert.assertEquals("a", rows.get(0).get("key"));
+        Assert.assertEquals("c", rows.get(2).get("key"));
+    }
+
+    @Test
+    public void testLargeBatch() throws Exception {
+        List<String> keys = Lists.newArrayList();
+        for(int i = 0; i < 1000; i++) {
+            keys.add("key" + i);
+        }
+
+        // far more keys than threads and queue slots
+        List<Map<String, Object>> rows = asyncReader.readRows("table", keys).get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1000, rows.size());
+        Assert.assertEquals("key999", rows.get(999).get("key"));
+    }
+
+    @Test
+    public void testRejectedBatchCancelsChunks() throws Exception {
+        asyncReader.setBatchSize(1);
+
+        List<String> keys = Lists.newArrayList();
+        for(int i = 0; i < 100; i++) {
+            keys.add("slow");
+        }
+
+        try {
+            asyncReader.readRows("table", keys).get(5, TimeUnit.SECONDS);
+            Assert.fail("expected the batch to be rejected");
+        } catch(ExecutionException ee) {
+            Assert.assertTrue(ee.getCause() instanceof RejectedExecutionException);
+        }
+
+        // the accepted chunks were cancelled, so the pool is free again
+        Assert.assertEquals("a", asyncReader.readRow("table", "a").get(5, TimeUnit.SECONDS).get("key"));
+    }
+
+    @Test
+    public void testBatchReader() throws Exception {
+        BatchHiveReader reader = mock(BatchHiveReader.class);
+        when(reader.readRows(eq("table"), anyList())).thenAnswer(new Answer<List<Map<String, Object>>>() {
+            @Override
+            public List<Map<String, Object>> answer(InvocationOnMock invocation) throws Throwable {
+                List<Map<String, Object>> rows = Lists.newArrayList();
+
+                for(Object key: (List<?>) invocation.getArguments()[1]) {
+                    rows.add(Collections.<String, Object>singletonMap("key", key));
+                }
+
+                return rows;
+            }
+        });
+
+        AsyncHiveReaderImpl batchReader = new AsyncHiveReaderImpl(reader, 4, 10);
+        batchReader.setBatchSize(100);
+
+        List<String> keys = Lists.newArrayList();
+        for(int i = 0; i < 250; i++) {
+            keys.add("key" + i);
+        }
+
+        try {
+            List<Map<String, Object>> rows = batchReader.readRows("table", keys).get(5, TimeUnit.SECONDS);
+
+            Assert.assertEquals(250, rows.size());
+            Assert.assertEquals("key100", rows.get(100).get("key"));
+        } finally {
+            batchReader.shutdown();
+        }
+
+        verify(reader, times(3)).readRows(eq("table"), anyList());
+        verify(reader, never()).readRow(anyString(), any());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        try {
+            asyncReader.readRow("table", "slow", 10, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+            Assert.fail("expected a timeout");
+        } catch(ExecutionException ee) {
+            Assert.assertTrue(ee.getCause() instanceof TimeoutException);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class CellCompressorTest {
+    @Test
+    public void testCompressRoundTrip() throws Exception {
+        CellCompressor compressor = new CellCompressor(Sets.newHashSet("body"), 100);
+
+        byte[] large = Bytes.toBytes(Strings.repeat("{\"key\":\"value\"}", 100));
+        byte[] stored = compressor.compress("body", large);
+
+        Assert.assertTrue(stored.length < large.length / 4);
+        Assert.assertEquals(CellCompressor.CODEC_DEFLATE, stored[CellCompressor.MARKER.length]);
+        Assert.assertArrayEquals(large, compressor.decompress("body", stored));
+
+        // inside a larger buffer, as in a KeyValue
+        byte[] buffer = Bytes.add(new byte[] { 1, 2, 3 }, stored, new byte[] { 4 });
+        Assert.assertArrayEquals(large, compressor.decompress(buffer, 3, stored.length));
+
+        // other columns and small cells are left alone
+        Assert.assertSame(large, compressor.compress("other", large));
+        byte[] small = Bytes.toBytes("short");
+        Assert.assertSame(small, compressor.compress("body", small));
+        Assert.assertSame(small, compressor.decompress("body", small));
+    }
+
+    @Test
+    public void testSmallCellWithMarker() throws Exception {
+        CellCompressor compressor = new CellCompressor(Sets.newHashSet("body"), 100);
+
+        byte[] small = Bytes.add(CellCompressor.MARKER, Bytes.toBytes("abc"));
+        byte[] stored = compressor.compress("body", small);
+
+        Assert.assertEquals(CellCompressor.CODEC_NONE, stored[CellCompressor.MARKER.length]);
+        Assert.assertArrayEquals(small, compressor.decompress("body", stored));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownCodec() throws Exception {
+        CellCompressor compressor = new CellCompressor(Sets.newHashSet("body"), 100);
+
+        compressor.decompress("body", Bytes.add(CellCompressor.MARKER, new byte[] { 9, 1, 2 }));
+    }
+
+    @Test
+    public void testSerializerAndDeserializer() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("body", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.BIGINT, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:body,cf:count");
+        tableProperties.put(HiveUtils.COMPRESSED_COLUMNS, "body");
+        tableProperties.put(HiveUtils.COMPRESSION_THRESHOLD, "64");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        String body = Strings.repeat("compressible text ", 50);
+
+        Map<String, Object> entity = Maps.newHashMap();
+        entity.put("id", "row1");
+        entity.put("body", body);
+        entity.put("count", 7L);
+
+        Put put = new Put(Bytes.toBytes("row1"));
+        new HiveSerializer(table).serializeColumns(entity, put, new Delete(Bytes.toBytes("row1")));
+
+        KeyValue bodyCell = put.get(Bytes.toBytes("cf"), Bytes.toBytes("body")).get(0);
+        Assert.assertTrue(bodyCell.getValueLength() < body.length() / 4);
+
+        Result result = new Result(new KeyValue[] {
+                bodyCell, put.get(Bytes.toBytes("cf"), Bytes.toBytes("count")).get(0) });
+
+        Map<String, Object> row = new HiveDeserializer(table, result).deserialize();
+        Assert.assertEquals(body, row.get("body"));
+        Assert.assertEquals(7L, row.get("count"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNumericColumnRejected() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.BIGINT, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.COMPRESSED_COLUMNS, "count");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        CellCompressor.forTable(table);
+    }
+}
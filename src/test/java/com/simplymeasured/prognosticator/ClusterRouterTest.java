@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class ClusterRouterTest {
+    @Test
+    public void testRouteTables() throws Exception {
+        Configuration defaultConfiguration = new Configuration();
+        Configuration eastConfiguration = new Configuration();
+        eastConfiguration.set("hbase.zookeeper.quorum", "zk-east");
+
+        HTableInterface defaultTable = mock(HTableInterface.class);
+        HTableFactory defaultFactory = mock(HTableFactory.class);
+        when(defaultFactory.getTable(defaultConfiguration, "events")).thenReturn(defaultTable);
+
+        HTableInterface eastTable = mock(HTableInterface.class);
+        HTableFactory eastFactory = mock(HTableFactory.class);
+        when(eastFactory.getTable(eastConfiguration, "events")).thenReturn(eastTable);
+        when(eastFactory.getTable(eastConfiguration, "missing"))
+                .thenThrow(new TableAcquisitionException("no such table"));
+
+        ClusterRouter router = new ClusterRouter(defaultFactory);
+        router.addCluster("east", eastConfiguration, eastFactory);
+
+        Assert.assertSame(defaultTable, ClusterRouter.unwrap(router.getTable(defaultConfiguration, "events")));
+
+        // a routed table is opened with its cluster's configuration, whatever the caller passes
+        router.routeTable("events", "east");
+        router.routeTable("missing", "east");
+        Assert.assertEquals("east", router.getCluster("events"));
+        Assert.assertSame(eastTable, ClusterRouter.unwrap(router.getTable(defaultConfiguration, "events")));
+
+        try {
+            router.getTable(defaultConfiguration, "missing");
+            Assert.fail("expected the cluster's failure");
+        } catch(TableAcquisitionException e) {
+            // expected
+        }
+
+        Assert.assertEquals(1, router.getStats("east").getAcquired());
+        Assert.assertEquals(1, router.getStats("east").getFailures());
+        Assert.assertEquals(1, router.getStats(null).getAcquired());
+        Assert.assertEquals(1, router.getStats().size());
+
+        router.routeTable("events", null);
+        Assert.assertNull(router.getCluster("events"));
+        Assert.assertSame(defaultTable, ClusterRouter.unwrap(router.getTable(defaultConfiguration, "events")));
+
+        try {
+            router.routeTable("events", "west");
+            Assert.fail("expected an unknown cluster to be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCallerClientSettings() throws Exception {
+        Configuration eastConfiguration = new Configuration();
+        eastConfiguration.set("hbase.zookeeper.quorum", "zk-east");
+
+        HTableFactory eastFactory = mock(HTableFactory.class);
+        when(eastFactory.getTable(any(Configuration.class), eq("events"))).thenReturn(mock(HTableInterface.class));
+
+        ClusterRouter router = new ClusterRouter(mock(HTableFactory.class));
+        router.addCluster("east", eastConfiguration, eastFactory);
+        router.routeTable("events", "east");
+
+        // the caller's configuration matches the cluster's client settings
+        router.getTable(new Configuration(), "events");
+        verify(eastFactory).getTable(eastConfiguration, "events");
+
+        Configuration batchConfiguration = new Configuration();
+        batchConfiguration.setInt(HConstants.HBASE_CLIENT_RETRIES_NUMBER, 2);
+
+        router.getTable(batchConfiguration, "events");
+        router.getTable(new Configuration(batchConfiguration), "events");
+
+        ArgumentCaptor<Configuration> configurations = ArgumentCaptor.forClass(Configuration.class);
+        verify(eastFactory, times(3)).getTable(configurations.capture(), eq("events"));
+
+        Configuration overridden = configurations.getAllValues().get(1);
+        Assert.assertEquals(2, overridden.getInt(HConstants.HBASE_CLIENT_RETRIES_NUMBER, 0));
+        Assert.assertEquals("zk-east", overridden.get("hbase.zookeeper.quorum"));
+        Assert.assertSame(overridden, configurations.getAllValues().get(2));
+        Assert.assertNull(eastConfiguration.get(HConstants.HBASE_CLIENT_RETRIES_NUMBER));
+    }
+
+    @Test
+    public void testCallStats() throws Exception {
+        Configuration configuration = new Configuration();
+
+        ResultScanner eastScanner = mock(ResultScanner.class);
+        HTableInterface eastTable = mock(HTableInterface.class);
+        when(eastTable.get(any(Get.class))).thenReturn(new Result()).thenThrow(new IOException("server down"));
+        when(eastTable.getScanner(any(Scan.class))).thenReturn(eastScanner);
+        when(eastTable.getTableName()).thenReturn(Bytes.toBytes("events"));
+
+        HTableFactory eastFactory = mock(HTableFactory.class);
+        when(eastFactory.getTable(configuration, "events")).thenReturn(eastTable);
+
+        ClusterRouter router = new ClusterRouter(mock(HTableFactory.class));
+        router.addCluster("east", configuration, eastFactory);
+        router.routeTable("events", "east");
+
+        HTableInterface table = router.getTable(configuration, "events");
+        table.get(new Get(Bytes.toBytes("a")));
+
+        try {
+            table.get(new Get(Bytes.toBytes("b")));
+            Assert.fail("expected the server's failure");
+        } catch(IOException e) {
+            Assert.assertEquals("server down", e.getMessage());
+        }
+
+        ResultScanner scanner = table.getScanner(new Scan());
+        scanner.next();
+        scanner.close();
+
+        // neither touches the cluster
+        Assert.assertEquals("events", Bytes.toString(table.getTableName()));
+        table.close();
+
+        ClusterRouter.ClusterStats stats = router.getStats("east");
+        Assert.assertEquals(4, stats.getCalls());
+        Assert.assertEquals(1, stats.getCallFailures());
+        Assert.assertEquals(0, router.getStats(null).getCalls());
+
+        verify(eastScanner).close();
+        verify(eastTable).close();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.apache.hcatalog.data.schema.HCatSchema;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class ColumnBatchCursorTest {
+    @Test
+    public void testBatchDecoding() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.BIGINT, ""),
+                new HCatFieldSchema("name", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.INT, ""),
+                new HCatFieldSchema("score", HCatFieldSchema.Type.DOUBLE, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,b:name,a:count,a:score");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        ResultScanner scanner = mock(ResultScanner.class);
+        when(scanner.next()).thenReturn(
+                row(1L, "alice", 10, 1.5),
+                row(2L, "tab\\\\ty", null, 2.5),
+                row(3L, null, 30, null),
+                null);
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+
+        ColumnBatchCursor cursor = new ColumnBatchCursor(table, tableInterface, scanner,
+                Lists.newArrayList("score", "id", "name", "count"), 2);
+
+        Assert.assertTrue(cursor.next());
+        ColumnBatch batch = cursor.get();
+        Assert.assertEquals(2, batch.size());
+
+        ColumnBatch.LongVector ids = (ColumnBatch.LongVector) batch.getColumn("id");
+        ColumnBatch.BytesVector names = (ColumnBatch.BytesVector) batch.getColumn("name");
+        ColumnBatch.IntVector counts = (ColumnBatch.IntVector) batch.getColumn("count");
+        ColumnBatch.DoubleVector scores = (ColumnBatch.DoubleVector) batch.getColumn(0);
+
+        Assert.assertEquals(1L, ids.values[0]);
+        Assert.assertEquals("alice", names.getString(0));
+        Assert.assertEquals(10, counts.values[0]);
+        Assert.assertEquals(1.5, scores.values[0], 0.0);
+
+        Assert.assertEquals(2L, ids.values[1]);
+        Assert.assertEquals("tab\\ty", names.getString(1));
+        Assert.assertTrue(counts.isNull(1));
+        Assert.assertFalse(scores.isNull(1));
+
+        Assert.assertTrue(cursor.next());
+        Assert.assertSame(batch, cursor.get());
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals(3L, ids.values[0]);
+        Assert.assertTrue(names.isNull(0));
+        Assert.assertEquals(30, counts.values[0]);
+        Assert.assertTrue(scores.isNull(0));
+
+        Assert.assertFalse(cursor.next());
+        Assert.assertEquals(0, batch.size());
+
+        cursor.close();
+        verify(scanner).close();
+        verify(tableInterface).close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testComplexColumnsRejected() throws Exception {
+        HCatSchema tagSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema(null, HCatFieldSchema.Type.STRING, "")));
+
+        HCatTable table = mock(HCatTable.class);
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("tags", HCatFieldSchema.Type.ARRAY, tagSchema, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:tags");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        new ColumnBatchCursor(table, mock(HTableInterface.class), mock(ResultScanner.class),
+                Lists.newArrayList("id", "tags"), 10);
+    }
+
+    private Result row(long id, String name, Integer count, Double score) {
+        byte[] rowKey = Bytes.toBytes(id);
+        long now = System.currentTimeMillis();
+
+        // KeyValues in sorted order, with an older version of count
+        List<KeyValue> keyValues = Lists.newArrayList();
+
+        if(count != null) {
+            keyValues.add(new KeyValue(rowKey, Bytes.toBytes("a"), Bytes.toBytes("count"), now, Bytes.toBytes(count)));
+            keyValues.add(new KeyValue(rowKey, Bytes.toBytes("a"), Bytes.toBytes("count"), now - 1,
+                    Bytes.toBytes(-1)));
+        }
+
+        if(score != null) {
+            keyValues.add(new KeyValue(rowKey, Bytes.toBytes("a"), Bytes.toBytes("score"), now, Bytes.toBytes(score)));
+        }
+
+        if(name != null) {
+            keyValues.add(new KeyValue(rowKey, Bytes.toBytes("b"), Bytes.toBytes("name"), now, Bytes.toBytes(name)));
+        }
+
+        return new Result(keyValues.toArray(new KeyValue[keyValues.size()]));
+    }
+}
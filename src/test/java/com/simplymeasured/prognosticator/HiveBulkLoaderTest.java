@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class HiveBulkLoaderTest {
+    @Test
+    public void testWritesSortedFilesPerRegion() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.BIGINT, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:count");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        File outputDirectory = Files.createTempDir();
+        Configuration configuration = new Configuration();
+
+        HiveBulkLoader loader = new HiveBulkLoader(table, configuration,
+                new Path(outputDirectory.getAbsolutePath(), "hfiles"));
+        loader.setRegionStartKeys(new byte[][] { new byte[0], Bytes.toBytes("m") });
+
+        for(String id: new String[] { "z", "b", "n", "a" }) {
+            Map<String, Object> entity = Maps.newHashMap();
+            entity.put("id", id);
+            entity.put("count", (long)id.charAt(0));
+
+            loader.add(entity);
+        }
+
+        // the same row again, with a different value that should win
+        Map<String, Object> entity = Maps.newHashMap();
+        entity.put("id", "a");
+        entity.put("count", 1L);
+        loader.add(entity);
+
+        loader.close();
+
+        Assert.assertEquals(2, loader.getWrittenFiles().size());
+
+        FileSystem fileSystem = FileSystem.getLocal(configuration);
+        List<String> rows = Lists.newArrayList();
+        List<Long> values = Lists.newArrayList();
+
+        for(Path path: loader.getWrittenFiles()) {
+            Assert.assertEquals("cf", path.getParent().getName());
+
+            HFile.Reader reader = HFile.createReader(fileSystem, path, new CacheConfig(configuration));
+            reader.loadFileInfo();
+
+            HFileScanner scanner = reader.getScanner(false, false);
+            if(scanner.seekTo()) {
+                do {
+                    KeyValue keyValue = scanner.getKeyValue();
+                    rows.add(Bytes.toString(keyValue.getRow()));
+                    values.add(Bytes.toLong(keyValue.getValue()));
+                } while(scanner.next());
+            }
+
+            reader.close();
+        }
+
+        Assert.assertEquals(Lists.newArrayList("a", "b", "n", "z"), rows);
+        Assert.assertEquals(Long.valueOf(1L), values.get(0));
+    }
+
+    @Test
+    public void testLaterFlushWins() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.BIGINT, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:count");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        File outputDirectory = Files.createTempDir();
+        Configuration configuration = new Configuration();
+
+        HiveBulkLoader loader = new HiveBulkLoader(table, configuration,
+                new Path(outputDirectory.getAbsolutePath(), "hfiles"));
+        loader.setMaxBufferedRows(1);
+
+        for(long count = 1; count <= 2; count++) {
+            Map<String, Object> entity = Maps.newHashMap();
+            entity.put("id", "a");
+            entity.put("count", count);
+
+            loader.add(entity);
+        }
+
+        loader.close();
+
+        Assert.assertEquals(2, loader.getWrittenFiles().size());
+
+        FileSystem fileSystem = FileSystem.getLocal(configuration);
+        KeyValue[] cells = new KeyValue[2];
+
+        for(Path path: loader.getWrittenFiles()) {
+            HFile.Reader reader = HFile.createReader(fileSystem, path, new CacheConfig(configuration));
+            reader.loadFileInfo();
+
+            HFileScanner scanner = reader.getScanner(false, false);
+            Assert.assertTrue(scanner.seekTo());
+
+            KeyValue keyValue = scanner.getKeyValue();
+            cells[(int) Bytes.toLong(keyValue.getValue()) - 1] = keyValue;
+
+            reader.close();
+        }
+
+        // the same cell in two files; the later copy must carry the later timestamp
+        Assert.assertTrue(cells[1].getTimestamp() > cells[0].getTimestamp());
+    }
+}
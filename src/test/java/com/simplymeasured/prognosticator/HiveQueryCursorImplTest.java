@@ -128,4 +128,38 @@ public class HiveQueryCursorImplTest {
 
         Assert.assertEquals(expected, result);
     }
+
+    @Test
+    public void testReuseRows() {
+        SqlRowSetMetaData metadata = mock(SqlRowSetMetaData.class);
+
+        when(metadata.getColumnCount()).thenReturn(2);
+
+        when(metadata.getColumnName(1)).thenReturn("LNG");
+        when(metadata.getColumnTypeName(1)).thenReturn("BIGINT");
+
+        when(metadata.getColumnName(2)).thenReturn("MAP");
+        when(metadata.getColumnTypeName(2)).thenReturn("MAP");
+
+        when(rowSet.getMetaData()).thenReturn(metadata);
+
+        when(rowSet.getObject(1)).thenReturn(1L).thenReturn(2L);
+        when(rowSet.getString(2)).thenReturn("{\"foo\":\"str1\", \"bar\":\"str2\"}").thenReturn("{\"baz\":\"str3\"}");
+
+        cursor.setReuseRows(true);
+
+        Map<String, Object> first = cursor.get();
+        Object firstMap = first.get("MAP");
+        Assert.assertEquals(1L, first.get("LNG"));
+
+        Map<String, Object> second = cursor.get();
+        Assert.assertSame(first, second);
+        Assert.assertSame(firstMap, second.get("MAP"));
+        Assert.assertEquals(2L, second.get("LNG"));
+        Assert.assertEquals(new HashMap<String, Object>() {
+            {
+                put("baz", "str3");
+            }
+        }, second.get("MAP"));
+    }
 }
@@ -56,4 +56,31 @@ public class HiveQueryImplTest {
 
         Assert.assertNotNull(cursor);
     }
+
+    @Test
+    public void testRoutedQuery() throws Exception {
+        NamedParameterJdbcTemplate template = mock(NamedParameterJdbcTemplate.class);
+        QueryRouter router = mock(QueryRouter.class);
+
+        HiveQueryImpl query = new HiveQueryImpl(template);
+        query.setQueryRouter(router);
+
+        Map<String, Object> parameterMap = new HashMap<String, Object>() {
+            {
+                put("id", "row1");
+            }
+        };
+
+        RoutedQueryCursor routed = mock(RoutedQueryCursor.class);
+        when(router.route("SELECT * FROM foo WHERE id = :id", parameterMap)).thenReturn(routed);
+
+        Assert.assertSame(routed, query.runQuery("SELECT * FROM foo WHERE id = :id", parameterMap));
+        verifyZeroInteractions(template);
+
+        // anything the router declines goes to Hive
+        SqlRowSet rowSet = mock(SqlRowSet.class);
+        when(template.queryForRowSet("SELECT * FROM foo", parameterMap)).thenReturn(rowSet);
+
+        Assert.assertTrue(query.runQuery("SELECT * FROM foo", parameterMap) instanceof HiveQueryCursorImpl);
+    }
 }
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatClient;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.apache.hcatalog.data.schema.HCatSchema;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class HiveScannerImplTest {
+    @Test
+    public void testPrefixStopRow() {
+        Assert.assertArrayEquals(new byte[] { 1, 3 }, HiveScannerImpl.getPrefixStopRow(new byte[] { 1, 2 }));
+        Assert.assertArrayEquals(new byte[] { 2 }, HiveScannerImpl.getPrefixStopRow(new byte[] { 1, (byte) 0xff }));
+        Assert.assertArrayEquals(new byte[0], HiveScannerImpl.getPrefixStopRow(new byte[] { (byte) 0xff }));
+        Assert.assertArrayEquals(new byte[0], HiveScannerImpl.getPrefixStopRow(new byte[0]));
+    }
+
+    @Test
+    public void testScanPrefix() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("scanPrefixTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("value", HCatFieldSchema.Type.BIGINT, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:value");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "scanPrefixTable")).thenReturn(table);
+
+        ResultScanner resultScanner = mock(ResultScanner.class);
+        when(resultScanner.next())
+                .thenReturn(new Result(new KeyValue[] {
+                        new KeyValue(Bytes.toBytes("row1"), Bytes.toBytes("cf"), Bytes.toBytes("value"),
+                                Bytes.toBytes(42L)) }))
+                .thenReturn(null);
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        when(tableInterface.getScanner(any(Scan.class))).thenReturn(resultScanner);
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("scanPrefixTable"))).thenReturn(tableInterface);
+
+        HiveScannerImpl scanner = new HiveScannerImpl(hcatClient, new Configuration(), tableFactory);
+
+        // STRING keys cannot be prefix scanned
+        try {
+            Map<String, Object> partialKey = Maps.newHashMap();
+            partialKey.put("id", "row");
+            scanner.scanPrefix("scanPrefixTable", partialKey);
+            Assert.fail("expected prefix scan on a STRING key to fail");
+        } catch(IllegalArgumentException iae) {
+            // expected
+        }
+
+        // an empty prefix scans the whole table
+        CloseableQueryCursor<Map<String, Object>> cursor = scanner.scanPrefix("scanPrefixTable",
+                Maps.<String, Object>newHashMap());
+
+        ArgumentCaptor<Scan> scanCaptor = ArgumentCaptor.forClass(Scan.class);
+        verify(tableInterface).getScanner(scanCaptor.capture());
+        Assert.assertEquals(0, scanCaptor.getValue().getStartRow().length);
+        Assert.assertEquals(0, scanCaptor.getValue().getStopRow().length);
+
+        Assert.assertTrue(cursor.next());
+        Map<String, Object> row = cursor.get();
+        Assert.assertEquals("row1", row.get("id"));
+        Assert.assertEquals(42L, row.get("value"));
+        Assert.assertFalse(cursor.next());
+
+        cursor.close();
+        verify(resultScanner).close();
+        verify(tableInterface).close();
+    }
+
+    @Test
+    public void testScanPrefixWholeKey() throws Exception {
+        HCatSchema keySchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema("customerId", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, "")));
+        HCatFieldSchema keyColumn = new HCatFieldSchema("key", HCatFieldSchema.Type.STRUCT, keySchema, "");
+
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("wholeKeyTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(keyColumn,
+                new HCatFieldSchema("value", HCatFieldSchema.Type.BIGINT, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:value");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "wholeKeyTable")).thenReturn(table);
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        when(tableInterface.getScanner(any(Scan.class))).thenReturn(mock(ResultScanner.class));
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("wholeKeyTable"))).thenReturn(tableInterface);
+
+        HiveScannerImpl scanner = new HiveScannerImpl(hcatClient, new Configuration(), tableFactory);
+
+        Map<String, Object> partialKey = Maps.newHashMap();
+        partialKey.put("customerId", "12");
+        partialKey.put("id", "12");
+
+        scanner.scanPrefix("wholeKeyTable", partialKey).close();
+
+        ArgumentCaptor<Scan> scanCaptor = ArgumentCaptor.forClass(Scan.class);
+        verify(tableInterface).getScanner(scanCaptor.capture());
+
+        // "12\00212" must not match "12\002123"
+        byte[] rowKey = Bytes.toBytes("12\00212");
+        Assert.assertArrayEquals(rowKey, scanCaptor.getValue().getStartRow());
+        Assert.assertArrayEquals(Bytes.add(rowKey, new byte[1]), scanCaptor.getValue().getStopRow());
+    }
+
+    @Test
+    public void testScanProjectionWithNullCheck() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("projectionTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("value", HCatFieldSchema.Type.BIGINT, ""),
+                new HCatFieldSchema("name", HCatFieldSchema.Type.STRING, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:val,cf:nm");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "projectionTable")).thenReturn(table);
+
+        ResultScanner resultScanner = mock(ResultScanner.class);
+        when(resultScanner.next())
+                .thenReturn(new Result(new KeyValue[] {
+                        new KeyValue(Bytes.toBytes("row1"), Bytes.toBytes("cf"), Bytes.toBytes("val"),
+                                Bytes.toBytes(42L)) }))
+                .thenReturn(null);
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        when(tableInterface.getScanner(any(Scan.class))).thenReturn(resultScanner);
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("projectionTable"))).thenReturn(tableInterface);
+
+        HiveScannerImpl scanner = new HiveScannerImpl(hcatClient, new Configuration(), tableFactory);
+
+        CloseableQueryCursor<Map<String, Object>> cursor = scanner.scan("projectionTable",
+                ScanPredicate.isNull("value"), Arrays.asList("name"));
+
+        // rows missing both value and name still have to be read, so every column is
+        ArgumentCaptor<Scan> scanCaptor = ArgumentCaptor.forClass(Scan.class);
+        verify(tableInterface).getScanner(scanCaptor.capture());
+        Set<byte[]> qualifiers = scanCaptor.getValue().getFamilyMap().get(Bytes.toBytes("cf"));
+        Assert.assertEquals(2, qualifiers.size());
+        Assert.assertTrue(qualifiers.contains(Bytes.toBytes("val")));
+        Assert.assertTrue(qualifiers.contains(Bytes.toBytes("nm")));
+
+        // the projection is applied to the mapped names rows are keyed by
+        Assert.assertTrue(cursor.next());
+        Map<String, Object> row = cursor.get();
+        Assert.assertEquals(Sets.newHashSet("id", "nm", "__rowkey"), row.keySet());
+        Assert.assertNull(row.get("nm"));
+
+        cursor.close();
+    }
+
+    @Test
+    public void testScanParallel() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("parallelTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("value", HCatFieldSchema.Type.BIGINT, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:value");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "parallelTable")).thenReturn(table);
+
+        final Map<String, ResultScanner> regionScanners = Maps.newHashMap();
+        regionScanners.put("", scannerOf("a", "b", "c"));
+        regionScanners.put("m", scannerOf("m", "n"));
+        regionScanners.put("t", scannerOf());
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        when(tableInterface.getScanner(any(Scan.class))).thenAnswer(new Answer<ResultScanner>() {
+            @Override
+            public ResultScanner answer(InvocationOnMock invocation) throws Throwable {
+                Scan scan = (Scan) invocation.getArguments()[0];
+                return regionScanners.get(Bytes.toString(scan.getStartRow()));
+            }
+        });
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("parallelTable"))).thenReturn(tableInterface);
+
+        HiveScannerImpl scanner = new HiveScannerImpl(hcatClient, new Configuration(), tableFactory) {
+            @Override
+            protected List<byte[][]> getRegionRanges(HCatTable table) throws Exception {
+                return Lists.newArrayList(
+                        new byte[][] { Bytes.toBytes(""), Bytes.toBytes("m") },
+                        new byte[][] { Bytes.toBytes("m"), Bytes.toBytes("t") },
+                        new byte[][] { Bytes.toBytes("t"), Bytes.toBytes("") });
+            }
+        };
+
+        ScanProgressListener listener = mock(ScanProgressListener.class);
+        scanner.setParallelism(2);
+        scanner.setProgressListener(listener, 2);
+
+        final Set<String> ids = Collections.synchronizedSet(Sets.<String>newHashSet());
+        long rows = scanner.scanParallel("parallelTable", null, null, new RowSink() {
+            @Override
+            public void accept(Map<String, Object> row) throws Exception {
+                ids.add((String) row.get("id"));
+            }
+        });
+
+        Assert.assertEquals(5, rows);
+        Assert.assertEquals(Sets.newHashSet("a", "b", "c", "m", "n"), ids);
+
+        verify(listener).scanStarted(3);
+        verify(listener).regionProgress(Bytes.toBytes(""), Bytes.toBytes("m"), 2);
+        verify(listener).regionComplete(Bytes.toBytes(""), Bytes.toBytes("m"), 3);
+        verify(listener).regionComplete(Bytes.toBytes("t"), Bytes.toBytes(""), 0);
+        verify(tableInterface, times(3)).getScanner(any(Scan.class));
+        verify(tableInterface, times(3)).close();
+
+        // the merged cursor sees the same rows
+        regionScanners.put("", scannerOf("a", "b", "c"));
+        regionScanners.put("m", scannerOf("m", "n"));
+        regionScanners.put("t", scannerOf());
+
+        CloseableQueryCursor<Map<String, Object>> cursor = scanner.scanParallel("parallelTable", null, null);
+        Set<String> cursorIds = Sets.newHashSet();
+
+        while(cursor.next()) {
+            cursorIds.add((String) cursor.get().get("id"));
+        }
+
+        cursor.close();
+
+        Assert.assertEquals(ids, cursorIds);
+    }
+
+    @Test
+    public void testScanReuseRows() throws Exception {
+        HCatSchema tagSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema(null, HCatFieldSchema.Type.STRING, "")));
+
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("reuseTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("tags", HCatFieldSchema.Type.ARRAY, tagSchema, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:tags");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "reuseTable")).thenReturn(table);
+
+        ResultScanner resultScanner = mock(ResultScanner.class);
+        when(resultScanner.next())
+                .thenReturn(new Result(new KeyValue[] {
+                        new KeyValue(Bytes.toBytes("row1"), Bytes.toBytes("cf"), Bytes.toBytes("tags"),
+                                Bytes.toBytes("a\u0002b\u0002c")) }))
+                .thenReturn(new Result(new KeyValue[] {
+                        new KeyValue(Bytes.toBytes("row2"), Bytes.toBytes("cf"), Bytes.toBytes("tags"),
+                                Bytes.toBytes("d")) }))
+                .thenReturn(null);
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        when(tableInterface.getScanner(any(Scan.class))).thenReturn(resultScanner);
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("reuseTable"))).thenReturn(tableInterface);
+
+        HiveScannerImpl scanner = new HiveScannerImpl(hcatClient, new Configuration(), tableFactory);
+        scanner.setReuseRows(true);
+
+        CloseableQueryCursor<Map<String, Object>> cursor = scanner.scan("reuseTable", null, null);
+
+        Assert.assertTrue(cursor.next());
+        Map<String, Object> first = cursor.get();
+        List<?> firstTags = (List<?>) first.get("tags");
+        Assert.assertEquals("row1", first.get("id"));
+        Assert.assertEquals(Lists.newArrayList("a", "b", "c"), firstTags);
+
+        // the same map and list are refilled with the next row
+        Assert.assertTrue(cursor.next());
+        Map<String, Object> second = cursor.get();
+        Assert.assertSame(first, second);
+        Assert.assertSame(firstTags, second.get("tags"));
+        Assert.assertEquals("row2", second.get("id"));
+        Assert.assertEquals(Lists.newArrayList("d"), second.get("tags"));
+
+        Assert.assertFalse(cursor.next());
+        cursor.close();
+    }
+
+    @Test
+    public void testScanChanges() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("changeTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("name", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.BIGINT, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:name,cf:count");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "changeTable")).thenReturn(table);
+
+        ResultScanner resultScanner = mock(ResultScanner.class);
+        when(resultScanner.next())
+                .thenReturn(new Result(new KeyValue[] {
+                        new KeyValue(Bytes.toBytes("row1"), Bytes.toBytes("cf"), Bytes.toBytes("count"), 1500L,
+                                Bytes.toBytes(7L)) }))
+                .thenReturn(null);
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        when(tableInterface.getScanner(any(Scan.class))).thenReturn(resultScanner);
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("changeTable"))).thenReturn(tableInterface);
+
+        HiveScannerImpl scanner = new HiveScannerImpl(hcatClient, new Configuration(), tableFactory);
+        scanner.setChangeScanLag(60000);
+
+        long before = System.currentTimeMillis();
+        ChangeCursor cursor = scanner.scanChanges("changeTable", 1000L, null, true);
+        long after = System.currentTimeMillis();
+
+        ArgumentCaptor<Scan> scan = ArgumentCaptor.forClass(Scan.class);
+        verify(tableInterface).getScanner(scan.capture());
+
+        // the window runs from the previous token to a minute ago, which is the next token
+        Assert.assertEquals(1000L, scan.getValue().getTimeRange().getMin());
+        Assert.assertEquals(cursor.getToken(), scan.getValue().getTimeRange().getMax());
+        Assert.assertTrue(cursor.getToken() >= before - 60000);
+        Assert.assertTrue(cursor.getToken() <= after - 60000);
+
+        Assert.assertTrue(cursor.next());
+        Map<String, Object> row = cursor.get();
+        Assert.assertEquals("row1", row.get("id"));
+        Assert.assertEquals(7L, row.get("count"));
+        Assert.assertNull(row.get("name"));
+
+        Map<?, ?> timestamps = (Map<?, ?>) row.get(ChangeCursor.TIMESTAMPS);
+        Assert.assertEquals(1, timestamps.size());
+        Assert.assertEquals(1500L, timestamps.get("count"));
+
+        Assert.assertFalse(cursor.next());
+        cursor.close();
+        verify(resultScanner).close();
+
+        // a token past the lag gives an empty window rather than an invalid one
+        ChangeCursor empty = scanner.scanChanges("changeTable", before, null, false);
+        Assert.assertEquals(before, empty.getToken());
+        empty.close();
+    }
+
+    private ResultScanner scannerOf(String... rowKeys) throws Exception {
+        Result[] results = new Result[rowKeys.length + 1];
+
+        for(int i = 0; i < rowKeys.length; i++) {
+            results[i] = new Result(new KeyValue[] {
+                    new KeyValue(Bytes.toBytes(rowKeys[i]), Bytes.toBytes("cf"), Bytes.toBytes("value"),
+                            Bytes.toBytes((long) i)) });
+        }
+
+        ResultScanner scanner = mock(ResultScanner.class);
+        when(scanner.next()).thenReturn(results[0], Arrays.copyOfRange(results, 1, results.length));
+
+        return scanner;
+    }
+}
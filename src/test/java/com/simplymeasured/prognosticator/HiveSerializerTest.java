@@ -41,8 +41,6 @@ import static org.mockito.Mockito.*;
 public class HiveSerializerTest {
     @Test
     public void testSerializeMap() throws Exception {
-        HCatTable table = mock(HCatTable.class);
-
         HCatSchema mapSchema = new HCatSchema(Lists.newArrayList(
                 getSubFieldSchema("valueField", HCatFieldSchema.Type.BIGINT)));
         HCatFieldSchema fieldSchema = new HCatFieldSchema("testField",
@@ -50,13 +48,11 @@ public class HiveSerializerTest {
                 HCatFieldSchema.Type.STRING,
                 mapSchema, "");
 
-        HiveSerializer serializer = new HiveSerializer(table);
-
         Map<String, Long> testMap = Maps.newLinkedHashMap();
         testMap.put("field1", 123L);
         testMap.put("field2", 456L);
 
-        byte[] result = serializer.serializeMap(fieldSchema, testMap, 1);
+        byte[] result = serializeColumn(fieldSchema, testMap);
 
         ByteArrayOutputStream expectedResult = new ByteArrayOutputStream();
         expectedResult.write(Bytes.toBytes("field1"));
@@ -79,20 +75,16 @@ public class HiveSerializerTest {
      */
     @Test
     public void testSerializeStruct() throws Exception {
-        HCatTable table = mock(HCatTable.class);
-
         HCatSchema structSchema = new HCatSchema(Lists.newArrayList(
                 getSubFieldSchema("intField", HCatFieldSchema.Type.BIGINT),
                 getSubFieldSchema("strField", HCatFieldSchema.Type.STRING)));
         HCatFieldSchema fieldSchema = new HCatFieldSchema("testField", HCatFieldSchema.Type.STRUCT, structSchema, "");
 
-        HiveSerializer serializer = new HiveSerializer(table);
-
         Map<String, Object> testMap = Maps.newHashMap();
         testMap.put("intField", 123L);
         testMap.put("strField", "This is a string");
 
-        byte[] result = serializer.serializeStruct(fieldSchema, testMap, 1);
+        byte[] result = serializeColumn(fieldSchema, testMap);
 
         ByteArrayOutputStream expectedResult = new ByteArrayOutputStream();
         expectedResult.write(Bytes.toBytes(123L));
@@ -109,18 +101,84 @@ public class HiveSerializerTest {
      */
     @Test(expected=IllegalArgumentException.class)
     public void testSerializeStructWithNullField() throws Exception {
-        HCatTable table = mock(HCatTable.class);
-
         HCatSchema structSchema = new HCatSchema(Lists.newArrayList(
                 getSubFieldSchema("intField", HCatFieldSchema.Type.BIGINT),
                 getSubFieldSchema("strField", HCatFieldSchema.Type.STRING)));
         HCatFieldSchema fieldSchema = new HCatFieldSchema("testField", HCatFieldSchema.Type.STRUCT, structSchema, "");
 
-        HiveSerializer serializer = new HiveSerializer(table);
-
         Map<String, Object> testMap = Maps.newHashMap();
 
-        serializer.serializeStruct(fieldSchema, testMap, 1);
+        serializeColumn(fieldSchema, testMap);
+    }
+
+    /**
+     * Ensure a prefix of a STRUCT key matches whole leading fields
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSerializeRowKeyPrefix() throws Exception {
+        HiveSerializer serializer = new HiveSerializer(getStructKeyTable());
+
+        Map<String, Object> partialKey = Maps.newHashMap();
+        partialKey.put("customerId", 123L);
+        partialKey.put("date", "20130601");
+
+        ByteArrayOutputStream expectedResult = new ByteArrayOutputStream();
+        expectedResult.write(Bytes.toBytes(123L));
+        expectedResult.write('\002');
+        expectedResult.write(Bytes.toBytes("20130601"));
+        expectedResult.write('\002');
+
+        Assert.assertArrayEquals(expectedResult.toByteArray(), serializer.serializeRowKeyPrefix(partialKey));
+
+        // the full key is the same as the rowkey itself
+        partialKey.put("id", "abc");
+        Assert.assertArrayEquals(serializer.serializeRowKey(partialKey), serializer.serializeRowKeyPrefix(partialKey));
+    }
+
+    /**
+     * Ensure a prefix cannot skip fields of the key
+     *
+     * @throws Exception
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void testSerializeRowKeyPrefixWithGap() throws Exception {
+        HiveSerializer serializer = new HiveSerializer(getStructKeyTable());
+
+        Map<String, Object> partialKey = Maps.newHashMap();
+        partialKey.put("customerId", 123L);
+        partialKey.put("id", "abc");
+
+        serializer.serializeRowKeyPrefix(partialKey);
+    }
+
+    /**
+     * Encode a value of a column the way a table holding it would
+     */
+    protected byte[] serializeColumn(HCatFieldSchema fieldSchema, Object value) throws Exception {
+        HCatTable table = mock(HCatTable.class);
+
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                getSubFieldSchema("id", HCatFieldSchema.Type.STRING), fieldSchema));
+        when(table.getTblProps()).thenReturn(Maps.<String, String>newHashMap());
+
+        return TableCodec.forTable(table).getColumnCodec(1).encode(value);
+    }
+
+    protected HCatTable getStructKeyTable() throws HCatException {
+        HCatTable table = mock(HCatTable.class);
+
+        HCatSchema keySchema = new HCatSchema(Lists.newArrayList(
+                getSubFieldSchema("customerId", HCatFieldSchema.Type.BIGINT),
+                getSubFieldSchema("date", HCatFieldSchema.Type.STRING),
+                getSubFieldSchema("id", HCatFieldSchema.Type.STRING)));
+
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("key", HCatFieldSchema.Type.STRUCT, keySchema, ""),
+                getSubFieldSchema("value", HCatFieldSchema.Type.STRING)));
+
+        return table;
     }
 
     protected HCatFieldSchema getSubFieldSchema(String fieldName, HCatFieldSchema.Type type) throws HCatException {
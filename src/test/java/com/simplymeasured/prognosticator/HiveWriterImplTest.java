@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Append;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatClient;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.apache.hcatalog.data.schema.HCatSchema;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class HiveWriterImplTest {
+    @Test
+    public void testIncrement() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("counterTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("views", HCatFieldSchema.Type.BIGINT, ""),
+                new HCatFieldSchema("clicks", HCatFieldSchema.Type.BIGINT, ""),
+                new HCatFieldSchema("name", HCatFieldSchema.Type.STRING, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:v,cf:c,cf:name");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "counterTable")).thenReturn(table);
+
+        byte[] row = Bytes.toBytes("row1");
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        when(tableInterface.increment(any(Increment.class))).thenReturn(new Result(new KeyValue[] {
+                new KeyValue(row, Bytes.toBytes("cf"), Bytes.toBytes("c"), Bytes.toBytes(3L)),
+                new KeyValue(row, Bytes.toBytes("cf"), Bytes.toBytes("v"), Bytes.toBytes(12L)) }));
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("counterTable"))).thenReturn(tableInterface);
+
+        RowCache rowCache = mock(RowCache.class);
+
+        HiveWriterImpl writer = new HiveWriterImpl(hcatClient, new Configuration(), tableFactory);
+        writer.setRowCache(rowCache);
+
+        Map<String, Object> key = Maps.newHashMap();
+        key.put("id", "row1");
+
+        Map<String, Long> deltas = Maps.newLinkedHashMap();
+        deltas.put("views", 2L);
+        deltas.put("clicks", 1L);
+
+        Map<String, Long> values = writer.increment("counterTable", key, deltas);
+
+        Assert.assertEquals(Long.valueOf(12L), values.get("views"));
+        Assert.assertEquals(Long.valueOf(3L), values.get("clicks"));
+
+        ArgumentCaptor<Increment> increment = ArgumentCaptor.forClass(Increment.class);
+        verify(tableInterface).increment(increment.capture());
+        verify(tableInterface).close();
+
+        Assert.assertArrayEquals(row, increment.getValue().getRow());
+        Map<byte[], Long> amounts = increment.getValue().getFamilyMap().get(Bytes.toBytes("cf"));
+        Assert.assertEquals(Long.valueOf(2L), amounts.get(Bytes.toBytes("v")));
+        Assert.assertEquals(Long.valueOf(1L), amounts.get(Bytes.toBytes("c")));
+
+        verify(rowCache).invalidate("counterTable", row);
+
+        deltas.put("name", 1L);
+
+        try {
+            writer.increment("counterTable", key, deltas);
+            Assert.fail("expected a STRING counter to be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+
+        deltas.remove("name");
+        writer.setWriteSpool(mock(WriteSpool.class));
+
+        try {
+            writer.increment("counterTable", key, deltas);
+            Assert.fail("expected an increment to be refused while spooling");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+
+        verifyNoMoreInteractions(tableInterface);
+    }
+
+    @Test
+    public void testAppendToArray() throws Exception {
+        HCatSchema tagSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema(null, HCatFieldSchema.Type.STRING, "")));
+
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("appendTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("tags", HCatFieldSchema.Type.ARRAY, tagSchema, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:tags");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "appendTable")).thenReturn(table);
+
+        byte[] row = Bytes.toBytes("row1");
+        byte[] family = Bytes.toBytes("cf");
+        byte[] qualifier = Bytes.toBytes("tags");
+        byte[] appended = Bytes.toBytes("\002c\002d");
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        when(tableInterface.append(any(Append.class))).thenReturn(new Result(new KeyValue[] {
+                new KeyValue(row, family, qualifier, Bytes.toBytes("a\002b\002c\002d")) }));
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("appendTable"))).thenReturn(tableInterface);
+
+        HiveWriterImpl writer = new HiveWriterImpl(hcatClient, new Configuration(), tableFactory);
+
+        Map<String, Object> key = Maps.newHashMap();
+        key.put("id", "row1");
+
+        writer.appendToArray("appendTable", key, "tags", Lists.newArrayList("c", "d"));
+
+        ArgumentCaptor<Append> append = ArgumentCaptor.forClass(Append.class);
+        verify(tableInterface).append(append.capture());
+        Assert.assertArrayEquals(appended, append.getValue().getFamilyMap().get(family).get(0).getValue());
+        verify(tableInterface, never()).checkAndPut(any(byte[].class), any(byte[].class), any(byte[].class),
+                any(byte[].class), any(Put.class));
+
+        // appending to a missing array leaves the separator leading, and another append lands before the repair
+        byte[] raced = Bytes.toBytes("\002c\002d\002e");
+
+        reset(tableInterface);
+        when(tableInterface.append(any(Append.class))).thenReturn(
+                new Result(new KeyValue[] { new KeyValue(row, family, qualifier, appended) }));
+        when(tableInterface.checkAndPut(eq(row), eq(family), eq(qualifier), eq(appended), any(Put.class)))
+                .thenReturn(false);
+        when(tableInterface.get(any(Get.class))).thenReturn(
+                new Result(new KeyValue[] { new KeyValue(row, family, qualifier, raced) }));
+        when(tableInterface.checkAndPut(eq(row), eq(family), eq(qualifier), eq(raced), any(Put.class)))
+                .thenReturn(true);
+
+        writer.appendToArray("appendTable", key, "tags", Lists.newArrayList("c", "d"));
+
+        ArgumentCaptor<Put> repair = ArgumentCaptor.forClass(Put.class);
+        verify(tableInterface).checkAndPut(eq(row), eq(family), eq(qualifier), eq(raced), repair.capture());
+        Assert.assertArrayEquals(Bytes.toBytes("c\002d\002e"),
+                repair.getValue().get(family, qualifier).get(0).getValue());
+
+        reset(tableInterface);
+        writer.setWriteSpool(mock(WriteSpool.class));
+
+        try {
+            writer.appendToArray("appendTable", key, "tags", Lists.newArrayList("f"));
+            Assert.fail("expected an append to be refused while spooling");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+
+        verifyZeroInteractions(tableInterface);
+    }
+
+    @Test
+    public void testWriteBatch() throws Exception {
+        HCatClient hcatClient = mock(HCatClient.class);
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        Map<String, HTableInterface> tables = Maps.newHashMap();
+
+        for(String tableName: new String[] { "events", "sessions", "broken" }) {
+            HCatTable table = mock(HCatTable.class);
+            when(table.getTableName()).thenReturn(tableName);
+            when(table.getCols()).thenReturn(Lists.newArrayList(
+                    new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                    new HCatFieldSchema("count", HCatFieldSchema.Type.BIGINT, "")));
+            when(table.getTblProps()).thenReturn(Maps.<String, String>newHashMap());
+            when(hcatClient.getTable("default", tableName)).thenReturn(table);
+
+            HTableInterface tableInterface = mock(HTableInterface.class);
+            when(tableFactory.getTable(any(Configuration.class), eq(tableName))).thenReturn(tableInterface);
+            tables.put(tableName, tableInterface);
+        }
+
+        doThrow(new IOException("region unavailable")).when(tables.get("broken")).batch(anyList());
+
+        HiveWriterImpl writer = new HiveWriterImpl(hcatClient, new Configuration(), tableFactory);
+
+        Map<String, List<Map<String, Object>>> rows = Maps.newLinkedHashMap();
+        rows.put("broken", Lists.newArrayList(row("b1", 1L)));
+        rows.put("events", Lists.newArrayList(row("e1", 1L), row("e2", 2L)));
+        rows.put("sessions", Lists.newArrayList(row("s1", null)));
+
+        try {
+            writer.writeBatch(rows);
+            Assert.fail("expected the failed table's error");
+        } catch(IOException e) {
+            Assert.assertEquals("region unavailable", e.getMessage());
+        }
+
+        // the other tables are still written, one batch each
+        ArgumentCaptor<List> events = ArgumentCaptor.forClass(List.class);
+        verify(tables.get("events")).batch(events.capture());
+        Assert.assertEquals(2, events.getValue().size());
+
+        ArgumentCaptor<List> sessions = ArgumentCaptor.forClass(List.class);
+        verify(tables.get("sessions")).batch(sessions.capture());
+        Assert.assertEquals(1, sessions.getValue().size());
+        Assert.assertTrue(sessions.getValue().get(0) instanceof Delete);
+    }
+
+    private Map<String, Object> row(String id, Long count) {
+        Map<String, Object> result = Maps.newHashMap();
+        result.put("id", id);
+        result.put("count", count);
+
+        return result;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hcatalog.api.HCatClient;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.apache.hcatalog.data.schema.HCatSchema;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class JsonRowSerializerTest {
+    @Test
+    public void testMatchesHiveSerializer() throws Exception {
+        HCatTable table = mockTable("jsonTable");
+
+        String json = "{\"extra\":{\"ignored\":[1,2]},\"point\":{\"y\":2.5,\"x\":-1},\"day\":20261019,"
+                + "\"name\":\"caf\\u00e9\\ttab\\\\ \\ud83d\\ude00\",\"attrs\":{\"a\":1,\"b\":2},\"site\":\"example\","
+                + "\"count\":7.0,\"tags\":[\"x\",\"y\"],\"score\":3,\"missing\":null}";
+
+        Map<String, Object> entity = Maps.newHashMap();
+        entity.put("site", "example");
+        entity.put("day", 20261019L);
+        entity.put("name", "café\ttab\\ 😀");
+        entity.put("count", 7);
+        entity.put("score", 3.0);
+        entity.put("tags", Lists.newArrayList("x", "y"));
+        Map<String, Object> attrs = Maps.newLinkedHashMap();
+        attrs.put("a", 1L);
+        attrs.put("b", 2L);
+        entity.put("attrs", attrs);
+        Map<String, Object> point = Maps.newHashMap();
+        point.put("x", -1.0);
+        point.put("y", 2.5);
+        entity.put("point", point);
+
+        HiveSerializer serializer = new HiveSerializer(table);
+        byte[] expectedKey = serializer.serializeRowKey(entity);
+        Put expectedPut = new Put(expectedKey);
+        Delete expectedDelete = new Delete(expectedKey);
+        serializer.serializeColumns(entity, expectedPut, expectedDelete);
+
+        JsonParser parser = new JsonFactory().createJsonParser(json);
+        parser.nextToken();
+
+        JsonRowSerializer.Mutations result = new JsonRowSerializer(table).serialize(parser);
+
+        Assert.assertArrayEquals(expectedKey, result.getRowKey());
+        assertCells(expectedPut.getFamilyMap().values(), result.getPut().getFamilyMap().values(), true);
+        assertCells(expectedDelete.getFamilyMap().values(), result.getDelete().getFamilyMap().values(), false);
+    }
+
+    @Test
+    public void testWriteJsonLines() throws Exception {
+        HCatTable table = mockTable("jsonLinesTable");
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "jsonLinesTable")).thenReturn(table);
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("jsonLinesTable"))).thenReturn(tableInterface);
+
+        RowCache rowCache = mock(RowCache.class);
+
+        HiveWriterImpl writer = new HiveWriterImpl(hcatClient, new Configuration(), tableFactory);
+        writer.setRowCache(rowCache);
+
+        String json = "{\"site\":\"a\",\"day\":1,\"name\":\"first\",\"count\":1,\"score\":1,\"tags\":[],"
+                + "\"attrs\":{},\"point\":{\"x\":0,\"y\":0},\"missing\":\"m\"}\n"
+                + "{\"site\":\"b\",\"day\":2,\"point\":{\"x\":1,\"y\":1}}\n";
+
+        Assert.assertEquals(2, writer.writeJson("jsonLinesTable",
+                new ByteArrayInputStream(json.getBytes(Charsets.UTF_8))));
+
+        ArgumentCaptor<List> batch = ArgumentCaptor.forClass(List.class);
+        verify(tableInterface).batch(batch.capture());
+
+        List<Row> mutations = batch.getValue();
+        Assert.assertEquals(3, mutations.size());
+        Assert.assertTrue(mutations.get(0) instanceof Put);
+        Assert.assertTrue(mutations.get(1) instanceof Put);
+        Assert.assertEquals(6, ((Delete) mutations.get(2)).getFamilyMap().get("cf".getBytes()).size());
+
+        verify(rowCache, times(2)).invalidate(eq("jsonLinesTable"), any(byte[].class));
+
+        try {
+            writer.writeJson("jsonLinesTable", new ByteArrayInputStream("[1]".getBytes(Charsets.UTF_8)));
+            Assert.fail("expected a non-object to be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWriteJsonRepeatedKey() throws Exception {
+        HCatTable table = mockTable("jsonRepeatedTable");
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "jsonRepeatedTable")).thenReturn(table);
+
+        // the batch is cleared once written, so keep a copy of each
+        final List<List<Row>> batches = Lists.newArrayList();
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                batches.add(Lists.newArrayList((List<Row>) invocation.getArguments()[0]));
+                return null;
+            }
+        }).when(tableInterface).batch(anyList());
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("jsonRepeatedTable"))).thenReturn(tableInterface);
+
+        HiveWriterImpl writer = new HiveWriterImpl(hcatClient, new Configuration(), tableFactory);
+
+        String json = "[{\"site\":\"a\",\"day\":1,\"name\":\"first\"},"
+                + "{\"site\":\"a\",\"day\":1,\"name\":\"second\"},"
+                + "{\"site\":\"b\",\"day\":2,\"name\":\"third\"}]";
+
+        Assert.assertEquals(3, writer.writeJson("jsonRepeatedTable",
+                new ByteArrayInputStream(json.getBytes(Charsets.UTF_8))));
+
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(2, batches.get(0).size());
+        Assert.assertEquals(4, batches.get(1).size());
+        Assert.assertArrayEquals(batches.get(0).get(0).getRow(), batches.get(1).get(0).getRow());
+    }
+
+    private void assertCells(Iterable<List<KeyValue>> expected, Iterable<List<KeyValue>> actual, boolean values) {
+        List<KeyValue> expectedCells = Lists.newArrayList();
+        List<KeyValue> actualCells = Lists.newArrayList();
+
+        for(List<KeyValue> cells: expected) {
+            expectedCells.addAll(cells);
+        }
+
+        for(List<KeyValue> cells: actual) {
+            actualCells.addAll(cells);
+        }
+
+        Assert.assertEquals(expectedCells.size(), actualCells.size());
+
+        for(int i = 0; i < expectedCells.size(); i++) {
+            Assert.assertArrayEquals(expectedCells.get(i).getQualifier(), actualCells.get(i).getQualifier());
+
+            if(values) {
+                Assert.assertArrayEquals(expectedCells.get(i).getValue(), actualCells.get(i).getValue());
+            }
+        }
+    }
+
+    private HCatTable mockTable(String tableName) throws Exception {
+        HCatSchema keySchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema("site", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("day", HCatFieldSchema.Type.BIGINT, "")));
+        HCatSchema tagSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema(null, HCatFieldSchema.Type.STRING, "")));
+        HCatSchema attrSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema(null, HCatFieldSchema.Type.BIGINT, "")));
+        HCatSchema pointSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema("x", HCatFieldSchema.Type.DOUBLE, ""),
+                new HCatFieldSchema("y", HCatFieldSchema.Type.DOUBLE, "")));
+
+        List<HCatFieldSchema> columns = Lists.newArrayList(
+                new HCatFieldSchema("key", HCatFieldSchema.Type.STRUCT, keySchema, ""),
+                new HCatFieldSchema("name", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.INT, ""),
+                new HCatFieldSchema("score", HCatFieldSchema.Type.DOUBLE, ""),
+                new HCatFieldSchema("tags", HCatFieldSchema.Type.ARRAY, tagSchema, ""),
+                new HCatFieldSchema("attrs", HCatFieldSchema.Type.MAP, HCatFieldSchema.Type.STRING, attrSchema, ""),
+                new HCatFieldSchema("point", HCatFieldSchema.Type.STRUCT, pointSchema, ""),
+                new HCatFieldSchema("missing", HCatFieldSchema.Type.STRING, ""));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING,
+                ":key,cf:name,cf:count,cf:score,cf:tags,cf:attrs,cf:point,cf:missing");
+
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn(tableName);
+        when(table.getCols()).thenReturn(columns);
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        return table;
+    }
+}
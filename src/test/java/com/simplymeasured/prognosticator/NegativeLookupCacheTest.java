@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class NegativeLookupCacheTest {
+    @Test
+    public void testMissThenWrite() {
+        NegativeLookupCache cache = new NegativeLookupCache(1000, 0.001, 1, TimeUnit.MINUTES);
+
+        Assert.assertFalse(cache.isAbsent("table", Bytes.toBytes("key")));
+
+        cache.recordMiss("table", Bytes.toBytes("key"));
+
+        Assert.assertTrue(cache.isAbsent("table", Bytes.toBytes("key")));
+        Assert.assertFalse(cache.isAbsent("otherTable", Bytes.toBytes("key")));
+
+        cache.recordWrite("table", Bytes.toBytes("key"));
+
+        Assert.assertFalse(cache.isAbsent("table", Bytes.toBytes("key")));
+        Assert.assertEquals(1, cache.getAbsentCount());
+    }
+
+    @Test
+    public void testMissRacingWrite() {
+        NegativeLookupCache cache = new NegativeLookupCache(1000, 0.001, 1, TimeUnit.MINUTES);
+
+        long generation = cache.getWriteGeneration("table");
+        cache.recordWrite("table", Bytes.toBytes("key"));
+        cache.recordMiss("table", Bytes.toBytes("key"), generation);
+
+        Assert.assertFalse(cache.isAbsent("table", Bytes.toBytes("key")));
+
+        // two concurrent misses on one key are counted once, so one write clears the key
+        generation = cache.getWriteGeneration("table");
+        cache.recordMiss("table", Bytes.toBytes("key"), generation);
+        cache.recordMiss("table", Bytes.toBytes("key"), generation);
+        cache.recordWrite("table", Bytes.toBytes("key"));
+
+        Assert.assertFalse(cache.isAbsent("table", Bytes.toBytes("key")));
+    }
+
+    @Test
+    public void testRotationWhenFull() {
+        NegativeLookupCache cache = new NegativeLookupCache(10, 0.01, 1, TimeUnit.MINUTES);
+
+        for(int i = 0; i < 11; i++) {
+            cache.recordMiss("table", Bytes.toBytes(i));
+        }
+
+        Assert.assertEquals(1, cache.getRotationCount());
+        Assert.assertFalse(cache.isAbsent("table", Bytes.toBytes(0)));
+    }
+
+    @Test
+    public void testRotationWhenOld() throws Exception {
+        NegativeLookupCache cache = new NegativeLookupCache(1000, 0.001, 1, TimeUnit.MILLISECONDS);
+
+        cache.recordMiss("table", Bytes.toBytes("key"));
+
+        Thread.sleep(10);
+
+        Assert.assertFalse(cache.isAbsent("table", Bytes.toBytes("key")));
+        Assert.assertEquals(1, cache.getRotationCount());
+    }
+
+    @Test
+    public void testFilterFalsePositiveRate() {
+        CountingBloomFilter filter = new CountingBloomFilter(10000, 0.01);
+
+        for(int i = 0; i < 10000; i++) {
+            filter.add(Bytes.toBytes(i));
+        }
+
+        for(int i = 0; i < 10000; i++) {
+            Assert.assertTrue(filter.mightContain(Bytes.toBytes(i)));
+        }
+
+        int falsePositives = 0;
+        for(int i = 10000; i < 20000; i++) {
+            if(filter.mightContain(Bytes.toBytes(i))) {
+                falsePositives++;
+            }
+        }
+
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 300);
+
+        for(int i = 0; i < 5000; i++) {
+            filter.remove(Bytes.toBytes(i));
+        }
+
+        for(int i = 5000; i < 10000; i++) {
+            Assert.assertTrue(filter.mightContain(Bytes.toBytes(i)));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.apache.hcatalog.data.schema.HCatSchema;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class PredicateCompilerTest {
+    private HCatTable table;
+    private PredicateCompiler compiler;
+
+    @Before
+    public void setUp() throws Exception {
+        HCatSchema tagSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema(null, HCatFieldSchema.Type.STRING, "")));
+
+        table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("predicateTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("name", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.BIGINT, ""),
+                new HCatFieldSchema("tags", HCatFieldSchema.Type.MAP, HCatFieldSchema.Type.STRING, tagSchema, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:name,cf:count,tags:");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        compiler = new PredicateCompiler(table);
+    }
+
+    @Test
+    public void testEqualAndIn() throws Exception {
+        Filter filter = compiler.compile(ScanPredicate.eq("name", "bob"));
+
+        Assert.assertTrue(matches(filter, row("bob", 1L)));
+        Assert.assertFalse(matches(filter, row("alice", 1L)));
+        Assert.assertFalse(matches(filter, row(null, 1L)));
+
+        filter = compiler.compile(ScanPredicate.in("count", Lists.newArrayList(1L, 3L)));
+
+        Assert.assertTrue(matches(filter, row("bob", 3L)));
+        Assert.assertFalse(matches(filter, row("bob", 2L)));
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        Filter filter = compiler.compile(ScanPredicate.range("count", 10L, 20L));
+
+        Assert.assertTrue(matches(filter, row("bob", 10L)));
+        Assert.assertTrue(matches(filter, row("bob", 19L)));
+        Assert.assertFalse(matches(filter, row("bob", 20L)));
+        Assert.assertFalse(matches(filter, row("bob", 9L)));
+        Assert.assertFalse(matches(filter, row("bob", -15L)));
+
+        filter = compiler.compile(ScanPredicate.range("name", "b", null));
+
+        Assert.assertTrue(matches(filter, row("bob", 1L)));
+        Assert.assertFalse(matches(filter, row("alice", 1L)));
+    }
+
+    @Test
+    public void testNullChecks() throws Exception {
+        Filter filter = compiler.compile(ScanPredicate.isNull("name"));
+
+        Assert.assertTrue(matches(filter, row(null, 1L)));
+        Assert.assertFalse(matches(filter, row("bob", 1L)));
+
+        filter = compiler.compile(ScanPredicate.isNotNull("name"));
+
+        Assert.assertFalse(matches(filter, row(null, 1L)));
+        Assert.assertTrue(matches(filter, row("bob", 1L)));
+    }
+
+    @Test
+    public void testAndOr() throws Exception {
+        Filter filter = compiler.compile(ScanPredicate.or(
+                ScanPredicate.and(ScanPredicate.eq("name", "bob"), ScanPredicate.range("count", 0L, 5L)),
+                ScanPredicate.isNull("name")));
+
+        Assert.assertTrue(matches(filter, row("bob", 4L)));
+        Assert.assertFalse(matches(filter, row("bob", 5L)));
+        Assert.assertFalse(matches(filter, row("alice", 4L)));
+        Assert.assertTrue(matches(filter, row(null, 100L)));
+    }
+
+    @Test
+    public void testUnsupportedPredicates() throws Exception {
+        assertRejected(ScanPredicate.eq("id", "row1"));
+        assertRejected(ScanPredicate.eq("missing", "x"));
+        assertRejected(ScanPredicate.isNull("tags"));
+        assertRejected(ScanPredicate.range("count", 10L, null));
+        assertRejected(ScanPredicate.range("count", -10L, 10L));
+        assertRejected(ScanPredicate.range("name", "a\tb", null));
+    }
+
+    @Test
+    public void testAddColumns() throws Exception {
+        Scan scan = new Scan();
+        compiler.addColumns(scan, Lists.newArrayList("name", "tags"));
+
+        Assert.assertEquals(1, scan.getFamilyMap().get(Bytes.toBytes("cf")).size());
+        Assert.assertNull(scan.getFamilyMap().get(Bytes.toBytes("tags")));
+        Assert.assertTrue(scan.getFamilyMap().containsKey(Bytes.toBytes("tags")));
+    }
+
+    private void assertRejected(ScanPredicate predicate) throws Exception {
+        try {
+            compiler.compile(predicate);
+            Assert.fail("expected " + predicate + " to be rejected");
+        } catch(IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    private KeyValue[] row(String name, Long count) {
+        byte[] rowKey = Bytes.toBytes("row1");
+        KeyValue countCell = new KeyValue(rowKey, Bytes.toBytes("cf"), Bytes.toBytes("count"), Bytes.toBytes(count));
+
+        if(name == null) {
+            return new KeyValue[] { countCell };
+        }
+
+        // cells arrive in qualifier order
+        return new KeyValue[] { countCell,
+                new KeyValue(rowKey, Bytes.toBytes("cf"), Bytes.toBytes("name"), Bytes.toBytes(name)) };
+    }
+
+    /**
+     * Evaluate a filter over a row the way a region server does
+     */
+    private boolean matches(Filter filter, KeyValue... cells) {
+        filter.reset();
+
+        byte[] rowKey = cells[0].getRow();
+        if(filter.filterRowKey(rowKey, 0, rowKey.length)) {
+            return false;
+        }
+
+        for(KeyValue cell: cells) {
+            Filter.ReturnCode code = filter.filterKeyValue(cell);
+
+            if(code == Filter.ReturnCode.NEXT_ROW || filter.filterAllRemaining()) {
+                break;
+            }
+        }
+
+        return !filter.filterRow();
+    }
+}
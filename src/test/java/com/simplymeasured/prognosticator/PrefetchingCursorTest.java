@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class PrefetchingCursorTest {
+    @Test
+    public void testReadsEveryRowInOrder() throws Exception {
+        CountingCursor delegate = new CountingCursor(1000, -1);
+        PrefetchingCursor<Integer> cursor = new PrefetchingCursor<Integer>(delegate, 2, 7);
+
+        List<Integer> rows = Lists.newArrayList();
+        while(cursor.next()) {
+            rows.add(cursor.get());
+        }
+
+        Assert.assertEquals(1000, rows.size());
+        for(int i = 0; i < rows.size(); i++) {
+            Assert.assertEquals(i, rows.get(i).intValue());
+        }
+
+        Assert.assertFalse(cursor.next());
+        Assert.assertTrue(delegate.closed.await(5, TimeUnit.SECONDS));
+        cursor.close();
+    }
+
+    @Test
+    public void testFailureAfterBufferedRows() throws Exception {
+        CountingCursor delegate = new CountingCursor(1000, 3);
+        PrefetchingCursor<Integer> cursor = new PrefetchingCursor<Integer>(delegate, 4, 2);
+
+        for(int i = 0; i < 3; i++) {
+            Assert.assertTrue(cursor.next());
+            Assert.assertEquals(i, cursor.get().intValue());
+        }
+
+        try {
+            cursor.next();
+            Assert.fail("expected the reader's failure");
+        } catch(RuntimeException re) {
+            Assert.assertEquals("fetch failed", re.getCause().getMessage());
+        }
+
+        Assert.assertTrue(delegate.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCloseStopsReader() throws Exception {
+        CountingCursor delegate = new CountingCursor(Integer.MAX_VALUE, -1);
+        PrefetchingCursor<Integer> cursor = new PrefetchingCursor<Integer>(delegate, 2, 10);
+
+        Assert.assertTrue(cursor.next());
+        cursor.close();
+
+        Assert.assertFalse(cursor.next());
+        Assert.assertTrue(delegate.closed.await(5, TimeUnit.SECONDS));
+
+        // the reader stops at the bounded queue instead of draining the source
+        Assert.assertTrue(delegate.position < 1000);
+    }
+
+    private static class CountingCursor implements CloseableQueryCursor<Integer> {
+        private final int rows;
+        private final int failAt;
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile int position = -1;
+
+        private CountingCursor(int rows, int failAt) {
+            this.rows = rows;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public boolean next() {
+            position++;
+
+            if(position == failAt) {
+                throw new IllegalStateException("fetch failed");
+            }
+
+            return position < rows;
+        }
+
+        @Override
+        public Integer get() {
+            return position;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatClient;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class QueryRouterTest {
+    private HTableInterface tableInterface;
+    private QueryRouter router;
+
+    @Before
+    public void setUp() throws Exception {
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("routedTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("name", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.BIGINT, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:full_name,cf:count");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        HCatTable binaryTable = mock(HCatTable.class);
+        when(binaryTable.getTableName()).thenReturn("binaryTable");
+        when(binaryTable.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.BINARY, ""),
+                new HCatFieldSchema("name", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.BIGINT, "")));
+        when(binaryTable.getTblProps()).thenReturn(tableProperties);
+
+        HCatTable hiveTable = mock(HCatTable.class);
+        when(hiveTable.getTableName()).thenReturn("hiveTable");
+        when(hiveTable.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, "")));
+        when(hiveTable.getTblProps()).thenReturn(Maps.<String, String>newHashMap());
+
+        HCatClient hcatClient = mock(HCatClient.class);
+        when(hcatClient.getTable("default", "routedTable")).thenReturn(table);
+        when(hcatClient.getTable("default", "hiveTable")).thenReturn(hiveTable);
+        when(hcatClient.getTable("default", "binaryTable")).thenReturn(binaryTable);
+
+        tableInterface = mock(HTableInterface.class);
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("routedTable"))).thenReturn(tableInterface);
+        when(tableFactory.getTable(any(Configuration.class), eq("binaryTable"))).thenReturn(tableInterface);
+
+        router = new QueryRouter(hcatClient, new Configuration(), tableFactory);
+    }
+
+    @Test
+    public void testUnroutableQueries() throws Exception {
+        Map<String, Object> parameters = Maps.newHashMap();
+        parameters.put("id", "row1");
+
+        Assert.assertNull(router.route("SELECT * FROM routedTable", parameters));
+        Assert.assertNull(router.route("SELECT * FROM routedTable WHERE name = 'bob'", parameters));
+        Assert.assertNull(router.route("SELECT * FROM routedTable WHERE id = :id OR name = 'bob'", parameters));
+        Assert.assertNull(router.route("SELECT * FROM routedTable WHERE id = :id LIMIT 1", parameters));
+        Assert.assertNull(router.route("SELECT count(*) FROM routedTable WHERE id = :id", parameters));
+        Assert.assertNull(router.route("SELECT * FROM routedTable WHERE id = :missing", parameters));
+        Assert.assertNull(router.route("SELECT * FROM routedTable WHERE id = :id AND count > 5", parameters));
+        Assert.assertNull(router.route("SELECT * FROM routedTable WHERE id = :id AND count >= -5", parameters));
+        Assert.assertNull(router.route("SELECT * FROM hiveTable WHERE id = :id", parameters));
+        // escaped STRING keys don't sort like their values
+        Assert.assertNull(router.route("SELECT * FROM routedTable WHERE id > 'a' AND id <= 'c'", parameters));
+        Assert.assertNull(router.route("INSERT INTO TABLE routedTable SELECT * FROM hiveTable", parameters));
+
+        verifyZeroInteractions(tableInterface);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPointLookups() throws Exception {
+        when(tableInterface.get(anyList())).thenReturn(new Result[] {
+                row("row1", "bob", 3L), new Result(), row("row3", "carol", 4L) });
+
+        Map<String, Object> parameters = Maps.newHashMap();
+        parameters.put("ids", Lists.newArrayList("row1", "row2", "row1", "row3"));
+
+        RoutedQueryCursor cursor = router.route(
+                "select name from routedTable where id in (:ids) and name >= 'b'", parameters);
+        Assert.assertNotNull(cursor);
+
+        ArgumentCaptor<List> getsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(tableInterface).get(getsCaptor.capture());
+
+        List<Get> gets = getsCaptor.getValue();
+        Assert.assertEquals(3, gets.size());
+        Assert.assertEquals("row2", Bytes.toString(gets.get(1).getRow()));
+        Assert.assertNotNull(gets.get(1).getFilter());
+
+        // the rows are fetched up front, so the table is already released
+        verify(tableInterface).close();
+
+        Assert.assertTrue(cursor.next());
+        Assert.assertEquals(Collections.singletonMap("name", "bob"), cursor.get());
+        Assert.assertTrue(cursor.next());
+        Assert.assertEquals("carol", cursor.get().get("name"));
+        Assert.assertFalse(cursor.next());
+
+        cursor.close();
+        verify(tableInterface).close();
+        verifyNoMoreInteractions(tableInterface);
+    }
+
+    @Test
+    public void testKeyRange() throws Exception {
+        ResultScanner resultScanner = mock(ResultScanner.class);
+        when(resultScanner.next()).thenReturn(row("b", "bob", 1L)).thenReturn(null);
+        when(tableInterface.getScanner(any(Scan.class))).thenReturn(resultScanner);
+
+        RoutedQueryCursor cursor = router.route(
+                "SELECT * FROM binaryTable WHERE id > 'a' AND id <= 'c' AND name = 'it''s'", null);
+        Assert.assertNotNull(cursor);
+
+        ArgumentCaptor<Scan> scanCaptor = ArgumentCaptor.forClass(Scan.class);
+        verify(tableInterface).getScanner(scanCaptor.capture());
+
+        Scan scan = scanCaptor.getValue();
+        Assert.assertArrayEquals(new byte[] { 'a', 0 }, scan.getStartRow());
+        Assert.assertArrayEquals(new byte[] { 'c', 0 }, scan.getStopRow());
+        Assert.assertNotNull(scan.getFilter());
+
+        Assert.assertTrue(cursor.next());
+        Assert.assertEquals(Lists.newArrayList("id", "name", "count"),
+                Lists.newArrayList(cursor.get().keySet()));
+        Assert.assertArrayEquals(Bytes.toBytes("b"), (byte[]) cursor.get().get("id"));
+        Assert.assertEquals("bob", cursor.get().get("name"));
+        Assert.assertEquals(1L, cursor.get().get("count"));
+
+        // reading the last row releases the scanner and table without a close()
+        verify(resultScanner, never()).close();
+        Assert.assertFalse(cursor.next());
+        verify(resultScanner).close();
+        verify(tableInterface).close();
+
+        // closing again is harmless
+        cursor.close();
+        verify(resultScanner).close();
+        verify(tableInterface).close();
+    }
+
+    @Test
+    public void testSplitConditions() {
+        Assert.assertEquals(Lists.newArrayList("id = :id", "name = 'x and y'", "count >= 1"),
+                QueryRouter.splitConditions("id = :id AND name = 'x and y' and count >= 1"));
+    }
+
+    private Result row(String id, String name, long count) {
+        byte[] rowKey = Bytes.toBytes(id);
+
+        return new Result(new KeyValue[] {
+                new KeyValue(rowKey, Bytes.toBytes("cf"), Bytes.toBytes("count"), Bytes.toBytes(count)),
+                new KeyValue(rowKey, Bytes.toBytes("cf"), Bytes.toBytes("full_name"), Bytes.toBytes(name)) });
+    }
+}
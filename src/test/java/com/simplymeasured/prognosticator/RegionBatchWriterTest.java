@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.regionserver.NoSuchColumnFamilyException;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class RegionBatchWriterTest {
+    @Test
+    public void testGroupsByServerAndRetriesFailures() throws Exception {
+        final HRegionLocation serverA = mock(HRegionLocation.class);
+        when(serverA.getHostnamePort()).thenReturn("a:60020");
+        final HRegionLocation serverB = mock(HRegionLocation.class);
+        when(serverB.getHostnamePort()).thenReturn("b:60020");
+
+        final List<Set<String>> chunkServers = Collections.synchronizedList(Lists.<Set<String>>newArrayList());
+        final List<String> written = Collections.synchronizedList(Lists.<String>newArrayList());
+        final AtomicInteger failuresLeft = new AtomicInteger(2);
+
+        HTable table = mock(HTable.class);
+        when(table.getRegionLocation(any(byte[].class), anyBoolean())).thenAnswer(new Answer<HRegionLocation>() {
+            @Override
+            public HRegionLocation answer(InvocationOnMock invocation) throws Throwable {
+                return Bytes.toString((byte[]) invocation.getArguments()[0]).startsWith("a") ? serverA : serverB;
+            }
+        });
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                List<Row> chunk = (List<Row>) invocation.getArguments()[0];
+                Object[] results = (Object[]) invocation.getArguments()[1];
+                Set<String> servers = Sets.newHashSet();
+
+                for(int i = 0; i < chunk.size(); i++) {
+                    String row = Bytes.toString(chunk.get(i).getRow());
+                    servers.add(row.substring(0, 1));
+
+                    // b3 fails twice
+                    if(row.equals("b3") && failuresLeft.getAndDecrement() > 0) {
+                        results[i] = new IOException("region moved");
+                    } else {
+                        results[i] = new Result();
+                        written.add(row);
+                    }
+                }
+
+                chunkServers.add(servers);
+                return null;
+            }
+        }).when(table).batch(anyList(), any(Object[].class));
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("batchTable"))).thenReturn(table);
+
+        RegionBatchWriter writer = new RegionBatchWriter(new Configuration(), tableFactory, 4);
+        writer.setChunkSize(2);
+        writer.setRetryBackoff(1);
+
+        List<Put> puts = Lists.newArrayList();
+        for(String row: new String[] { "a1", "b1", "a2", "b2", "a3", "b3" }) {
+            Put put = new Put(Bytes.toBytes(row));
+            put.add(Bytes.toBytes("cf"), Bytes.toBytes("q"), Bytes.toBytes(row));
+            puts.add(put);
+        }
+
+        writer.write("batchTable", puts);
+        writer.shutdown();
+
+        Assert.assertEquals(Sets.newHashSet("a1", "a2", "a3", "b1", "b2", "b3"), Sets.newHashSet(written));
+        Assert.assertEquals(6, written.size());
+
+        // every chunk went to a single server, and only b3 was retried, with fresh region locations
+        for(Set<String> servers: chunkServers) {
+            Assert.assertEquals(1, servers.size());
+        }
+        Assert.assertEquals(4 + 2, chunkServers.size());
+        verify(table, times(2)).getRegionLocation(Bytes.toBytes("b3"), true);
+    }
+
+    @Test
+    public void testServerLimitIsSharedByWrites() throws Exception {
+        HRegionLocation server = mock(HRegionLocation.class);
+        when(server.getHostnamePort()).thenReturn("a:60020");
+
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        HTable table = mock(HTable.class);
+        when(table.getRegionLocation(any(byte[].class), anyBoolean())).thenReturn(server);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                int current = inFlight.incrementAndGet();
+                synchronized(maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), current));
+                }
+
+                Thread.sleep(20);
+
+                Object[] results = (Object[]) invocation.getArguments()[1];
+                for(int i = 0; i < results.length; i++) {
+                    results[i] = new Result();
+                }
+
+                inFlight.decrementAndGet();
+                return null;
+            }
+        }).when(table).batch(anyList(), any(Object[].class));
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("batchTable"))).thenReturn(table);
+
+        final RegionBatchWriter writer = new RegionBatchWriter(new Configuration(), tableFactory, 8);
+        writer.setServerConcurrency(2);
+        writer.setChunkSize(1);
+
+        final List<Put> puts = Lists.newArrayList();
+        for(int i = 0; i < 4; i++) {
+            Put put = new Put(Bytes.toBytes("a" + i));
+            put.add(Bytes.toBytes("cf"), Bytes.toBytes("q"), Bytes.toBytes(i));
+            puts.add(put);
+        }
+
+        // four writers, each of which could keep two chunks in flight on its own
+        List<Thread> threads = Lists.newArrayList();
+        final List<Exception> errors = Collections.synchronizedList(Lists.<Exception>newArrayList());
+
+        for(int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writer.write("batchTable", puts);
+                    } catch(Exception e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for(Thread thread: threads) {
+            thread.join();
+        }
+
+        writer.shutdown();
+
+        Assert.assertTrue(errors.isEmpty());
+        Assert.assertEquals(2, maxInFlight.get());
+        verify(table, times(16)).batch(anyList(), any(Object[].class));
+    }
+
+    @Test
+    public void testGivesUpAfterRetries() throws Exception {
+        HTable table = mock(HTable.class);
+        doThrow(new IOException("server down")).when(table).batch(anyList(), any(Object[].class));
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("batchTable"))).thenReturn(table);
+
+        RegionBatchWriter writer = new RegionBatchWriter(new Configuration(), tableFactory, 2);
+        writer.setMaxRetries(2);
+        writer.setRetryBackoff(1);
+
+        Put put = new Put(Bytes.toBytes("row"));
+        put.add(Bytes.toBytes("cf"), Bytes.toBytes("q"), Bytes.toBytes("value"));
+
+        try {
+            writer.write("batchTable", Lists.newArrayList(put));
+            Assert.fail("expected the write to fail");
+        } catch(IOException ioe) {
+            Assert.assertEquals("server down", ioe.getCause().getMessage());
+        } finally {
+            writer.shutdown();
+        }
+
+        verify(table, times(3)).batch(anyList(), any(Object[].class));
+    }
+
+    @Test
+    public void testFailsRejectedMutationsRightAway() throws Exception {
+        HTable table = mock(HTable.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Object[] results = (Object[]) invocation.getArguments()[1];
+                results[0] = new NoSuchColumnFamilyException("missing");
+
+                throw new IOException("batch failed");
+            }
+        }).when(table).batch(anyList(), any(Object[].class));
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("batchTable"))).thenReturn(table);
+
+        RegionBatchWriter writer = new RegionBatchWriter(new Configuration(), tableFactory, 2);
+        writer.setRetryBackoff(1);
+
+        Put put = new Put(Bytes.toBytes("row"));
+        put.add(Bytes.toBytes("missing"), Bytes.toBytes("q"), Bytes.toBytes("value"));
+
+        try {
+            writer.write("batchTable", Lists.newArrayList(put));
+            Assert.fail("expected the write to fail");
+        } catch(IOException ioe) {
+            Assert.assertTrue(ioe.getCause() instanceof NoSuchColumnFamilyException);
+        } finally {
+            writer.shutdown();
+        }
+
+        verify(table, times(1)).batch(anyList(), any(Object[].class));
+
+        // the client's own retries are lowered, since failures are retried by the writer
+        ArgumentCaptor<Configuration> configurationCaptor = ArgumentCaptor.forClass(Configuration.class);
+        verify(tableFactory, atLeastOnce()).getTable(configurationCaptor.capture(), eq("batchTable"));
+        Assert.assertEquals(2, configurationCaptor.getValue().getInt(HConstants.HBASE_CLIENT_RETRIES_NUMBER, 0));
+    }
+}
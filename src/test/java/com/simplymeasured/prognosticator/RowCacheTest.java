@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class RowCacheTest {
+    @Test
+    public void testGetReturnsCopy() {
+        RowCache cache = new RowCache(1024 * 1024, 1, TimeUnit.MINUTES);
+
+        Map<String, Object> row = Maps.newHashMap();
+        row.put("name", "value");
+
+        cache.put("table", Bytes.toBytes("key"), row);
+        row.put("name", "changed");
+
+        Map<String, Object> cached = cache.get("table", Bytes.toBytes("key"));
+        Assert.assertEquals("value", cached.get("name"));
+
+        cached.put("__rowkey", Bytes.toBytes("key"));
+        Assert.assertFalse(cache.get("table", Bytes.toBytes("key")).containsKey("__rowkey"));
+
+        Assert.assertNull(cache.get("otherTable", Bytes.toBytes("key")));
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNestedValuesAreCopied() {
+        RowCache cache = new RowCache(1024 * 1024, 1, TimeUnit.MINUTES);
+
+        Map<String, Object> attributes = Maps.newHashMap();
+        attributes.put("tags", Lists.newArrayList("a", "b"));
+
+        Map<String, Object> row = Maps.newHashMap();
+        row.put("tags", Lists.newArrayList("a", "b"));
+        row.put("attributes", attributes);
+
+        cache.put("table", Bytes.toBytes("key"), row);
+        ((List<Object>) row.get("tags")).add("added by the writer");
+
+        Map<String, Object> cached = cache.get("table", Bytes.toBytes("key"));
+        ((List<Object>) cached.get("tags")).clear();
+        ((List<Object>) ((Map<String, Object>) cached.get("attributes")).get("tags")).add("added by a reader");
+
+        Map<String, Object> again = cache.get("table", Bytes.toBytes("key"));
+        Assert.assertEquals(Lists.newArrayList("a", "b"), again.get("tags"));
+        Assert.assertEquals(Lists.newArrayList("a", "b"), ((Map<String, Object>) again.get("attributes")).get("tags"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        RowCache cache = new RowCache(1024 * 1024, 1, TimeUnit.MINUTES);
+
+        Map<String, Object> row = Maps.newHashMap();
+        row.put("name", "value");
+
+        cache.put("table", Bytes.toBytes("key"), row);
+        cache.invalidate("table", Bytes.toBytes("key"));
+
+        Assert.assertNull(cache.get("table", Bytes.toBytes("key")));
+        Assert.assertEquals(0, cache.getEvictionCount());
+        Assert.assertEquals(0, cache.getEstimatedBytes());
+    }
+
+    @Test
+    public void testWriteDuringReadIsNotCached() {
+        RowCache cache = new RowCache(1024 * 1024, 1, TimeUnit.MINUTES);
+
+        Map<String, Object> row = Maps.newHashMap();
+        row.put("name", "value");
+
+        long generation = cache.getWriteGeneration("table");
+        cache.invalidate("table", Bytes.toBytes("key"));
+        cache.put("table", Bytes.toBytes("key"), row, generation);
+
+        Assert.assertNull(cache.get("table", Bytes.toBytes("key")));
+
+        cache.put("table", Bytes.toBytes("key"), row, cache.getWriteGeneration("table"));
+
+        Assert.assertEquals("value", cache.get("table", Bytes.toBytes("key")).get("name"));
+    }
+
+    @Test
+    public void testTableTtl() throws Exception {
+        RowCache cache = new RowCache(1024 * 1024, 1, TimeUnit.MINUTES);
+        cache.setTableTtl("shortLived", 1, TimeUnit.MILLISECONDS);
+
+        Map<String, Object> row = Maps.newHashMap();
+        row.put("name", "value");
+
+        cache.put("shortLived", Bytes.toBytes("key"), row);
+        cache.put("longLived", Bytes.toBytes("key"), row);
+
+        Thread.sleep(10);
+
+        Assert.assertNull(cache.get("shortLived", Bytes.toBytes("key")));
+        Assert.assertNotNull(cache.get("longLived", Bytes.toBytes("key")));
+        Assert.assertEquals(1, cache.getExpirationCount());
+        Assert.assertEquals(0.5, cache.getHitRatio(), 0.0001);
+    }
+
+    @Test
+    public void testSizeBound() {
+        RowCache cache = new RowCache(16 * 1024, 1, TimeUnit.MINUTES);
+
+        for(int i = 0; i < 1000; i++) {
+            Map<String, Object> row = Maps.newHashMap();
+            row.put("name", "a string that takes up some room in the cache " + i);
+
+            cache.put("table", Bytes.toBytes(i), row);
+        }
+
+        Assert.assertTrue(cache.getEvictionCount() > 0);
+        Assert.assertTrue(cache.getEstimatedBytes() <= 16 * 1024);
+    }
+}
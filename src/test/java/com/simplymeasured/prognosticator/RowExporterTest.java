@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.apache.hcatalog.data.schema.HCatSchema;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.jdbc.support.rowset.SqlRowSetMetaData;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class RowExporterTest {
+    @Test
+    public void testExportQuery() throws Exception {
+        SqlRowSetMetaData metadata = mock(SqlRowSetMetaData.class);
+        when(metadata.getColumnCount()).thenReturn(3);
+        when(metadata.getColumnName(1)).thenReturn("name");
+        when(metadata.getColumnTypeName(1)).thenReturn("STRING");
+        when(metadata.getColumnName(2)).thenReturn("count");
+        when(metadata.getColumnTypeName(2)).thenReturn("BIGINT");
+        when(metadata.getColumnName(3)).thenReturn("tags");
+        when(metadata.getColumnTypeName(3)).thenReturn("MAP");
+
+        SqlRowSet rowSet = mock(SqlRowSet.class);
+        when(rowSet.getMetaData()).thenReturn(metadata);
+        when(rowSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(rowSet.getString(1)).thenReturn("bob, jr").thenReturn("tab\\there");
+        when(rowSet.getObject(2)).thenReturn(3L).thenReturn(null);
+        when(rowSet.getString(3)).thenReturn("{\"a\":\"x\"}").thenReturn(null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(2, new RowExporter(RowExporter.Format.JSON_LINES).export(
+                new HiveQueryCursorImpl(rowSet), out));
+
+        Assert.assertEquals("{\"name\":\"bob, jr\",\"count\":3,\"tags\":{\"a\":\"x\"}}\n"
+                + "{\"name\":\"tab\\there\",\"count\":null,\"tags\":null}\n", out.toString("UTF-8"));
+
+        when(rowSet.next()).thenReturn(true).thenReturn(false);
+        when(rowSet.getString(1)).thenReturn("say \"hi\"");
+        when(rowSet.getObject(2)).thenReturn(4L);
+        when(rowSet.getString(3)).thenReturn("{\"a\":\"x\",\"b\":\"y\"}");
+
+        out.reset();
+        new RowExporter(RowExporter.Format.CSV).export(new HiveQueryCursorImpl(rowSet), out);
+
+        Assert.assertEquals("name,count,tags\n\"say \"\"hi\"\"\",4,\"{\"\"a\"\":\"\"x\"\",\"\"b\"\":\"\"y\"\"}\"\n",
+                out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testExportScan() throws Exception {
+        HCatSchema tagSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema(null, HCatFieldSchema.Type.STRING, "")));
+        HCatSchema scoreSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema(null, HCatFieldSchema.Type.STRING, "")));
+
+        HCatTable table = mock(HCatTable.class);
+        when(table.getTableName()).thenReturn("exportTable");
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("tags", HCatFieldSchema.Type.ARRAY, tagSchema, ""),
+                new HCatFieldSchema("scores", HCatFieldSchema.Type.MAP, HCatFieldSchema.Type.STRING, scoreSchema,
+                        ""),
+                new HCatFieldSchema("count", HCatFieldSchema.Type.INT, ""),
+                new HCatFieldSchema("skipped", HCatFieldSchema.Type.STRING, "")));
+
+        Map<String, String> tableProperties = Maps.newHashMap();
+        tableProperties.put(HiveUtils.HBASE_COLUMNS_MAPPING, ":key,cf:tags,cf:scores,cf:count,cf:skipped");
+        when(table.getTblProps()).thenReturn(tableProperties);
+
+        byte[] rowKey = Bytes.toBytes("row1");
+        byte[] scores = Bytes.toBytes("a\u00031\u0002b\u0003");
+
+        ResultScanner resultScanner = mock(ResultScanner.class);
+        when(resultScanner.next())
+                .thenReturn(new Result(new KeyValue[] {
+                        new KeyValue(rowKey, Bytes.toBytes("cf"), Bytes.toBytes("count"), Bytes.toBytes(7)),
+                        new KeyValue(rowKey, Bytes.toBytes("cf"), Bytes.toBytes("scores"), scores),
+                        new KeyValue(rowKey, Bytes.toBytes("cf"), Bytes.toBytes("skipped"), Bytes.toBytes("x")),
+                        new KeyValue(rowKey, Bytes.toBytes("cf"), Bytes.toBytes("tags"),
+                                Bytes.toBytes("a\u0002b\\\\c")) }))
+                .thenReturn(null);
+
+        HBaseScanCursor cursor = new HBaseScanCursor(table, mock(HTableInterface.class), resultScanner);
+        cursor.setProjection(Lists.newArrayList("tags", "scores", "count"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(1, new RowExporter(RowExporter.Format.JSON_LINES).export(cursor, out));
+
+        Assert.assertEquals("{\"id\":\"row1\",\"tags\":[\"a\",\"b\\\\c\"],\"scores\":{\"a\":\"1\"},\"count\":7}\n",
+                new String(out.toByteArray(), Charsets.UTF_8));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class RowKeySalterTest {
+    @Test
+    public void testSaltRoundTrip() {
+        RowKeySalter salter = new RowKeySalter(16);
+
+        byte[] rowKey = Bytes.toBytes("20130601-1234");
+        byte[] salted = salter.salt(rowKey);
+
+        Assert.assertEquals(rowKey.length + 1, salted.length);
+        Assert.assertEquals(salter.getBucket(rowKey), salted[0]);
+        Assert.assertArrayEquals(rowKey, salter.unsalt(salted));
+        Assert.assertArrayEquals(salted, salter.salt(rowKey));
+    }
+
+    @Test
+    public void testSpreadsSequentialKeys() {
+        RowKeySalter salter = new RowKeySalter(8);
+        int[] counts = new int[8];
+
+        for(long i = 0; i < 8000; i++) {
+            counts[salter.getBucket(Bytes.toBytes(i))]++;
+        }
+
+        for(int count: counts) {
+            Assert.assertTrue("bucket count " + count, count > 500);
+        }
+    }
+
+    @Test
+    public void testBucketScans() throws Exception {
+        RowKeySalter salter = new RowKeySalter(4);
+
+        List<Scan> scans = salter.getBucketScans(new Scan(Bytes.toBytes("a"), Bytes.toBytes("c")));
+
+        Assert.assertEquals(4, scans.size());
+        Assert.assertArrayEquals(new byte[] { 2, 'a' }, scans.get(2).getStartRow());
+        Assert.assertArrayEquals(new byte[] { 2, 'c' }, scans.get(2).getStopRow());
+
+        scans = salter.getBucketScans(new Scan());
+        Assert.assertArrayEquals(new byte[] { 3 }, scans.get(3).getStartRow());
+        Assert.assertArrayEquals(new byte[] { 4 }, scans.get(3).getStopRow());
+    }
+
+    @Test
+    public void testMergedScanOrder() throws Exception {
+        ResultScanner bucket0 = new ListResultScanner(result(0, "b"), result(0, "d"));
+        ResultScanner bucket1 = new ListResultScanner(result(1, "a"), result(1, "c"), result(1, "e"));
+        ResultScanner bucket2 = new ListResultScanner();
+
+        SaltedResultScanner scanner = new SaltedResultScanner(Lists.newArrayList(bucket0, bucket1, bucket2));
+
+        List<String> rows = Lists.newArrayList();
+        for(Result result: scanner) {
+            rows.add(Bytes.toString(result.getRow(), 1, result.getRow().length - 1));
+        }
+
+        scanner.close();
+
+        Assert.assertEquals(Lists.newArrayList("a", "b", "c", "d", "e"), rows);
+    }
+
+    private Result result(int bucket, String row) {
+        byte[] rowKey = Bytes.add(new byte[] { (byte) bucket }, Bytes.toBytes(row));
+
+        return new Result(new KeyValue[] {
+                new KeyValue(rowKey, Bytes.toBytes("cf"), Bytes.toBytes("q"), Bytes.toBytes(row)) });
+    }
+
+    private static class ListResultScanner implements ResultScanner {
+        private final Iterator<Result> results;
+
+        ListResultScanner(Result... results) {
+            this.results = Lists.newArrayList(results).iterator();
+        }
+
+        @Override
+        public Result next() {
+            return results.hasNext() ? results.next() : null;
+        }
+
+        @Override
+        public Result[] next(int nbRows) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public Iterator<Result> iterator() {
+            return results;
+        }
+    }
+}
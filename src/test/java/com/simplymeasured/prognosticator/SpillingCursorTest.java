@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class SpillingCursorTest {
+    @Test
+    public void testRewind() throws Exception {
+        List<Map<String, Object>> rows = Lists.newArrayList();
+
+        for(int i = 0; i < 50; i++) {
+            Map<String, Object> row = Maps.newLinkedHashMap();
+            row.put("id", (long) i);
+            row.put("name", "row " + i);
+            row.put("missing", null);
+
+            if(i % 2 == 0) {
+                Map<String, Object> nested = Maps.newLinkedHashMap();
+                nested.put("tags", Lists.newArrayList("a", "b"));
+                nested.put("score", 1.5d);
+
+                row.put("nested", nested);
+                row.put("flag", true);
+                row.put("raw", new byte[] { 1, 2, (byte) i });
+                row.put("amount", new BigDecimal("12.34"));
+                row.put("updated", new Timestamp(1000L * i));
+            }
+
+            rows.add(row);
+        }
+
+        File directory = Files.createTempDir();
+        SpillingCursor cursor = new SpillingCursor(new ListCursor(rows), directory);
+        // small enough that rewound passes remap the file several times
+        cursor.setWindowBytes(256);
+
+        // a partial pass, then two full ones
+        for(int i = 0; i < 10; i++) {
+            Assert.assertTrue(cursor.next());
+        }
+
+        cursor.rewind();
+        assertRows(rows, cursor);
+        Assert.assertEquals(50, cursor.getSpilledRows());
+
+        cursor.rewind();
+        assertRows(rows, cursor);
+
+        Assert.assertEquals(1, directory.listFiles().length);
+        cursor.close();
+        Assert.assertEquals(0, directory.listFiles().length);
+    }
+
+    private void assertRows(List<Map<String, Object>> expected, SpillingCursor cursor) {
+        for(Map<String, Object> row: expected) {
+            Assert.assertTrue(cursor.next());
+            Map<String, Object> actual = cursor.get();
+
+            // columns and map entries come back in the order they were spilled
+            Assert.assertEquals(Lists.newArrayList(row.keySet()), Lists.newArrayList(actual.keySet()));
+
+            for(Map.Entry<String, Object> column: row.entrySet()) {
+                if(column.getValue() instanceof Map) {
+                    Assert.assertEquals(Lists.newArrayList(((Map) column.getValue()).keySet()),
+                            Lists.newArrayList(((Map) actual.get(column.getKey())).keySet()));
+                }
+
+                if(column.getValue() instanceof byte[]) {
+                    Assert.assertArrayEquals((byte[]) column.getValue(), (byte[]) actual.get(column.getKey()));
+                } else {
+                    Assert.assertEquals(column.getValue(), actual.get(column.getKey()));
+                }
+            }
+        }
+
+        Assert.assertFalse(cursor.next());
+    }
+
+    private static class ListCursor implements CloseableQueryCursor<Map<String, Object>> {
+        private final Iterator<Map<String, Object>> rows;
+        private Map<String, Object> current;
+
+        private ListCursor(List<Map<String, Object>> rows) {
+            this.rows = rows.iterator();
+        }
+
+        @Override
+        public boolean next() {
+            current = rows.hasNext() ? rows.next() : null;
+
+            return current != null;
+        }
+
+        @Override
+        public Map<String, Object> get() {
+            return current;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hcatalog.api.HCatTable;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.apache.hcatalog.data.schema.HCatSchema;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class TableCodecTest {
+    @Test
+    public void testEncodeAndDecode() throws Exception {
+        HCatSchema pointSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema("label", HCatFieldSchema.Type.STRING, ""),
+                new HCatFieldSchema("weight", HCatFieldSchema.Type.DOUBLE, "")));
+        HCatSchema elementSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema(null, HCatFieldSchema.Type.STRUCT, pointSchema, "")));
+        HCatSchema valueSchema = new HCatSchema(Lists.newArrayList(
+                new HCatFieldSchema(null, HCatFieldSchema.Type.ARRAY, elementSchema, "")));
+
+        HCatFieldSchema column = new HCatFieldSchema("points", HCatFieldSchema.Type.MAP,
+                HCatFieldSchema.Type.STRING, valueSchema, "");
+
+        HCatTable table = mock(HCatTable.class);
+        when(table.getCols()).thenReturn(Lists.newArrayList(
+                new HCatFieldSchema("id", HCatFieldSchema.Type.STRING, ""), column,
+                new HCatFieldSchema("flag", HCatFieldSchema.Type.BOOLEAN, "")));
+        when(table.getTblProps()).thenReturn(Maps.<String, String>newHashMap());
+
+        Map<String, Object> points = Maps.newLinkedHashMap();
+        points.put("line\none", Lists.newArrayList(point("a\\b", 1.5), point("ünï\u0001", -2.0)));
+        points.put("empty", Lists.newArrayList());
+
+        TableCodec codec = TableCodec.forTable(table);
+        Assert.assertSame(codec, TableCodec.forTable(table));
+
+        byte[] encoded = codec.getColumnCodec(1).encode(points);
+
+        // map entries split on \002, keys on \003, list elements on \004 and struct fields on \005
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(Bytes.toBytes("line\\\\none\003a\\\\\\\\b\005"));
+        expected.write(Bytes.toBytes(1.5));
+        expected.write(Bytes.toBytes("\004ünï\t\005"));
+        expected.write(Bytes.toBytes(-2.0));
+        expected.write(Bytes.toBytes("\002empty\003"));
+
+        Assert.assertArrayEquals(expected.toByteArray(), encoded);
+        Assert.assertNull(codec.getColumnCodec(1).encode(null));
+        Assert.assertArrayEquals(new byte[] { -1 }, codec.getColumnCodec(2).encode(true));
+
+        Object decoded = codec.getColumnCodec(1).decode(encoded, null);
+
+        // as rows have always been read back: escaped backslashes stay doubled and a trailing empty value is dropped
+        Map<String, Object> stored = Maps.newLinkedHashMap();
+        stored.put("line\\none", Lists.newArrayList(point("a\\\\b", 1.5), point("ünï\u0001", -2.0)));
+
+        Assert.assertEquals(stored, decoded);
+
+        // a reused map is refilled in place
+        Map<String, Object> previous = Maps.newHashMap();
+        previous.put("stale", "value");
+
+        Assert.assertSame(previous, codec.getColumnCodec(1).decode(encoded, previous));
+        Assert.assertEquals(decoded, previous);
+        Assert.assertEquals("default", new String(codec.getFamily(1), "UTF-8"));
+        Assert.assertEquals("points", codec.getResultKey(1));
+    }
+
+    private Map<String, Object> point(String label, double weight) {
+        Map<String, Object> result = Maps.newHashMap();
+        result.put("label", label);
+        result.put("weight", weight);
+
+        return result;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2013 Simply Measured, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simplymeasured.prognosticator;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author rob@simplymeasured.com
+ * @since 10/19/26
+ */
+public class WriteSpoolTest {
+    @Test
+    public void testReplaysInOrderAfterFailures() throws Exception {
+        final List<String> written = Collections.synchronizedList(Lists.<String>newArrayList());
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        doThrow(new IOException("region moving")).doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                written.add(Bytes.toString(((Put) invocation.getArguments()[0]).getRow()));
+                return null;
+            }
+        }).when(tableInterface).put(any(Put.class));
+
+        HTableFactory tableFactory = mock(HTableFactory.class);
+        when(tableFactory.getTable(any(Configuration.class), eq("spoolTable"))).thenReturn(tableInterface);
+
+        WriteSpool spool = new WriteSpool(Files.createTempDir(), new Configuration(), tableFactory);
+        spool.setSegmentBytes(256);
+        spool.setRetryDelay(10);
+
+        final List<String> replayed = Collections.synchronizedList(Lists.<String>newArrayList());
+        spool.addReplayListener(new SpoolReplayListener() {
+            @Override
+            public void replayed(String tableName, byte[] rowKey) {
+                replayed.add(tableName + "/" + Bytes.toString(rowKey));
+            }
+        });
+
+        spool.open();
+
+        for(int i = 0; i < 20; i++) {
+            spool.append("table", "spoolTable", put("row" + i), new Delete(Bytes.toBytes("row" + i)));
+        }
+
+        Assert.assertTrue(spool.awaitDrained(10000));
+        spool.close();
+
+        List<String> expected = Lists.newArrayList();
+        for(int i = 0; i < 20; i++) {
+            expected.add("row" + i);
+        }
+
+        Assert.assertEquals(expected, written);
+        Assert.assertEquals(20, spool.getReplayedCount());
+
+        // listeners only hear about writes once they reached HBase
+        Assert.assertEquals(20, replayed.size());
+        Assert.assertEquals("table/row0", replayed.get(0));
+        Assert.assertEquals("table/row19", replayed.get(19));
+    }
+
+    @Test
+    public void testRecoversAfterRestart() throws Exception {
+        File directory = Files.createTempDir();
+
+        // HBase is down for the first spool
+        HTableFactory downFactory = mock(HTableFactory.class);
+        when(downFactory.getTable(any(Configuration.class), anyString()))
+                .thenThrow(new TableAcquisitionException("down"));
+
+        WriteSpool spool = new WriteSpool(directory, new Configuration(), downFactory);
+        spool.setRetryDelay(10);
+        spool.open();
+
+        for(int i = 0; i < 5; i++) {
+            spool.append("table", "spoolTable", put("row" + i), new Delete(Bytes.toBytes("row" + i)));
+        }
+
+        spool.close();
+
+        // tear the last record, as a crash mid-append would
+        RandomAccessFile file = new RandomAccessFile(new File(directory, String.format("%020d.seg", 0)), "rw");
+        long end = findEnd(file);
+        file.seek(end - 1);
+        int last = file.read();
+        file.seek(end - 1);
+        file.write(last ^ 0xff);
+        file.close();
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        HTableFactory upFactory = mock(HTableFactory.class);
+        when(upFactory.getTable(any(Configuration.class), eq("spoolTable"))).thenReturn(tableInterface);
+
+        spool = new WriteSpool(directory, new Configuration(), upFactory);
+        spool.open();
+
+        Assert.assertTrue(spool.awaitDrained(10000));
+        Assert.assertEquals(4, spool.getReplayedCount());
+        verify(tableInterface, times(4)).put(any(Put.class));
+
+        // the replayed segment is gone, and new writes still work
+        spool.append("table", "spoolTable", put("row5"), new Delete(Bytes.toBytes("row5")));
+        Assert.assertTrue(spool.awaitDrained(10000));
+        verify(tableInterface, times(5)).put(any(Put.class));
+
+        spool.close();
+    }
+
+    @Test
+    public void testSkipsCorruptRecord() throws Exception {
+        File directory = Files.createTempDir();
+
+        HTableFactory downFactory = mock(HTableFactory.class);
+        when(downFactory.getTable(any(Configuration.class), anyString()))
+                .thenThrow(new TableAcquisitionException("down"));
+
+        WriteSpool spool = new WriteSpool(directory, new Configuration(), downFactory);
+        spool.setRetryDelay(10);
+        spool.open();
+
+        for(int i = 0; i < 5; i++) {
+            spool.append("table", "spoolTable", put("row" + i), new Delete(Bytes.toBytes("row" + i)));
+        }
+
+        spool.close();
+
+        // flip a payload byte of the third record, leaving its length intact
+        RandomAccessFile file = new RandomAccessFile(new File(directory, String.format("%020d.seg", 0)), "rw");
+        long offset = findRecord(file, 2) + 12;
+        file.seek(offset);
+        int value = file.read();
+        file.seek(offset);
+        file.write(value ^ 0xff);
+        file.close();
+
+        final List<String> written = Collections.synchronizedList(Lists.<String>newArrayList());
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                written.add(Bytes.toString(((Put) invocation.getArguments()[0]).getRow()));
+                return null;
+            }
+        }).when(tableInterface).put(any(Put.class));
+
+        HTableFactory upFactory = mock(HTableFactory.class);
+        when(upFactory.getTable(any(Configuration.class), eq("spoolTable"))).thenReturn(tableInterface);
+
+        spool = new WriteSpool(directory, new Configuration(), upFactory);
+        spool.open();
+
+        Assert.assertTrue(spool.awaitDrained(10000));
+        spool.close();
+
+        Assert.assertEquals(Lists.newArrayList("row0", "row1", "row3", "row4"), written);
+        Assert.assertEquals(1, spool.getCorruptCount());
+    }
+
+    @Test
+    public void testStopsAtUnreadableLength() throws Exception {
+        File directory = spoolWhileDown(10, 600);
+        File first = new File(directory, String.format("%020d.seg", 0));
+        Assert.assertTrue(new File(directory, String.format("%020d.seg", 1)).exists());
+
+        // a changed length can't be told from a good one without its copy
+        RandomAccessFile file = new RandomAccessFile(first, "rw");
+        file.seek(findRecord(file, 1));
+        file.writeInt(file.readInt() + 1);
+        file.close();
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        HTableFactory upFactory = mock(HTableFactory.class);
+        when(upFactory.getTable(any(Configuration.class), eq("spoolTable"))).thenReturn(tableInterface);
+
+        WriteSpool spool = new WriteSpool(directory, new Configuration(), upFactory);
+        spool.open();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!spool.isReplayStopped() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertTrue(spool.isReplayStopped());
+        Assert.assertEquals(1, spool.getReplayedCount());
+
+        try {
+            spool.append("table", "spoolTable", put("row10"), new Delete(Bytes.toBytes("row10")));
+            Assert.fail("expected appends to fail once replay stopped");
+        } catch(IOException ioe) {
+            // expected
+        }
+
+        spool.close();
+
+        // nothing after the unreadable record was dropped
+        Assert.assertTrue(first.exists());
+        verify(tableInterface, times(1)).put(any(Put.class));
+    }
+
+    @Test
+    public void testSetsAsideTornSegment() throws Exception {
+        File directory = spoolWhileDown(5, 64 * 1024);
+        File segment = new File(directory, String.format("%020d.seg", 0));
+
+        // a crash wrote the last record's length but not its copy
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(findRecord(file, 4) + 4);
+        file.writeInt(0);
+        file.close();
+
+        HTableInterface tableInterface = mock(HTableInterface.class);
+        HTableFactory upFactory = mock(HTableFactory.class);
+        when(upFactory.getTable(any(Configuration.class), eq("spoolTable"))).thenReturn(tableInterface);
+
+        WriteSpool spool = new WriteSpool(directory, new Configuration(), upFactory);
+        spool.open();
+
+        Assert.assertTrue(spool.awaitDrained(10000));
+        Assert.assertFalse(spool.isReplayStopped());
+        Assert.assertEquals(4, spool.getReplayedCount());
+
+        spool.append("table", "spoolTable", put("row5"), new Delete(Bytes.toBytes("row5")));
+        Assert.assertTrue(spool.awaitDrained(10000));
+        spool.close();
+
+        verify(tableInterface, times(5)).put(any(Put.class));
+        Assert.assertFalse(segment.exists());
+        Assert.assertTrue(new File(directory, segment.getName() + ".torn").exists());
+    }
+
+    @Test
+    public void testDiskQuota() throws Exception {
+        HTableFactory downFactory = mock(HTableFactory.class);
+        when(downFactory.getTable(any(Configuration.class), anyString()))
+                .thenThrow(new TableAcquisitionException("down"));
+
+        WriteSpool spool = new WriteSpool(Files.createTempDir(), new Configuration(), downFactory);
+        spool.setSegmentBytes(512);
+        spool.setMaxBytes(1024);
+        spool.setRetryDelay(10);
+        spool.open();
+
+        try {
+            for(int i = 0; i < 100; i++) {
+                spool.append("table", "spoolTable", put("row" + i), new Delete(Bytes.toBytes("row" + i)));
+            }
+
+            Assert.fail("expected the spool to fill up");
+        } catch(IOException ioe) {
+            Assert.assertTrue(spool.getSpoolBytes() <= 1024);
+        } finally {
+            spool.close();
+        }
+    }
+
+    private Put put(String row) {
+        Put put = new Put(Bytes.toBytes(row));
+        put.add(Bytes.toBytes("cf"), Bytes.toBytes("value"), Bytes.toBytes(row));
+
+        return put;
+    }
+
+    /**
+     * @return a directory holding the writes of a spool closed while HBase was down
+     */
+    private File spoolWhileDown(int rows, long segmentBytes) throws Exception {
+        File directory = Files.createTempDir();
+
+        HTableFactory downFactory = mock(HTableFactory.class);
+        when(downFactory.getTable(any(Configuration.class), anyString()))
+                .thenThrow(new TableAcquisitionException("down"));
+
+        WriteSpool spool = new WriteSpool(directory, new Configuration(), downFactory);
+        spool.setSegmentBytes(segmentBytes);
+        spool.setRetryDelay(10);
+        spool.open();
+
+        for(int i = 0; i < rows; i++) {
+            spool.append("table", "spoolTable", put("row" + i), new Delete(Bytes.toBytes("row" + i)));
+        }
+
+        spool.close();
+
+        return directory;
+    }
+
+    /**
+     * @return the offset just past the last record
+     */
+    private long findEnd(RandomAccessFile file) throws IOException {
+        return findRecord(file, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the offset of the record at the index, or just past the last record if there are fewer
+     */
+    private long findRecord(RandomAccessFile file, int index) throws IOException {
+        long offset = 0;
+
+        for(int i = 0; i < index && offset + 12 <= file.length(); i++) {
+            file.seek(offset);
+            int length = file.readInt();
+
+            if(length <= 0) {
+                break;
+            }
+
+            offset += 12 + length;
+        }
+
+        return offset;
+    }
+}